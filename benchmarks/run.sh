@@ -0,0 +1,11 @@
+#!/bin/sh
+# Builds the server and the benchmarks and runs them with the gc profiler, writing the results
+# as JSON to benchmarks/results/<name>.json (default: the current commit). Extra arguments go to
+# JMH, e.g. a benchmark pattern such as RoutingBenchmark or -f 1 -wi 2 -i 3 for a quick run.
+cd "$(dirname "$0")/.." || exit 1
+mvn -q install -DskipTests || exit 1
+cd benchmarks || exit 1
+mvn -q package || exit 1
+NAME=${NAME:-$(git rev-parse --short HEAD 2>/dev/null || echo latest)}
+mkdir -p results
+java -jar target/benchmarks.jar -prof gc -rf json -rff "results/$NAME.json" "$@"
@@ -0,0 +1,125 @@
+package coda.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Servers, services and requests shared by the benchmarks. The benchmarks live in the server's
+ * package so they can call the request path below the transports, without sockets.
+ */
+final class BenchmarkSupport {
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Keep per-request log lines out of the measurements.
+     */
+    static void quietLogging() {
+        Logger.getLogger("").setLevel(Level.WARNING);
+    }
+
+    /**
+     * Create a server for the application's services without starting it.
+     *
+     * @param app the application
+     * @return the server
+     */
+    static WebServer server(CodaApplication app) {
+        return app.createServer("localhost", 0, ServerConfig.defaults());
+    }
+
+    /**
+     * Build a service with a static page, like most registered services.
+     *
+     * @param index a number distinguishing the service
+     * @return the service, answering /service-{index}
+     */
+    static WebPageService<Object, String> service(int index) {
+        return new WebPageServiceBuilder<Object, String>()
+                .setTitle("Service " + index)
+                .setDescription("Benchmark service number " + index)
+                .setVersion("1.0." + index)
+                .setAuthor("Coda")
+                .setLicense("MIT")
+                .setService(input -> "output " + index)
+                .setContent(out -> out.raw("<p>").text("Content of service " + index).raw("</p>"))
+                .build();
+    }
+
+    /**
+     * Parse a request the way a transport does.
+     *
+     * @param server the server
+     * @param head the request head, lines separated by CRLF and ending with a blank line
+     * @return the request
+     */
+    static WebServer.CustomHttpServletRequest request(WebServer server, String head) {
+        try {
+            HttpRequestParser parser = HttpRequestParser.create(ServerConfig.defaults());
+            return server.readRequest(parser, new ByteArrayInputStream(head.getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Make a request once without a cookie and return the session cookie it was given,
+     * so measured requests reuse one session instead of creating one each.
+     *
+     * @param server the server
+     * @param path a path answered by a service
+     * @return the cookie, e.g. CODA_SESSION=...
+     */
+    static String sessionCookie(WebServer server, String path) {
+        WebServer.CustomHttpServletRequest request = request(server, "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        server.matchRequestToService(request, OutputStream.nullOutputStream());
+        Object cookie = request.getAttribute(WebServer.SET_COOKIE);
+        return cookie == null ? "" : cookie.toString().split(";")[0];
+    }
+
+    /**
+     * A browser-like request for a path, with the session cookie.
+     *
+     * @param path the path
+     * @param cookie the session cookie
+     * @return the request head
+     */
+    static String browserRequest(String path, String cookie) {
+        return "GET " + path + " HTTP/1.1\r\n"
+                + "Host: localhost:8080\r\n"
+                + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+                + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+                + "Accept-Language: en-NZ,en;q=0.5\r\n"
+                + "Accept-Encoding: gzip, deflate\r\n"
+                + "Connection: keep-alive\r\n"
+                + (cookie.isEmpty() ? "" : "Cookie: " + cookie + "\r\n")
+                + "Upgrade-Insecure-Requests: 1\r\n"
+                + "\r\n";
+    }
+
+    /**
+     * An output that counts what is written to it and keeps nothing.
+     */
+    static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        long count() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package coda.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering consecutive frames of one scene with a warm Blender process, against a fresh process
+ * per frame as when Blender is launched for every job. Runs the stand-in script from scripts/
+ * unless -p executable=... and -p scene=... name Blender and a .blend file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlenderPoolBenchmark {
+    @Param({"../scripts/fake-blender.sh"})
+    public String executable;
+
+    @Param({""})
+    public String scene;
+
+    @Param({"warm", "fresh"})
+    public String process;
+
+    private Path directory;
+    private File blendFile;
+    private BlenderProcessPool pool;
+    private int frame;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkSupport.quietLogging();
+        directory = Files.createTempDirectory("coda-bench");
+        blendFile = directory.resolve("scene.blend").toFile();
+        if (scene.isEmpty()) {
+            Files.write(blendFile.toPath(), "BLENDER-v300".getBytes());
+        } else {
+            Files.copy(Path.of(scene), blendFile.toPath());
+        }
+        // A job limit of 1 replaces the process after every job
+        int maxJobs = "fresh".equals(process) ? 1 : Integer.MAX_VALUE;
+        pool = new BlenderProcessPool(executable, 1, maxJobs, 600_000, 30_000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        pool.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public File render() throws IOException {
+        return pool.render(new RenderRequest(blendFile, "bench", ++frame, 0, 0, ""));
+    }
+}
@@ -0,0 +1,66 @@
+package coda.app;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The index page listing every service, as sent by sendAllServices for paths no service answers:
+ * built afresh, as after each registration, and served from the page cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class IndexPageBenchmark {
+    @Param({"1", "10", "1000"})
+    public int services;
+
+    private WebServer server;
+    private WebServer.CustomHttpServletRequest index;
+    private final BenchmarkSupport.CountingOutputStream out = new BenchmarkSupport.CountingOutputStream();
+
+    @Setup
+    public void setUp() {
+        BenchmarkSupport.quietLogging();
+        CodaApplication app = new CodaApplication();
+        for (int i = 0; i < services; i++) {
+            app.addService(BenchmarkSupport.service(i));
+        }
+        server = BenchmarkSupport.server(app);
+        index = BenchmarkSupport.request(server, BenchmarkSupport.browserRequest("/", ""));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public byte[] buildIndex() throws IOException {
+        HtmlWriter page = new HtmlWriter();
+        server.renderAllServices(page);
+        return page.toByteArray();
+    }
+
+    @Benchmark
+    public long cachedIndex() {
+        server.matchRequestToService(index, out);
+        return out.count();
+    }
+}
@@ -0,0 +1,70 @@
+package coda.app;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering a service page: {@link WebPageService#getPage} around a String, and a builder
+ * service's content fragment into memory and into a stream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PageRenderingBenchmark {
+    @Param({"100", "10000"})
+    public int contentBytes;
+
+    private WebPageService<Object, String> service;
+    private String inner;
+    private final BenchmarkSupport.CountingOutputStream out = new BenchmarkSupport.CountingOutputStream();
+
+    @Setup
+    public void setUp() {
+        StringBuilder content = new StringBuilder(contentBytes);
+        while (content.length() < contentBytes) {
+            content.append("<p>Rendered frame ").append(content.length()).append(" &amp; more</p>");
+        }
+        inner = content.toString();
+        service = new WebPageServiceBuilder<Object, String>()
+                .setTitle("Render <Page>")
+                .setDescription("A page with \"escaped\" text & content")
+                .setVersion("1.0.0")
+                .setAuthor("Coda")
+                .setLicense("MIT")
+                .setContent(page -> page.raw(inner))
+                .build();
+    }
+
+    @Benchmark
+    public String getPage() {
+        return service.getPage(inner);
+    }
+
+    @Benchmark
+    public String render() {
+        return service.render();
+    }
+
+    @Benchmark
+    public long renderToStream() throws IOException {
+        HtmlWriter page = new HtmlWriter(out);
+        service.render(page);
+        page.flush();
+        return out.count();
+    }
+}
@@ -0,0 +1,71 @@
+package coda.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading a request head with {@link WebServer#readRequest}, as the transports do for every request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RequestParsingBenchmark {
+    @Param({"minimal", "browser"})
+    public String request;
+
+    private WebServer server;
+    private HttpRequestParser parser;
+    private ByteArrayInputStream input;
+
+    @Setup
+    public void setUp() {
+        BenchmarkSupport.quietLogging();
+        server = BenchmarkSupport.server(new CodaApplication());
+        parser = HttpRequestParser.create(ServerConfig.defaults());
+        String head = "minimal".equals(request)
+                ? "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                : BenchmarkSupport.browserRequest("/blender-farm?frame=12&engine=CYCLES", "CODA_SESSION=3q2-7wEAAAAAAAAAAAAAAA");
+        input = new ByteArrayInputStream(head.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Parse the head alone; header values are only located, not copied.
+     */
+    @Benchmark
+    public Object readRequest() throws IOException {
+        input.reset();
+        return server.readRequest(parser, input);
+    }
+
+    /**
+     * Parse the head and read what routing and a service typically look at.
+     */
+    @Benchmark
+    public void readRequestAndHeaders(Blackhole blackhole) throws IOException {
+        input.reset();
+        WebServer.CustomHttpServletRequest request = server.readRequest(parser, input);
+        blackhole.consume(request.getMethod());
+        blackhole.consume(request.getRequestURI());
+        blackhole.consume(request.getHeader("Accept-Encoding"));
+        blackhole.consume(request.getParameter("frame"));
+        blackhole.consume(request.getCookies());
+    }
+}
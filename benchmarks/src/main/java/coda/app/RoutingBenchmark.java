@@ -0,0 +1,67 @@
+package coda.app;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Answering a service page through {@link WebServer#matchRequestToService} with a growing number
+ * of registered services: routing, the session lookup, the cached page and writing the response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RoutingBenchmark {
+    @Param({"1", "10", "1000"})
+    public int services;
+
+    private WebServer server;
+    private WebServer.CustomHttpServletRequest first;
+    private WebServer.CustomHttpServletRequest last;
+    private final BenchmarkSupport.CountingOutputStream out = new BenchmarkSupport.CountingOutputStream();
+
+    @Setup
+    public void setUp() {
+        BenchmarkSupport.quietLogging();
+        CodaApplication app = new CodaApplication();
+        for (int i = 0; i < services; i++) {
+            app.addService(BenchmarkSupport.service(i));
+        }
+        server = BenchmarkSupport.server(app);
+        String cookie = BenchmarkSupport.sessionCookie(server, "/service-0");
+        first = BenchmarkSupport.request(server, BenchmarkSupport.browserRequest("/service-0", cookie));
+        last = BenchmarkSupport.request(server, BenchmarkSupport.browserRequest("/service-" + (services - 1), cookie));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public long firstService() {
+        server.matchRequestToService(first, out);
+        return out.count();
+    }
+
+    @Benchmark
+    public long lastService() {
+        server.matchRequestToService(last, out);
+        return out.count();
+    }
+}
@@ -0,0 +1,47 @@
+package coda.app;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Calling a service built by {@link WebPageServiceBuilder} through
+ * {@link WebPageService#runService}, against calling the same function directly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ServiceDispatchBenchmark {
+    private WebPageService adder;
+    private Function<Integer, Integer> direct;
+    private int input;
+
+    @Setup
+    public void setUp() {
+        adder = new CodaApplication().buildAdderService();
+        direct = i -> i + 10;
+    }
+
+    @Benchmark
+    public Object builtService() {
+        return adder.runService(input++);
+    }
+
+    @Benchmark
+    public Object directFunction() {
+        return direct.apply(input++);
+    }
+}
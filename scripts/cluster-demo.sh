@@ -0,0 +1,26 @@
+#!/bin/sh
+# Runs a render farm on one host: a coordinator serving the web on port 8080 and two worker
+# JVMs, one with 1 core and one with 3, all rendering with the Blender stand-in unless
+# BLENDER is set. Build first with: mvn -q compile
+# Upload .blend files at http://localhost:8080/blender-farm; renders go to the workers in
+# proportion to their cores. Kill a worker to see its renders re-queued on the other.
+cd "$(dirname "$0")/.." || exit 1
+BLENDER=${BLENDER:-scripts/fake-blender.sh}
+if [ -z "$CODA_CLASSPATH" ]; then
+    mvn -q dependency:build-classpath -Dmdep.outputFile=target/classpath.txt || exit 1
+    CODA_CLASSPATH=target/classes:$(cat target/classpath.txt)
+fi
+PORT=${CLUSTER_PORT:-7070}
+run() {
+    java -cp "$CODA_CLASSPATH" coda.app.CodaApplication localhost 8080 "coda.blender.executable=$BLENDER" \
+        "coda.cluster.port=$PORT" "coda.cluster.coordinator=localhost:$PORT" "$@" &
+    pids="$pids $!"
+}
+
+pids=
+trap 'kill $pids 2>/dev/null; exit' INT TERM
+trap 'kill $pids 2>/dev/null' EXIT
+run coda.cluster.role=coordinator
+run coda.cluster.role=worker coda.render.workers=1 coda.cluster.worker.dir=target/worker-1
+run coda.cluster.role=worker coda.render.workers=3 coda.cluster.worker.dir=target/worker-2
+wait
@@ -0,0 +1,40 @@
+#!/bin/sh
+# Stand-in for Blender that speaks the render worker protocol of BlenderProcessPool (see
+# src/main/resources/blender/render_worker.py), for tests and benchmarks on machines without
+# Blender:  coda.blender.executable=scripts/fake-blender.sh
+# Its arguments are ignored. It sleeps to mimic Blender starting, loading a scene and rendering
+# a frame; the delays can be set in seconds through the environment.
+STARTUP=${FAKE_BLENDER_STARTUP:-0.5}
+LOAD=${FAKE_BLENDER_LOAD:-0.2}
+FRAME=${FAKE_BLENDER_FRAME:-0.05}
+TAB=$(printf '\t')
+
+sleep "$STARTUP"
+echo "Blender stand-in (pid $$)"
+echo "@coda READY"
+
+loaded=
+while IFS="$TAB" read -r command blend frame output width height engine; do
+    case "$command" in
+        PING)
+            echo "@coda PONG" ;;
+        QUIT)
+            exit 0 ;;
+        RENDER)
+            if [ ! -f "$blend" ]; then
+                loaded=
+                echo "@coda ERROR${TAB}Cannot read $blend"
+                continue
+            fi
+            if [ "$blend" != "$loaded" ]; then
+                sleep "$LOAD"
+                loaded=$blend
+            fi
+            echo "Fra:$frame rendering"
+            sleep "$FRAME"
+            printf '\211PNG\r\n\032\n' > "$output"
+            echo "@coda OK${TAB}$output" ;;
+        *)
+            echo "@coda ERROR${TAB}Unknown command $command" ;;
+    esac
+done
@@ -0,0 +1,317 @@
+package coda.app;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * The access log: one JSON line per request, written to a file rotated by size.
+ * <p>
+ * Request threads only copy a request's figures and references into a slot of a ring allocated
+ * up front; a background thread formats the slots and writes them in batches. Claiming a slot is
+ * a compare-and-set, so logging never waits on a lock or on the disk. The drainer writes every
+ * flush interval, or sooner once a quarter of the ring has filled; a full ring drops the record
+ * and counts it instead of making the request wait.
+ */
+class AccessLog implements AutoCloseable {
+    static final String FILE = "coda.accessLog.file";
+    static final String BUFFER_SIZE = "coda.accessLog.bufferSize";
+    static final String SAMPLE = "coda.accessLog.sampleOneIn";
+    static final String MAX_FILE_BYTES = "coda.accessLog.maxFileBytes";
+    static final String MAX_FILES = "coda.accessLog.maxFiles";
+    static final String FLUSH_MILLIS = "coda.accessLog.flushMillis";
+
+    private static final Logger logger = Logger.getLogger(AccessLog.class.getName());
+
+    private final Path file;
+    private final int sampleOneIn;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final long flushNanos;
+    private final Slot[] slots;
+    private final int mask;
+    private final int wakeMask;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final Thread drainer;
+    private volatile boolean running = true;
+
+    /**
+     * @param file the log file
+     * @param bufferSize the most records waiting to be written, rounded up to a power of two
+     * @param sampleOneIn log one request in this many; server errors are always logged
+     * @param maxFileBytes the size at which the file is rotated
+     * @param maxFiles the rotated files kept, as file.1 (newest) to file.maxFiles
+     * @param flushMillis how long records may wait before they are written
+     */
+    AccessLog(Path file, int bufferSize, int sampleOneIn, long maxFileBytes, int maxFiles, long flushMillis) {
+        this.file = file;
+        this.sampleOneIn = Math.max(1, sampleOneIn);
+        this.maxFileBytes = Math.max(1, maxFileBytes);
+        this.maxFiles = Math.max(0, maxFiles);
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushMillis));
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize) * 2 - 1);
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot(i);
+        }
+        this.mask = capacity - 1;
+        this.wakeMask = Math.max(1, capacity / 4) - 1;
+        this.drainer = new Thread(this::drain, "access-log");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Create the access log.
+     *
+     * @param config the server configuration
+     * @return the access log, or null if coda.accessLog.file is empty
+     */
+    static AccessLog create(ServerConfig config) {
+        String file = config.getString(FILE, null);
+        if (file == null) {
+            return null;
+        }
+        return new AccessLog(Path.of(file),
+                config.getInt(BUFFER_SIZE, 8192),
+                config.getInt(SAMPLE, 1),
+                config.getLong(MAX_FILE_BYTES, 64L * 1024 * 1024),
+                config.getInt(MAX_FILES, 5),
+                config.getInt(FLUSH_MILLIS, 200));
+    }
+
+    /**
+     * Log a request that has been answered.
+     *
+     * @param client the client's address
+     * @param method the request method
+     * @param path the request path
+     * @param bytesIn the request body's length
+     * @param timing the request's timing, holding its status, size and service
+     */
+    void log(String client, String method, String path, long bytesIn, Metrics.Timing timing) {
+        int status = timing.status();
+        if (sampleOneIn > 1 && status < 500 && ThreadLocalRandom.current().nextInt(sampleOneIn) != 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        Slot slot = claim();
+        if (slot == null) {
+            dropped.increment();
+            return;
+        }
+        slot.time = System.currentTimeMillis();
+        slot.nanos = now - timing.startedNanos();
+        slot.client = client;
+        slot.method = method;
+        slot.path = path;
+        slot.service = timing.service();
+        slot.status = status;
+        slot.bytesIn = Math.max(0, bytesIn);
+        slot.bytesOut = timing.bytesOut();
+        if ((slot.publish() & wakeMask) == 0) {
+            // A burst would fill the ring before the drainer's next turn
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    /**
+     * Claim the next free slot.
+     *
+     * @return the slot, or null if the ring is full
+     */
+    private Slot claim() {
+        while (true) {
+            long position = tail.get();
+            Slot slot = slots[(int) position & mask];
+            long free = slot.sequence - position;
+            if (free == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return slot;
+                }
+            } else if (free < 0) {
+                // The slot still holds a record from the previous lap
+                return null;
+            }
+            // Another thread claimed it first; try the next
+        }
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    long written() {
+        return written.sum();
+    }
+
+    /**
+     * Write what has been logged and stop.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        StringBuilder line = new StringBuilder(256);
+        long head = 0;
+        Writer out = null;
+        long size = 0;
+        boolean failed = false;
+        while (true) {
+            boolean stopping = !running;
+            try {
+                for (Slot slot = slots[(int) head & mask]; slot.sequence == head + 1; slot = slots[(int) head & mask]) {
+                    line.setLength(0);
+                    slot.format(line);
+                    slot.release(head + slots.length);
+                    head++;
+                    if (out == null) {
+                        out = open();
+                        size = Files.size(file);
+                    }
+                    out.append(line);
+                    size += line.length();
+                    written.increment();
+                    if (size >= maxFileBytes) {
+                        out.close();
+                        out = null;
+                        rotate();
+                    }
+                }
+                if (out != null) {
+                    out.flush();
+                }
+                failed = false;
+            } catch (IOException e) {
+                if (!failed) {
+                    logger.warning("Could not write the access log " + file + ": " + e.getMessage());
+                    failed = true;
+                }
+                out = close(out);
+            }
+            if (stopping) {
+                break;
+            }
+            LockSupport.parkNanos(flushNanos);
+        }
+        close(out);
+    }
+
+    private Writer open() throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    private void rotate() throws IOException {
+        if (maxFiles == 0) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        for (int i = maxFiles - 1; i > 0; i--) {
+            Path older = rotated(i);
+            if (Files.exists(older)) {
+                Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path rotated(int n) {
+        return file.resolveSibling(file.getFileName() + "." + n);
+    }
+
+    private static Writer close(Writer out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Already reported
+            }
+        }
+        return null;
+    }
+
+    /**
+     * One record in the ring. Its sequence says whose turn it is: a producer may fill it when the
+     * sequence equals the position it claimed, and the drainer may read it once it is one more.
+     */
+    private static final class Slot {
+        private volatile long sequence;
+        private long time;
+        private long nanos;
+        private String client;
+        private String method;
+        private String path;
+        private String service;
+        private int status;
+        private long bytesIn;
+        private long bytesOut;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+
+        /**
+         * Hand the filled slot to the drainer.
+         *
+         * @return the position the slot was claimed at
+         */
+        long publish() {
+            long position = sequence;
+            // The volatile write makes the fields above visible to the drainer
+            sequence = position + 1;
+            return position;
+        }
+
+        void release(long next) {
+            client = null;
+            method = null;
+            path = null;
+            service = null;
+            sequence = next;
+        }
+
+        void format(StringBuilder line) {
+            line.append("{\"time\":\"");
+            DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(time), line);
+            line.append("\",\"client\":").append(client == null ? "null" : JobRegistry.quote(client))
+                    .append(",\"method\":").append(JobRegistry.quote(String.valueOf(method)))
+                    .append(",\"path\":").append(JobRegistry.quote(String.valueOf(path)))
+                    .append(",\"status\":").append(status)
+                    .append(",\"bytesIn\":").append(bytesIn)
+                    .append(",\"bytesOut\":").append(bytesOut)
+                    .append(",\"micros\":").append(nanos / 1000);
+            if (service != null && !service.isEmpty()) {
+                line.append(",\"service\":").append(JobRegistry.quote(service));
+            }
+            line.append("}\n");
+        }
+    }
+}
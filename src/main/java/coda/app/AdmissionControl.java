@@ -0,0 +1,278 @@
+package coda.app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether the server takes on more work, so that under overload a few clients are
+ * refused at once instead of every client being answered slowly. Connections beyond the limit
+ * are answered 503 and closed as they are accepted; requests beyond the in-flight limit are
+ * answered 503. Each client address has a token bucket, and services marked expensive (such as
+ * render submission) have a second, smaller one; a client out of tokens is answered 429.
+ * Every refusal carries a Retry-After.
+ */
+class AdmissionControl {
+    static final String MAX_CONNECTIONS = "coda.admission.maxConnections";
+    static final String MAX_REQUESTS = "coda.admission.maxRequests";
+    static final String RATE = "coda.admission.ratePerSecond";
+    static final String BURST = "coda.admission.burst";
+    static final String EXPENSIVE_RATE = "coda.admission.expensive.perMinute";
+    static final String EXPENSIVE_BURST = "coda.admission.expensive.burst";
+    static final String MAX_CLIENTS = "coda.admission.maxClients";
+
+    private static final byte[] CONNECTION_REFUSED = refusal();
+
+    private final int maxConnections;
+    private final int maxRequests;
+    private final RateLimit requests;
+    private final RateLimit expensive;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder connectionsRefused = new LongAdder();
+    private final LongAdder requestsRefused = new LongAdder();
+
+    /**
+     * @param maxConnections the most connections open at once
+     * @param maxRequests the most requests in progress at once
+     * @param requests the rate limit of each client's requests, or null for none
+     * @param expensive the rate limit of each client's calls to expensive services, or null for none
+     */
+    AdmissionControl(int maxConnections, int maxRequests, RateLimit requests, RateLimit expensive) {
+        this.maxConnections = maxConnections;
+        this.maxRequests = maxRequests;
+        this.requests = requests;
+        this.expensive = expensive;
+    }
+
+    static AdmissionControl create(ServerConfig config) {
+        int maxClients = Math.max(1, config.getInt(MAX_CLIENTS, 100_000));
+        int rate = config.getInt(RATE, 100);
+        int expensiveRate = config.getInt(EXPENSIVE_RATE, 30);
+        return new AdmissionControl(
+                Math.max(1, config.getInt(MAX_CONNECTIONS, 10_000)),
+                Math.max(1, config.getInt(MAX_REQUESTS, Runtime.getRuntime().availableProcessors() * 64)),
+                rate <= 0 ? null : new RateLimit(TimeUnit.SECONDS.toNanos(1) / rate,
+                        Math.max(1, config.getInt(BURST, rate * 2)), maxClients),
+                expensiveRate <= 0 ? null : new RateLimit(TimeUnit.MINUTES.toNanos(1) / expensiveRate,
+                        Math.max(1, config.getInt(EXPENSIVE_BURST, 10)), maxClients));
+    }
+
+    /**
+     * Count a newly accepted connection.
+     *
+     * @param capacity the most connections the transport can hold open, if fewer than the limit
+     * @return false if too many are open already; the caller refuses it
+     */
+    boolean openConnection(int capacity) {
+        if (connections.incrementAndGet() > Math.min(maxConnections, capacity)) {
+            connections.decrementAndGet();
+            connectionsRefused.increment();
+            return false;
+        }
+        return true;
+    }
+
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Answer a connection refused by {@link #openConnection(int)} with 503 and close it.
+     * The response is small enough for the socket buffer, so the accepting thread never waits on the client.
+     *
+     * @param channel the accepted channel, still in blocking mode
+     */
+    void refuse(SocketChannel channel) {
+        try (channel) {
+            channel.write(ByteBuffer.wrap(CONNECTION_REFUSED));
+            // The response goes ahead of the close, even if the request arrives after it
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            // The client went away
+        }
+    }
+
+    private static byte[] refusal() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            HttpException.unavailable("Too many connections", 1).toResponse().write(bytes, false, true);
+        } catch (IOException e) {
+            // Writing to memory cannot fail
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Admit a request, or refuse it.
+     *
+     * @param client the client's address, or null if unknown
+     * @param inProgress requests in progress, this one included
+     * @throws HttpException with 503 if the server is busy, or 429 if the client is over its rate limit
+     */
+    void admit(String client, int inProgress) throws HttpException {
+        if (inProgress > maxRequests) {
+            requestsRefused.increment();
+            throw HttpException.unavailable("Too many requests in progress", 1);
+        }
+        if (requests != null && client != null) {
+            requests.acquire(client, "Request rate limit reached for " + client);
+        }
+    }
+
+    /**
+     * Count a request the transport has no thread free to run.
+     *
+     * @return the refusal to answer it with
+     */
+    HttpException refuseRequest() {
+        requestsRefused.increment();
+        return HttpException.unavailable("Too many requests in progress", 1);
+    }
+
+    /**
+     * Admit a call to an expensive service against the client's budget for them.
+     *
+     * @param client the client's address, or null if unknown
+     * @param service the service's endpoint
+     * @throws HttpException with 429 if the client is over its budget
+     */
+    void admitExpensive(String client, String service) throws HttpException {
+        if (expensive != null && client != null) {
+            expensive.acquire(client, "Rate limit for " + service + " reached for " + client);
+        }
+    }
+
+    int connections() {
+        return connections.get();
+    }
+
+    int maxConnections() {
+        return maxConnections;
+    }
+
+    int maxRequests() {
+        return maxRequests;
+    }
+
+    long connectionsRefused() {
+        return connectionsRefused.sum();
+    }
+
+    long requestsRefused() {
+        return requestsRefused.sum();
+    }
+
+    long rateLimited() {
+        return requests == null ? 0 : requests.limited();
+    }
+
+    long expensiveRateLimited() {
+        return expensive == null ? 0 : expensive.limited();
+    }
+
+    /**
+     * A token bucket per client. Each bucket is kept as the time it will next be full, which
+     * holds the same information as a token count and a refill time but fits in one long, so
+     * taking a token is a single compare-and-set. Buckets live in a fixed array of maps picked by
+     * the address's hash; a full bucket is no different from no bucket, so full ones are dropped
+     * when a stripe fills up, and clients that still don't fit share one overflow bucket per stripe.
+     */
+    static final class RateLimit {
+        private static final int STRIPES = 64;
+        private static final String OVERFLOW = "";
+
+        private final long intervalNanos;
+        private final long capacityNanos;
+        private final int maxClientsPerStripe;
+        private final ConcurrentHashMap<String, AtomicLong>[] stripes;
+        private final LongAdder limited = new LongAdder();
+
+        /**
+         * @param intervalNanos the time to earn one token
+         * @param burst the most tokens a client can save up
+         * @param maxClients the most clients tracked
+         */
+        @SuppressWarnings("unchecked")
+        RateLimit(long intervalNanos, int burst, int maxClients) {
+            this.intervalNanos = Math.max(1, intervalNanos);
+            this.capacityNanos = this.intervalNanos * burst;
+            this.maxClientsPerStripe = Math.max(1, maxClients / STRIPES);
+            this.stripes = new ConcurrentHashMap[STRIPES];
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new ConcurrentHashMap<>();
+            }
+        }
+
+        /**
+         * Take a token from a client's bucket.
+         *
+         * @param client the client's address
+         * @param message the refusal's message
+         * @throws HttpException with 429 and the time until a token is earned if the bucket is empty
+         */
+        void acquire(String client, String message) throws HttpException {
+            long wait = tryAcquire(client, System.nanoTime());
+            if (wait > 0) {
+                limited.increment();
+                throw HttpException.tooManyRequests(message, Math.max(1, (wait + 999_999_999) / 1_000_000_000));
+            }
+        }
+
+        /**
+         * Take a token from a client's bucket.
+         *
+         * @param client the client's address
+         * @param now the current time in nanoseconds
+         * @return 0 if a token was taken, otherwise the nanoseconds until one is earned
+         */
+        long tryAcquire(String client, long now) {
+            AtomicLong full = bucket(client, now);
+            while (true) {
+                long previous = full.get();
+                // An idle bucket is full, and fills no further
+                long next = Math.max(previous, now) + intervalNanos;
+                if (next - now > capacityNanos) {
+                    return next - now - capacityNanos;
+                }
+                if (full.compareAndSet(previous, next)) {
+                    return 0;
+                }
+            }
+        }
+
+        private AtomicLong bucket(String client, long now) {
+            ConcurrentHashMap<String, AtomicLong> stripe = stripes[(client.hashCode() & 0x7fffffff) % STRIPES];
+            AtomicLong bucket = stripe.get(client);
+            if (bucket != null) {
+                return bucket;
+            }
+            if (stripe.size() >= maxClientsPerStripe) {
+                // A request racing with the sweep may take its token from a dropped bucket; it is only one
+                stripe.values().removeIf(full -> full.get() - now <= 0);
+                if (stripe.size() >= maxClientsPerStripe) {
+                    client = OVERFLOW;
+                }
+            }
+            return stripe.computeIfAbsent(client, c -> new AtomicLong(now));
+        }
+
+        long limited() {
+            return limited.sum();
+        }
+
+        int clients() {
+            int clients = 0;
+            for (ConcurrentHashMap<String, AtomicLong> stripe : stripes) {
+                clients += stripe.size();
+            }
+            return clients;
+        }
+    }
+}
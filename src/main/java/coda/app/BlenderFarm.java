@@ -1,56 +1,137 @@
 package coda.app;
 
-import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
-import org.apache.commons.fileupload.servlet.ServletFileUpload;
-
 import java.io.File;
-import java.util.List;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.http.HttpServletRequest;
-import java.util.function.Consumer;
 
 public class BlenderFarm {
+    static final String UPLOAD_DIR = "coda.upload.dir";
+    static final String MAX_UPLOAD_SIZE = "coda.upload.maxSize";
+
+    private static final byte[] BLEND_MAGIC = "BLENDER".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] GZIP_MAGIC = {0x1f, (byte) 0x8b};
+    private static final byte[] ZSTD_MAGIC = {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd};
+    private static final int MAX_FIELD_SIZE = 64;
+
+    private static final Logger logger = Logger.getLogger(BlenderFarm.class.getName());
+
+    private final Path uploadDirectory;
+    private final long maxUploadSize;
+    private final BlenderProcessPool blender;
+    private final RenderScheduler renders;
+    private final RenderCoordinator coordinator;
+
+    // Posted by htmx, so the page stays put and the job's progress arrives as events
+    private static final String FILE_UPLOAD_FORM = """
+            <form action="/rendered-image" method="post" enctype="multipart/form-data"
+                  hx-post="/rendered-image" hx-encoding="multipart/form-data" hx-swap="none">
+                <input type="number" name="frame" value="1" min="0">
+                <input type="file" name="file" accept=".blend">
+                <input type="submit" value="Render">
+            </form>
+            """;
+
+    private static final String RENDER_PAGE = """
+            <script src="https://unpkg.com/htmx.org@1.9.5/dist/ext/sse.js" crossorigin="anonymous"></script>
+            <h1>Blender Farm</h1>
+            """ + FILE_UPLOAD_FORM + """
+            <h2>Current render</h2>
+            <div hx-ext="sse" sse-connect="/events">
+                <pre sse-swap="job">No render yet</pre>
+            </div>
+            <img src="/rendered-image" alt="Current render">
+            """;
+    private static final byte[] RENDER_PAGE_BYTES = HtmlWriter.fragment(RENDER_PAGE);
 
-    private static volatile File currentRender = null;
+    public BlenderFarm(ServerConfig config) {
+        this.uploadDirectory = Paths.get(config.getString(UPLOAD_DIR, "uploads"));
+        this.maxUploadSize = Math.max(1, config.getLong(MAX_UPLOAD_SIZE, 1024L * 1024 * 1024));
+        this.blender = BlenderProcessPool.create(config);
+        if (RenderCoordinator.isCoordinator(config)) {
+            // Renders wait in the scheduler's queue for a worker; it runs as many as the farm has cores
+            this.coordinator = RenderCoordinator.create(blender, config);
+            this.renders = RenderScheduler.create(coordinator, RenderCache.create(config), config);
+            coordinator.onCapacity(renders::resize);
+            coordinator.start();
+        } else {
+            this.coordinator = null;
+            this.renders = RenderScheduler.create(blender, RenderCache.create(config), config);
+        }
+    }
 
     /**
-     * Render a frame of a blender file.
+     * Queue a frame of a blender file for rendering.
+     * An image already rendered from the same contents and parameters is returned straight from
+     * the render cache, and a request matching one in progress shares its job. Otherwise the render
+     * runs on a bounded pool of workers; when all are busy and the queue is full the request is
+     * refused with 503 and a Retry-After estimate.
+     * The server runs the returned future as a job; cancelling it, or its timing out, drops the
+     * render if it has not started and no other request shares it.
      *
-     * @param object the blender file to render
-     * @return
+     * @param object the render request, or a blender file to render frame 1 of
+     * @return the rendered image, or null if the input is not an existing .blend file
+     * @throws UncheckedIOException wrapping an HttpException if the render queue is full
      */
-    public static File renderFrame(Object object){
-        try{
-            File blendFile = checkFile(object);
-            new Thread(() -> {
-                try {
-                    // Render frame
-                    System.out.println("Rendering frame: " + blendFile.getAbsolutePath());
-                    File outputImage = createBlenderRenderProcess(blendFile);
-
-                    if (outputImage == null) {
-                        throw new Exception("Error while rendering frame.");
-                    }
-
-                    currentRender = outputImage;
-
-                } catch (Exception e) {
-                    System.out.println("Thread Error: " + e.getMessage());
-                }
-            }).start();
+    public CompletableFuture<File> renderFrame(Object object) {
+        RenderRequest request;
+        try {
+            request = object instanceof RenderRequest ? (RenderRequest) object : RenderRequest.of(checkFile(object));
         } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
+            return null;
         }
 
-        return null;
+        try {
+            return renders.submit(request).handle();
+        } catch (RejectedExecutionException e) {
+            throw new UncheckedIOException(HttpException.unavailable(
+                    "Render queue is full: " + renders.stats(), renders.retryAfterSeconds()));
+        }
+    }
+
+    /**
+     * Get the scheduler running this farm's renders, for its jobs and statistics, which are
+     * published on /metrics.
+     *
+     * @return the scheduler
+     */
+    public RenderScheduler renders() {
+        return renders;
     }
 
-    private static File createBlenderRenderProcess(File blendFile) throws InterruptedException {
-        // TODO: Use processbuilder to render the frame
-        Thread.sleep(5000); // fixme: remove
-        return new File("test.png");
+    /**
+     * Get the coordinator spreading renders over worker JVMs.
+     *
+     * @return the coordinator, or null unless coda.cluster.role is coordinator
+     */
+    public RenderCoordinator coordinator() {
+        return coordinator;
     }
 
+    /**
+     * Get the pool of Blender processes rendering this farm's frames.
+     *
+     * @return the pool
+     */
+    public BlenderProcessPool blender() {
+        return blender;
+    }
 
     /**
      * Check if the input is a file and if it exists.
@@ -88,54 +169,211 @@ public class BlenderFarm {
         }
 
         WebPageService service = (WebPageService) webPageService;
+        return service.getPage(RENDER_PAGE);
+    }
 
-        String fileUploadForm = """
-                <form action="/runService" method="post" enctype="multipart/form-data">
-                    <input type="file" name="file" accept=".blend">
-                    <input type="submit" value="Render">
-                """;
-
-        // TODO: Add action with HTMX
-        return service.getPage("""
-                <h1>Blender Farm</h1>
-                """ + fileUploadForm + """
-                <h2>Current render</h2>
-                <img src="/rendered-image" alt="Current render">
-                """);
+    /**
+     * Write the render form and current render, the content of the blender farm page.
+     *
+     * @param out the writer
+     * @throws IOException if writing fails
+     */
+    public static void writeRenderPage(HtmlWriter out) throws IOException {
+        out.raw(RENDER_PAGE_BYTES);
     }
 
     /**
-     * Parse the input.
+     * Parse the input: stream the uploaded .blend file to the upload directory and read the
+     * render parameters sent with it (frame, width, height, engine).
+     * The body is read straight from the connection through a fixed buffer and written with a
+     * FileChannel, so memory use does not grow with the file. The size limit, extension and
+     * magic bytes are checked while streaming; a rejected file is deleted.
+     * A file sent through the chunked upload API arrives whole and already checked against its
+     * SHA-256, with the render parameters in the query string.
      *
      * @param request The request
      * @param service The service
-     * @return
+     * @return the render request
+     * @throws UncheckedIOException wrapping an HttpParseException if the upload is refused or
+     *                              has no .blend file part, or the IOException if reading it fails
      */
-    public static Object parseInput(Object request, Object service) {
+    public Object parseInput(Object request, Object service) {
         if (!(request instanceof HttpServletRequest)) {
             return null;
         }
 
         HttpServletRequest httpRequest = (HttpServletRequest) request;
-        DiskFileItemFactory factory = new DiskFileItemFactory();
-        ServletFileUpload upload = new ServletFileUpload(factory);
+        UploadStore.Upload upload = WebServer.uploadedFile(httpRequest);
+        if (upload != null) {
+            try {
+                return uploadedRenderRequest(httpRequest, upload);
+            } catch (IllegalArgumentException e) {
+                throw new UncheckedIOException(HttpParseException.badRequest(e.getMessage()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        String boundary = MultipartStream.boundary(httpRequest.getContentType());
+        if (boundary == null) {
+            throw new UncheckedIOException(HttpParseException.unsupportedMediaType("Expected a multipart/form-data upload"));
+        }
 
         try {
-            List<FileItem> items = upload.parseRequest(httpRequest);
-            for (FileItem item : items) {
-                if (!item.isFormField()) {
-                    String fileName = item.getName();
-                    if (fileName.endsWith(".blend")) {
-                        File uploadedFile = new File(fileName);
-                        item.write(uploadedFile);
-                        return uploadedFile;
+            MultipartStream multipart = new MultipartStream(httpRequest.getInputStream(), boundary, MultipartStream.DEFAULT_BUFFER_SIZE);
+            String hash = null;
+            int frame = 1;
+            int width = 0;
+            int height = 0;
+            String engine = "";
+            for (MultipartStream.Part part = multipart.next(); part != null; part = multipart.next()) {
+                if (part.isFile()) {
+                    if ("file".equals(part.name()) && hash == null) {
+                        hash = receiveBlendFile(part);
                     }
+                } else if ("frame".equals(part.name())) {
+                    frame = intField(part);
+                } else if ("width".equals(part.name())) {
+                    width = intField(part);
+                } else if ("height".equals(part.name())) {
+                    height = intField(part);
+                } else if ("engine".equals(part.name())) {
+                    engine = part.value(MAX_FIELD_SIZE).trim();
                 }
             }
-        } catch (Exception e) {
-            // Handle exceptions here
-            System.out.println("Error: " + e.getMessage());
+            if (hash == null) {
+                throw HttpParseException.badRequest("No .blend file part");
+            }
+            return new RenderRequest(uploadDirectory.resolve(hash + ".blend").toFile(), hash, frame, width, height, engine);
+        } catch (IllegalArgumentException e) {
+            throw new UncheckedIOException(HttpParseException.badRequest(e.getMessage()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return null;
+    }
+
+    /**
+     * Store a file finished through the chunked upload API and read the render parameters from
+     * the query string.
+     */
+    private RenderRequest uploadedRenderRequest(HttpServletRequest request, UploadStore.Upload upload) throws IOException {
+        if (!upload.name.isEmpty() && !baseName(upload.name).toLowerCase().endsWith(".blend")) {
+            throw HttpParseException.unsupportedMediaType(upload.name + " is not a .blend file");
+        }
+        byte[] start = new byte[BLEND_MAGIC.length];
+        try (InputStream in = Files.newInputStream(upload.file)) {
+            start = Arrays.copyOf(start, in.readNBytes(start, 0, start.length));
+        }
+        if (!isBlendFile(start)) {
+            throw HttpParseException.unsupportedMediaType(upload.name + " is not a Blender file");
+        }
+        store(upload.file, upload.sha256, upload.name, upload.size);
+        return new RenderRequest(uploadDirectory.resolve(upload.sha256 + ".blend").toFile(), upload.sha256,
+                intParameter(request, "frame", 1), intParameter(request, "width", 0),
+                intParameter(request, "height", 0), Objects.toString(request.getParameter("engine"), "").trim());
+    }
+
+    private static int intParameter(HttpServletRequest request, String name, int defaultValue) throws HttpParseException {
+        String value = request.getParameter(name);
+        try {
+            return value == null || value.isBlank() ? defaultValue : Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw HttpParseException.badRequest(name + " is not a number: " + value);
+        }
+    }
+
+    private static int intField(MultipartStream.Part part) throws IOException {
+        String value = part.value(MAX_FIELD_SIZE).trim();
+        try {
+            return value.isEmpty() ? 0 : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw HttpParseException.badRequest(part.name() + " is not a number: " + value);
+        }
+    }
+
+    /**
+     * Write an uploaded .blend file to the upload directory, named by the hash of its contents.
+     * A file uploaded again is stored once.
+     *
+     * @param part the file part
+     * @return the SHA-256 of the file, in hex
+     * @throws IOException if the upload is refused or cannot be written
+     */
+    private String receiveBlendFile(MultipartStream.Part part) throws IOException {
+        String name = baseName(part.filename());
+        if (!name.toLowerCase().endsWith(".blend")) {
+            throw HttpParseException.unsupportedMediaType(name + " is not a .blend file");
+        }
+        if (!isBlendFile(part.peek(BLEND_MAGIC.length))) {
+            throw HttpParseException.unsupportedMediaType(name + " is not a Blender file");
+        }
+
+        Files.createDirectories(uploadDirectory);
+        // Hashed while streaming, then moved to its name once complete
+        Path partial = Files.createTempFile(uploadDirectory, "upload-", ".part");
+        try {
+            MessageDigest digest = RenderRequest.sha256();
+            long size;
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                size = part.writeTo(channel, maxUploadSize, digest);
+            }
+            String hash = RenderRequest.hex(digest.digest());
+            store(partial, hash, name, size);
+            return hash;
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    /**
+     * Move a received file to its name in the upload directory, unless the same contents are stored already.
+     */
+    private void store(Path received, String hash, String name, long size) throws IOException {
+        Files.createDirectories(uploadDirectory);
+        Path target = uploadDirectory.resolve(hash + ".blend");
+        if (Files.exists(target)) {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Received " + name + " (" + size + " bytes), already stored as " + target);
+            }
+            return;
+        }
+        try {
+            Files.move(received, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(received, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Received " + name + " as " + target + " (" + size + " bytes)");
+        }
+    }
+
+    /**
+     * Whether a file starts like a .blend file: uncompressed, or gzip or zstd compressed.
+     *
+     * @param start the first bytes of the file
+     * @return true if it looks like a Blender file
+     */
+    static boolean isBlendFile(byte[] start) {
+        return startsWith(start, BLEND_MAGIC) || startsWith(start, GZIP_MAGIC) || startsWith(start, ZSTD_MAGIC);
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        if (bytes.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Strip any directories a client put in a file name.
+     */
+    private static String baseName(String filename) {
+        String name = filename.substring(Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')) + 1);
+        return name.trim();
     }
 }
@@ -0,0 +1,390 @@
+package coda.app;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Renders frames with long-lived Blender processes instead of launching Blender per frame.
+ * Each process runs a small Python worker that reads one command per line on stdin and answers
+ * on stdout, so start-up is paid once per process and a loaded scene is reused for further
+ * frames of the same file; jobs are handed to a process that already has their scene loaded
+ * when one is idle. Processes idle for a while are pinged before use, and each is replaced
+ * after a number of jobs so leaks inside Blender cannot build up.
+ * A process whose stdin closes exits, so none outlive the server.
+ */
+public final class BlenderProcessPool implements RenderScheduler.Renderer, AutoCloseable {
+    static final String EXECUTABLE = "coda.blender.executable";
+    static final String MAX_JOBS = "coda.blender.maxJobsPerProcess";
+    static final String TIMEOUT = "coda.blender.timeoutSeconds";
+    static final String HEALTH_CHECK = "coda.blender.healthCheckSeconds";
+
+    private static final Logger logger = Logger.getLogger(BlenderProcessPool.class.getName());
+
+    // Lines from the worker starting with this are replies; anything else is Blender's own output
+    private static final String REPLY = "@coda ";
+    private static final String EXITED = "\0exited";
+    private static final String WORKER_SCRIPT = "/blender/render_worker.py";
+    private static final long PING_TIMEOUT_MILLIS = 5000;
+
+    private final String executable;
+    private final int size;
+    private final int maxJobs;
+    private final long timeoutMillis;
+    private final long healthCheckNanos;
+
+    // Guarded by this
+    private final ArrayDeque<Worker> idle = new ArrayDeque<>();
+    private int processes = 0;
+    private boolean closed = false;
+    private Path workerScript;
+
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder recycled = new LongAdder();
+    private final LongAdder unhealthy = new LongAdder();
+    private final LongAdder sceneReuses = new LongAdder();
+
+    /**
+     * @param executable the Blender executable, or a stand-in speaking the worker protocol
+     * @param size the most processes at once
+     * @param maxJobs the jobs a process runs before it is replaced
+     * @param timeoutMillis the longest a process may take to start or render a frame
+     * @param healthCheckMillis how long a process may sit idle before it is pinged
+     */
+    public BlenderProcessPool(String executable, int size, int maxJobs, long timeoutMillis, long healthCheckMillis) {
+        this.executable = executable;
+        this.size = size;
+        this.maxJobs = maxJobs;
+        this.timeoutMillis = timeoutMillis;
+        this.healthCheckNanos = TimeUnit.MILLISECONDS.toNanos(healthCheckMillis);
+    }
+
+    static BlenderProcessPool create(ServerConfig config) {
+        return new BlenderProcessPool(
+                config.getString(EXECUTABLE, "blender"),
+                RenderScheduler.workers(config),
+                Math.max(1, config.getInt(MAX_JOBS, 50)),
+                TimeUnit.SECONDS.toMillis(Math.max(1, config.getLong(TIMEOUT, 600))),
+                TimeUnit.SECONDS.toMillis(Math.max(0, config.getLong(HEALTH_CHECK, 30))));
+    }
+
+    /**
+     * A Blender process and the scene it has loaded.
+     */
+    private final class Worker {
+        private final Process process;
+        private final BufferedWriter commands;
+        private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+        private final String name;
+        private String scene;
+        private int jobs = 0;
+        private long idleSince = System.nanoTime();
+
+        Worker(Process process) {
+            this.process = process;
+            this.commands = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            this.name = "coda-blender-" + nextWorker.incrementAndGet();
+            Thread reader = new Thread(this::readOutput, name + "-out");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readOutput() {
+            try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                for (String line = out.readLine(); line != null; line = out.readLine()) {
+                    if (line.startsWith(REPLY)) {
+                        replies.add(line.substring(REPLY.length()));
+                    } else {
+                        logger.fine(name + ": " + line);
+                    }
+                }
+            } catch (IOException e) {
+                logger.fine(name + ": " + e.getMessage());
+            }
+            replies.add(EXITED);
+        }
+
+        /**
+         * Send a command and wait for its reply.
+         */
+        String call(String command, long timeout) throws IOException {
+            commands.write(command);
+            commands.newLine();
+            commands.flush();
+            return reply(timeout);
+        }
+
+        String reply(long timeout) throws IOException {
+            String reply;
+            try {
+                reply = replies.poll(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(name + " interrupted");
+            }
+            if (reply == null) {
+                throw new IOException(name + " did not answer within " + timeout + " ms");
+            }
+            if (reply == EXITED) {
+                throw new IOException(name + " exited");
+            }
+            return reply;
+        }
+
+        boolean isHealthy() {
+            if (!process.isAlive()) {
+                return false;
+            }
+            if (System.nanoTime() - idleSince < healthCheckNanos) {
+                return true;
+            }
+            try {
+                return "PONG".equals(call("PING", PING_TIMEOUT_MILLIS));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Ask the process to exit, killing it if it has not within a few seconds. Does not wait.
+         */
+        void stop() {
+            try {
+                commands.write("QUIT");
+                commands.newLine();
+                commands.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+            process.onExit()
+                    .orTimeout(5, TimeUnit.SECONDS)
+                    .exceptionally(e -> {
+                        process.destroyForcibly();
+                        return null;
+                    });
+        }
+    }
+
+    /**
+     * Render a frame to a PNG next to the .blend file, named by the request's cache key.
+     *
+     * @param request the frame and settings
+     * @return the rendered image
+     * @throws IOException if no process could render it
+     */
+    @Override
+    public File render(RenderRequest request) throws IOException {
+        File blendFile = request.blendFile();
+        String scene = blendFile.getAbsolutePath();
+        String name = blendFile.getName();
+        File output = new File(blendFile.getAbsoluteFile().getParentFile(), request.cacheKey() + ".png");
+        if (scene.indexOf('\t') >= 0 || scene.indexOf('\n') >= 0 || scene.indexOf('\r') >= 0) {
+            throw new IOException("Cannot pass " + scene + " to Blender");
+        }
+        String command = String.join("\t", "RENDER", scene, Integer.toString(request.frame()), output.getAbsolutePath(),
+                Integer.toString(request.width()), Integer.toString(request.height()), request.engine());
+
+        Worker worker = acquire(scene);
+        boolean reusable = false;
+        try {
+            if (worker == null) {
+                worker = start();
+            }
+            if (scene.equals(worker.scene)) {
+                sceneReuses.increment();
+            }
+            worker.jobs++;
+            String reply = worker.call(command, timeoutMillis);
+            // An error reply still leaves the process in a known state
+            reusable = true;
+            if (reply.startsWith("OK")) {
+                worker.scene = scene;
+                return output;
+            }
+            worker.scene = null;
+            throw new IOException("Blender could not render " + name + ": " + reply.substring(Math.min(reply.length(), "ERROR\t".length())));
+        } finally {
+            release(worker, reusable);
+        }
+    }
+
+    /**
+     * Take an idle process, preferring one with the scene loaded, after a health check.
+     *
+     * @return the process, or null to start a new one
+     */
+    private Worker acquire(String scene) throws IOException {
+        while (true) {
+            Worker worker = take(scene);
+            if (worker == null || worker.isHealthy()) {
+                return worker;
+            }
+            unhealthy.increment();
+            logger.warning(worker.name + " failed its health check");
+            release(worker, false);
+        }
+    }
+
+    private synchronized Worker take(String scene) throws IOException {
+        while (true) {
+            if (closed) {
+                throw new IOException("Blender process pool is closed");
+            }
+            for (Iterator<Worker> i = idle.descendingIterator(); i.hasNext(); ) {
+                Worker worker = i.next();
+                if (scene.equals(worker.scene)) {
+                    i.remove();
+                    return worker;
+                }
+            }
+            if (processes < size) {
+                // Reserve the slot; the process is started outside the lock
+                processes++;
+                return null;
+            }
+            if (!idle.isEmpty()) {
+                return idle.pollFirst();
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a Blender process");
+            }
+        }
+    }
+
+    /**
+     * Return a process to the pool, or stop it and free its slot.
+     *
+     * @param worker the process, or null if it failed to start
+     * @param reusable whether it may take another job
+     */
+    private void release(Worker worker, boolean reusable) {
+        boolean stop;
+        synchronized (this) {
+            stop = worker == null || !reusable || worker.jobs >= maxJobs || closed;
+            if (stop) {
+                processes--;
+            } else {
+                worker.idleSince = System.nanoTime();
+                idle.addLast(worker);
+            }
+            notifyAll();
+        }
+        if (stop && worker != null) {
+            if (reusable && worker.jobs >= maxJobs) {
+                recycled.increment();
+            }
+            worker.stop();
+        }
+    }
+
+    private Worker start() throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(List.of(executable,
+                "--background", "--factory-startup", "--disable-autoexec",
+                "--python", workerScript().toString()));
+        builder.redirectErrorStream(true);
+        Worker worker = new Worker(builder.start());
+        try {
+            String ready = worker.reply(timeoutMillis);
+            if (!ready.equals("READY")) {
+                throw new IOException(worker.name + " answered " + ready + " instead of READY");
+            }
+        } catch (IOException e) {
+            worker.process.destroyForcibly();
+            throw e;
+        }
+        started.increment();
+        logger.info("Started " + worker.name + " (" + executable + ")");
+        return worker;
+    }
+
+    /**
+     * Extract the worker script once, for Blender to run.
+     */
+    private synchronized Path workerScript() throws IOException {
+        if (workerScript == null) {
+            try (InputStream in = BlenderProcessPool.class.getResourceAsStream(WORKER_SCRIPT)) {
+                if (in == null) {
+                    throw new IOException("Missing " + WORKER_SCRIPT);
+                }
+                Path script = Files.createTempFile("coda-render-worker", ".py");
+                script.toFile().deleteOnExit();
+                Files.copy(in, script, StandardCopyOption.REPLACE_EXISTING);
+                workerScript = script;
+            }
+        }
+        return workerScript;
+    }
+
+    /**
+     * Get the number of processes started, including replacements.
+     *
+     * @return the count
+     */
+    public long processesStarted() {
+        return started.sum();
+    }
+
+    /**
+     * Get the number of processes replaced after reaching their job limit.
+     *
+     * @return the count
+     */
+    public long processesRecycled() {
+        return recycled.sum();
+    }
+
+    /**
+     * Get the number of idle processes that failed their health check.
+     *
+     * @return the count
+     */
+    public long healthCheckFailures() {
+        return unhealthy.sum();
+    }
+
+    /**
+     * Get the number of jobs given to a process that already had their scene loaded.
+     *
+     * @return the count
+     */
+    public long sceneReuses() {
+        return sceneReuses.sum();
+    }
+
+    /**
+     * Stop the idle processes; busy ones are stopped when their job ends.
+     */
+    @Override
+    public void close() {
+        ArrayDeque<Worker> stopping;
+        synchronized (this) {
+            closed = true;
+            stopping = new ArrayDeque<>(idle);
+            processes -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        stopping.forEach(Worker::stop);
+    }
+}
@@ -0,0 +1,246 @@
+package coda.app;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Transport using blocking sockets, one thread per connection.
+ * Sockets are accepted through a channel, so file bodies are sent with a zero-copy transfer.
+ */
+class BlockingTransport implements Transport {
+    static final String KEEP_ALIVE_TIMEOUT = "coda.server.keepAlive.timeoutMillis";
+    static final String KEEP_ALIVE_MAX_REQUESTS = "coda.server.keepAlive.maxRequests";
+    static final int LINGER_MILLIS = 2000;
+
+    private final WebServer server;
+    private final ServerConfig config;
+    private volatile boolean serial = false;
+
+    private volatile boolean running = false;
+    private volatile ServerSocketChannel serverSocket;
+
+    BlockingTransport(WebServer server, ServerConfig config) {
+        this.server = server;
+        this.config = config;
+    }
+
+    @Override
+    public void start(int port) throws IOException {
+        try (ServerSocketChannel serverSocket = ServerSocketChannel.open();
+             ConnectionExecutor executor = ConnectionExecutor.create(config)) {
+            serverSocket.bind(new InetSocketAddress(port));
+            this.serverSocket = serverSocket;
+            this.serial = executor.serial();
+            server.logger.info("Server started on port " + port + " (blocking, " + executor + ")");
+
+            running = true;
+            while (running) {
+                SocketChannel channel = serverSocket.accept();
+                // Each connection holds a thread, so one beyond them is refused rather than left waiting
+                if (!server.admission.openConnection(executor.maxConnections())) {
+                    server.admission.refuse(channel);
+                    continue;
+                }
+                Socket socket = channel.socket();
+                executor.execute(() -> handleClient(socket));
+            }
+        } catch (IOException e) {
+            if (running) {
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running = false;
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        ServerSocketChannel socket = serverSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                server.logger.severe("Server error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Handle a client.
+     * Requests are answered in order on the same connection until the client closes it,
+     * asks for Connection: close, or stays idle past the keep-alive timeout.
+     *
+     * @param socket The client socket
+     */
+    private void handleClient(Socket socket) {
+        String client = socket.getInetAddress().getHostAddress();
+        // Get the request
+        try (socket) {
+            socket.setSoTimeout(config.getInt(KEEP_ALIVE_TIMEOUT, 5000));
+            InputStream socketInput = socket.getInputStream();
+            HttpRequestParser parser = HttpRequestParser.create(config);
+            InputStream reader = parser.input(socketInput);
+            OutputStream writer = new BufferedOutputStream(socket.getOutputStream());
+            int maxRequests = config.getInt(KEEP_ALIVE_MAX_REQUESTS, 1000);
+            Metrics.Timing timing = new Metrics.Timing();
+
+            for (int served = 1; ; served++) {
+                // Read the request
+                WebServer.CustomHttpServletRequest request;
+                try {
+                    request = server.readRequest(parser, socketInput);
+                } catch (HttpParseException e) {
+                    server.metrics.malformed();
+                    e.toResponse().write(writer, false, true);
+                    writer.flush();
+                    lingeringClose(socket);
+                    break;
+                }
+                if (request == null) {
+                    break;
+                }
+                request.setBody(new BodyInputStream(reader, request.getContentLengthLong()));
+                request.setRemoteAddr(client);
+                request.setTiming(timing.begin(parser));
+                if (served >= maxRequests || !hasFramedBody(request)) {
+                    request.setAttribute(WebServer.CLOSE_CONNECTION, Boolean.TRUE);
+                }
+
+                // Send the response
+                server.sendResponse(request, writer);
+                EventHub.Subscriber events = WebServer.eventStream(request);
+                if (events != null) {
+                    streamEvents(socket, writer, events);
+                    break;
+                }
+                FileCache.Transfer file = WebServer.fileBody(request);
+                if (file != null) {
+                    sendFile(socket, writer, file);
+                }
+                boolean keepAlive = server.keepAlive(request);
+                if (keepAlive) {
+                    request.getBody().drain();
+                }
+
+                // Pipelined responses are flushed together once no more requests are waiting
+                if (!keepAlive || reader.available() == 0) {
+                    writer.flush();
+                }
+                if (!keepAlive) {
+                    if (request.getBody().remaining() > 0) {
+                        // Let the client see the response before the unread body makes the close a reset
+                        lingeringClose(socket);
+                    }
+                    break;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // Idle keep-alive connection
+        } catch (IOException e){
+            server.logger.severe("Server error: " + e.getMessage());
+        } finally {
+            server.admission.connectionClosed();
+        }
+    }
+
+    /**
+     * Send a file body after its response head, from the file's channel straight to the socket's.
+     *
+     * @param socket The client socket
+     * @param writer The output stream, holding the response head
+     * @param file The file range to send
+     * @throws IOException if the write fails
+     */
+    private static void sendFile(Socket socket, OutputStream writer, FileCache.Transfer file) throws IOException {
+        try (file) {
+            writer.flush();
+            WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(writer);
+            while (!file.done()) {
+                file.transferTo(target);
+            }
+        }
+    }
+
+    /**
+     * Write an event stream's events as they are published, until the client goes away or the
+     * subscriber is closed. A subscriber closed for falling behind closes the socket, so a write
+     * blocked on a client that stopped reading fails instead of holding the thread.
+     * In serial mode the accept thread must not be held, so only the events already queued are
+     * sent and the client reconnects for more.
+     *
+     * @param socket The client socket
+     * @param writer The output stream, holding the response head
+     * @param events The subscriber
+     */
+    private void streamEvents(Socket socket, OutputStream writer, EventHub.Subscriber events) {
+        events.onClosed(() -> {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closed already
+            }
+        });
+        try {
+            writer.flush();
+            for (EventHub.Event event = serial ? events.poll() : events.take(); event != null;
+                 event = serial ? events.poll() : events.take()) {
+                writer.write(event.bytes());
+                if (events.isEmpty()) {
+                    writer.flush();
+                }
+            }
+            writer.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The client went away
+        } finally {
+            events.close();
+        }
+    }
+
+    /**
+     * Stop writing and discard input until the client closes its side, so a reset
+     * doesn't destroy the error response before the client has read it.
+     *
+     * @param socket The client socket
+     */
+    private void lingeringClose(Socket socket) {
+        try {
+            socket.shutdownOutput();
+            socket.setSoTimeout(LINGER_MILLIS);
+            InputStream in = socket.getInputStream();
+            byte[] discard = new byte[4096];
+            while (in.read(discard) != -1) {
+                // Discard
+            }
+        } catch (IOException e) {
+            // The connection is being closed anyway
+        }
+    }
+
+    /**
+     * Whether the end of the request body is known, so the next request can be found after it.
+     *
+     * @param request The request
+     * @return false for chunked or malformed bodies
+     */
+    static boolean hasFramedBody(HttpServletRequest request) {
+        String transferEncoding = request.getHeader("Transfer-Encoding");
+        return request.getContentLengthLong() >= 0
+                && (transferEncoding == null || transferEncoding.equalsIgnoreCase("identity"));
+    }
+}
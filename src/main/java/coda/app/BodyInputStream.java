@@ -0,0 +1,100 @@
+package coda.app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+/**
+ * Request body stream.
+ * Reads at most Content-Length bytes from the connection so the next pipelined request is left intact.
+ * Reads are blocking only: requests are never in async mode, so no read listener can be set.
+ */
+class BodyInputStream extends ServletInputStream {
+    private final InputStream in;
+    private long remaining;
+
+    BodyInputStream(InputStream in, long length) {
+        this.in = in;
+        this.remaining = Math.max(0, length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int b = in.read();
+        if (b == -1) {
+            throw new IOException("Connection closed before the request body was complete");
+        }
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+        if (read == -1) {
+            throw new IOException("Connection closed before the request body was complete");
+        }
+        remaining -= read;
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    /**
+     * Get the number of body bytes not read yet.
+     *
+     * @return unread bytes
+     */
+    long remaining() {
+        return remaining;
+    }
+
+    /**
+     * Skip whatever the service did not read.
+     *
+     * @throws IOException if the connection fails
+     */
+    void drain() throws IOException {
+        byte[] buffer = new byte[8192];
+        while (read(buffer, 0, buffer.length) != -1) {
+            // Discard
+        }
+    }
+
+    @Override
+    public boolean isFinished() {
+        return remaining <= 0;
+    }
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    /**
+     * Always refused, as the servlet contract requires outside async mode.
+     *
+     * @throws IllegalStateException always
+     */
+    @Override
+    public void setReadListener(ReadListener readListener) {
+        throw new IllegalStateException("The request is not in async mode; reads are blocking only");
+    }
+
+    /**
+     * Closing the body must not close the connection.
+     */
+    @Override
+    public void close() {
+    }
+}
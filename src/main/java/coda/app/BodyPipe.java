@@ -0,0 +1,158 @@
+package coda.app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded hand-off of a request body from an event loop to the thread running the request.
+ * The loop offers whatever the connection has buffered without ever blocking; when the pipe
+ * is full the loop stops reading the socket until the reader has made room again, so a large
+ * upload holds at most the pipe's capacity in memory.
+ */
+class BodyPipe extends InputStream {
+    private final byte[] ring;
+    private final Runnable onSpace;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readable = lock.newCondition();
+
+    // Bytes still to arrive from the connection, and the ring read and write positions
+    private long expected;
+    private long head = 0;
+    private long tail = 0;
+    private boolean failed = false;
+    private boolean waitingForSpace = false;
+
+    /**
+     * @param capacity the most body bytes held at once
+     * @param length the body length
+     * @param onSpace run when the writer may offer again after the pipe was full
+     */
+    BodyPipe(int capacity, long length, Runnable onSpace) {
+        this.ring = new byte[capacity];
+        this.expected = length;
+        this.onSpace = onSpace;
+    }
+
+    /**
+     * Move buffered body bytes from the connection's parser into the pipe. Never blocks.
+     *
+     * @param parser the connection's parser
+     * @return true once the whole body has been offered
+     */
+    boolean offer(HttpRequestParser parser) {
+        lock.lock();
+        try {
+            while (expected > 0 && parser.buffered() > 0) {
+                int free = ring.length - (int) (tail - head);
+                if (free == 0) {
+                    waitingForSpace = true;
+                    break;
+                }
+                int at = (int) (tail % ring.length);
+                int count = (int) Math.min(Math.min(free, ring.length - at), expected);
+                count = parser.take(ring, at, count);
+                tail += count;
+                expected -= count;
+            }
+            readable.signalAll();
+            return expected == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether the pipe is full and the writer is waiting for room.
+     *
+     * @return true if full
+     */
+    boolean isFull() {
+        lock.lock();
+        try {
+            return waitingForSpace;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isComplete() {
+        lock.lock();
+        try {
+            return expected == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fail the reader, e.g. because the connection closed.
+     */
+    void fail() {
+        lock.lock();
+        try {
+            failed = true;
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] destination, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        boolean resume;
+        int count;
+        lock.lock();
+        try {
+            while (tail == head) {
+                if (expected == 0) {
+                    return -1;
+                }
+                if (failed) {
+                    throw new IOException("Connection closed before the request body was complete");
+                }
+                try {
+                    readable.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading the request body");
+                }
+            }
+            int at = (int) (head % ring.length);
+            count = (int) Math.min(Math.min(length, tail - head), ring.length - at);
+            System.arraycopy(ring, at, destination, offset, count);
+            head += count;
+            // Wake the writer once half the ring is free, not on every read
+            resume = waitingForSpace && tail - head <= ring.length / 2;
+            if (resume) {
+                waitingForSpace = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (resume) {
+            onSpace.run();
+        }
+        return count;
+    }
+
+    @Override
+    public int available() {
+        lock.lock();
+        try {
+            return (int) (tail - head);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package coda.app;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+
+/**
+ * Messages between a render coordinator and its workers over TCP.
+ * Each message is a type byte followed by its fields in DataOutput encoding; files follow their
+ * length as raw bytes, so a .blend input or rendered image streams without being held in memory.
+ *
+ * <pre>
+ * worker      HELLO version name cores   first message, once per connection
+ * worker      PULL                       one render slot is free
+ * both        HEARTBEAT                  sent every heartbeat when otherwise quiet
+ * coordinator TASK id hash frame width height engine hasBlend [length bytes]
+ *                                        the .blend is only sent to a worker that has not had it
+ * worker      RESULT id length bytes     the rendered image
+ * worker      FAILED id message          the render failed; it is not retried
+ * </pre>
+ */
+final class ClusterProtocol {
+    static final int VERSION = 1;
+
+    static final byte HELLO = 1;
+    static final byte PULL = 2;
+    static final byte HEARTBEAT = 3;
+    static final byte TASK = 4;
+    static final byte RESULT = 5;
+    static final byte FAILED = 6;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ClusterProtocol() {
+    }
+
+    /**
+     * Write a file's length and contents.
+     *
+     * @param out the stream
+     * @param file the file
+     * @throws IOException if reading or writing fails
+     */
+    static void writeFile(DataOutputStream out, Path file) throws IOException {
+        out.writeLong(Files.size(file));
+        try (InputStream in = Files.newInputStream(file)) {
+            in.transferTo(out);
+        }
+    }
+
+    /**
+     * Read a file written by {@link #writeFile}, or skip it.
+     *
+     * @param in the stream
+     * @param target where to write it, or null to discard it
+     * @param digest updated with the contents, or null
+     * @throws IOException if reading or writing fails
+     */
+    static void readFile(DataInputStream in, Path target, MessageDigest digest) throws IOException {
+        long remaining = in.readLong();
+        if (remaining < 0) {
+            throw new IOException("Negative file length");
+        }
+        if (target == null) {
+            in.skipNBytes(remaining);
+            return;
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (OutputStream out = Files.newOutputStream(target)) {
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("Connection closed inside a file");
+                }
+                out.write(buffer, 0, read);
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                remaining -= read;
+            }
+        }
+    }
+}
@@ -1,33 +1,44 @@
 package coda.app;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class CodaApplication {
+	// Read by every connection thread, written only on registration
 	private final List<WebPageService> services;
-	private static WebServer server;
+	private volatile RoutingTable routes = RoutingTable.EMPTY;
+	private WebServer server;
+	private ServerConfig config = ServerConfig.defaults();
+	// The blender farm built last, whose renders /metrics publishes
+	private volatile BlenderFarm farm;
 
 	public CodaApplication() {
-		this.services = new ArrayList<>();
+		this.services = new CopyOnWriteArrayList<>();
 	}
 
 	/**
 	 * Build a blender farm service.
+	 * It uses the configuration of the server, if one has been created.
 	 *
 	 * @return the blender farm service
 	 */
 	public WebPageService buildBlenderFarm() {
-		return new WebPageServiceBuilder<File,File>(){}
+		BlenderFarm farm = new BlenderFarm(config);
+		this.farm = farm;
+		return new WebPageServiceBuilder<RenderRequest,CompletableFuture<File>>(){}
 				.setTitle("Blender Farm")
 				.setDescription("A simple blender farm")
 				.setVersion("0.0.1")
 				.setAuthor("Hamish Burke")
 				.setLicense("MIT")
-				.setService(BlenderFarm::renderFrame)
-				.setRender(BlenderFarm::renderFrameHTML)
-				.setInputParser(BlenderFarm::parseInput)
+				.setService(farm::renderFrame)
+				.setExpensive(true)
+				.setContent(BlenderFarm::writeRenderPage)
+				.setInputParser(farm::parseInput)
 				.build();
 	}
 
@@ -47,19 +58,20 @@ public class CodaApplication {
 					}
 					return i;
 				})
+				.setBatchInputParser(line -> Integer.valueOf(line.toString().trim()))
 				.build();
 	}
 
 	/**
 	 * Main method.
 	 *
-	 * @param args IP and port
+	 * @param args IP and port, followed by optional key=value configuration overrides
 	 */
 	public static void main(String[] args) {
 		String ip;
 		int port;
 
-		if (args.length > 0) {
+		if (args.length > 1) {
 			ip = args[0];
 			port = Integer.parseInt(args[1]);
 		} else {
@@ -67,10 +79,16 @@ public class CodaApplication {
 			port = 80;
 		}
 
+		ServerConfig config = ServerConfig.load(args.length > 2 ? Arrays.copyOfRange(args, 2, args.length) : new String[0]);
+		if ("worker".equalsIgnoreCase(config.getString(RenderCoordinator.ROLE, "standalone"))) {
+			// A render farm worker serves its coordinator instead of the web
+			RenderWorker.create(config).run();
+			return;
+		}
 		CodaApplication app = new CodaApplication();
 
 		// Setup web server
-		server = new WebServer(ip, port, app);
+		WebServer server = app.createServer(ip, port, config);
 		app.addService(app.buildBlenderFarm());
 		app.addService(app.buildAdderService());
 
@@ -80,14 +98,68 @@ public class CodaApplication {
 	}
 
 
+	/**
+	 * Create the web server for this application.
+	 * Services already added are registered with it.
+	 *
+	 * @param ip the IP
+	 * @param port the port
+	 * @param config the server configuration
+	 * @return the web server
+	 */
+	public WebServer createServer(String ip, int port, ServerConfig config) {
+		this.config = config;
+		server = new WebServer(ip, port, this, config);
+		services.forEach(server::addServiceEndpoint);
+		return server;
+	}
+
 	/**
 	 * Add a service to the application.
+	 * Its endpoint and routes are compiled into the routing table here, not on each request.
 	 *
 	 * @param codaService the service to add
+	 * @throws IllegalStateException if another service, or the server itself (e.g. /metrics),
+	 *                               already answers one of its paths
 	 */
-	private void addService(WebPageService<?, ?> codaService) {
+	public synchronized void addService(WebPageService<?, ?> codaService) {
+		String endpoint = "/" + codaService.endpoint();
+		RoutingTable updated = routes.with(endpoint, codaService);
+		// WebPageService extends the raw CodaService, so routes() is a raw List here
+		List<String> extraRoutes = codaService.routes();
+		for (String route : extraRoutes) {
+			updated = updated.with(endpoint + (route.startsWith("/") ? "" : "/") + route, codaService);
+		}
+
+		// Services first, so a page cached against the new table lists the new service
 		this.services.add(codaService);
-		server.addServiceEndpoint(codaService);
+		this.routes = updated;
+		if (server != null) {
+			server.addServiceEndpoint(codaService);
+		}
+	}
+
+	/**
+	 * Find the service answering a path.
+	 *
+	 * @param path the request path
+	 * @return the service, or null if none matches
+	 */
+	public WebPageService findService(String path) {
+		return routes.lookup(path);
+	}
+
+	RoutingTable routes() {
+		return routes;
+	}
+
+	/**
+	 * Get the blender farm built last.
+	 *
+	 * @return the farm, or null if none was built
+	 */
+	BlenderFarm farm() {
+		return farm;
 	}
 
 	/**
@@ -1,5 +1,9 @@
 package coda.app;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Simple web service interface.
  * Contains a title, description, version, author and license.
@@ -19,11 +23,41 @@ public interface CodaService<I,O> {
         return title().toLowerCase().replace(" ", "-");
     }
 
+    /**
+     * Extra paths below the endpoint the service answers.
+     * Segments may be parameters such as "jobs/{id}", and the last segment may be "*" to match any remainder.
+     *
+     * @return route patterns relative to the endpoint
+     */
+    default List<String> routes(){
+        return Collections.emptyList();
+    }
+
     /**
      * Run the service.
+     * A service whose work takes long returns a {@link java.util.concurrent.CompletableFuture}
+     * (any CompletionStage) and completes it later; the server then runs the call as a job,
+     * answering 202 with the job's location instead of waiting. Cancelling the job or its
+     * timing out cancels the future. Other outputs are sent as they are.
      *
      * @param input input
-     * @return output
+     * @return output, or a future of it
      */
     default O runService( I input ){ return null; }
+
+    /**
+     * Run the service on several inputs at once.
+     * Services with a cost shared between inputs, such as a lookup or a round trip, override it
+     * to pay that cost once per batch; the default runs each input in turn.
+     *
+     * @param inputs inputs
+     * @return an output for each input, in the same order
+     */
+    default List<O> runBatch( List<I> inputs ){
+        List<O> outputs = new ArrayList<>(inputs.size());
+        for (I input : inputs) {
+            outputs.add(runService(input));
+        }
+        return outputs;
+    }
 }
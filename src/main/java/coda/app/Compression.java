@@ -0,0 +1,177 @@
+package coda.app;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Content-Encoding negotiation and compression of response bodies.
+ * Only text-like bodies above a minimum size are compressed; images and archives are
+ * already compressed and would only cost CPU. Fresh compression is skipped while more
+ * requests are active than the configured limit, so a busy server spends its cores on
+ * answering rather than shrinking; cached variants are still served then.
+ */
+class Compression {
+    static final String ENABLED = "coda.compression.enabled";
+    static final String MIN_SIZE = "coda.compression.minSize";
+    static final String LEVEL = "coda.compression.level";
+    static final String MAX_ACTIVE_REQUESTS = "coda.compression.maxActiveRequests";
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    // gzip member header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final boolean enabled;
+    private final int minSize;
+    private final int level;
+    private final int maxActiveRequests;
+
+    Compression(boolean enabled, int minSize, int level, int maxActiveRequests) {
+        this.enabled = enabled;
+        this.minSize = minSize;
+        this.level = level;
+        this.maxActiveRequests = maxActiveRequests;
+    }
+
+    static Compression create(ServerConfig config) {
+        return new Compression(
+                config.getBoolean(ENABLED, true),
+                Math.max(0, config.getInt(MIN_SIZE, 860)),
+                Math.min(9, Math.max(1, config.getInt(LEVEL, 6))),
+                Math.max(1, config.getInt(MAX_ACTIVE_REQUESTS, Runtime.getRuntime().availableProcessors() * 2)));
+    }
+
+    /**
+     * Whether a body of this type and size is worth compressing at all.
+     * Responses for which this is true vary by Accept-Encoding.
+     *
+     * @param contentType the Content-Type
+     * @param size the body size
+     * @return true if it may be sent compressed
+     */
+    boolean applies(String contentType, int size) {
+        return enabled && size >= minSize && compressible(contentType);
+    }
+
+    /**
+     * Whether the server is too busy to compress a body it has not compressed before.
+     *
+     * @param activeRequests requests currently being answered
+     * @return true to send it uncompressed
+     */
+    boolean overloaded(int activeRequests) {
+        return activeRequests > maxActiveRequests;
+    }
+
+    /**
+     * Pick the encoding to send, preferring gzip.
+     * A * entry only covers codings the header does not name, so it never revives one refused with q=0.
+     *
+     * @param acceptEncoding the Accept-Encoding header, may be null
+     * @return gzip, deflate, or null for none
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean gzip = false;
+        boolean gzipRefused = false;
+        boolean deflate = false;
+        boolean deflateRefused = false;
+        boolean any = false;
+        for (String item : acceptEncoding.split(",")) {
+            int parameters = item.indexOf(';');
+            String coding = (parameters < 0 ? item : item.substring(0, parameters)).trim();
+            boolean refused = parameters >= 0 && isZeroQuality(item.substring(parameters + 1));
+            if (coding.equalsIgnoreCase(GZIP) || coding.equalsIgnoreCase("x-gzip")) {
+                gzip |= !refused;
+                gzipRefused |= refused;
+            } else if (coding.equalsIgnoreCase(DEFLATE)) {
+                deflate |= !refused;
+                deflateRefused |= refused;
+            } else if (coding.equals("*")) {
+                any |= !refused;
+            }
+        }
+        if (gzip || any && !gzipRefused) {
+            return GZIP;
+        }
+        return deflate || any && !deflateRefused ? DEFLATE : null;
+    }
+
+    private static boolean isZeroQuality(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            String p = parameter.trim();
+            if (p.startsWith("q=") || p.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(p.substring(2).trim()) <= 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a content type is text-like. Images, audio, video and archives are already compressed.
+     *
+     * @param contentType the Content-Type, may be null
+     * @return true if compressing it pays off
+     */
+    static boolean compressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        return type.startsWith("text/")
+                || type.contains("json")
+                || type.contains("javascript")
+                || type.contains("xml")
+                || type.startsWith("image/svg");
+    }
+
+    /**
+     * Compress a body.
+     *
+     * @param body the body
+     * @param encoding gzip or deflate
+     * @return the encoded body
+     */
+    byte[] compress(byte[] body, String encoding) {
+        boolean gzip = GZIP.equals(encoding);
+        // gzip wraps raw deflate data, HTTP deflate means the zlib format
+        Deflater deflater = new Deflater(level, gzip);
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 3 + 32);
+            if (gzip) {
+                out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            }
+            byte[] chunk = new byte[Math.min(64 * 1024, Math.max(512, body.length))];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(chunk);
+                out.write(chunk, 0, count);
+            }
+            if (gzip) {
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                writeIntLE(out, (int) crc.getValue());
+                writeIntLE(out, body.length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+}
@@ -0,0 +1,181 @@
+package coda.app;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs accepted connections.
+ * In serial mode every connection is handled on the calling (accept) thread.
+ * In concurrent mode each connection gets its own virtual thread, or a thread from a
+ * bounded platform pool when the JVM has no virtual threads.
+ * Either way at most coda.server.maxConnections connections are in flight at once.
+ */
+class ConnectionExecutor implements AutoCloseable {
+    static final String MODE = "coda.server.mode";
+    static final String MAX_CONNECTIONS = "coda.server.maxConnections";
+    static final String PLATFORM_THREADS = "coda.server.platformThreads";
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int maxConnections;
+    private final String description;
+
+    private ConnectionExecutor(ExecutorService executor, int maxConnections, String description) {
+        this.executor = executor;
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections);
+        this.description = description;
+    }
+
+    /**
+     * Create the executor described by the configuration.
+     *
+     * @param config the server configuration
+     * @return the executor
+     */
+    static ConnectionExecutor create(ServerConfig config) {
+        int maxConnections = Math.max(1, config.getInt(MAX_CONNECTIONS, 1024));
+
+        if ("serial".equalsIgnoreCase(config.getString(MODE, "concurrent"))) {
+            return new ConnectionExecutor(null, 1, "serial");
+        }
+
+        ExecutorService virtual = newVirtualThreadExecutor();
+        if (virtual != null) {
+            return new ConnectionExecutor(virtual, maxConnections, "virtual threads, max " + maxConnections);
+        }
+
+        int threads = Math.max(1, Math.min(maxConnections,
+                config.getInt(PLATFORM_THREADS, Runtime.getRuntime().availableProcessors() * 16)));
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, "coda-connection-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        // The semaphore bounds the queue, so an unbounded queue never holds more than maxConnections tasks
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+        return new ConnectionExecutor(pool, maxConnections, threads + " platform threads, max " + maxConnections);
+    }
+
+    /**
+     * Look up Executors.newVirtualThreadPerTaskExecutor, which only exists on Java 21+.
+     *
+     * @return the executor, or null if virtual threads are unavailable
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Run a connection task.
+     * Blocks while the maximum number of connections are already in flight.
+     *
+     * @param task the task
+     * @throws InterruptedException if interrupted while waiting for a free slot
+     */
+    void execute(Runnable task) throws InterruptedException {
+        if (executor == null) {
+            task.run();
+            return;
+        }
+
+        permits.acquire();
+        submit(task);
+    }
+
+    /**
+     * Run a connection task if a slot is free, without waiting for one.
+     *
+     * @param task the task
+     * @return false if the maximum number of connections are already in flight; the task did not run
+     */
+    boolean tryExecute(Runnable task) {
+        if (executor == null) {
+            task.run();
+            return true;
+        }
+
+        if (!permits.tryAcquire()) {
+            return false;
+        }
+        submit(task);
+        return true;
+    }
+
+    /**
+     * Hand a task holding a permit to the executor, which returns the permit when it is done.
+     */
+    private void submit(Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the number of connections currently being handled.
+     *
+     * @return in-flight connections
+     */
+    int inFlight() {
+        return executor == null ? 0 : maxConnections - permits.availablePermits();
+    }
+
+    /**
+     * Whether connections are handled on the calling thread, so one must never be held open.
+     *
+     * @return true in serial mode
+     */
+    boolean serial() {
+        return executor == null;
+    }
+
+    int maxConnections() {
+        return maxConnections;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    @Override
+    public void close() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
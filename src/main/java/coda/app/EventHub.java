@@ -0,0 +1,343 @@
+package coda.app;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Fans server-sent events out to subscribers.
+ * Each event is encoded in the text/event-stream format once, and every subscriber's queue holds
+ * the same bytes, so a publish costs one encoding however many clients listen. Queues are
+ * bounded: a subscriber that falls a full queue behind is disconnected instead of buffering
+ * without limit, and its client reconnects with Last-Event-ID to catch up from the recent history.
+ * Idle connections get a comment line every heartbeat so dead ones are noticed.
+ */
+class EventHub implements AutoCloseable {
+    static final String QUEUE_SIZE = "coda.events.queueSize";
+    static final String HISTORY = "coda.events.history";
+    static final String HEARTBEAT_SECONDS = "coda.events.heartbeatSeconds";
+    static final String MAX_SUBSCRIBERS = "coda.events.maxSubscribers";
+
+    private static final Logger logger = Logger.getLogger(EventHub.class.getName());
+
+    // Sent to idle subscribers, and queued to end a closed subscriber's stream
+    private static final Event HEARTBEAT = new Event(0, null, ":\n\n".getBytes(StandardCharsets.UTF_8));
+    private static final Event END = new Event(0, null, new byte[0]);
+
+    private final int queueSize;
+    private final int historySize;
+    private final long heartbeatMillis;
+    private final int maxSubscribers;
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    // Recent events for reconnecting clients; guarded by this, as is publishing
+    private final ArrayDeque<Event> history = new ArrayDeque<>();
+    private long lastId = 0;
+    private ScheduledThreadPoolExecutor heartbeat;
+    private boolean closed = false;
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    /**
+     * An encoded event, shared by every subscriber it is queued for.
+     */
+    static final class Event {
+        final long id;
+        // Events for one topic, e.g. a job id; null goes to every subscriber
+        final String topic;
+        private final byte[] bytes;
+
+        private Event(long id, String topic, byte[] bytes) {
+            this.id = id;
+            this.topic = topic;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Get the encoded event. The bytes are shared and must not be modified.
+         *
+         * @return the event in text/event-stream format
+         */
+        byte[] bytes() {
+            return bytes;
+        }
+
+        /**
+         * Get a buffer over the encoded event, with its own position but no copy of the bytes.
+         *
+         * @return a read-only buffer
+         */
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * One client's stream: a bounded queue of events waiting to be written.
+     */
+    final class Subscriber {
+        final String topic;
+        // One slot more than the limit, so END always fits
+        private final ArrayBlockingQueue<Event> queue = new ArrayBlockingQueue<>(queueSize + 1);
+        private final AtomicBoolean armed = new AtomicBoolean(true);
+        private volatile Runnable onAvailable;
+        private volatile Runnable onClosed;
+        private volatile boolean closed = false;
+
+        private Subscriber(String topic) {
+            this.topic = topic;
+        }
+
+        /**
+         * Run a callback, from a publishing thread, when events arrive after {@link #poll()} found none,
+         * or when the subscriber is closed. It must not block.
+         *
+         * @param callback the callback
+         */
+        void onAvailable(Runnable callback) {
+            this.onAvailable = callback;
+            if (!queue.isEmpty() || closed) {
+                signal();
+            }
+        }
+
+        /**
+         * Run a callback once the subscriber is closed, e.g. to close a connection stuck writing.
+         *
+         * @param callback the callback
+         */
+        void onClosed(Runnable callback) {
+            this.onClosed = callback;
+            if (closed) {
+                callback.run();
+            }
+        }
+
+        /**
+         * Take the next event without waiting.
+         *
+         * @return the event, or null if none is queued or the subscriber is closed
+         */
+        Event poll() {
+            Event event = queue.poll();
+            if (event == null) {
+                // Re-arm before looking again, so an event offered in between still signals
+                armed.set(true);
+                event = queue.poll();
+            }
+            return event == END ? null : event;
+        }
+
+        /**
+         * Wait for the next event.
+         *
+         * @return the event, or null once the subscriber is closed
+         * @throws InterruptedException if interrupted while waiting
+         */
+        Event take() throws InterruptedException {
+            Event event = queue.take();
+            return event == END ? null : event;
+        }
+
+        boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Stop the stream: the subscriber receives no more events, and events still queued are dropped.
+         */
+        void close() {
+            synchronized (EventHub.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                subscribers.remove(this);
+                queue.clear();
+                queue.offer(END);
+            }
+            signal();
+            Runnable callback = onClosed;
+            if (callback != null) {
+                callback.run();
+            }
+        }
+
+        private boolean accepts(Event event) {
+            return event.topic == null || topic == null || topic.equals(event.topic);
+        }
+
+        /**
+         * Queue an event, disconnecting the subscriber if it has fallen a full queue behind.
+         */
+        private void offer(Event event) {
+            if (closed) {
+                return;
+            }
+            if (queue.size() >= queueSize || !queue.offer(event)) {
+                overflows.increment();
+                logger.info("Event subscriber fell " + queueSize + " events behind, disconnecting");
+                close();
+                return;
+            }
+            signal();
+        }
+
+        private void signal() {
+            Runnable callback = onAvailable;
+            if (callback != null && armed.compareAndSet(true, false)) {
+                callback.run();
+            }
+        }
+    }
+
+    EventHub(int queueSize, int historySize, long heartbeatMillis, int maxSubscribers) {
+        this.queueSize = queueSize;
+        this.historySize = historySize;
+        this.heartbeatMillis = heartbeatMillis;
+        this.maxSubscribers = maxSubscribers;
+    }
+
+    static EventHub create(ServerConfig config) {
+        return new EventHub(
+                Math.max(1, config.getInt(QUEUE_SIZE, 64)),
+                Math.max(0, config.getInt(HISTORY, 256)),
+                TimeUnit.SECONDS.toMillis(Math.max(1, config.getLong(HEARTBEAT_SECONDS, 15))),
+                Math.max(1, config.getInt(MAX_SUBSCRIBERS, 10_000)));
+    }
+
+    /**
+     * Subscribe to events.
+     * Events after lastEventId still in the history are queued first, as many as the queue holds.
+     *
+     * @param topic the only topic to receive, besides events for everyone; null for all events
+     * @param lastEventId the id of the last event the client received, or -1 for none
+     * @return the subscriber
+     * @throws HttpException with 503 if there are too many subscribers
+     */
+    synchronized Subscriber subscribe(String topic, long lastEventId) throws HttpException {
+        if (closed || subscribers.size() >= maxSubscribers) {
+            throw HttpException.unavailable("Too many event subscribers", TimeUnit.MILLISECONDS.toSeconds(heartbeatMillis));
+        }
+        Subscriber subscriber = new Subscriber(topic);
+        if (lastEventId >= 0) {
+            ArrayDeque<Event> missed = new ArrayDeque<>();
+            for (Iterator<Event> i = history.descendingIterator(); i.hasNext() && missed.size() < queueSize; ) {
+                Event event = i.next();
+                if (event.id <= lastEventId) {
+                    break;
+                }
+                if (subscriber.accepts(event)) {
+                    missed.addFirst(event);
+                }
+            }
+            subscriber.queue.addAll(missed);
+        }
+        subscribers.add(subscriber);
+        if (heartbeat == null) {
+            heartbeat = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "coda-events");
+                thread.setDaemon(true);
+                return thread;
+            });
+            heartbeat.scheduleAtFixedRate(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        }
+        return subscriber;
+    }
+
+    /**
+     * Publish an event to every subscriber of its topic.
+     *
+     * @param topic the topic, or null for every subscriber
+     * @param name the event name, e.g. "job"
+     * @param data the event data; each line is sent as a data field
+     * @return the event id
+     */
+    synchronized long publish(String topic, String name, String data) {
+        long id = ++lastId;
+        Event event = new Event(id, topic, encode(id, name, data));
+        if (historySize > 0) {
+            if (history.size() == historySize) {
+                history.removeFirst();
+            }
+            history.addLast(event);
+        }
+        published.increment();
+        // Under the lock, so a subscriber replaying the history never misses or repeats an event
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.accepts(event)) {
+                subscriber.offer(event);
+            }
+        }
+        return id;
+    }
+
+    private synchronized void heartbeat() {
+        for (Subscriber subscriber : subscribers) {
+            // A busy stream needs no heartbeat, and must not be pushed over its limit by one
+            if (subscriber.isEmpty()) {
+                subscriber.offer(HEARTBEAT);
+            }
+        }
+    }
+
+    static byte[] encode(long id, String name, String data) {
+        StringBuilder event = new StringBuilder(data.length() + 32);
+        event.append("id: ").append(id).append('\n');
+        event.append("event: ").append(name).append('\n');
+        for (String line : data.split("\r\n|\r|\n", -1)) {
+            event.append("data: ").append(line).append('\n');
+        }
+        return event.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    int subscriberCount() {
+        return subscribers.size();
+    }
+
+    long published() {
+        return published.sum();
+    }
+
+    /**
+     * Get the number of subscribers disconnected for falling behind.
+     *
+     * @return the count
+     */
+    long overflows() {
+        return overflows.sum();
+    }
+
+    /**
+     * Close every stream and stop the heartbeat.
+     */
+    @Override
+    public void close() {
+        ScheduledThreadPoolExecutor timer;
+        synchronized (this) {
+            closed = true;
+            timer = heartbeat;
+            heartbeat = null;
+        }
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package coda.app;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Open channels of the files served to clients, so a hot file is not reopened on every request.
+ * Bodies are sent with {@link FileChannel#transferTo}, which reads positionally, so one channel
+ * serves any number of transfers at once. A file changed on disk since it was opened is reopened.
+ * Beyond the limit the least recently served file is evicted; its channel closes once the last
+ * transfer from it finishes.
+ */
+class FileCache implements AutoCloseable {
+    static final String MAX_OPEN = "coda.files.maxOpen";
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+    private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("tif", "image/tiff"),
+            Map.entry("tiff", "image/tiff"),
+            Map.entry("exr", "image/x-exr"),
+            Map.entry("hdr", "image/vnd.radiance"),
+            Map.entry("mp4", "video/mp4"),
+            Map.entry("html", "text/html; charset=utf-8"),
+            Map.entry("css", "text/css; charset=utf-8"),
+            Map.entry("js", "text/javascript; charset=utf-8"),
+            Map.entry("json", "application/json"),
+            Map.entry("txt", "text/plain; charset=utf-8"),
+            Map.entry("blend", "application/x-blender"));
+
+    private final int maxOpen;
+    // Access ordered, so iteration starts at the least recently served; guarded by this
+    private final LinkedHashMap<Path, Handle> open = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder opens = new LongAdder();
+
+    /**
+     * An open file and what it is served with.
+     */
+    final class Handle {
+        final Path path;
+        final long size;
+        final long lastModified;
+        final String etag;
+        final String contentType;
+        private final FileChannel channel;
+        // The cache holds one reference while the handle is in it, and each caller one more
+        private int references = 1;
+
+        private Handle(Path path, FileChannel channel, BasicFileAttributes attributes) {
+            this.path = path;
+            this.channel = channel;
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+            this.contentType = contentType(path);
+        }
+
+        private boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && lastModified == attributes.lastModifiedTime().toMillis();
+        }
+
+        /**
+         * Get part of the file to send. Closing the transfer releases the handle.
+         *
+         * @param start the first byte
+         * @param length the number of bytes
+         * @return the transfer
+         */
+        Transfer transfer(long start, long length) {
+            return new Transfer(this, start, length);
+        }
+
+        /**
+         * Give up this caller's reference.
+         */
+        void release() {
+            boolean close;
+            synchronized (FileCache.this) {
+                close = --references == 0;
+            }
+            if (close) {
+                closeChannel();
+            }
+        }
+
+        private void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing was written through it
+            }
+        }
+    }
+
+    /**
+     * A byte range of a file being sent.
+     */
+    static final class Transfer implements AutoCloseable {
+        private final Handle handle;
+        private long position;
+        private final long end;
+        private boolean closed = false;
+
+        private Transfer(Handle handle, long start, long length) {
+            this.handle = handle;
+            this.position = start;
+            this.end = start + length;
+        }
+
+        /**
+         * Send as much of the range as the target takes, without copying through the heap where
+         * the target is a socket or file channel.
+         *
+         * @param target the channel to write to
+         * @return the number of bytes sent; 0 if a non-blocking target is full
+         * @throws IOException if the write fails or the file shrank
+         */
+        long transferTo(WritableByteChannel target) throws IOException {
+            long sent = handle.channel.transferTo(position, end - position, target);
+            if (sent == 0 && position >= handle.channel.size()) {
+                throw new EOFException(handle.path + " shrank while it was being sent");
+            }
+            position += sent;
+            return sent;
+        }
+
+        boolean done() {
+            return position >= end;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                handle.release();
+            }
+        }
+    }
+
+    FileCache(int maxOpen) {
+        this.maxOpen = maxOpen;
+    }
+
+    static FileCache create(ServerConfig config) {
+        return new FileCache(Math.max(1, config.getInt(MAX_OPEN, 256)));
+    }
+
+    /**
+     * Get an open handle on a file, opening it if it is not open already or has changed.
+     * The caller must release it, directly or by closing a transfer from it.
+     *
+     * @param path the file
+     * @return the handle
+     * @throws NoSuchFileException if the path is not a regular file
+     * @throws IOException if the file cannot be opened
+     */
+    Handle acquire(Path path) throws IOException {
+        path = path.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (!attributes.isRegularFile()) {
+            throw new NoSuchFileException(path.toString());
+        }
+        synchronized (this) {
+            Handle handle = open.get(path);
+            if (handle != null && handle.matches(attributes)) {
+                handle.references++;
+                hits.increment();
+                return handle;
+            }
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        // Attributes read before the open may already be stale; these describe what was opened
+        Handle handle = new Handle(path, channel, Files.readAttributes(path, BasicFileAttributes.class));
+        opens.increment();
+        Handle replaced;
+        synchronized (this) {
+            handle.references++;
+            replaced = open.put(path, handle);
+            evict();
+        }
+        if (replaced != null) {
+            replaced.release();
+        }
+        return handle;
+    }
+
+    /**
+     * Drop the least recently served files beyond the limit. Called holding the lock.
+     */
+    private void evict() {
+        for (Iterator<Handle> i = open.values().iterator(); i.hasNext() && open.size() > maxOpen; ) {
+            Handle handle = i.next();
+            i.remove();
+            // Still holding the lock, so only the reference count changes here unless it was the last
+            if (--handle.references == 0) {
+                handle.closeChannel();
+            }
+        }
+    }
+
+    synchronized int openFiles() {
+        return open.size();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long opens() {
+        return opens.sum();
+    }
+
+    /**
+     * Guess a file's Content-Type from its extension.
+     *
+     * @param path the file
+     * @return the type, application/octet-stream if unknown
+     */
+    static String contentType(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String type = dot < 0 ? null : CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+        return type == null ? "application/octet-stream" : type;
+    }
+
+    /**
+     * Format a time as an HTTP date, e.g. for Last-Modified.
+     *
+     * @param millis the time in milliseconds since the epoch
+     * @return the date
+     */
+    static String httpDate(long millis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * Parse an HTTP date, e.g. from If-Modified-Since.
+     *
+     * @param date the header value, may be null
+     * @return the time in milliseconds since the epoch, or -1 if missing or malformed
+     */
+    static long parseHttpDate(String date) {
+        if (date == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(date.trim(), HTTP_DATE).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parse a Range header asking for one range of bytes.
+     * Several ranges, or units other than bytes, are answered with the whole file, as HTTP allows.
+     *
+     * @param range the header value, may be null
+     * @param size the file size
+     * @return the first byte and length; null to send the whole file; empty if no byte of the range exists
+     */
+    static long[] byteRange(String range, long size) {
+        if (range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // The last n bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || size == 0) {
+                    return new long[0];
+                }
+                long length = Math.min(suffix, size);
+                return new long[]{size - length, length};
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (end < start) {
+                // Malformed, so ignored
+                return null;
+            }
+            if (start >= size) {
+                return new long[0];
+            }
+            return new long[]{start, Math.min(end, size - 1) - start + 1};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Close every file no transfer is using; the rest close when their transfers finish.
+     */
+    @Override
+    public synchronized void close() {
+        for (Handle handle : open.values()) {
+            if (--handle.references == 0) {
+                handle.closeChannel();
+            }
+        }
+        open.clear();
+    }
+}
@@ -0,0 +1,240 @@
+package coda.app;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes HTML as UTF-8 bytes, straight into one buffer.
+ * Static markup is passed as pre-encoded byte arrays and copied once; strings are encoded
+ * as they are written, with {@link #text(String)} escaping them on the way.
+ * Given an output stream the buffer is flushed to it whenever it fills, otherwise it grows
+ * and holds the whole page.
+ */
+public final class HtmlWriter {
+    private static final int STREAM_BUFFER = 8192;
+    private static final int PAGE_BUFFER = 2048;
+
+    private final OutputStream out;
+    private byte[] buffer;
+    private int count;
+
+    /**
+     * Part of a page, written when the page around it reaches it.
+     */
+    @FunctionalInterface
+    public interface Fragment {
+        void writeTo(HtmlWriter out) throws IOException;
+    }
+
+    /**
+     * Create a writer that keeps the page in memory.
+     */
+    public HtmlWriter() {
+        this.out = null;
+        this.buffer = new byte[PAGE_BUFFER];
+    }
+
+    /**
+     * Create a writer that streams to an output.
+     *
+     * @param out the output, written whenever the buffer fills and on {@link #flush()}
+     */
+    public HtmlWriter(OutputStream out) {
+        this.out = out;
+        this.buffer = new byte[STREAM_BUFFER];
+    }
+
+    /**
+     * Encode static markup once, for passing to {@link #raw(byte[])}.
+     *
+     * @param html the markup
+     * @return the UTF-8 bytes
+     */
+    public static byte[] fragment(String html) {
+        return html.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Render a fragment in memory.
+     *
+     * @param fragment the fragment
+     * @return the writer holding it
+     */
+    public static HtmlWriter render(Fragment fragment) {
+        HtmlWriter out = new HtmlWriter();
+        try {
+            fragment.writeTo(out);
+        } catch (IOException e) {
+            // Only the fragment itself can fail; the buffer never does
+            throw new UncheckedIOException(e);
+        }
+        return out;
+    }
+
+    /**
+     * Write pre-encoded markup.
+     *
+     * @param html UTF-8 bytes
+     * @return this writer
+     * @throws IOException if streaming fails
+     */
+    public HtmlWriter raw(byte[] html) throws IOException {
+        if (html.length > buffer.length - count) {
+            flushBuffer();
+            if (out != null && html.length > buffer.length) {
+                out.write(html);
+                return this;
+            }
+            ensure(html.length);
+        }
+        System.arraycopy(html, 0, buffer, count, html.length);
+        count += html.length;
+        return this;
+    }
+
+    /**
+     * Write markup as is.
+     *
+     * @param html the markup; null writes "null" like string concatenation
+     * @return this writer
+     * @throws IOException if streaming fails
+     */
+    public HtmlWriter raw(String html) throws IOException {
+        String s = String.valueOf(html);
+        encode(s, 0, s.length());
+        return this;
+    }
+
+    /**
+     * Write text, escaping the characters that are special in element content and quoted attributes.
+     *
+     * @param text the text; null writes "null" like string concatenation
+     * @return this writer
+     * @throws IOException if streaming fails
+     */
+    public HtmlWriter text(String text) throws IOException {
+        String s = String.valueOf(text);
+        int run = 0;
+        for (int i = 0; i < s.length(); i++) {
+            String escaped = escape(s.charAt(i));
+            if (escaped != null) {
+                encode(s, run, i);
+                encode(escaped, 0, escaped.length());
+                run = i + 1;
+            }
+        }
+        encode(s, run, s.length());
+        return this;
+    }
+
+    private static String escape(char c) {
+        switch (c) {
+            case '&':
+                return "&amp;";
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '"':
+                return "&quot;";
+            case '\'':
+                return "&#39;";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Send buffered bytes to the output. Does nothing for an in-memory writer.
+     *
+     * @throws IOException if the write fails
+     */
+    public void flush() throws IOException {
+        if (out != null) {
+            flushBuffer();
+            out.flush();
+        }
+    }
+
+    /**
+     * Get the bytes written so far, for an in-memory writer.
+     *
+     * @return a copy of the page bytes
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    /**
+     * Get the text written so far, for an in-memory writer.
+     *
+     * @return the page
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, count, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode characters as UTF-8, reserving room for the worst case once per chunk.
+     */
+    private void encode(String s, int from, int to) throws IOException {
+        while (from < to) {
+            // A char takes at most 3 bytes; a surrogate pair ending past the chunk takes one more
+            int room = buffer.length - count - 1;
+            if (room < 3) {
+                makeRoom(Math.min(to - from, STREAM_BUFFER / 3) * 3 + 1);
+                continue;
+            }
+            int end = from + Math.min(to - from, room / 3);
+            byte[] b = buffer;
+            int n = count;
+            int i = from;
+            while (i < end) {
+                char c = s.charAt(i++);
+                if (c < 0x80) {
+                    b[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    b[n++] = (byte) (0xC0 | (c >> 6));
+                    b[n++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i < to && Character.isLowSurrogate(s.charAt(i))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(i++));
+                    b[n++] = (byte) (0xF0 | (codePoint >> 18));
+                    b[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    b[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    b[n++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired surrogates become '?', as String.getBytes does
+                    b[n++] = '?';
+                } else {
+                    b[n++] = (byte) (0xE0 | (c >> 12));
+                    b[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    b[n++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            count = n;
+            from = i;
+        }
+    }
+
+    private void makeRoom(int needed) throws IOException {
+        flushBuffer();
+        ensure(needed);
+    }
+
+    private void ensure(int needed) {
+        if (buffer.length - count < needed) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + needed));
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (out != null && count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package coda.app;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request cannot be served, carrying the status to answer with.
+ * Services throw it wrapped in an UncheckedIOException.
+ */
+class HttpException extends IOException {
+    private final int status;
+    private final String reason;
+    private final long retryAfterSeconds;
+
+    HttpException(int status, String reason, String message) {
+        this(status, reason, message, -1);
+    }
+
+    HttpException(int status, String reason, String message, long retryAfterSeconds) {
+        super(message);
+        this.status = status;
+        this.reason = reason;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * The server is too busy right now.
+     *
+     * @param message the detail message
+     * @param retryAfterSeconds when the client may try again
+     * @return the exception
+     */
+    static HttpException unavailable(String message, long retryAfterSeconds) {
+        return new HttpException(503, "Service Unavailable", message, retryAfterSeconds);
+    }
+
+    /**
+     * The client has sent more requests than its rate limit allows.
+     *
+     * @param message the detail message
+     * @param retryAfterSeconds when the client may try again
+     * @return the exception
+     */
+    static HttpException tooManyRequests(String message, long retryAfterSeconds) {
+        return new HttpException(429, "Too Many Requests", message, retryAfterSeconds);
+    }
+
+    int status() {
+        return status;
+    }
+
+    HttpResponse toResponse() {
+        HttpResponse response = new HttpResponse(status, reason);
+        if (retryAfterSeconds >= 0) {
+            response.header("Retry-After", Long.toString(retryAfterSeconds));
+        }
+        return response;
+    }
+}
@@ -0,0 +1,28 @@
+package coda.app;
+
+/**
+ * Thrown when a request is malformed or exceeds the configured limits.
+ * The server answers with its status and closes the connection.
+ */
+class HttpParseException extends HttpException {
+
+    HttpParseException(int status, String reason, String message) {
+        super(status, reason, message);
+    }
+
+    static HttpParseException badRequest(String message) {
+        return new HttpParseException(400, "Bad Request", message);
+    }
+
+    static HttpParseException tooLarge(String message) {
+        return new HttpParseException(431, "Request Header Fields Too Large", message);
+    }
+
+    static HttpParseException payloadTooLarge(String message) {
+        return new HttpParseException(413, "Payload Too Large", message);
+    }
+
+    static HttpParseException unsupportedMediaType(String message) {
+        return new HttpParseException(415, "Unsupported Media Type", message);
+    }
+}
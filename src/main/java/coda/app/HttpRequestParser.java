@@ -0,0 +1,440 @@
+package coda.app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Streaming HTTP/1.1 request head parser.
+ * One parser belongs to one connection and owns its read buffer. Bytes are scanned exactly
+ * once by a state machine that records where the method, path, query, protocol and each
+ * header sit in the buffer; nothing is copied or decoded while parsing. Bytes after the head
+ * (the body, or the next pipelined request) stay in the buffer for the transport.
+ */
+class HttpRequestParser {
+    static final String MAX_HEADER_SIZE = "coda.server.maxHeaderSize";
+    static final String MAX_HEADER_COUNT = "coda.server.maxHeaderCount";
+
+    private static final int INITIAL_CAPACITY = 2048;
+
+    private static final int METHOD = 0;
+    private static final int PATH = 1;
+    private static final int QUERY = 2;
+    private static final int PROTOCOL = 3;
+    private static final int LINE_FEED = 4;
+    private static final int HEADER_START = 5;
+    private static final int HEADER_NAME = 6;
+    private static final int VALUE_START = 7;
+    private static final int VALUE = 8;
+    private static final int FINAL_LINE_FEED = 9;
+    private static final int DONE = 10;
+
+    private final int maxHeaderSize;
+    private final int maxHeaderCount;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private ByteBuffer view = ByteBuffer.wrap(buffer);
+
+    // Start of the current request, next byte to scan or consume, end of the buffered data
+    private int start = 0;
+    private int position = 0;
+    private int limit = 0;
+
+    private int state = METHOD;
+    private final int[] slices;
+    private int headerCount = 0;
+    private int valueEnd;
+
+    // Head of the current request once complete, and the last head still pointing into the buffer
+    private RequestHead current;
+    private RequestHead live;
+    // Whether the current head was handed to another thread, so the parser must not touch it
+    private boolean handedOff;
+
+    // When the current request's first bytes were scanned and its head completed, for metrics
+    private long startedNanos;
+    private long parsedNanos;
+
+    HttpRequestParser(int maxHeaderSize, int maxHeaderCount) {
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxHeaderCount = maxHeaderCount;
+        this.slices = new int[RequestHead.HEADERS + maxHeaderCount * 4];
+        reset();
+    }
+
+    static HttpRequestParser create(ServerConfig config) {
+        return new HttpRequestParser(
+                Math.max(256, config.getInt(MAX_HEADER_SIZE, 16 * 1024)),
+                Math.max(1, config.getInt(MAX_HEADER_COUNT, 100)));
+    }
+
+    /**
+     * Read whatever the stream has into the buffer.
+     *
+     * @param in the connection input
+     * @return the number of bytes read, or -1 at end of stream
+     * @throws IOException if the read fails
+     */
+    int fill(InputStream in) throws IOException {
+        makeRoom();
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read > 0) {
+            limit += read;
+        }
+        return read;
+    }
+
+    /**
+     * Read whatever the channel has into the buffer.
+     *
+     * @param channel the connection channel
+     * @return the number of bytes read, or -1 at end of stream
+     * @throws IOException if the read fails
+     */
+    int fill(ReadableByteChannel channel) throws IOException {
+        makeRoom();
+        view.limit(buffer.length).position(limit);
+        int read = channel.read(view);
+        if (read > 0) {
+            limit += read;
+        }
+        return read;
+    }
+
+    /**
+     * Make sure there is free space at the end of the buffer.
+     * Consumed bytes are dropped first; the buffer only grows while a head does not fit.
+     */
+    private void makeRoom() {
+        // Once the head is complete only unconsumed body bytes need keeping
+        int keep = state == DONE ? position : start;
+        if (keep == limit && keep > 0) {
+            release(keep);
+            return;
+        }
+        if (limit < buffer.length) {
+            return;
+        }
+        if (keep > 0) {
+            release(keep);
+        } else {
+            // The old array stays with the last request, so it needs no detaching
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            view = ByteBuffer.wrap(buffer);
+            live = null;
+        }
+    }
+
+    /**
+     * Drop the bytes before an offset, moving the rest to the front of the buffer.
+     *
+     * @param keep the first byte to keep
+     */
+    private void release(int keep) {
+        if (state == DONE && !handedOff) {
+            head();
+        }
+        if (live != null) {
+            live.detach();
+            live = null;
+        }
+        System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+        if (state != DONE) {
+            for (int i = 0; i < Math.min(slices.length, RequestHead.HEADERS + (headerCount + 1) * 4); i++) {
+                if (slices[i] >= 0) {
+                    slices[i] -= keep;
+                }
+            }
+            valueEnd -= keep;
+        }
+        position -= keep;
+        limit -= keep;
+        start = Math.max(0, start - keep);
+    }
+
+    /**
+     * Scan buffered bytes.
+     *
+     * @return true once the head of the current request is complete
+     * @throws HttpParseException if the head is malformed or too large
+     */
+    boolean parse() throws HttpParseException {
+        if (state == DONE) {
+            return true;
+        }
+        if (startedNanos == 0 && limit > start) {
+            startedNanos = System.nanoTime();
+        }
+
+        final byte[] b = buffer;
+        int p = position;
+        while (p < limit) {
+            byte c = b[p];
+            switch (state) {
+                case METHOD:
+                    if (c == ' ') {
+                        if (p == slices[RequestHead.METHOD]) {
+                            throw HttpParseException.badRequest("Missing method");
+                        }
+                        slices[RequestHead.METHOD + 1] = p;
+                        slices[RequestHead.PATH] = p + 1;
+                        state = PATH;
+                    } else if ((c == '\r' || c == '\n') && p == start) {
+                        // Blank lines before a request line are ignored
+                        start = p + 1;
+                        slices[RequestHead.METHOD] = start;
+                    } else if (!isToken(c)) {
+                        throw HttpParseException.badRequest("Invalid method");
+                    }
+                    break;
+                case PATH:
+                    if (c == ' ') {
+                        slices[RequestHead.PATH + 1] = p;
+                        slices[RequestHead.PROTOCOL] = p + 1;
+                        state = PROTOCOL;
+                    } else if (c == '?') {
+                        slices[RequestHead.PATH + 1] = p;
+                        slices[RequestHead.QUERY] = p + 1;
+                        state = QUERY;
+                    } else if (c == '\r' || c == '\n') {
+                        throw HttpParseException.badRequest("Missing protocol");
+                    }
+                    break;
+                case QUERY:
+                    if (c == ' ') {
+                        slices[RequestHead.QUERY + 1] = p;
+                        slices[RequestHead.PROTOCOL] = p + 1;
+                        state = PROTOCOL;
+                    } else if (c == '\r' || c == '\n') {
+                        throw HttpParseException.badRequest("Missing protocol");
+                    }
+                    break;
+                case PROTOCOL:
+                    if (c == '\r' || c == '\n') {
+                        slices[RequestHead.PROTOCOL + 1] = p;
+                        if (p == slices[RequestHead.PROTOCOL] || b[slices[RequestHead.PROTOCOL]] != 'H') {
+                            throw HttpParseException.badRequest("Invalid protocol");
+                        }
+                        state = c == '\r' ? LINE_FEED : HEADER_START;
+                    }
+                    break;
+                case LINE_FEED:
+                    if (c != '\n') {
+                        throw HttpParseException.badRequest("Expected line feed");
+                    }
+                    state = HEADER_START;
+                    break;
+                case HEADER_START:
+                    if (c == '\r') {
+                        state = FINAL_LINE_FEED;
+                    } else if (c == '\n') {
+                        return complete(p + 1);
+                    } else if (c == ' ' || c == '\t') {
+                        throw HttpParseException.badRequest("Folded headers are not supported");
+                    } else {
+                        if (headerCount == maxHeaderCount) {
+                            throw HttpParseException.tooLarge("More than " + maxHeaderCount + " headers");
+                        }
+                        slices[RequestHead.HEADERS + headerCount * 4] = p;
+                        state = HEADER_NAME;
+                    }
+                    break;
+                case HEADER_NAME:
+                    if (c == ':') {
+                        int name = RequestHead.HEADERS + headerCount * 4;
+                        if (p == slices[name]) {
+                            throw HttpParseException.badRequest("Empty header name");
+                        }
+                        slices[name + 1] = p;
+                        state = VALUE_START;
+                    } else if (!isToken(c)) {
+                        throw HttpParseException.badRequest("Invalid header name");
+                    }
+                    break;
+                case VALUE_START:
+                    if (c == ' ' || c == '\t') {
+                        break;
+                    }
+                    slices[RequestHead.HEADERS + headerCount * 4 + 2] = p;
+                    valueEnd = p;
+                    state = VALUE;
+                    // The first value byte may already end the line
+                    continue;
+                case VALUE:
+                    if (c == '\r' || c == '\n') {
+                        slices[RequestHead.HEADERS + headerCount * 4 + 3] = valueEnd;
+                        headerCount++;
+                        state = c == '\r' ? LINE_FEED : HEADER_START;
+                    } else if (c != ' ' && c != '\t') {
+                        valueEnd = p + 1;
+                    }
+                    break;
+                case FINAL_LINE_FEED:
+                    if (c != '\n') {
+                        throw HttpParseException.badRequest("Expected line feed");
+                    }
+                    return complete(p + 1);
+                default:
+                    throw new IllegalStateException("Unknown parser state " + state);
+            }
+
+            p++;
+            if (p - start > maxHeaderSize) {
+                throw HttpParseException.tooLarge("Request head larger than " + maxHeaderSize + " bytes");
+            }
+        }
+
+        position = p;
+        return false;
+    }
+
+    private boolean complete(int end) {
+        position = end;
+        state = DONE;
+        parsedNanos = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Get the parsed head. Only valid once {@link #parse()} returned true.
+     *
+     * @return the head
+     */
+    RequestHead head() {
+        if (state != DONE || handedOff) {
+            throw new IllegalStateException(handedOff ? "Request head was handed off" : "Request head is not complete");
+        }
+        if (current == null) {
+            if (live != null) {
+                live.detach();
+            }
+            current = new RequestHead(buffer, Arrays.copyOf(slices, RequestHead.HEADERS + headerCount * 4), headerCount);
+            live = current;
+        }
+        return current;
+    }
+
+    /**
+     * Give the current head to a request read on another thread while this parser goes on
+     * filling the buffer, as for a streamed body. The head is copied out of the buffer and the
+     * parser forgets it, so moving or growing the buffer never changes it under the reader.
+     * Only valid once {@link #parse()} returned true, until {@link #reset()}.
+     *
+     * @return the head, no longer sharing the buffer
+     */
+    RequestHead handOff() {
+        RequestHead head = head();
+        head.detach();
+        current = null;
+        live = null;
+        handedOff = true;
+        return head;
+    }
+
+    long startedNanos() {
+        return startedNanos;
+    }
+
+    long parsedNanos() {
+        return parsedNanos;
+    }
+
+    /**
+     * Get the size of the current request's head. Only valid once {@link #parse()} returned true.
+     *
+     * @return the head size in bytes
+     */
+    int headSize() {
+        return state == DONE ? position - start : 0;
+    }
+
+    /**
+     * Whether any bytes have arrived for the current request.
+     *
+     * @return true if the request has started
+     */
+    boolean hasStarted() {
+        return limit > start;
+    }
+
+    /**
+     * Get the number of buffered bytes after the head that have not been consumed.
+     *
+     * @return buffered bytes
+     */
+    int buffered() {
+        return limit - position;
+    }
+
+    /**
+     * Consume buffered bytes after the head, for the request body.
+     *
+     * @param destination the array to copy into
+     * @param offset the offset in the array
+     * @param length the maximum number of bytes
+     * @return the number of bytes copied
+     */
+    int take(byte[] destination, int offset, int length) {
+        int count = Math.min(length, limit - position);
+        System.arraycopy(buffer, position, destination, offset, count);
+        position += count;
+        return count;
+    }
+
+    /**
+     * Start on the next request. Bytes already buffered for it are kept.
+     */
+    void reset() {
+        start = position;
+        state = METHOD;
+        headerCount = 0;
+        Arrays.fill(slices, 0, RequestHead.HEADERS, -1);
+        slices[RequestHead.METHOD] = start;
+        current = null;
+        handedOff = false;
+        startedNanos = 0;
+        parsedNanos = 0;
+    }
+
+    /**
+     * View the connection input as a stream that first drains bytes buffered after the head.
+     *
+     * @param in the connection input
+     * @return the stream
+     */
+    InputStream input(InputStream in) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                if (position < limit) {
+                    return buffer[position++] & 0xFF;
+                }
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] destination, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                if (position < limit) {
+                    return take(destination, offset, length);
+                }
+                return in.read(destination, offset, length);
+            }
+
+            @Override
+            public int available() throws IOException {
+                return buffered() + in.available();
+            }
+        };
+    }
+
+    private static boolean isToken(byte c) {
+        return c > 32 && c < 127 && c != ':' && c != '(' && c != ')' && c != ',' && c != '/'
+                && c != ';' && c != '<' && c != '=' && c != '>' && c != '?' && c != '@'
+                && c != '[' && c != '\\' && c != ']' && c != '{' && c != '}' && c != '"';
+    }
+}
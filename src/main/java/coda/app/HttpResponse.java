@@ -0,0 +1,136 @@
+package coda.app;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A framed HTTP/1.1 response.
+ * Every response that can have a body carries a Content-Length so the connection can be reused for the next request.
+ */
+class HttpResponse {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int status;
+    private final String reason;
+    private final StringBuilder headers = new StringBuilder();
+    private byte[] body = EMPTY;
+    private String contentType;
+    private String contentEncoding;
+    private boolean streamed = false;
+    // Length of a body the transport sends after the head, or -1
+    private long transferredLength = -1;
+
+    HttpResponse(int status, String reason) {
+        this.status = status;
+        this.reason = reason;
+    }
+
+    static HttpResponse ok(String contentType, byte[] body) {
+        return of(200, "OK", contentType, body);
+    }
+
+    static HttpResponse of(int status, String reason, String contentType, byte[] body) {
+        HttpResponse response = new HttpResponse(status, reason).header("Content-Type", contentType).body(body);
+        response.contentType = contentType;
+        return response;
+    }
+
+    static HttpResponse notModified() {
+        return new HttpResponse(304, "Not Modified");
+    }
+
+    static HttpResponse notFound() {
+        return new HttpResponse(404, "Not Found");
+    }
+
+    int status() {
+        return status;
+    }
+
+    HttpResponse header(String name, String value) {
+        headers.append(name).append(": ").append(value).append("\r\n");
+        return this;
+    }
+
+    HttpResponse body(byte[] body) {
+        this.body = body == null ? EMPTY : body;
+        return this;
+    }
+
+    byte[] body() {
+        return body;
+    }
+
+    String contentType() {
+        return contentType;
+    }
+
+    String contentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * Replace the body with an encoded one.
+     *
+     * @param encoding the Content-Encoding, e.g. gzip
+     * @param encoded the encoded body
+     * @return this response
+     */
+    HttpResponse encoded(String encoding, byte[] encoded) {
+        this.contentEncoding = encoding;
+        return header("Content-Encoding", encoding).body(encoded);
+    }
+
+    /**
+     * Send the head alone, for a body the transport writes afterwards until the connection closes.
+     *
+     * @return this response
+     */
+    HttpResponse streamed() {
+        this.streamed = true;
+        return this;
+    }
+
+    /**
+     * Send the head alone, with the Content-Length of a body the transport sends afterwards, e.g. from a file.
+     *
+     * @param length the body length
+     * @return this response
+     */
+    HttpResponse transferred(long length) {
+        this.transferredLength = length;
+        return this;
+    }
+
+    /**
+     * Write the response.
+     *
+     * @param out the output stream
+     * @param keepAlive whether the connection stays open afterwards
+     * @param includeBody false for HEAD requests
+     * @return the bytes sent, counting a body the transport sends afterwards
+     * @throws IOException if the write fails
+     */
+    long write(OutputStream out, boolean keepAlive, boolean includeBody) throws IOException {
+        StringBuilder head = new StringBuilder(64 + headers.length());
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        head.append(headers);
+        // 204 and 304 never have a body, and a 304 Content-Length would describe the cached one
+        if (status != 204 && status != 304 && !streamed) {
+            head.append("Content-Length: ").append(transferredLength >= 0 ? transferredLength : body.length).append("\r\n");
+        }
+        head.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+        head.append("\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        out.write(headBytes);
+        if (!includeBody) {
+            return headBytes.length;
+        }
+        if (transferredLength >= 0) {
+            return headBytes.length + transferredLength;
+        }
+        out.write(body);
+        return headBytes.length + body.length;
+    }
+}
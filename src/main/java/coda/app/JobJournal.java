@@ -0,0 +1,520 @@
+package coda.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of render job transitions, so queued and running renders survive a restart.
+ * Records are written into a memory-mapped file, which costs a memory copy rather than a system call.
+ * A background thread forces them to disk in groups: a submission waits for the group its record
+ * is in, so however fast jobs arrive there is at most one sync per commit interval. Other
+ * transitions are not waited for, as losing one only means a render is repeated after a crash,
+ * and the render cache usually answers it.
+ * Each record carries a checksum, so replay stops at a record torn by a crash. After replay, and
+ * whenever the file outgrows its limit, the journal is rewritten with only the unfinished jobs;
+ * a finished render outlives a restart in the render cache instead.
+ */
+public final class JobJournal implements AutoCloseable {
+    static final String DIR = "coda.journal.dir";
+    static final String SYNC_MILLIS = "coda.journal.syncMillis";
+    static final String COMPACT_BYTES = "coda.journal.compactBytes";
+
+    private static final Logger logger = Logger.getLogger(JobJournal.class.getName());
+    private static final String FILE = "render-jobs.journal";
+    private static final String LOCK = "render-jobs.lock";
+    private static final int HEADER = 8;
+    private static final int MIN_MAPPED = 1 << 20;
+
+    private static final byte SUBMITTED = 1;
+    private static final byte STARTED = 2;
+    private static final byte DONE = 3;
+    private static final byte FAILED = 4;
+    private static final byte CANCELLED = 5;
+
+    private final Path directory;
+    private final Path file;
+    private final long syncNanos;
+    private final long compactBytes;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+
+    // Guarded by this
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int generation = 0;
+    private long written = 0;
+    private long forced = 0;
+    private boolean closed = false;
+    private IOException failure;
+    // Submissions of unfinished jobs, by id
+    private final LinkedHashMap<Long, byte[]> unfinished = new LinkedHashMap<>();
+    private long lastId = 0;
+
+    private final Thread flusher;
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+
+    /**
+     * An unfinished job as recovered from the journal.
+     */
+    public static final class Entry {
+        public final long id;
+        public final RenderRequest request;
+
+        Entry(long id, RenderRequest request) {
+            this.id = id;
+            this.request = request;
+        }
+    }
+
+    /**
+     * Open the journal in a directory, replaying and compacting it.
+     *
+     * @param directory where the journal is kept
+     * @param syncMillis how long a group commit waits for more records before syncing
+     * @param compactBytes the file size beyond which the journal is compacted
+     * @throws IOException if the journal cannot be read or written, or another process has it open
+     */
+    public JobJournal(Path directory, long syncMillis, long compactBytes) throws IOException {
+        this.directory = directory;
+        this.file = directory.resolve(FILE);
+        this.syncNanos = TimeUnit.MILLISECONDS.toNanos(syncMillis);
+        this.compactBytes = compactBytes;
+        Files.createDirectories(directory);
+        // Compaction replaces the journal file, so the lock is held on one of its own
+        this.lockChannel = FileChannel.open(directory.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock locked;
+        try {
+            locked = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Open in this process already
+            locked = null;
+        }
+        this.lock = locked;
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException(file + " is in use by another process");
+        }
+        try {
+            replay();
+            compact();
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+        this.flusher = new Thread(this::flush, "coda-journal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Open the configured journal, or none if coda.journal.dir is empty or the journal cannot be opened.
+     *
+     * @param config the configuration
+     * @return the journal, or null
+     */
+    static JobJournal create(ServerConfig config) {
+        String directory = config.getString(DIR, "");
+        if (directory.isEmpty()) {
+            return null;
+        }
+        try {
+            return new JobJournal(Paths.get(directory),
+                    Math.max(0, config.getLong(SYNC_MILLIS, 5)),
+                    Math.max(MIN_MAPPED, config.getLong(COMPACT_BYTES, 16L * 1024 * 1024)));
+        } catch (IOException e) {
+            logger.warning("Render jobs will not survive a restart, cannot open the journal: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Get the jobs found unfinished in the journal when it was opened, in order of id.
+     *
+     * @return the entries
+     */
+    public synchronized List<Entry> recovered() {
+        List<Entry> entries = new ArrayList<>();
+        for (byte[] record : unfinished.values()) {
+            Entry entry = decode(record);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Get the highest job id the journal has seen, so new ids do not repeat recovered ones.
+     *
+     * @return the id, 0 if none
+     */
+    public synchronized long lastId() {
+        return lastId;
+    }
+
+    /**
+     * Record a submission and wait until it is on disk.
+     *
+     * @param id the job id
+     * @param request the render
+     */
+    public void submitted(long id, RenderRequest request) {
+        awaitSync(append(SUBMITTED, id, out -> {
+            out.writeUTF(request.blendFile().getAbsolutePath());
+            out.writeUTF(request.contentHash());
+            out.writeInt(request.frame());
+            out.writeInt(request.width());
+            out.writeInt(request.height());
+            out.writeUTF(request.engine());
+        }));
+    }
+
+    public void started(long id) {
+        append(STARTED, id, out -> { });
+    }
+
+    public void done(long id, File image) {
+        append(DONE, id, out -> out.writeUTF(image.getAbsolutePath()));
+    }
+
+    public void failed(long id, String message) {
+        String text = message == null ? "" : message;
+        // writeUTF takes at most 64 KB
+        append(FAILED, id, out -> out.writeUTF(text.length() > 1024 ? text.substring(0, 1024) : text));
+    }
+
+    public void cancelled(long id) {
+        append(CANCELLED, id, out -> { });
+    }
+
+    private interface Payload {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Append a record, returning the position it ends at, or -1 if the journal has failed.
+     */
+    private long append(byte type, long id, Payload payload) {
+        byte[] record = encode(type, id, payload);
+        synchronized (this) {
+            if (closed || failure != null) {
+                return -1;
+            }
+            try {
+                index(record);
+                write(record);
+            } catch (IOException e) {
+                fail(e);
+                return -1;
+            }
+            appended.increment();
+            notifyAll();
+            return written;
+        }
+    }
+
+    private static byte[] encode(byte type, long id, Payload payload) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeByte(type);
+            out.writeLong(id);
+            payload.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, HEADER, record.length - HEADER);
+        ByteBuffer header = ByteBuffer.wrap(record);
+        header.putInt(record.length - HEADER);
+        header.putInt((int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * Write a record at the end of the mapped file, mapping more of it if full. Called holding the lock.
+     */
+    private void write(byte[] record) throws IOException {
+        if (buffer.remaining() < record.length) {
+            long capacity = Math.max((long) buffer.capacity() * 2, written + record.length);
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IOException("Journal " + file + " is full");
+            }
+            MappedByteBuffer grown = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            grown.position((int) written);
+            // The old mapping is released once the flusher is done with it
+            buffer = grown;
+        }
+        buffer.put(record);
+        written += record.length;
+    }
+
+    /**
+     * Keep track of what compaction must keep. Called holding the lock.
+     */
+    private void index(byte[] record) {
+        ByteBuffer in = ByteBuffer.wrap(record, HEADER, record.length - HEADER);
+        byte type = in.get();
+        long id = in.getLong();
+        lastId = Math.max(lastId, id);
+        switch (type) {
+            case SUBMITTED:
+                unfinished.put(id, record);
+                break;
+            case DONE:
+            case FAILED:
+            case CANCELLED:
+                unfinished.remove(id);
+                break;
+            default:
+                // A started job is recovered like a queued one
+        }
+    }
+
+    private Entry decode(byte[] submission) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(submission, HEADER + 1, submission.length));
+            long id = in.readLong();
+            return new Entry(id, new RenderRequest(new File(in.readUTF()), in.readUTF(), in.readInt(), in.readInt(),
+                    in.readInt(), in.readUTF()));
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warning("Skipping unreadable job in " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Read every intact record, stopping at the end or at a record torn by a crash.
+     */
+    private void replay() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        long records = 0;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Journal " + file + " is too large");
+            }
+            MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            while (mapped.remaining() >= HEADER) {
+                int length = mapped.getInt();
+                int checksum = mapped.getInt();
+                if (length <= 0 || length > mapped.remaining()) {
+                    break;
+                }
+                byte[] record = new byte[HEADER + length];
+                mapped.get(record, HEADER, length);
+                crc.reset();
+                crc.update(record, HEADER, length);
+                if ((int) crc.getValue() != checksum) {
+                    logger.warning("Journal " + file + " ends in a torn record at byte " + (mapped.position() - length - HEADER));
+                    break;
+                }
+                ByteBuffer.wrap(record).putInt(length).putInt(checksum);
+                index(record);
+                records++;
+            }
+        }
+        logger.info("Replayed " + records + " journal records: " + unfinished.size() + " unfinished render jobs");
+    }
+
+    /**
+     * Rewrite the journal with only what replay needs, then continue appending to it. Called holding the lock
+     * or before the flusher starts.
+     */
+    private synchronized void compact() throws IOException {
+        Path compacted = directory.resolve(FILE + ".tmp");
+        long size = 0;
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (byte[] submission : unfinished.values()) {
+                ByteBuffer record = ByteBuffer.wrap(submission);
+                while (record.hasRemaining()) {
+                    size += out.write(record);
+                }
+            }
+            out.force(true);
+        }
+        try {
+            Files.move(compacted, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(MIN_MAPPED, Math.min(Integer.MAX_VALUE, size * 2)));
+        buffer.position((int) size);
+        generation++;
+        written = size;
+        forced = size;
+        compactions.increment();
+        notifyAll();
+    }
+
+    /**
+     * Force appended records to disk in groups, and compact the journal when it grows too large.
+     */
+    private void flush() {
+        while (true) {
+            MappedByteBuffer target;
+            int from;
+            int to;
+            int flushing;
+            try {
+                synchronized (this) {
+                    while (written == forced && !closed) {
+                        wait();
+                    }
+                    if (closed && written == forced) {
+                        return;
+                    }
+                }
+                // Let more records join the group
+                if (syncNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(syncNanos);
+                }
+                synchronized (this) {
+                    target = buffer;
+                    from = (int) forced;
+                    to = (int) written;
+                    flushing = generation;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            target.force(from, to - from);
+            syncs.increment();
+            synchronized (this) {
+                // A compaction meanwhile already forced everything
+                if (generation == flushing) {
+                    forced = Math.max(forced, to);
+                }
+                notifyAll();
+                if (written > compactBytes && failure == null && !closed) {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until the record ending at a position is on disk.
+     */
+    private synchronized void awaitSync(long position) {
+        int waiting = generation;
+        boolean interrupted = false;
+        // A compaction rewrites and forces the file, so it covers the record too
+        while (position >= 0 && forced < position && generation == waiting && failure == null && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop journaling after a write failed; rendering goes on without it. Called holding the lock.
+     */
+    private void fail(IOException e) {
+        failure = e;
+        logger.severe("Render job journal " + file + " failed, jobs will not survive a restart: " + e.getMessage());
+        notifyAll();
+    }
+
+    public long appended() {
+        return appended.sum();
+    }
+
+    /**
+     * Get the number of times records were forced to disk; with many submissions at once it is far
+     * lower than the number of records.
+     *
+     * @return the count
+     */
+    public long syncs() {
+        return syncs.sum();
+    }
+
+    public long compactions() {
+        return compactions.sum();
+    }
+
+    /**
+     * Get the size of the journal's records.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long size() {
+        return written;
+    }
+
+    /**
+     * Force what was appended to disk and close the journal.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                buffer.force();
+                channel.close();
+                lockChannel.close();
+            } catch (IOException e) {
+                logger.warning("Closing the journal " + file + " failed: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package coda.app;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Results of asynchronous services, by job id.
+ * A service whose runService returns a CompletionStage has it registered here; the client gets
+ * the id and polls for the status and result instead of holding a connection open. Jobs that
+ * have not finished within the timeout fail, which also cancels the service's future. Finished
+ * jobs are kept for a while so their results can be fetched, up to a fixed number of jobs.
+ * Ids are random, so one client cannot guess another's.
+ * A listener hears of each job when it is submitted and again when it finishes.
+ */
+class JobRegistry {
+    static final String TIMEOUT_SECONDS = "coda.jobs.timeoutSeconds";
+    static final String RETAIN_SECONDS = "coda.jobs.retainSeconds";
+    static final String MAX_JOBS = "coda.jobs.maxJobs";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<>();
+    private final long timeoutMillis;
+    private final long retainMillis;
+    private final int maxJobs;
+    private final AtomicLong nextSweep;
+    private final Consumer<Job> listener;
+
+    /**
+     * States of a job, as reported to clients.
+     */
+    enum Status {
+        PENDING, DONE, FAILED, CANCELLED, TIMED_OUT;
+
+        String label() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    /**
+     * A running or finished service call.
+     */
+    static final class Job {
+        final String id;
+        final String service;
+        final long submittedMillis = System.currentTimeMillis();
+        final CompletableFuture<?> result;
+        private volatile long finishedMillis = 0;
+
+        Job(String id, String service, CompletableFuture<?> result) {
+            this.id = id;
+            this.service = service;
+            this.result = result;
+        }
+
+        Status status() {
+            if (!result.isDone()) {
+                return Status.PENDING;
+            }
+            if (result.isCancelled()) {
+                return Status.CANCELLED;
+            }
+            if (!result.isCompletedExceptionally()) {
+                return Status.DONE;
+            }
+            return failure() instanceof TimeoutException ? Status.TIMED_OUT : Status.FAILED;
+        }
+
+        /**
+         * Get the output of a finished job.
+         *
+         * @return the output, or null if the job has not succeeded
+         */
+        Object output() {
+            return status() == Status.DONE ? result.getNow(null) : null;
+        }
+
+        /**
+         * Get why a finished job failed.
+         *
+         * @return the cause, or null if it has not failed
+         */
+        Throwable failure() {
+            if (!result.isCompletedExceptionally()) {
+                return null;
+            }
+            try {
+                result.getNow(null);
+                return null;
+            } catch (CompletionException e) {
+                return e.getCause();
+            } catch (CancellationException e) {
+                return e;
+            }
+        }
+
+        /**
+         * Describe the job as JSON: id, service, status, elapsed time, and the output or error once finished.
+         *
+         * @return the JSON object
+         */
+        String toJson() {
+            Status status = status();
+            StringBuilder json = new StringBuilder(128)
+                    .append("{\"id\":").append(quote(id))
+                    .append(",\"service\":").append(quote(service))
+                    .append(",\"status\":").append(quote(status.label()))
+                    .append(",\"elapsedMillis\":").append(elapsedMillis());
+            if (status == Status.DONE) {
+                Object output = output();
+                json.append(",\"result\":").append(output == null ? "null" : quote(output.toString()));
+            } else if (status != Status.PENDING) {
+                Throwable failure = failure();
+                json.append(",\"error\":").append(quote(String.valueOf(failure == null ? status.label() : failure.getMessage())));
+            }
+            return json.append('}').toString();
+        }
+
+        /**
+         * Get how long the job ran, or has been running.
+         *
+         * @return the time in milliseconds
+         */
+        long elapsedMillis() {
+            long end = finishedMillis == 0 ? System.currentTimeMillis() : finishedMillis;
+            return end - submittedMillis;
+        }
+    }
+
+    /**
+     * @param timeoutMillis the longest a job may run
+     * @param retainMillis how long a finished job is kept
+     * @param maxJobs the most jobs kept at once
+     * @param listener told of each job when submitted and when finished; must not block
+     */
+    JobRegistry(long timeoutMillis, long retainMillis, int maxJobs, Consumer<Job> listener) {
+        this.timeoutMillis = timeoutMillis;
+        this.retainMillis = retainMillis;
+        this.maxJobs = maxJobs;
+        this.nextSweep = new AtomicLong(System.currentTimeMillis() + retainMillis);
+        this.listener = listener;
+    }
+
+    static JobRegistry create(ServerConfig config, Consumer<Job> listener) {
+        return new JobRegistry(
+                TimeUnit.SECONDS.toMillis(Math.max(1, config.getLong(TIMEOUT_SECONDS, 900))),
+                TimeUnit.SECONDS.toMillis(Math.max(1, config.getLong(RETAIN_SECONDS, 600))),
+                Math.max(1, config.getInt(MAX_JOBS, 10_000)),
+                listener);
+    }
+
+    /**
+     * Track a service's result.
+     *
+     * @param service the service endpoint
+     * @param result the result; a CompletableFuture is failed in place when it times out
+     * @return the job
+     * @throws HttpException with 503 if too many jobs are unfinished or retained
+     */
+    Job register(String service, CompletionStage<?> result) throws HttpException {
+        sweep();
+        if (jobs.size() >= maxJobs) {
+            throw HttpException.unavailable("Too many jobs", TimeUnit.MILLISECONDS.toSeconds(retainMillis));
+        }
+        CompletableFuture<?> future = result.toCompletableFuture();
+        Job job = new Job(newId(), service, future);
+        jobs.put(job.id, job);
+        if (!future.isDone()) {
+            listener.accept(job);
+        }
+        future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((output, failure) -> {
+                    job.finishedMillis = System.currentTimeMillis();
+                    listener.accept(job);
+                });
+        return job;
+    }
+
+    /**
+     * Find a job.
+     *
+     * @param id the job id
+     * @return the job, or null if unknown or expired
+     */
+    Job find(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Cancel a job that has not finished.
+     *
+     * @param job the job
+     * @return true if it was cancelled by this call
+     */
+    boolean cancel(Job job) {
+        return job.result.cancel(true);
+    }
+
+    int size() {
+        return jobs.size();
+    }
+
+    /**
+     * Drop jobs finished longer ago than the retention period, at most once per period.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        long due = nextSweep.get();
+        if (now < due && jobs.size() < maxJobs) {
+            return;
+        }
+        if (!nextSweep.compareAndSet(due, now + Math.min(retainMillis, 60_000))) {
+            return;
+        }
+        for (Iterator<Job> i = jobs.values().iterator(); i.hasNext(); ) {
+            Job job = i.next();
+            if (job.finishedMillis != 0 && now - job.finishedMillis > retainMillis) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Quote a JSON string.
+     *
+     * @param s the string
+     * @return the JSON string literal
+     */
+    static String quote(String s) {
+        StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20 || c == '<' || c == '>' || c == '&') {
+                // Markup characters are escaped too, as the JSON is shown in pages
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String newId() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
@@ -0,0 +1,551 @@
+package coda.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives a server with concurrent HTTP requests and reports throughput and latency percentiles.
+ * By default it starts the whole application stack on an ephemeral localhost port with a
+ * number of page services; coda.load.target points it at a running server instead.
+ * <p>
+ * In the closed model (coda.load.rate=0) each connection sends its next request as soon as the
+ * last is answered. In the open model requests are scheduled at a constant total rate, and a
+ * request's latency counts from when it was due rather than when it was sent, so a stalled server
+ * is charged for the requests it kept waiting. Closed-model latencies are corrected the same way
+ * against the mean latency measured during the warm-up. Both the measured and the corrected
+ * percentiles are reported; the corrected ones are what a user would have seen.
+ * <p>
+ * Run it with: mvn -Pload verify -Dload.args="coda.load.connections=64 ..."
+ */
+public class LoadGenerator {
+    static final String TARGET = "coda.load.target";
+    static final String SERVICES = "coda.load.services";
+    static final String PATHS = "coda.load.paths";
+    static final String CONNECTIONS = "coda.load.connections";
+    static final String KEEP_ALIVE = "coda.load.keepAlive";
+    static final String RATE = "coda.load.rate";
+    static final String WARMUP = "coda.load.warmupSeconds";
+    static final String DURATION = "coda.load.durationSeconds";
+    static final String OUT = "coda.load.out";
+    static final String BASELINE = "coda.load.baseline";
+
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] LABELS = {"p50", "p90", "p99", "p999"};
+    private static final int TIMEOUT_MILLIS = 30_000;
+
+    private final String host;
+    private final int port;
+    private final String[] paths;
+    private final int connections;
+    private final boolean keepAlive;
+    private final int rate;
+    private final long warmupNanos;
+    private final long durationNanos;
+
+    LoadGenerator(String host, int port, String[] paths, int connections, boolean keepAlive, int rate,
+                  long warmupNanos, long durationNanos) {
+        this.host = host;
+        this.port = port;
+        this.paths = paths;
+        this.connections = connections;
+        this.keepAlive = keepAlive;
+        this.rate = rate;
+        this.warmupNanos = warmupNanos;
+        this.durationNanos = durationNanos;
+    }
+
+    /**
+     * Main method.
+     *
+     * @param args key=value overrides of coda.load.* and, for the embedded server, coda.* settings
+     */
+    public static void main(String[] args) throws Exception {
+        ServerConfig config = ServerConfig.load(args);
+        // One line per request would be most of the work
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        String target = config.getString(TARGET, null);
+        String host = "localhost";
+        int port;
+        WebServer server = null;
+        Thread serverThread = null;
+        if (target == null) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            CodaApplication app = new CodaApplication();
+            // All the load comes from one address, which the per-client rate limit would refuse
+            server = app.createServer(host, port, config.with(AdmissionControl.RATE, "0"));
+            for (int i = 0; i < config.getInt(SERVICES, 10); i++) {
+                app.addService(pageService(i));
+            }
+            app.addService(app.buildAdderService());
+            WebServer started = server;
+            int listening = port;
+            serverThread = new Thread(() -> started.start(listening), "load-server");
+            serverThread.start();
+            awaitListening(host, port);
+        } else {
+            int split = target.lastIndexOf(':');
+            host = target.substring(0, split);
+            port = Integer.parseInt(target.substring(split + 1));
+        }
+
+        LoadGenerator load = new LoadGenerator(host, port,
+                config.getString(PATHS, "/service-0").split("\\s*,\\s*"),
+                Math.max(1, config.getInt(CONNECTIONS, 16)),
+                config.getBoolean(KEEP_ALIVE, true),
+                Math.max(0, config.getInt(RATE, 0)),
+                TimeUnit.SECONDS.toNanos(Math.max(0, config.getInt(WARMUP, 5))),
+                TimeUnit.SECONDS.toNanos(Math.max(1, config.getInt(DURATION, 20))));
+        Report report;
+        try {
+            report = load.run();
+        } finally {
+            if (server != null) {
+                server.stop();
+                serverThread.join(5000);
+            }
+        }
+
+        Properties results = report.toProperties();
+        System.out.print(report.format());
+        String baseline = config.getString(BASELINE, null);
+        if (baseline != null) {
+            System.out.print(compare(load(Path.of(baseline)), results));
+        }
+        String out = config.getString(OUT, null);
+        if (out != null) {
+            Path file = Path.of(out);
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            try (Writer writer = Files.newBufferedWriter(file)) {
+                results.store(writer, "coda load test");
+            }
+            System.out.println("Results written to " + file);
+        }
+        // Server executor threads may still be winding down
+        System.exit(0);
+    }
+
+    private static WebPageService<Object, String> pageService(int index) {
+        return new WebPageServiceBuilder<Object, String>()
+                .setTitle("Service " + index)
+                .setDescription("Load test service number " + index)
+                .setVersion("1.0." + index)
+                .setAuthor("Coda")
+                .setLicense("MIT")
+                .setService(input -> "output " + index)
+                .setContent(out -> out.raw("<p>").text("Content of service " + index).raw("</p>"))
+                .build();
+    }
+
+    private static void awaitListening(String host, int port) throws InterruptedException {
+        for (int i = 0; i < 250; i++) {
+            try (Socket ignored = new Socket(host, port)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(20);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    /**
+     * Run the warm-up and the measurement.
+     *
+     * @return what was measured
+     * @throws InterruptedException if interrupted while waiting for the connections to finish
+     */
+    Report run() throws InterruptedException {
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+        List<Client> clients = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Client client = new Client(i, start, measureFrom, end);
+            clients.add(client);
+            Thread thread = new Thread(client, "load-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return new Report(this, clients);
+    }
+
+    /**
+     * One connection's share of the load, run on its own thread.
+     */
+    private final class Client implements Runnable {
+        private final int index;
+        private final long start;
+        private final long measureFrom;
+        private final long end;
+        private final Metrics.Histogram measured = new Metrics.Histogram();
+        private final Metrics.Histogram corrected = new Metrics.Histogram();
+        private final long[] statuses = new long[6];
+        private long requests;
+        private long errors;
+        private long maxMeasured;
+        private long maxCorrected;
+
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private String cookie = "";
+        private byte[][] requestHeads;
+
+        Client(int index, long start, long measureFrom, long end) {
+            this.index = index;
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            // Each connection sends every interval, offset so the total rate is smooth
+            long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(connections) / rate : 0;
+            long next = start + (interval * index) / connections;
+            long warmupTotal = 0;
+            long warmupCount = 0;
+            long expected = 0;
+            try {
+                for (long sent = 0; ; sent++) {
+                    if (interval > 0) {
+                        waitUntil(next);
+                    }
+                    long due = interval > 0 ? next : System.nanoTime();
+                    if (due - end >= 0) {
+                        break;
+                    }
+                    long sentAt = System.nanoTime();
+                    int status;
+                    try {
+                        status = exchange((int) ((sent + index) % paths.length));
+                    } catch (IOException e) {
+                        status = -1;
+                        close();
+                    }
+                    long done = System.nanoTime();
+                    next += interval;
+                    if (due - measureFrom < 0) {
+                        warmupTotal += done - sentAt;
+                        warmupCount++;
+                        continue;
+                    }
+                    if (status < 0) {
+                        errors++;
+                        continue;
+                    }
+                    requests++;
+                    statuses[Math.min(5, status / 100)]++;
+                    long latency = done - sentAt;
+                    record(measured, latency, false);
+                    if (interval > 0) {
+                        record(corrected, done - due, true);
+                    } else {
+                        if (expected == 0) {
+                            expected = warmupCount > 0 ? warmupTotal / warmupCount : latency;
+                        }
+                        recordCorrected(latency, expected);
+                    }
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void waitUntil(long deadline) {
+            long wait;
+            while ((wait = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+
+        private void record(Metrics.Histogram histogram, long nanos, boolean isCorrected) {
+            histogram.record(nanos);
+            if (isCorrected) {
+                maxCorrected = Math.max(maxCorrected, nanos);
+            } else {
+                maxMeasured = Math.max(maxMeasured, nanos);
+            }
+        }
+
+        /**
+         * Record a closed-model latency with the requests a stall kept from being sent: had
+         * they been sent every expected interval, each would have waited that much less.
+         */
+        private void recordCorrected(long latency, long expected) {
+            record(corrected, latency, true);
+            if (expected <= 0) {
+                return;
+            }
+            for (long missed = latency - expected; missed >= expected; missed -= expected) {
+                corrected.record(missed);
+            }
+        }
+
+        /**
+         * Send a GET and read the response.
+         *
+         * @param path the index of the path
+         * @return the response status
+         * @throws IOException if the connection failed
+         */
+        private int exchange(int path) throws IOException {
+            if (socket == null) {
+                connect();
+            }
+            out.write(requestHead(path));
+            out.flush();
+
+            String statusLine = readLine();
+            if (statusLine == null || statusLine.length() < 12) {
+                throw new IOException("Bad status line: " + statusLine);
+            }
+            int status = Integer.parseInt(statusLine.substring(9, 12));
+            long length = 0;
+            boolean closing = !keepAlive;
+            for (String line = readLine(); line != null && !line.isEmpty(); line = readLine()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    length = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close")) {
+                    closing = true;
+                } else if (name.equalsIgnoreCase("Set-Cookie")) {
+                    // Return the session like a browser, so the server does not make one per request
+                    cookie = value.split(";")[0];
+                    requestHeads = null;
+                }
+            }
+            while (length > 0) {
+                long skipped = in.skip(length);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new IOException("Connection closed in the body");
+                    }
+                    skipped = 1;
+                }
+                length -= skipped;
+            }
+            if (closing) {
+                close();
+            }
+            return status;
+        }
+
+        private byte[] requestHead(int path) {
+            if (requestHeads == null) {
+                requestHeads = new byte[paths.length][];
+            }
+            if (requestHeads[path] == null) {
+                requestHeads[path] = ("GET " + paths[path] + " HTTP/1.1\r\n"
+                        + "Host: " + host + ":" + port + "\r\n"
+                        + (cookie.isEmpty() ? "" : "Cookie: " + cookie + "\r\n")
+                        + (keepAlive ? "" : "Connection: close\r\n")
+                        + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            }
+            return requestHeads[path];
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (b == '\n') {
+                    int length = line.length();
+                    return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+                }
+                line.append((char) b);
+            }
+            return line.length() == 0 ? null : line.toString();
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            socket.connect(new InetSocketAddress(host, port), TIMEOUT_MILLIS);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        private void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already gone
+                }
+                socket = null;
+            }
+        }
+    }
+
+    /**
+     * The measurements of every connection, merged.
+     */
+    static final class Report {
+        private final LoadGenerator load;
+        private final long requests;
+        private final long errors;
+        private final long[] statuses = new long[6];
+        private final long[] measured = new long[Metrics.Histogram.BUCKETS];
+        private final long[] corrected = new long[Metrics.Histogram.BUCKETS];
+        private long correctedCount;
+        private long maxMeasured;
+        private long maxCorrected;
+
+        private Report(LoadGenerator load, List<Client> clients) {
+            this.load = load;
+            long requests = 0;
+            long errors = 0;
+            long[] counts = new long[Metrics.Histogram.BUCKETS];
+            for (Client client : clients) {
+                requests += client.requests;
+                errors += client.errors;
+                for (int i = 0; i < statuses.length; i++) {
+                    statuses[i] += client.statuses[i];
+                }
+                client.measured.snapshot(counts);
+                add(measured, counts);
+                correctedCount += client.corrected.snapshot(counts);
+                add(corrected, counts);
+                maxMeasured = Math.max(maxMeasured, client.maxMeasured);
+                maxCorrected = Math.max(maxCorrected, client.maxCorrected);
+            }
+            this.requests = requests;
+            this.errors = errors;
+        }
+
+        private static void add(long[] into, long[] counts) {
+            for (int i = 0; i < into.length; i++) {
+                into[i] += counts[i];
+            }
+        }
+
+        double throughput() {
+            return requests / (load.durationNanos / 1e9);
+        }
+
+        Properties toProperties() {
+            Properties results = new Properties();
+            results.setProperty("connections", Integer.toString(load.connections));
+            results.setProperty("keepAlive", Boolean.toString(load.keepAlive));
+            results.setProperty("rate", Integer.toString(load.rate));
+            results.setProperty("paths", String.join(",", load.paths));
+            results.setProperty("durationSeconds", Long.toString(TimeUnit.NANOSECONDS.toSeconds(load.durationNanos)));
+            results.setProperty("requests", Long.toString(requests));
+            results.setProperty("errors", Long.toString(errors));
+            for (int i = 1; i < statuses.length; i++) {
+                results.setProperty("status." + i + "xx", Long.toString(statuses[i]));
+            }
+            results.setProperty("throughput", String.format(Locale.ROOT, "%.1f", throughput()));
+            percentiles(results, "latency", measured, requests, maxMeasured);
+            percentiles(results, "corrected", corrected, correctedCount, maxCorrected);
+            return results;
+        }
+
+        private static void percentiles(Properties results, String name, long[] counts, long count, long max) {
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                results.setProperty(name + "." + LABELS[i] + ".ms",
+                        millis(count == 0 ? 0 : Metrics.Histogram.quantile(counts, count, PERCENTILES[i])));
+            }
+            results.setProperty(name + ".max.ms", millis(max));
+        }
+
+        String format() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format(Locale.ROOT, "%d connections, %s, %s, %d s after %d s warm-up, %s%n",
+                    load.connections, load.keepAlive ? "keep-alive" : "a connection per request",
+                    load.rate > 0 ? "open model at " + load.rate + " requests/s" : "closed model",
+                    TimeUnit.NANOSECONDS.toSeconds(load.durationNanos), TimeUnit.NANOSECONDS.toSeconds(load.warmupNanos),
+                    String.join(", ", load.paths)));
+            out.append(String.format(Locale.ROOT, "%d requests, %.1f/s, %d errors, %d 4xx, %d 5xx%n",
+                    requests, throughput(), errors, statuses[4], statuses[5]));
+            out.append(String.format(Locale.ROOT, "%-12s", "latency ms"));
+            for (String label : LABELS) {
+                out.append(String.format(Locale.ROOT, "%10s", label));
+            }
+            out.append(String.format(Locale.ROOT, "%10s%n", "max"));
+            row(out, "measured", measured, requests, maxMeasured);
+            row(out, "corrected", corrected, correctedCount, maxCorrected);
+            return out.toString();
+        }
+
+        private static void row(StringBuilder out, String name, long[] counts, long count, long max) {
+            out.append(String.format(Locale.ROOT, "%-12s", name));
+            for (double percentile : PERCENTILES) {
+                out.append(String.format(Locale.ROOT, "%10s", millis(count == 0 ? 0 : Metrics.Histogram.quantile(counts, count, percentile))));
+            }
+            out.append(String.format(Locale.ROOT, "%10s%n", millis(max)));
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+        }
+    }
+
+    private static Properties load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            properties.load(reader);
+        }
+        return properties;
+    }
+
+    /**
+     * Compare the throughput and latencies of two runs.
+     *
+     * @param baseline the earlier run's results
+     * @param results this run's results
+     * @return a line per figure with its relative change
+     */
+    static String compare(Properties baseline, Properties results) {
+        StringBuilder out = new StringBuilder("compared with the baseline\n");
+        for (String key : new TreeSet<>(results.stringPropertyNames())) {
+            if (!key.equals("throughput") && !key.endsWith(".ms")) {
+                continue;
+            }
+            String before = baseline.getProperty(key);
+            if (before == null) {
+                continue;
+            }
+            double was = Double.parseDouble(before);
+            double now = Double.parseDouble(results.getProperty(key));
+            out.append(String.format(Locale.ROOT, "%-20s%12s%12s%10s%n", key, before, results.getProperty(key),
+                    was == 0 ? "" : String.format(Locale.ROOT, "%+.1f%%", (now - was) * 100 / was)));
+        }
+        return out.toString();
+    }
+}
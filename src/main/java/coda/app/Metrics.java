@@ -0,0 +1,438 @@
+package coda.app;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Request counters and latency histograms, per kind of endpoint and per service, published on
+ * /metrics in the Prometheus text format. Recording a request only adds to LongAdders and
+ * increments one slot of each fixed-size histogram, so the hot path takes no lock and allocates
+ * nothing once an endpoint's series exists. Latencies are kept since the server started.
+ */
+class Metrics {
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+
+    /**
+     * What a request was answered by, so series stay few whatever paths clients send.
+     */
+    enum Endpoint {
+        PAGE("page"),
+        INDEX("index"),
+        JOBS("jobs"),
+        EVENTS("events"),
+        UPLOADS("uploads"),
+        RENDERED_IMAGE("rendered-image"),
+        METRICS("metrics"),
+        BATCH("batch"),
+        REFUSED("refused");
+
+        final String label;
+
+        Endpoint(String label) {
+            this.label = label;
+        }
+    }
+
+    // Series by service endpoint, "" for requests no service answered, for each kind of endpoint
+    @SuppressWarnings("unchecked")
+    private final ConcurrentHashMap<String, Series>[] series = new ConcurrentHashMap[Endpoint.values().length];
+    private final LongAdder malformed = new LongAdder();
+
+    Metrics() {
+        for (int i = 0; i < series.length; i++) {
+            series[i] = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * The counters and histograms of one endpoint and service.
+     */
+    static final class Series {
+        private final LongAdder[] responses = new LongAdder[STATUS_CLASSES.length];
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        final Histogram parse = new Histogram();
+        final Histogram route = new Histogram();
+        final Histogram service = new Histogram();
+        final Histogram write = new Histogram();
+
+        private Series() {
+            for (int i = 0; i < responses.length; i++) {
+                responses[i] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * The timings of the request a connection is serving. One belongs to each connection and is
+     * reused for each of its requests, which are answered one at a time.
+     */
+    static final class Timing {
+        private long started;
+        private long parsed;
+        private long headSize;
+        private long dispatched;
+        private long routed;
+        private long serviceNanos;
+        private long writeNanos;
+        private long bytesOut;
+        private int status;
+        private boolean failed;
+        private Endpoint endpoint;
+        private String service = "";
+
+        /**
+         * Start timing a request whose head the parser has just read.
+         *
+         * @param parser the connection's parser
+         * @return this timing
+         */
+        Timing begin(HttpRequestParser parser) {
+            started = parser.startedNanos();
+            parsed = parser.parsedNanos();
+            headSize = parser.headSize();
+            dispatched = 0;
+            routed = 0;
+            serviceNanos = 0;
+            writeNanos = 0;
+            bytesOut = 0;
+            status = 0;
+            failed = false;
+            endpoint = null;
+            service = "";
+            return this;
+        }
+
+        void dispatched() {
+            dispatched = System.nanoTime();
+        }
+
+        /**
+         * Record what kind of endpoint answers the request, once routed.
+         *
+         * @param endpoint the kind of endpoint
+         */
+        void routed(Endpoint endpoint) {
+            this.endpoint = endpoint;
+            routed = System.nanoTime();
+        }
+
+        /**
+         * Record which service answers the request.
+         *
+         * @param service the service's endpoint
+         */
+        void service(String service) {
+            this.service = service;
+        }
+
+        void ranService(long nanos) {
+            serviceNanos += nanos;
+        }
+
+        boolean isRouted() {
+            return endpoint != null;
+        }
+
+        void wrote(long nanos, long bytes, int status) {
+            writeNanos += nanos;
+            bytesOut += bytes;
+            this.status = status;
+        }
+
+        /**
+         * Count the request as an error although its response may not say so.
+         */
+        void failed() {
+            failed = true;
+        }
+
+        long startedNanos() {
+            return started;
+        }
+
+        int status() {
+            return status;
+        }
+
+        long bytesOut() {
+            return bytesOut;
+        }
+
+        String service() {
+            return service;
+        }
+    }
+
+    /**
+     * Add a request's timings and counts to its series.
+     *
+     * @param timing the request's timing
+     * @param bodySize the request body's length
+     */
+    void record(Timing timing, long bodySize) {
+        Endpoint endpoint = timing.endpoint == null ? Endpoint.INDEX : timing.endpoint;
+        Series series = series(endpoint, timing.service);
+        int statusClass = Math.min(Math.max(timing.status / 100 - 1, 0), STATUS_CLASSES.length - 1);
+        series.responses[statusClass].increment();
+        if (timing.failed || timing.status >= 500) {
+            series.errors.increment();
+        }
+        series.bytesIn.add(timing.headSize + Math.max(0, bodySize));
+        series.bytesOut.add(timing.bytesOut);
+        if (timing.started != 0 && timing.parsed != 0) {
+            series.parse.record(timing.parsed - timing.started);
+        }
+        if (timing.routed != 0 && timing.dispatched != 0) {
+            series.route.record(timing.routed - timing.dispatched);
+        }
+        if (timing.serviceNanos > 0) {
+            series.service.record(timing.serviceNanos);
+        }
+        series.write.record(timing.writeNanos);
+    }
+
+    /**
+     * Count a request too malformed to be dispatched.
+     */
+    void malformed() {
+        malformed.increment();
+    }
+
+    /**
+     * Get the series of an endpoint and service, creating it the first time.
+     *
+     * @param endpoint the kind of endpoint
+     * @param service the service's endpoint, or "" for none
+     * @return the series
+     */
+    Series series(Endpoint endpoint, String service) {
+        ConcurrentHashMap<String, Series> byService = series[endpoint.ordinal()];
+        Series found = byService.get(service);
+        return found != null ? found : byService.computeIfAbsent(service, s -> new Series());
+    }
+
+    /**
+     * Write every series in the Prometheus text format.
+     *
+     * @param out the text to append to
+     */
+    void write(StringBuilder out) {
+        Map<String, Series> sorted = new TreeMap<>();
+        for (Endpoint endpoint : Endpoint.values()) {
+            for (Map.Entry<String, Series> entry : series[endpoint.ordinal()].entrySet()) {
+                sorted.put("endpoint=\"" + endpoint.label + "\",service=\"" + escape(entry.getKey()) + "\"", entry.getValue());
+            }
+        }
+
+        header(out, "coda_http_requests_total", "counter", "Requests answered, by status class");
+        for (Map.Entry<String, Series> entry : sorted.entrySet()) {
+            for (int i = 0; i < STATUS_CLASSES.length; i++) {
+                long count = entry.getValue().responses[i].sum();
+                if (count > 0) {
+                    sample(out, "coda_http_requests_total", entry.getKey() + ",code=\"" + STATUS_CLASSES[i] + "\"", count);
+                }
+            }
+        }
+        header(out, "coda_http_errors_total", "counter", "Requests answered with 5xx or whose service failed");
+        for (Map.Entry<String, Series> entry : sorted.entrySet()) {
+            sample(out, "coda_http_errors_total", entry.getKey(), entry.getValue().errors.sum());
+        }
+        header(out, "coda_http_received_bytes_total", "counter", "Request head and body bytes received");
+        for (Map.Entry<String, Series> entry : sorted.entrySet()) {
+            sample(out, "coda_http_received_bytes_total", entry.getKey(), entry.getValue().bytesIn.sum());
+        }
+        header(out, "coda_http_sent_bytes_total", "counter", "Response bytes sent, file bodies included");
+        for (Map.Entry<String, Series> entry : sorted.entrySet()) {
+            sample(out, "coda_http_sent_bytes_total", entry.getKey(), entry.getValue().bytesOut.sum());
+        }
+        summary(out, sorted, "coda_http_parse_seconds", "Time from a request's first bytes to its parsed head", s -> s.parse);
+        summary(out, sorted, "coda_http_route_seconds", "Time to find what answers a request", s -> s.route);
+        summary(out, sorted, "coda_http_service_seconds", "Time spent parsing input for and running a service", s -> s.service);
+        summary(out, sorted, "coda_http_write_seconds", "Time spent writing responses", s -> s.write);
+
+        header(out, "coda_http_malformed_requests_total", "counter", "Requests refused before dispatch as malformed");
+        sample(out, "coda_http_malformed_requests_total", null, malformed.sum());
+    }
+
+    private static void summary(StringBuilder out, Map<String, Series> sorted, String name, String help,
+                                Function<Series, Histogram> histogramOf) {
+        header(out, name, "summary", help);
+        long[] counts = new long[Histogram.BUCKETS];
+        for (Map.Entry<String, Series> entry : sorted.entrySet()) {
+            Histogram histogram = histogramOf.apply(entry.getValue());
+            long count = histogram.snapshot(counts);
+            if (count == 0) {
+                continue;
+            }
+            for (double quantile : QUANTILES) {
+                sample(out, name, entry.getKey() + ",quantile=\"" + quantile + "\"",
+                        seconds(Histogram.quantile(counts, count, quantile)));
+            }
+            sample(out, name + "_sum", entry.getKey(), seconds(histogram.sum()));
+            sample(out, name + "_count", entry.getKey(), count);
+        }
+    }
+
+    /**
+     * Write a summary of a single histogram, with no labels but its quantiles.
+     *
+     * @param out the text to append to
+     * @param name the metric name
+     * @param help the description
+     * @param histogram the values
+     */
+    static void summary(StringBuilder out, String name, String help, Histogram histogram) {
+        header(out, name, "summary", help);
+        long[] counts = new long[Histogram.BUCKETS];
+        long count = histogram.snapshot(counts);
+        if (count > 0) {
+            for (double quantile : QUANTILES) {
+                sample(out, name, "quantile=\"" + quantile + "\"", seconds(Histogram.quantile(counts, count, quantile)));
+            }
+        }
+        sample(out, name + "_sum", null, seconds(histogram.sum()));
+        sample(out, name + "_count", null, count);
+    }
+
+    static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    static void sample(StringBuilder out, String name, String labels, String value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Write a single-sample metric.
+     *
+     * @param out the text to append to
+     * @param name the metric name
+     * @param type gauge or counter
+     * @param help the description
+     * @param value the value
+     */
+    static void metric(StringBuilder out, String name, String type, String help, long value) {
+        header(out, name, type, help);
+        sample(out, name, null, value);
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * A latency histogram of fixed size. Values below 2^SUB_BITS nanoseconds get a slot each;
+     * above that each power of two is split into 2^SUB_BITS equal slots, so any value is known
+     * to within 1/2^SUB_BITS (about 3%) of itself, from nanoseconds up to MAX_BITS (about 69 s);
+     * longer values count as the longest. Recording is one atomic increment of a slot.
+     */
+    static final class Histogram {
+        static final int SUB_BITS = 5;
+        static final int MAX_BITS = 36;
+        static final int SUB_BUCKETS = 1 << SUB_BITS;
+        static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(index(value));
+            sum.add(value);
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent >= MAX_BITS) {
+                return BUCKETS - 1;
+            }
+            int shift = exponent - SUB_BITS;
+            // The top bit is implied by the exponent, leaving SUB_BITS bits to pick the slot
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        /**
+         * Get the largest value a slot holds.
+         *
+         * @param index the slot
+         * @return the value
+         */
+        static long highest(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        /**
+         * Copy the slot counts.
+         *
+         * @param into an array of BUCKETS slots
+         * @return the number of values recorded
+         */
+        long snapshot(long[] into) {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                into[i] = counts.get(i);
+                count += into[i];
+            }
+            return count;
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        /**
+         * Find a quantile in copied slot counts.
+         *
+         * @param counts the slot counts
+         * @param count their total
+         * @param quantile the quantile, e.g. 0.99
+         * @return the largest value of the slot holding it, so never less than the true quantile's slot
+         */
+        static long quantile(long[] counts, long count, double quantile) {
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highest(i);
+                }
+            }
+            return highest(counts.length - 1);
+        }
+    }
+}
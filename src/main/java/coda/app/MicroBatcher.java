@@ -0,0 +1,124 @@
+package coda.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Gathers single calls arriving together into one call of a batch function.
+ * <p>
+ * The first call to find no batch open starts one and waits for others to join it, until the
+ * batch is full or the delay has passed; it then runs the batch on its own thread and each caller
+ * takes its output. No thread of its own is needed, but a call arriving alone waits the whole
+ * delay, so the delay should be small next to a request's round trip. If the batch fails, each
+ * caller runs its own input singly, so one bad input only fails its own call.
+ *
+ * @param <I> input type
+ * @param <O> output type
+ */
+final class MicroBatcher<I, O> {
+    private final Function<List<I>, List<O>> batch;
+    private final Function<I, O> single;
+    private final int maxItems;
+    private final long maxDelayNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Condition waits are timed to the nanosecond, where Object.wait rounds up to milliseconds
+    private final Condition closed = lock.newCondition();
+    private Batch<I, O> open;
+
+    /**
+     * @param batch runs a batch, answering an output per input in order
+     * @param single runs one input, for when a batch fails
+     * @param maxItems the most inputs in a batch
+     * @param maxDelayNanos the longest the first call of a batch waits for others
+     */
+    MicroBatcher(Function<List<I>, List<O>> batch, Function<I, O> single, int maxItems, long maxDelayNanos) {
+        this.batch = batch;
+        this.single = single;
+        this.maxItems = Math.max(1, maxItems);
+        this.maxDelayNanos = Math.max(0, maxDelayNanos);
+    }
+
+    /**
+     * Run one input as part of the next batch.
+     *
+     * @param input the input
+     * @return its output
+     */
+    O call(I input) {
+        Batch<I, O> joined;
+        int index;
+        boolean leader;
+        lock.lock();
+        try {
+            leader = open == null;
+            if (leader) {
+                open = new Batch<>(maxItems);
+            }
+            joined = open;
+            index = joined.inputs.size();
+            joined.inputs.add(input);
+            if (joined.inputs.size() >= maxItems) {
+                open = null;
+                closed.signalAll();
+            } else if (leader) {
+                awaitOthers(joined);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (leader) {
+            joined.run(batch);
+        }
+        try {
+            return joined.result.join().get(index);
+        } catch (CompletionException e) {
+            return single.apply(input);
+        }
+    }
+
+    private void awaitOthers(Batch<I, O> joined) {
+        long remaining = maxDelayNanos;
+        try {
+            while (open == joined && remaining > 0) {
+                remaining = closed.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            // Run what has been gathered; the callers that joined are waiting on it
+            Thread.currentThread().interrupt();
+        }
+        if (open == joined) {
+            open = null;
+        }
+    }
+
+    /**
+     * The inputs gathered for one call of the batch function, and its outputs once run.
+     */
+    private static final class Batch<I, O> {
+        private final List<I> inputs;
+        private final CompletableFuture<List<O>> result = new CompletableFuture<>();
+
+        Batch(int maxItems) {
+            this.inputs = new ArrayList<>(Math.min(maxItems, 64));
+        }
+
+        void run(Function<List<I>, List<O>> batch) {
+            try {
+                List<O> outputs = batch.apply(inputs);
+                if (outputs.size() != inputs.size()) {
+                    throw new IllegalStateException(outputs.size() + " outputs for " + inputs.size() + " inputs");
+                }
+                result.complete(outputs);
+            } catch (Throwable e) {
+                // Completed whatever happened, or the callers that joined would wait forever
+                result.completeExceptionally(e);
+            }
+        }
+    }
+}
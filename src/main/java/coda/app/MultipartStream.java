@@ -0,0 +1,381 @@
+package coda.app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Streaming multipart/form-data reader.
+ * Parts are read in order straight from the request body through one fixed buffer, so memory
+ * use does not depend on the size of an upload. Part content is handed out as slices of that
+ * buffer, which {@link Part#writeTo} writes to a channel without copying them again.
+ */
+class MultipartStream {
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_PART_HEADER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    // CRLF "--" boundary; the first one has no CRLF, so the buffer starts with one
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    private boolean started = false;
+    private boolean finished = false;
+    private Part current;
+
+    /**
+     * A part of the form.
+     * Its content is only readable until {@link MultipartStream#next()} is called again.
+     */
+    final class Part {
+        private final String name;
+        private final String filename;
+        private final String contentType;
+        private boolean ended = false;
+
+        private Part(String name, String filename, String contentType) {
+            this.name = name;
+            this.filename = filename;
+            this.contentType = contentType;
+        }
+
+        /**
+         * Get the form field name.
+         *
+         * @return the name, or null if the part has none
+         */
+        String name() {
+            return name;
+        }
+
+        /**
+         * Get the file name the client sent, as given.
+         *
+         * @return the file name, or null for a plain field
+         */
+        String filename() {
+            return filename;
+        }
+
+        String contentType() {
+            return contentType;
+        }
+
+        boolean isFile() {
+            return filename != null;
+        }
+
+        /**
+         * Look at the start of the unread content without consuming it.
+         *
+         * @param count the number of bytes wanted
+         * @return up to count bytes, fewer if the part is shorter
+         * @throws IOException if the body cannot be read
+         */
+        byte[] peek(int count) throws IOException {
+            if (count > buffer.length - delimiter.length) {
+                throw new IllegalArgumentException("Cannot peek " + count + " bytes");
+            }
+            while (!ended) {
+                int available = available();
+                if (available >= count || ended) {
+                    break;
+                }
+                if (!fill()) {
+                    throw new IOException("Multipart body ended inside a part");
+                }
+            }
+            return Arrays.copyOfRange(buffer, position, position + Math.min(count, available()));
+        }
+
+        /**
+         * Write the rest of the content to a channel.
+         *
+         * @param channel the destination
+         * @param maxSize the most bytes to accept
+         * @return the number of bytes written
+         * @throws IOException if reading or writing fails
+         * @throws HttpParseException if the content is larger than maxSize
+         */
+        long writeTo(WritableByteChannel channel, long maxSize) throws IOException {
+            return writeTo(channel, maxSize, null);
+        }
+
+        /**
+         * Write the rest of the content to a channel, hashing it on the way.
+         *
+         * @param channel the destination
+         * @param maxSize the most bytes to accept
+         * @param digest updated with every byte written, may be null
+         * @return the number of bytes written
+         * @throws IOException if reading or writing fails
+         * @throws HttpParseException if the content is larger than maxSize
+         */
+        long writeTo(WritableByteChannel channel, long maxSize, MessageDigest digest) throws IOException {
+            long written = 0;
+            while (true) {
+                int available = available();
+                if (available > 0) {
+                    if (written + available > maxSize) {
+                        throw HttpParseException.payloadTooLarge("Part " + name + " is larger than " + maxSize + " bytes");
+                    }
+                    if (digest != null) {
+                        digest.update(buffer, position, available);
+                    }
+                    ByteBuffer slice = ByteBuffer.wrap(buffer, position, available);
+                    while (slice.hasRemaining()) {
+                        channel.write(slice);
+                    }
+                    position += available;
+                    written += available;
+                }
+                if (ended) {
+                    return written;
+                }
+                if (!fill()) {
+                    throw new IOException("Multipart body ended inside a part");
+                }
+            }
+        }
+
+        /**
+         * Read the rest of a plain field's content.
+         *
+         * @param maxSize the most bytes to accept
+         * @return the value, as UTF-8
+         * @throws IOException if reading fails
+         * @throws HttpParseException if the value is larger than maxSize
+         */
+        String value(int maxSize) throws IOException {
+            ByteArrayOutputStream value = new ByteArrayOutputStream();
+            writeTo(Channels.newChannel(value), maxSize);
+            return value.toString(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Count the content bytes buffered before the next delimiter, or before a possible partial one.
+         * Sets ended once the delimiter is in the buffer.
+         */
+        private int available() {
+            int found = indexOfDelimiter(position);
+            if (found >= 0) {
+                ended = true;
+                return found - position;
+            }
+            // The last bytes may be the start of a delimiter split across reads
+            return Math.max(0, limit - position - (delimiter.length - 1));
+        }
+
+        private void skip() throws IOException {
+            while (true) {
+                position += available();
+                if (ended) {
+                    return;
+                }
+                if (!fill()) {
+                    throw new IOException("Multipart body ended inside a part");
+                }
+            }
+        }
+    }
+
+    MultipartStream(InputStream in, String boundary, int bufferSize) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buffer = new byte[Math.max(bufferSize, MAX_PART_HEADER_SIZE + delimiter.length * 2)];
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        limit = 2;
+    }
+
+    /**
+     * Get the boundary from a multipart/form-data Content-Type.
+     *
+     * @param contentType the Content-Type header
+     * @return the boundary, or null if this is not a multipart form
+     */
+    static String boundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase().startsWith("multipart/form-data")) {
+            return null;
+        }
+        String value = parameter(contentType, "boundary");
+        // RFC 2046 limits boundaries to 70 characters
+        return value == null || value.isEmpty() || value.length() > 70 ? null : value;
+    }
+
+    /**
+     * Move to the next part, skipping whatever was not read of the current one.
+     *
+     * @return the part, or null after the last one
+     * @throws IOException if the body cannot be read or is not valid multipart
+     */
+    Part next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        if (current != null) {
+            current.skip();
+        } else if (!started) {
+            // Skip the preamble up to the first delimiter
+            Part preamble = new Part(null, null, null);
+            preamble.skip();
+            started = true;
+        }
+        position += delimiter.length;
+
+        // "--" after the delimiter closes the body, CRLF starts a part
+        ensure(2);
+        if (buffer[position] == '-' && buffer[position + 1] == '-') {
+            finished = true;
+            current = null;
+            return null;
+        }
+        // Anything else up to the line end is transport padding
+        readLine();
+
+        String name = null;
+        String filename = null;
+        String contentType = null;
+        for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw HttpParseException.badRequest("Malformed multipart header");
+            }
+            String header = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (header.equalsIgnoreCase("Content-Disposition")) {
+                name = parameter(value, "name");
+                filename = parameter(value, "filename");
+            } else if (header.equalsIgnoreCase("Content-Type")) {
+                contentType = value;
+            }
+        }
+        current = new Part(name, filename, contentType);
+        return current;
+    }
+
+    /**
+     * Read a header line, without its line ending.
+     */
+    private String readLine() throws IOException {
+        int scanned = 0;
+        while (true) {
+            for (int i = position + scanned; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    int end = i > position && buffer[i - 1] == '\r' ? i - 1 : i;
+                    String line = new String(buffer, position, end - position, StandardCharsets.UTF_8);
+                    position = i + 1;
+                    return line;
+                }
+            }
+            scanned = limit - position;
+            if (scanned > MAX_PART_HEADER_SIZE) {
+                throw HttpParseException.badRequest("Multipart header line too long");
+            }
+            if (!fill()) {
+                throw HttpParseException.badRequest("Multipart body ended inside a header");
+            }
+        }
+    }
+
+    /**
+     * Make at least count bytes available from the current position.
+     */
+    private void ensure(int count) throws IOException {
+        while (limit - position < count) {
+            if (!fill()) {
+                throw HttpParseException.badRequest("Multipart body ended early");
+            }
+        }
+    }
+
+    /**
+     * Move unread bytes to the front and read more.
+     *
+     * @return false at end of input
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read == -1) {
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    private int indexOfDelimiter(int from) {
+        byte first = delimiter[0];
+        int last = limit - delimiter.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            if (buffer[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Read a parameter such as name="file" from a header value.
+     * Quoted values may contain ';' and backslash-escaped quotes.
+     */
+    private static String parameter(String header, String name) {
+        int i = header.indexOf(';');
+        while (i >= 0 && i < header.length()) {
+            int equals = header.indexOf('=', i + 1);
+            if (equals < 0) {
+                return null;
+            }
+            String key = header.substring(i + 1, equals).trim();
+            StringBuilder value = new StringBuilder();
+            int p = equals + 1;
+            while (p < header.length() && header.charAt(p) == ' ') {
+                p++;
+            }
+            if (p < header.length() && header.charAt(p) == '"') {
+                for (p++; p < header.length() && header.charAt(p) != '"'; p++) {
+                    char c = header.charAt(p);
+                    if (c == '\\' && p + 1 < header.length()) {
+                        c = header.charAt(++p);
+                    }
+                    value.append(c);
+                }
+                p = header.indexOf(';', p);
+            } else {
+                int end = header.indexOf(';', p);
+                value.append(header, p, end < 0 ? header.length() : end);
+                p = end;
+            }
+            if (key.equalsIgnoreCase(name)) {
+                return value.toString().trim();
+            }
+            i = p;
+        }
+        return null;
+    }
+}
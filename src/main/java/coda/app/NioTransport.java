@@ -0,0 +1,615 @@
+package coda.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking transport.
+ * The accepting thread hands connections round-robin to N selector event loops, which read
+ * requests without tying up a thread per connection. Parsed requests are dispatched to the
+ * connection executor so a slow service never stalls a loop, and the response is written
+ * back by the owning loop. A request arriving while every executor thread is taken is answered
+ * 503 by the loop rather than waiting for one. Small bodies are collected before dispatch; larger ones are
+ * streamed to the request through a bounded {@link BodyPipe}. In serial mode requests run on
+ * the loop itself, except a streamed one, which gets its own thread so the loop can feed its pipe.
+ * File bodies are sent by the loop with a zero-copy transfer from the file's channel.
+ * An event stream stays with its loop after the response head: the loop writes events as they
+ * are published, so idle subscribers cost a registered key rather than a thread.
+ */
+class NioTransport implements Transport {
+    static final String LOOPS = "coda.server.nio.loops";
+    static final String MAX_BODY_SIZE = "coda.server.nio.maxBodySize";
+    static final long IDLE_SWEEP_MILLIS = 1000;
+    static final int PIPE_CAPACITY = 256 * 1024;
+
+    private final WebServer server;
+    private final ServerConfig config;
+    private final long idleTimeoutNanos;
+    private final int maxRequests;
+    private final long maxBodySize;
+
+    private volatile boolean running = false;
+    private volatile ServerSocketChannel serverChannel;
+
+    NioTransport(WebServer server, ServerConfig config) {
+        this.server = server;
+        this.config = config;
+        this.idleTimeoutNanos = config.getInt(BlockingTransport.KEEP_ALIVE_TIMEOUT, 5000) * 1_000_000L;
+        this.maxRequests = config.getInt(BlockingTransport.KEEP_ALIVE_MAX_REQUESTS, 1000);
+        this.maxBodySize = Math.min(Integer.MAX_VALUE - 8, config.getLong(MAX_BODY_SIZE, 64 * 1024));
+    }
+
+    @Override
+    public void start(int port) throws IOException {
+        int loopCount = Math.max(1, config.getInt(LOOPS, Runtime.getRuntime().availableProcessors()));
+        EventLoop[] loops = new EventLoop[loopCount];
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             ConnectionExecutor executor = ConnectionExecutor.create(config)) {
+            serverChannel.bind(new InetSocketAddress(port));
+            this.serverChannel = serverChannel;
+
+            for (int i = 0; i < loopCount; i++) {
+                loops[i] = new EventLoop(executor);
+                Thread thread = new Thread(loops[i], "coda-nio-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            server.logger.info("Server started on port " + port + " (nio, " + loopCount + " loops, " + executor + ")");
+
+            running = true;
+            int next = 0;
+            while (running) {
+                SocketChannel channel = serverChannel.accept();
+                if (!server.admission.openConnection(Integer.MAX_VALUE)) {
+                    server.admission.refuse(channel);
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(channel);
+                next = (next + 1) % loopCount;
+            }
+        } catch (IOException e) {
+            if (running) {
+                throw e;
+            }
+        } finally {
+            running = false;
+            for (EventLoop loop : loops) {
+                if (loop != null) {
+                    loop.shutdown();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        ServerSocketChannel channel = serverChannel;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                server.logger.severe("Server error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A selector loop owning a set of connections.
+     * Other threads only talk to it through its task queue.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConnectionExecutor executor;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean open = true;
+
+        EventLoop(ConnectionExecutor executor) throws IOException {
+            this.selector = Selector.open();
+            this.executor = executor;
+        }
+
+        /**
+         * Run a task on the loop thread.
+         *
+         * @param task the task
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(channel, key, this));
+                } catch (ClosedChannelException e) {
+                    closeQuietly(channel);
+                    server.admission.connectionClosed();
+                }
+            });
+        }
+
+        /**
+         * Close keep-alive connections that have waited too long for their next request.
+         *
+         * @param now the current time in nanoseconds
+         */
+        private void closeIdle(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && connection.isIdle(now)) {
+                    connection.close();
+                }
+            }
+        }
+
+        void shutdown() {
+            open = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long nextSweep = System.nanoTime();
+            try {
+                while (open) {
+                    selector.select(IDLE_SWEEP_MILLIS);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid() || connection == null) {
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+
+                    long now = System.nanoTime();
+                    if (now - nextSweep >= 0) {
+                        closeIdle(now);
+                        nextSweep = now + IDLE_SWEEP_MILLIS * 1_000_000L;
+                    }
+                }
+            } catch (IOException e) {
+                server.logger.severe("Server error: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key.channel());
+                }
+                closeQuietly(selector);
+            }
+        }
+    }
+
+    /**
+     * State of one connection. Only touched on its loop thread.
+     * Requests are dispatched one at a time; bytes of pipelined requests stay buffered
+     * until the previous response has been written, so responses go out in order.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final EventLoop loop;
+        private final String client;
+        private final Metrics.Timing timing = new Metrics.Timing();
+
+        private final HttpRequestParser parser = HttpRequestParser.create(config);
+        private ByteBuffer out;
+        private boolean dispatched = false;
+        private boolean keepAlive = true;
+        private boolean lingering = false;
+        private int served = 0;
+        private long lastActive = System.nanoTime();
+        private boolean closed = false;
+
+        // Request whose body is still arriving
+        private WebServer.CustomHttpServletRequest pending;
+        private byte[] body;
+        private int bodyFilled;
+
+        // Body being streamed to a dispatched request
+        private BodyPipe pipe;
+
+        // Events written after the response head, once the request started a stream
+        private EventHub.Subscriber events;
+
+        // File body still to send after the response head
+        private FileCache.Transfer file;
+
+        Connection(SocketChannel channel, SelectionKey key, EventLoop loop) {
+            this.channel = channel;
+            this.key = key;
+            this.loop = loop;
+            this.client = channel.socket().getInetAddress().getHostAddress();
+        }
+
+        void onReadable() throws IOException {
+            if (lingering || events != null) {
+                ByteBuffer discard = ByteBuffer.allocate(4096);
+                while (channel.read(discard) > 0) {
+                    discard.clear();
+                }
+                if (channel.read(discard) == -1) {
+                    close();
+                }
+                return;
+            }
+            if (parser.fill(channel) == -1) {
+                close();
+                return;
+            }
+            lastActive = System.nanoTime();
+            if (pipe != null) {
+                feedPipe();
+                return;
+            }
+            processInput();
+        }
+
+        /**
+         * Consume buffered bytes: parse the next request head, collect its body and dispatch it.
+         */
+        private void processInput() {
+            if (dispatched) {
+                return;
+            }
+
+            if (pending == null) {
+                try {
+                    if (!parser.parse()) {
+                        return;
+                    }
+                } catch (HttpParseException e) {
+                    server.metrics.malformed();
+                    reject(e.toResponse());
+                    return;
+                }
+
+                pending = new WebServer.CustomHttpServletRequest(parser.head());
+                pending.setRemoteAddr(client);
+                pending.setTiming(timing.begin(parser));
+                served++;
+                if (served >= maxRequests || !BlockingTransport.hasFramedBody(pending)) {
+                    pending.setAttribute(WebServer.CLOSE_CONNECTION, Boolean.TRUE);
+                }
+                long length = Math.max(0, pending.getContentLengthLong());
+                if (length > maxBodySize) {
+                    stream(length);
+                    return;
+                }
+                body = new byte[(int) length];
+                bodyFilled = 0;
+            }
+
+            bodyFilled += parser.take(body, bodyFilled, body.length - bodyFilled);
+            if (bodyFilled < body.length) {
+                return;
+            }
+
+            WebServer.CustomHttpServletRequest request = pending;
+            request.setBody(new BodyInputStream(new ByteArrayInputStream(body), body.length));
+            pending = null;
+            body = null;
+            parser.reset();
+
+            dispatched = true;
+            key.interestOps(0);
+            submit(request);
+        }
+
+        /**
+         * Dispatch the pending request now and stream its body to it as it arrives.
+         *
+         * @param length the body length
+         */
+        private void stream(long length) {
+            WebServer.CustomHttpServletRequest request = pending;
+            pending = null;
+            // The loop goes on reading into the parser's buffer while the request reads its head
+            parser.handOff();
+            pipe = new BodyPipe(PIPE_CAPACITY, length, () -> loop.execute(this::resumeBody));
+            request.setBody(new BodyInputStream(pipe, length));
+            dispatched = true;
+            feedPipe();
+            if (loop.executor.serial()) {
+                // Run inline, the request would wait on the pipe for bytes only this loop can read
+                Thread thread = new Thread(() -> dispatch(request), "coda-stream-" + client);
+                thread.setDaemon(true);
+                thread.start();
+            } else {
+                submit(request);
+            }
+        }
+
+        /**
+         * Pass buffered body bytes to the pipe, reading on only while it has room.
+         */
+        private void feedPipe() {
+            if (pipe.offer(parser)) {
+                pipe = null;
+                parser.reset();
+                // Like a collected body, the next request waits for this response
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else if (pipe.isFull()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Continue a paused body once the request has read from the pipe.
+         */
+        private void resumeBody() {
+            if (pipe != null && key.isValid() && !lingering) {
+                feedPipe();
+            }
+        }
+
+        /**
+         * Hand the request to the executor, or answer it 503 from the loop if every thread is taken.
+         * Waiting for a thread here would stall every connection on the loop.
+         *
+         * @param request the request
+         */
+        private void submit(WebServer.CustomHttpServletRequest request) {
+            if (loop.executor.tryExecute(() -> dispatch(request))) {
+                return;
+            }
+            boolean keepAlive = server.keepAlive(request);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                server.admission.refuseRequest().toResponse()
+                        .write(bytes, keepAlive, !"HEAD".equals(request.getMethod()));
+            } catch (IOException e) {
+                // Writing to memory cannot fail
+            }
+            send(ByteBuffer.wrap(bytes.toByteArray()), null, keepAlive);
+        }
+
+        /**
+         * Run the request on an executor thread and hand the response back to the loop.
+         *
+         * @param request the request
+         */
+        private void dispatch(WebServer.CustomHttpServletRequest request) {
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            try {
+                server.sendResponse(request, response);
+                if (server.keepAlive(request)) {
+                    // A streamed body the service left unread must pass before the next request
+                    request.getBody().drain();
+                }
+            } catch (IOException | RuntimeException e) {
+                server.logger.severe("Server error: " + e.getMessage());
+                request.setAttribute(WebServer.CLOSE_CONNECTION, Boolean.TRUE);
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(response.toByteArray());
+            boolean keepAlive = server.keepAlive(request);
+            EventHub.Subscriber stream = WebServer.eventStream(request);
+            if (stream != null) {
+                loop.execute(() -> streamEvents(bytes, stream));
+            } else {
+                FileCache.Transfer body = WebServer.fileBody(request);
+                loop.execute(() -> send(bytes, body, keepAlive));
+            }
+        }
+
+        /**
+         * Send the response head of an event stream, then keep the connection to write its events.
+         * Publishers only wake the loop when the connection had run out of events to write.
+         *
+         * @param head the response head
+         * @param stream the subscriber
+         */
+        private void streamEvents(ByteBuffer head, EventHub.Subscriber stream) {
+            if (!key.isValid()) {
+                stream.close();
+                return;
+            }
+            events = stream;
+            // Also ends a stream stuck on a client that stopped reading
+            stream.onClosed(() -> loop.execute(this::close));
+            send(head, null, false);
+            stream.onAvailable(() -> loop.execute(this::writeEvents));
+        }
+
+        /**
+         * Write queued events until the socket is full or none are left.
+         * Each event is written from a buffer over the bytes every subscriber shares.
+         */
+        private void writeEvents() {
+            if (!key.isValid() || out != null && out.hasRemaining()) {
+                return;
+            }
+            try {
+                while (true) {
+                    EventHub.Event event = events.poll();
+                    if (event == null) {
+                        out = null;
+                        if (events.isClosed()) {
+                            close();
+                        } else {
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                        return;
+                    }
+                    out = event.buffer();
+                    channel.write(out);
+                    if (out.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Answer an unusable request from the loop and close the connection.
+         * Input is discarded until the client closes its side, so a reset doesn't
+         * destroy the response before the client has read it.
+         *
+         * @param response the error response
+         */
+        private void reject(HttpResponse response) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                response.write(bytes, false, true);
+            } catch (IOException e) {
+                // Writing to memory cannot fail
+            }
+            dispatched = true;
+            lingering = true;
+            send(ByteBuffer.wrap(bytes.toByteArray()), null, false);
+        }
+
+        /**
+         * Write a response from the loop.
+         *
+         * @param bytes the response, or its head if a file body follows
+         * @param body the file body, or null
+         * @param keepAlive whether the connection stays open afterwards
+         */
+        private void send(ByteBuffer bytes, FileCache.Transfer body, boolean keepAlive) {
+            if (!key.isValid()) {
+                if (body != null) {
+                    body.close();
+                }
+                return;
+            }
+            if (pipe != null) {
+                // The rest of an unread body is discarded after the response
+                pipe.fail();
+                pipe = null;
+                lingering = true;
+                keepAlive = false;
+            }
+            out = bytes;
+            file = body;
+            this.keepAlive = keepAlive;
+            try {
+                onWritable();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void onWritable() throws IOException {
+            if (out == null && file == null) {
+                return;
+            }
+            if (out != null) {
+                channel.write(out);
+                if (out.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                out = null;
+            }
+            if (file != null) {
+                while (!file.done()) {
+                    if (file.transferTo(channel) == 0) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                file.close();
+                file = null;
+            }
+
+            if (events != null) {
+                writeEvents();
+                return;
+            }
+            if (lingering) {
+                channel.shutdownOutput();
+                lastActive = System.nanoTime();
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (!keepAlive) {
+                close();
+                return;
+            }
+            dispatched = false;
+            lastActive = System.nanoTime();
+            key.interestOps(SelectionKey.OP_READ);
+            // The next pipelined request may already be buffered
+            processInput();
+        }
+
+        /**
+         * Whether the connection has waited for a request, or for more of a streamed body, longer than the keep-alive timeout.
+         *
+         * @param now the current time in nanoseconds
+         * @return true if idle
+         */
+        boolean isIdle(long now) {
+            boolean waitingForBody = pipe != null && !pipe.isFull();
+            return (!dispatched || lingering || waitingForBody) && now - lastActive > idleTimeoutNanos;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            server.admission.connectionClosed();
+            key.cancel();
+            closeQuietly(channel);
+            if (pipe != null) {
+                pipe.fail();
+            }
+            if (events != null) {
+                events.close();
+            }
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception ignored) {
+            // Nothing useful to do on a failed close
+        }
+    }
+}
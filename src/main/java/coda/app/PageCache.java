@@ -0,0 +1,151 @@
+package coda.app;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rendered pages kept as ready-to-send UTF-8 bytes with a strong ETag.
+ * Each entry remembers the object it was rendered from (a service, or the routing table for
+ * the index page). A lookup with a different owner re-renders, so a service registered again
+ * under the same endpoint never serves the old page.
+ */
+class PageCache {
+    private final ConcurrentHashMap<String, Page> pages = new ConcurrentHashMap<>();
+
+    /**
+     * A rendered page.
+     */
+    static final class Page {
+        final byte[] bytes;
+        final String etag;
+        private final Object owner;
+        private volatile byte[] gzip;
+        private volatile byte[] deflate;
+
+        Page(byte[] bytes, String etag, Object owner) {
+            this.bytes = bytes;
+            this.etag = etag;
+            this.owner = owner;
+        }
+
+        /**
+         * Get the page compressed, compressing it on first use.
+         * Two requests may compress at once; both results are the same.
+         *
+         * @param encoding gzip or deflate
+         * @param compression the compression settings
+         * @param compress false to only return a variant that already exists
+         * @return the compressed bytes, or null if not compressed yet and compress is false
+         */
+        byte[] variant(String encoding, Compression compression, boolean compress) {
+            boolean gzip = Compression.GZIP.equals(encoding);
+            byte[] variant = gzip ? this.gzip : this.deflate;
+            if (variant == null && compress) {
+                variant = compression.compress(bytes, encoding);
+                if (gzip) {
+                    this.gzip = variant;
+                } else {
+                    this.deflate = variant;
+                }
+            }
+            return variant;
+        }
+
+        /**
+         * Get the ETag of a variant. Each encoding gets its own strong tag.
+         *
+         * @param encoding the Content-Encoding, or null for the plain page
+         * @return the quoted tag, or null if the page has none
+         */
+        String etag(String encoding) {
+            if (etag == null || encoding == null) {
+                return etag;
+            }
+            return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+        }
+    }
+
+    /**
+     * Get the cached page for a key, rendering it if missing or stale.
+     * Concurrent misses may both render; the pages are identical, so the last one wins.
+     *
+     * @param key the cache key, e.g. the endpoint
+     * @param owner the object the page is rendered from
+     * @param render writes the page
+     * @return the page
+     */
+    Page get(String key, Object owner, HtmlWriter.Fragment render) {
+        Page page = pages.get(key);
+        if (page != null && page.owner == owner) {
+            return page;
+        }
+        byte[] bytes = HtmlWriter.render(render).toByteArray();
+        page = new Page(bytes, etag(bytes), owner);
+        pages.put(key, page);
+        return page;
+    }
+
+    /**
+     * Render a page without caching it, e.g. for a dynamic service.
+     *
+     * @param key the cache key to drop
+     * @param render writes the page
+     * @return the page, with no ETag
+     */
+    Page uncached(String key, HtmlWriter.Fragment render) {
+        pages.remove(key);
+        return new Page(HtmlWriter.render(render).toByteArray(), null, null);
+    }
+
+    void invalidate(String key) {
+        pages.remove(key);
+    }
+
+    int size() {
+        return pages.size();
+    }
+
+    /**
+     * Compute a strong ETag from the page bytes.
+     *
+     * @param bytes the page bytes
+     * @return the quoted tag
+     */
+    static String etag(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest).substring(0, 22) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is unavailable", e);
+        }
+    }
+
+    /**
+     * Whether an If-None-Match header matches an ETag.
+     * Uses the weak comparison the header calls for, so W/"x" matches "x".
+     *
+     * @param ifNoneMatch the header value, may be null
+     * @param etag the current ETag
+     * @return true if the client's copy is current
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null || etag == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
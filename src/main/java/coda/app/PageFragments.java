@@ -0,0 +1,40 @@
+package coda.app;
+
+/**
+ * The static markup of {@link WebApp} pages, encoded once.
+ */
+final class PageFragments {
+    static final byte[] HEAD_START = HtmlWriter.fragment("<head>\n" +
+            "<meta charset=\"UTF-8\">\n" +
+            "<meta name=\"viewport\" content=\"width=device-width, initial-scale=1.0\">\n" +
+            "<style>body{background-color: #feee;}</style>\n" +
+            "<title>");
+    static final byte[] HEAD_END = HtmlWriter.fragment("</title>\n" +
+            "<script src='https://unpkg.com/htmx.org@1.9.5' integrity='sha384-xcuj3WpfgjlKF+FXhSQFQ0ZNr39ln+hwjN3npfM9VBnUskLolQAcN80McRIVOPuO' crossorigin='anonymous'></script>" +
+            "<link rel=\"stylesheet\" href=\"https://maxcdn.bootstrapcdn.com/bootstrap/4.5.2/css/bootstrap.min.css\">\n" +
+            "</head>\n");
+
+    static final byte[] BODY_START = HtmlWriter.fragment("<body>\n");
+    static final byte[] BODY_END = HtmlWriter.fragment("</body>\n");
+    static final byte[] DIV_START = HtmlWriter.fragment("<div class=\"");
+    static final byte[] DIV_START_END = HtmlWriter.fragment("\">\n");
+    static final byte[] DIV_END = HtmlWriter.fragment("</div>\n");
+    static final byte[] NEW_LINE = HtmlWriter.fragment("\n");
+
+    static final byte[] FOOTER_START = HtmlWriter.fragment("<footer class=\"");
+    static final byte[] SPACE = HtmlWriter.fragment(" ");
+    static final byte[] MADE_BY = HtmlWriter.fragment("\">\nMade by ");
+    static final byte[] LICENSE = HtmlWriter.fragment("\nLicense: ");
+    static final byte[] VERSION = HtmlWriter.fragment("\nVersion: ");
+    static final byte[] FOOTER_END = HtmlWriter.fragment("\n</footer>\n");
+
+    static final byte[] HTML_START = HtmlWriter.fragment("<!DOCTYPE html>\n<html lang=\"en\">\n");
+    static final byte[] HTML_END = HtmlWriter.fragment("</html>");
+
+    static final byte[] BREAK = HtmlWriter.fragment("<br><br>");
+    static final String[] PAGE_CLASSES = {"modal-dialog", "modal-content"};
+    static final String[] FOOTER_CLASSES = {"container", "fixed-bottom"};
+
+    private PageFragments() {
+    }
+}
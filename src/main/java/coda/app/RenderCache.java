@@ -0,0 +1,203 @@
+package coda.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Rendered images on disk, named by their {@link RenderRequest#cacheKey()}, so each distinct
+ * file and parameters is stored once however often it is submitted.
+ * The least recently used images are deleted once the total size exceeds the quota.
+ * Images already in the directory are picked up on start, oldest first.
+ */
+public final class RenderCache {
+    static final String DIR = "coda.render.cache.dir";
+    static final String MAX_BYTES = "coda.render.cache.maxBytes";
+
+    private static final Logger logger = Logger.getLogger(RenderCache.class.getName());
+    private static final String SUFFIX = ".png";
+
+    private final Path directory;
+    private final long maxBytes;
+
+    // Guarded by this; in access order, so the first entry is the least recently used
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param directory where images are kept
+     * @param maxBytes the quota for all images together
+     */
+    public RenderCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        load();
+    }
+
+    /**
+     * Create the cache, or none if the quota is 0.
+     *
+     * @param config the configuration
+     * @return the cache, or null
+     */
+    static RenderCache create(ServerConfig config) {
+        long maxBytes = config.getLong(MAX_BYTES, 1024L * 1024 * 1024);
+        return maxBytes <= 0 ? null : new RenderCache(Paths.get(config.getString(DIR, "render-cache")), maxBytes);
+    }
+
+    private void load() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        List<Path> images = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            files.forEach(images::add);
+            images.sort(Comparator.comparing(RenderCache::lastModified));
+            for (Path image : images) {
+                String name = image.getFileName().toString();
+                add(name.substring(0, name.length() - SUFFIX.length()), Files.size(image));
+            }
+            for (Path old : evict(null)) {
+                Files.deleteIfExists(old);
+            }
+        } catch (IOException e) {
+            logger.warning("Could not read render cache " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * Find a rendered image, marking it recently used.
+     *
+     * @param key the request's cache key
+     * @return the image, or null if not cached
+     */
+    public File get(String key) {
+        Path image = path(key);
+        synchronized (this) {
+            if (sizes.get(key) == null) {
+                misses.increment();
+                return null;
+            }
+            if (!Files.exists(image)) {
+                // Deleted behind our back
+                totalBytes -= sizes.remove(key);
+                misses.increment();
+                return null;
+            }
+        }
+        hits.increment();
+        return image.toFile();
+    }
+
+    /**
+     * Move a rendered image into the cache, evicting the least recently used ones over the quota.
+     *
+     * @param key the request's cache key
+     * @param rendered the image
+     * @return the cached image, or the rendered one if it is larger than the whole quota
+     * @throws IOException if the image cannot be moved
+     */
+    public File put(String key, File rendered) throws IOException {
+        long size = Files.size(rendered.toPath());
+        if (size > maxBytes) {
+            return rendered;
+        }
+        Files.createDirectories(directory);
+        Path image = path(key);
+        try {
+            Files.move(rendered.toPath(), image, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(rendered.toPath(), image, StandardCopyOption.REPLACE_EXISTING);
+        }
+        List<Path> evicted;
+        synchronized (this) {
+            Long previous = sizes.remove(key);
+            if (previous != null) {
+                totalBytes -= previous;
+            }
+            add(key, size);
+            evicted = evict(key);
+        }
+        for (Path old : evicted) {
+            Files.deleteIfExists(old);
+        }
+        return image.toFile();
+    }
+
+    private void add(String key, long size) {
+        sizes.put(key, size);
+        totalBytes += size;
+    }
+
+    /**
+     * Drop least recently used entries until within the quota.
+     *
+     * @param keep a key not to evict
+     * @return the files to delete
+     */
+    private synchronized List<Path> evict(String keep) {
+        List<Path> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> i = sizes.entrySet().iterator();
+        while (totalBytes > maxBytes && i.hasNext()) {
+            Map.Entry<String, Long> eldest = i.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            i.remove();
+            totalBytes -= eldest.getValue();
+            evictions.increment();
+            evicted.add(path(eldest.getKey()));
+        }
+        return evicted;
+    }
+
+    private Path path(String key) {
+        return directory.resolve(key + SUFFIX);
+    }
+
+    public synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int size() {
+        return sizes.size();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+}
@@ -0,0 +1,712 @@
+package coda.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Spreads renders over worker JVMs that connect to it over TCP, as the renderer of a
+ * {@link RenderScheduler}: each render the scheduler runs waits here for a worker, so the farm's
+ * bounded queue and job API work unchanged in front of many machines.
+ * Workers pull work by announcing free slots, up to their core count. A render goes to the node
+ * with the smallest share of its cores busy, so a 16-core worker takes four times the renders of
+ * a 4-core one; the coordinator can render on its own cores too. A worker's .blend inputs are
+ * sent with its first render of them. Each worker's messages are written by a thread of its own,
+ * so one slow to read a large .blend never holds up the others or the threads reading from them;
+ * any bytes from a worker, heartbeats or an image, count as hearing from it. Workers that
+ * disconnect or fall silent are dropped and their renders re-queued ahead of new ones, up to a
+ * number of attempts. The scheduler is resized to the cores connected, so it never runs more
+ * renders than the farm can take.
+ */
+public final class RenderCoordinator implements RenderScheduler.Renderer, AutoCloseable {
+    static final String ROLE = "coda.cluster.role";
+    static final String PORT = "coda.cluster.port";
+    static final String LOCAL_WORKERS = "coda.cluster.localWorkers";
+    static final String HEARTBEAT_SECONDS = "coda.cluster.heartbeatSeconds";
+    static final String TIMEOUT_SECONDS = "coda.cluster.timeoutSeconds";
+    static final String MAX_ATTEMPTS = "coda.cluster.maxAttempts";
+
+    private static final Logger logger = Logger.getLogger(RenderCoordinator.class.getName());
+    private static final int MAX_CORES = 1024;
+    // Queued for a quiet worker's writer in place of a task
+    private static final Task HEARTBEAT_MARKER = new Task(-1, null);
+
+    private final int port;
+    private final RenderScheduler.Renderer local;
+    private final long heartbeatMillis;
+    private final long timeoutMillis;
+    private final long renderTimeoutMillis;
+    private final int maxAttempts;
+
+    // Guarded by this
+    private final ArrayDeque<Task> pending = new ArrayDeque<>();
+    private final List<Node> nodes = new ArrayList<>();
+    private IntConsumer capacityListener = capacity -> { };
+    private boolean closed = false;
+
+    private volatile ServerSocket serverSocket;
+    private ScheduledExecutorService heartbeat;
+    private final ExecutorService localRenders;
+
+    private final AtomicLong nextTask = new AtomicLong();
+    private final AtomicInteger nextNode = new AtomicInteger();
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder requeued = new LongAdder();
+    private final LongAdder workersLost = new LongAdder();
+    private final LongAdder blendsSent = new LongAdder();
+
+    /**
+     * A render waiting for, or running on, a node.
+     */
+    private static final class Task {
+        final long id;
+        final RenderRequest request;
+        final CompletableFuture<File> result = new CompletableFuture<>();
+        int attempts = 0;
+
+        Task(long id, RenderRequest request) {
+            this.id = id;
+            this.request = request;
+        }
+    }
+
+    /**
+     * A worker connection, or the coordinator's own cores when socket is null.
+     * Its counters are guarded by the coordinator; its socket is written only by its writer thread.
+     */
+    private final class Node {
+        final String name;
+        final int cores;
+        final Socket socket;
+        final HeardInputStream in;
+        final DataOutputStream out;
+        // Tasks, and heartbeats, waiting for the writer
+        final BlockingQueue<Task> outbox = new LinkedBlockingQueue<>();
+        final Thread writer;
+        final Map<Long, Task> running = new HashMap<>();
+        // .blend contents the worker has been sent, by hash
+        final Set<String> blends = new HashSet<>();
+        int credits;
+
+        Node(String name, int cores, Socket socket, HeardInputStream in, DataOutputStream out, int credits) {
+            this.name = name;
+            this.cores = cores;
+            this.socket = socket;
+            this.in = in;
+            this.out = out;
+            this.credits = credits;
+            if (socket == null) {
+                this.writer = null;
+            } else {
+                this.writer = new Thread(() -> write(this), "coda-cluster-writer-" + name);
+                writer.setDaemon(true);
+            }
+        }
+
+        double load() {
+            return (double) running.size() / cores;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + cores + " cores)";
+        }
+    }
+
+    /**
+     * A worker's input, noting when bytes last arrived.
+     */
+    private static final class HeardInputStream extends FilterInputStream {
+        volatile long lastHeard = System.nanoTime();
+
+        HeardInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                lastHeard = System.nanoTime();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                lastHeard = System.nanoTime();
+            }
+            return read;
+        }
+    }
+
+    /**
+     * @param port the port workers connect to, 0 for any free one
+     * @param local renders on the coordinator's own cores, or null for none
+     * @param localWorkers the renders run locally at once
+     * @param heartbeatMillis how often heartbeats are sent
+     * @param timeoutMillis how long a worker may stay silent before it is dropped
+     * @param renderTimeoutMillis the longest one attempt at a render may take
+     * @param maxAttempts the most workers a render is tried on before it fails
+     */
+    public RenderCoordinator(int port, RenderScheduler.Renderer local, int localWorkers, long heartbeatMillis,
+                             long timeoutMillis, long renderTimeoutMillis, int maxAttempts) {
+        this.port = port;
+        this.local = local;
+        this.heartbeatMillis = heartbeatMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.renderTimeoutMillis = renderTimeoutMillis;
+        this.maxAttempts = maxAttempts;
+        if (local != null && localWorkers > 0) {
+            AtomicInteger count = new AtomicInteger();
+            this.localRenders = Executors.newFixedThreadPool(localWorkers, r -> {
+                Thread thread = new Thread(r, "coda-cluster-local-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            nodes.add(new Node("local", localWorkers, null, null, null, localWorkers));
+        } else {
+            this.localRenders = null;
+        }
+    }
+
+    static RenderCoordinator create(RenderScheduler.Renderer local, ServerConfig config) {
+        return new RenderCoordinator(
+                config.getInt(PORT, 7070),
+                local,
+                Math.max(0, config.getInt(LOCAL_WORKERS, 0)),
+                TimeUnit.SECONDS.toMillis(Math.max(1, config.getLong(HEARTBEAT_SECONDS, 2))),
+                TimeUnit.SECONDS.toMillis(Math.max(1, config.getLong(TIMEOUT_SECONDS, 10))),
+                TimeUnit.SECONDS.toMillis(Math.max(1, config.getLong(BlenderProcessPool.TIMEOUT, 600))),
+                Math.max(1, config.getInt(MAX_ATTEMPTS, 3)));
+    }
+
+    /**
+     * Whether the configuration makes this node the coordinator of a render farm.
+     *
+     * @param config the configuration
+     * @return true if coda.cluster.role is coordinator
+     */
+    static boolean isCoordinator(ServerConfig config) {
+        return "coordinator".equalsIgnoreCase(config.getString(ROLE, "standalone"));
+    }
+
+    /**
+     * Start accepting workers in the background.
+     *
+     * @throws UncheckedIOException if the port cannot be bound
+     */
+    public synchronized void start() {
+        if (serverSocket != null) {
+            return;
+        }
+        try {
+            ServerSocket socket = new ServerSocket();
+            socket.bind(new InetSocketAddress(port));
+            serverSocket = socket;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot listen for render workers on port " + port, e);
+        }
+        Thread acceptor = new Thread(this::accept, "coda-cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "coda-cluster-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleAtFixedRate(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        logger.info("Render coordinator listening for workers on port " + port());
+    }
+
+    /**
+     * Get the port workers connect to.
+     *
+     * @return the bound port, or the configured one before {@link #start()}
+     */
+    public int port() {
+        ServerSocket socket = serverSocket;
+        return socket == null ? port : socket.getLocalPort();
+    }
+
+    /**
+     * Be told the farm's core count whenever workers join or leave, e.g. to resize the scheduler.
+     * The listener is called holding the coordinator's lock and must not call back into it.
+     *
+     * @param listener receives the number of renders the farm can run at once, at least 1
+     */
+    public synchronized void onCapacity(IntConsumer listener) {
+        this.capacityListener = listener;
+        listener.accept(capacity());
+    }
+
+    /**
+     * Render on whichever node frees up first, waiting for one if all are busy.
+     * A render whose worker is lost is tried again on another.
+     *
+     * @param request the frame and settings
+     * @return the rendered image, next to the .blend file
+     * @throws Exception if every attempt failed or timed out
+     */
+    @Override
+    public File render(RenderRequest request) throws Exception {
+        Task task = new Task(nextTask.incrementAndGet(), request);
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Render coordinator is closed");
+            }
+            pending.add(task);
+        }
+        dispatch();
+        try {
+            return task.result.get(renderTimeoutMillis * maxAttempts, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (TimeoutException | InterruptedException e) {
+            withdraw(task);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("Render of " + request + " did not finish", e);
+        }
+    }
+
+    /**
+     * Hand pending renders to nodes with free slots, the least loaded first.
+     * A remote render is queued for its node's writer, so this never waits on a worker's socket
+     * and can be called from any thread, including those reading from workers.
+     */
+    private void dispatch() {
+        List<Node> to = new ArrayList<>();
+        List<Task> tasks = new ArrayList<>();
+        synchronized (this) {
+            while (!pending.isEmpty()) {
+                Node node = null;
+                for (Node candidate : nodes) {
+                    if (candidate.credits > 0 && (node == null || candidate.load() < node.load()
+                            || candidate.load() == node.load() && candidate.cores > node.cores)) {
+                        node = candidate;
+                    }
+                }
+                if (node == null) {
+                    break;
+                }
+                Task task = pending.poll();
+                node.credits--;
+                node.running.put(task.id, task);
+                task.attempts++;
+                to.add(node);
+                tasks.add(task);
+            }
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            dispatched.increment();
+            assign(to.get(i), tasks.get(i));
+        }
+    }
+
+    private void assign(Node node, Task task) {
+        if (node.socket == null) {
+            localRenders.execute(() -> {
+                try {
+                    finish(node, task, local.render(task.request), null);
+                } catch (Exception e) {
+                    finish(node, task, null, e);
+                }
+            });
+            return;
+        }
+
+        node.outbox.add(task);
+    }
+
+    /**
+     * Write one worker's tasks and heartbeats until it is dropped.
+     */
+    private void write(Node node) {
+        DataOutputStream out = node.out;
+        try {
+            while (true) {
+                Task task = node.outbox.take();
+                if (task == HEARTBEAT_MARKER) {
+                    out.writeByte(ClusterProtocol.HEARTBEAT);
+                } else if (running(node, task.id) != null) {
+                    // Unless withdrawn while it waited
+                    sendTask(node, task);
+                }
+                if (node.outbox.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Dropped
+        } catch (IOException e) {
+            if (!closed) {
+                logger.warning("Lost render worker " + node + ": " + e.getMessage());
+            }
+            drop(node);
+        }
+    }
+
+    private void sendTask(Node node, Task task) throws IOException {
+        RenderRequest request = task.request;
+        boolean sendBlend;
+        synchronized (this) {
+            sendBlend = node.blends.add(request.contentHash());
+        }
+        DataOutputStream out = node.out;
+        out.writeByte(ClusterProtocol.TASK);
+        out.writeLong(task.id);
+        out.writeUTF(request.contentHash());
+        out.writeInt(request.frame());
+        out.writeInt(request.width());
+        out.writeInt(request.height());
+        out.writeUTF(request.engine());
+        out.writeBoolean(sendBlend);
+        if (sendBlend) {
+            ClusterProtocol.writeFile(out, request.blendFile().toPath());
+            blendsSent.increment();
+        }
+    }
+
+    /**
+     * Complete a render and return its node's slot; a remote slot comes back with the worker's next PULL.
+     */
+    private void finish(Node node, Task task, File image, Exception failure) {
+        synchronized (this) {
+            node.running.remove(task.id);
+            if (node.socket == null) {
+                node.credits++;
+            }
+        }
+        if (failure == null) {
+            task.result.complete(image);
+        } else {
+            task.result.completeExceptionally(failure);
+        }
+        dispatch();
+    }
+
+    /**
+     * Forget a render nobody waits for any more.
+     */
+    private synchronized void withdraw(Task task) {
+        pending.remove(task);
+        for (Node node : nodes) {
+            node.running.remove(task.id);
+        }
+        task.result.cancel(false);
+    }
+
+    private void accept() {
+        ServerSocket server = serverSocket;
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                Thread reader = new Thread(() -> serve(socket), "coda-cluster-worker-" + nextNode.incrementAndGet());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    logger.warning("Render worker connection failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Read one worker's messages until it disconnects.
+     */
+    private void serve(Socket socket) {
+        Node node = null;
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout((int) timeoutMillis);
+            // Beneath the buffer, so it sees bytes as they arrive
+            HeardInputStream heard = new HeardInputStream(socket.getInputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(heard));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (in.readByte() != ClusterProtocol.HELLO || in.readInt() != ClusterProtocol.VERSION) {
+                logger.warning("Refused render worker " + socket.getRemoteSocketAddress() + ": not a version "
+                        + ClusterProtocol.VERSION + " worker");
+                return;
+            }
+            String name = in.readUTF();
+            int cores = Math.max(1, Math.min(MAX_CORES, in.readInt()));
+            node = new Node(name + "@" + socket.getInetAddress().getHostAddress(), cores, socket, heard, out, 0);
+            join(node);
+
+            while (true) {
+                byte type = in.readByte();
+                switch (type) {
+                    case ClusterProtocol.PULL:
+                        synchronized (this) {
+                            node.credits = Math.min(node.cores, node.credits + 1);
+                        }
+                        dispatch();
+                        break;
+                    case ClusterProtocol.HEARTBEAT:
+                        break;
+                    case ClusterProtocol.RESULT:
+                        receiveResult(node, in);
+                        break;
+                    case ClusterProtocol.FAILED: {
+                        Task task = running(node, in.readLong());
+                        String message = in.readUTF();
+                        if (task != null) {
+                            finish(node, task, null, new IOException(node + " could not render " + task.request + ": " + message));
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown message " + type);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            logger.warning("Render worker " + node + " stopped sending heartbeats");
+        } catch (IOException e) {
+            if (node != null && !closed) {
+                logger.warning("Lost render worker " + node + ": " + e.getMessage());
+            }
+        } finally {
+            if (node != null) {
+                drop(node);
+            }
+        }
+    }
+
+    /**
+     * Write a rendered image next to its .blend file, as a local render would, and complete its task.
+     */
+    private void receiveResult(Node node, DataInputStream in) throws IOException {
+        Task task = running(node, in.readLong());
+        if (task == null) {
+            // Withdrawn meanwhile
+            ClusterProtocol.readFile(in, null, null);
+            return;
+        }
+        RenderRequest request = task.request;
+        Path directory = request.blendFile().getAbsoluteFile().toPath().getParent();
+        Path image = directory.resolve(request.cacheKey() + ".png");
+        Path partial = Files.createTempFile(directory, "render-", ".part");
+        try {
+            ClusterProtocol.readFile(in, partial, null);
+            try {
+                Files.move(partial, image, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partial, image, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+        finish(node, task, image.toFile(), null);
+    }
+
+    private synchronized Task running(Node node, long id) {
+        return node.running.get(id);
+    }
+
+    private void join(Node node) {
+        int capacity;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            nodes.add(node);
+            node.writer.start();
+            capacity = capacityChanged();
+        }
+        logger.info("Render worker " + node + " joined, farm has " + capacity + " cores");
+    }
+
+    /**
+     * Remove a lost worker and re-queue its renders ahead of new ones.
+     */
+    private void drop(Node node) {
+        List<Task> failed = new ArrayList<>();
+        int capacity;
+        synchronized (this) {
+            if (!nodes.remove(node)) {
+                return;
+            }
+            workersLost.increment();
+            // Oldest first, so they end up at the head in their original order
+            List<Task> lost = new ArrayList<>(node.running.values());
+            lost.sort((a, b) -> Long.compare(b.id, a.id));
+            for (Task task : lost) {
+                if (task.attempts < maxAttempts) {
+                    pending.addFirst(task);
+                    requeued.increment();
+                } else {
+                    failed.add(task);
+                }
+            }
+            node.running.clear();
+            capacity = capacityChanged();
+        }
+        node.writer.interrupt();
+        try {
+            node.socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        logger.warning("Render worker " + node + " left, farm has " + capacity + " cores");
+        for (Task task : failed) {
+            task.result.completeExceptionally(new IOException("Render of " + task.request + " was lost with "
+                    + task.attempts + " workers"));
+        }
+        dispatch();
+    }
+
+    /**
+     * Send heartbeats to quiet workers and drop the ones that stopped sending theirs.
+     */
+    private void heartbeat() {
+        List<Node> remote;
+        synchronized (this) {
+            remote = new ArrayList<>(nodes);
+        }
+        long now = System.nanoTime();
+        for (Node node : remote) {
+            if (node.socket == null) {
+                continue;
+            }
+            if (now - node.in.lastHeard > TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) {
+                logger.warning("Render worker " + node + " stopped sending heartbeats");
+                drop(node);
+                continue;
+            }
+            // A worker with a task on its way needs no heartbeat
+            if (node.outbox.isEmpty()) {
+                node.outbox.add(HEARTBEAT_MARKER);
+            }
+        }
+    }
+
+    /**
+     * Tell the listener the new capacity. Called holding the lock, so changes arrive in order.
+     */
+    private int capacityChanged() {
+        int capacity = capacity();
+        capacityListener.accept(capacity);
+        return capacity;
+    }
+
+    private synchronized int capacity() {
+        int cores = 0;
+        for (Node node : nodes) {
+            cores += node.cores;
+        }
+        return Math.max(1, cores);
+    }
+
+    public synchronized int workers() {
+        int workers = 0;
+        for (Node node : nodes) {
+            if (node.socket != null) {
+                workers++;
+            }
+        }
+        return workers;
+    }
+
+    public long dispatched() {
+        return dispatched.sum();
+    }
+
+    /**
+     * Get the number of renders re-queued after their worker was lost.
+     *
+     * @return the count
+     */
+    public long requeued() {
+        return requeued.sum();
+    }
+
+    public long workersLost() {
+        return workersLost.sum();
+    }
+
+    /**
+     * Get the number of .blend files sent to workers; a worker is sent each file once.
+     *
+     * @return the count
+     */
+    public long blendsSent() {
+        return blendsSent.sum();
+    }
+
+    /**
+     * Stop accepting workers, disconnect them and fail the renders still waiting.
+     */
+    @Override
+    public void close() {
+        List<Node> remote;
+        List<Task> waiting;
+        synchronized (this) {
+            closed = true;
+            remote = new ArrayList<>(nodes);
+            waiting = new ArrayList<>(pending);
+            pending.clear();
+        }
+        ServerSocket socket = serverSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+        }
+        if (localRenders != null) {
+            localRenders.shutdownNow();
+        }
+        for (Node node : remote) {
+            if (node.socket != null) {
+                drop(node);
+            }
+        }
+        for (Task task : waiting) {
+            task.result.completeExceptionally(new IOException("Render coordinator closed"));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package coda.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+/**
+ * A frame to render: the .blend file, the hash of its contents and the render parameters.
+ * Requests with the same contents and parameters produce the same image, so they share
+ * a {@link #cacheKey()}.
+ */
+public final class RenderRequest {
+    static final int MAX_FRAME = 1_048_574;
+    static final int MAX_RESOLUTION = 16_384;
+
+    // Blender's engine identifiers, e.g. CYCLES or BLENDER_EEVEE
+    private static final Pattern ENGINE = Pattern.compile("[A-Z][A-Z0-9_]{0,31}");
+
+    private final File blendFile;
+    private final String contentHash;
+    private final int frame;
+    private final int width;
+    private final int height;
+    private final String engine;
+    private String cacheKey;
+
+    /**
+     * @param blendFile the .blend file
+     * @param contentHash the SHA-256 of the file, in hex
+     * @param frame the frame number
+     * @param width the image width, or 0 for the scene's
+     * @param height the image height, or 0 for the scene's
+     * @param engine the render engine, or "" for the scene's
+     * @throws IllegalArgumentException if a parameter is out of range
+     */
+    public RenderRequest(File blendFile, String contentHash, int frame, int width, int height, String engine) {
+        if (frame < 0 || frame > MAX_FRAME) {
+            throw new IllegalArgumentException("Frame " + frame + " is out of range");
+        }
+        if (width < 0 || width > MAX_RESOLUTION || height < 0 || height > MAX_RESOLUTION || (width == 0) != (height == 0)) {
+            throw new IllegalArgumentException("Resolution " + width + "x" + height + " is out of range");
+        }
+        if (!engine.isEmpty() && !ENGINE.matcher(engine).matches()) {
+            throw new IllegalArgumentException("Unknown render engine " + engine);
+        }
+        this.blendFile = blendFile;
+        this.contentHash = contentHash;
+        this.frame = frame;
+        this.width = width;
+        this.height = height;
+        this.engine = engine;
+    }
+
+    /**
+     * Request frame 1 of a file with the scene's own settings, hashing the file.
+     *
+     * @param blendFile the .blend file
+     * @return the request
+     * @throws IOException if the file cannot be read
+     */
+    public static RenderRequest of(File blendFile) throws IOException {
+        return new RenderRequest(blendFile, hash(blendFile), 1, 0, 0, "");
+    }
+
+    /**
+     * Hash a file's contents, reading it in chunks.
+     *
+     * @param file the file
+     * @return the SHA-256 in hex
+     * @throws IOException if the file cannot be read
+     */
+    static String hash(File file) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is unavailable", e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    public File blendFile() {
+        return blendFile;
+    }
+
+    public String contentHash() {
+        return contentHash;
+    }
+
+    public int frame() {
+        return frame;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public String engine() {
+        return engine;
+    }
+
+    /**
+     * Get the key identifying the rendered image: a hash of the contents and parameters.
+     *
+     * @return the key, in hex
+     */
+    public String cacheKey() {
+        if (cacheKey == null) {
+            String parameters = contentHash + ";frame=" + frame + ";size=" + width + "x" + height + ";engine=" + engine;
+            cacheKey = hex(sha256().digest(parameters.getBytes(StandardCharsets.UTF_8)));
+        }
+        return cacheKey;
+    }
+
+    @Override
+    public String toString() {
+        return blendFile.getName() + " frame " + frame
+                + (width == 0 ? "" : " at " + width + "x" + height)
+                + (engine.isEmpty() ? "" : " with " + engine);
+    }
+}
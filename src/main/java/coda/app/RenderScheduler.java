@@ -0,0 +1,499 @@
+package coda.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Runs render jobs on a fixed set of worker threads fed by a bounded queue.
+ * A job submitted while every worker is busy and the queue is full is refused rather than
+ * started, so a burst of uploads cannot oversubscribe the CPU. Each job keeps its own result,
+ * so concurrent renders never overwrite each other.
+ * With a {@link RenderCache}, a request whose image is cached is answered by a finished job
+ * without a worker, and one already being rendered shares the job in flight.
+ * With a {@link JobJournal}, jobs are recorded as they change, and the jobs unfinished when the
+ * scheduler last stopped are queued again when it starts.
+ */
+public final class RenderScheduler implements AutoCloseable {
+    static final String WORKERS = "coda.render.workers";
+    static final String QUEUE_SIZE = "coda.render.queueSize";
+
+    private static final Logger logger = Logger.getLogger(RenderScheduler.class.getName());
+
+    private final Renderer renderer;
+    private final RenderCache cache;
+    private final JobJournal journal;
+    private final ThreadPoolExecutor workers;
+    private final int queueSize;
+
+    // Jobs queued or running, by cache key
+    private final ConcurrentHashMap<String, RenderJob> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder cached = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final Metrics.Histogram waits = new Metrics.Histogram();
+    private final LongAdder totalRunNanos = new LongAdder();
+
+    /**
+     * Turns a render request into an image.
+     */
+    @FunctionalInterface
+    public interface Renderer {
+        File render(RenderRequest request) throws Exception;
+    }
+
+    /**
+     * States of a render job.
+     */
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    /**
+     * One submitted render and its result slot.
+     */
+    public static final class RenderJob {
+        private final String id;
+        private final RenderRequest request;
+        private final long submittedNanos = System.nanoTime();
+        private final CompletableFuture<File> result = new CompletableFuture<>();
+        // Callers holding a handle; the job is cancelled while queued if all give up
+        private final AtomicInteger holders = new AtomicInteger();
+        private final RenderScheduler scheduler;
+        private Runnable task;
+        private volatile State state = State.QUEUED;
+        private volatile long waitNanos = -1;
+
+        RenderJob(String id, RenderRequest request, RenderScheduler scheduler) {
+            this.id = id;
+            this.request = request;
+            this.scheduler = scheduler;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        public RenderRequest request() {
+            return request;
+        }
+
+        public State state() {
+            return state;
+        }
+
+        /**
+         * Get the time the job spent queued before a worker took it.
+         *
+         * @return the wait in milliseconds, or -1 while still queued
+         */
+        public long waitMillis() {
+            return waitNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        }
+
+        /**
+         * Get the rendered image, completed when the job finishes.
+         *
+         * @return the result
+         */
+        public CompletableFuture<File> result() {
+            return result;
+        }
+
+        /**
+         * Get a future of the image for one caller.
+         * Completing or cancelling it, e.g. on a timeout, gives up this caller's interest; once
+         * every caller has given up on a job still queued, the job is cancelled and never rendered.
+         *
+         * @return the caller's future
+         */
+        public CompletableFuture<File> handle() {
+            holders.incrementAndGet();
+            CompletableFuture<File> handle = new CompletableFuture<>();
+            result.whenComplete((image, failure) -> {
+                if (failure == null) {
+                    handle.complete(image);
+                } else {
+                    handle.completeExceptionally(failure);
+                }
+            });
+            handle.whenComplete((image, failure) -> {
+                if (!result.isDone() && holders.decrementAndGet() == 0) {
+                    scheduler.abandon(this);
+                }
+            });
+            return handle;
+        }
+
+        @Override
+        public String toString() {
+            return "Render job " + id + " (" + state.name().toLowerCase() + ")";
+        }
+    }
+
+    /**
+     * A snapshot of the scheduler's counters.
+     */
+    public static final class Stats {
+        public final int queued;
+        public final int running;
+        public final int workers;
+        public final int queueSize;
+        public final long submitted;
+        public final long rejected;
+        public final long cached;
+        public final long shared;
+        public final long cancelled;
+        public final long completed;
+        public final long failed;
+        public final double averageWaitMillis;
+        public final double maxWaitMillis;
+
+        Stats(int queued, int running, int workers, int queueSize, long submitted, long rejected, long cached,
+              long shared, long cancelled, long completed, long failed, double averageWaitMillis, double maxWaitMillis) {
+            this.queued = queued;
+            this.running = running;
+            this.workers = workers;
+            this.queueSize = queueSize;
+            this.submitted = submitted;
+            this.rejected = rejected;
+            this.cached = cached;
+            this.shared = shared;
+            this.cancelled = cancelled;
+            this.completed = completed;
+            this.failed = failed;
+            this.averageWaitMillis = averageWaitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("queued %d/%d, running %d/%d, submitted %d, rejected %d, cached %d, shared %d, cancelled %d, completed %d, failed %d, wait avg %.1f ms max %.1f ms",
+                    queued, queueSize, running, workers, submitted, rejected, cached, shared, cancelled, completed, failed, averageWaitMillis, maxWaitMillis);
+        }
+    }
+
+    /**
+     * @param renderer renders one file
+     * @param workers the number of renders run at once
+     * @param queueSize the most jobs waiting for a worker
+     */
+    public RenderScheduler(Renderer renderer, int workers, int queueSize) {
+        this(renderer, null, workers, queueSize);
+    }
+
+    /**
+     * @param renderer renders one file
+     * @param cache the rendered images, or null to always render
+     * @param workers the number of renders run at once
+     * @param queueSize the most jobs waiting for a worker
+     */
+    public RenderScheduler(Renderer renderer, RenderCache cache, int workers, int queueSize) {
+        this(renderer, cache, null, workers, queueSize);
+    }
+
+    /**
+     * @param renderer renders one file
+     * @param cache the rendered images, or null to always render
+     * @param journal records jobs to recover after a restart, or null; closed with the scheduler
+     * @param workers the number of renders run at once
+     * @param queueSize the most jobs waiting for a worker
+     */
+    public RenderScheduler(Renderer renderer, RenderCache cache, JobJournal journal, int workers, int queueSize) {
+        this.renderer = renderer;
+        this.cache = cache;
+        this.journal = journal;
+        this.queueSize = queueSize;
+        AtomicInteger count = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread thread = new Thread(r, "coda-render-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        if (journal != null) {
+            recover(journal);
+        }
+    }
+
+    static RenderScheduler create(Renderer renderer, RenderCache cache, ServerConfig config) {
+        return new RenderScheduler(renderer, cache, JobJournal.create(config), workers(config),
+                Math.max(1, config.getInt(QUEUE_SIZE, 16)));
+    }
+
+    /**
+     * Queue the jobs the journal found unfinished again.
+     * A job whose .blend file is gone, or that no longer fits in the queue, fails.
+     */
+    private void recover(JobJournal journal) {
+        nextId.set(journal.lastId());
+        int queued = 0;
+        for (JobJournal.Entry entry : journal.recovered()) {
+            RenderJob job = new RenderJob(Long.toString(entry.id), entry.request, this);
+            if (!entry.request.blendFile().isFile()) {
+                finish(job, null, new IOException("Recovered job's file " + entry.request.blendFile() + " is gone"));
+            } else {
+                if (cache != null) {
+                    inFlight.putIfAbsent(entry.request.cacheKey(), job);
+                }
+                job.task = () -> run(job);
+                try {
+                    workers.execute(job.task);
+                    submitted.increment();
+                    queued++;
+                } catch (RejectedExecutionException e) {
+                    finish(job, null, new IOException("Render queue too small to recover the job"));
+                }
+            }
+        }
+        if (queued > 0) {
+            logger.info("Recovered " + queued + " unfinished render jobs from the journal");
+        }
+    }
+
+    /**
+     * Get the configured number of render workers.
+     *
+     * @param config the configuration
+     * @return the worker count, the number of cores by default
+     */
+    static int workers(ServerConfig config) {
+        return Math.max(1, config.getInt(WORKERS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Queue a render, unless its image is cached or it is already queued or running.
+     *
+     * @param request the frame to render
+     * @return the job; finished if the image was cached, shared if it was in flight
+     * @throws RejectedExecutionException if every worker is busy and the queue is full
+     */
+    public RenderJob submit(RenderRequest request) {
+        RenderJob job = new RenderJob(Long.toString(nextId.incrementAndGet()), request, this);
+        if (cache != null) {
+            String key = request.cacheKey();
+            File image = cache.get(key);
+            if (image != null) {
+                cached.increment();
+                job.waitNanos = 0;
+                job.state = State.DONE;
+                job.result.complete(image);
+                return job;
+            }
+            RenderJob running = inFlight.putIfAbsent(key, job);
+            if (running != null) {
+                shared.increment();
+                return running;
+            }
+        }
+        job.task = () -> run(job);
+        if (journal != null) {
+            // Before a worker can take it, so the journal never sees a job start before it is submitted
+            journal.submitted(Long.parseLong(job.id), request);
+        }
+        try {
+            workers.execute(job.task);
+        } catch (RejectedExecutionException e) {
+            if (cache != null) {
+                inFlight.remove(request.cacheKey(), job);
+            }
+            if (journal != null) {
+                journal.cancelled(Long.parseLong(job.id));
+            }
+            rejected.increment();
+            throw e;
+        }
+        submitted.increment();
+        return job;
+    }
+
+    /**
+     * Get the number of jobs waiting for a worker.
+     *
+     * @return the queue depth
+     */
+    public int queueDepth() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * Estimate how long until a refused job would be accepted: one render time per wave of
+     * queued jobs ahead of it.
+     *
+     * @return the estimate in seconds, at least 1
+     */
+    public long retryAfterSeconds() {
+        long finished = completed.sum() + failed.sum();
+        if (finished == 0) {
+            return 1;
+        }
+        double averageRun = totalRunNanos.sum() / (double) finished;
+        double waves = (double) queueDepth() / workers.getMaximumPoolSize() + 1;
+        return Math.max(1, (long) Math.ceil(averageRun * waves / 1e9));
+    }
+
+    /**
+     * Change the number of renders run at once, e.g. as render farm workers join and leave.
+     * Running renders finish; shrinking takes effect as workers go idle.
+     *
+     * @param workers the new worker count, at least 1
+     */
+    public synchronized void resize(int workers) {
+        workers = Math.max(1, workers);
+        // The core size may never exceed the maximum, so the order depends on the direction
+        if (workers > this.workers.getMaximumPoolSize()) {
+            this.workers.setMaximumPoolSize(workers);
+            this.workers.setCorePoolSize(workers);
+        } else {
+            this.workers.setCorePoolSize(workers);
+            this.workers.setMaximumPoolSize(workers);
+        }
+    }
+
+    public Stats stats() {
+        long started = completed.sum() + failed.sum() + running.get();
+        return new Stats(queueDepth(), running.get(), workers.getMaximumPoolSize(), queueSize,
+                submitted.sum(), rejected.sum(), cached.sum(), shared.sum(), cancelled.sum(), completed.sum(), failed.sum(),
+                started == 0 ? 0 : totalWaitNanos.sum() / 1e6 / started,
+                maxWaitNanos.get() / 1e6);
+    }
+
+    private void run(RenderJob job) {
+        synchronized (job) {
+            if (job.state != State.QUEUED) {
+                return;
+            }
+            job.state = State.RUNNING;
+        }
+        long wait = System.nanoTime() - job.submittedNanos;
+        job.waitNanos = wait;
+        totalWaitNanos.add(wait);
+        maxWaitNanos.accumulateAndGet(wait, Math::max);
+        waits.record(wait);
+        running.incrementAndGet();
+        logger.info(job + " started after waiting " + job.waitMillis() + " ms");
+        if (journal != null) {
+            journal.started(Long.parseLong(job.id));
+        }
+
+        long start = System.nanoTime();
+        File image = null;
+        Exception failure = null;
+        try {
+            image = renderer.render(job.request);
+            if (image == null) {
+                throw new IllegalStateException("Renderer produced no image");
+            }
+            if (cache != null) {
+                image = cache.put(job.request.cacheKey(), image);
+            }
+        } catch (Exception e) {
+            failure = e;
+        }
+        totalRunNanos.add(System.nanoTime() - start);
+        running.decrementAndGet();
+        finish(job, image, failure);
+    }
+
+    /**
+     * Record a job's outcome and complete it.
+     */
+    private void finish(RenderJob job, File image, Exception failure) {
+        if (cache != null) {
+            // Once cached, later requests are answered from the cache instead
+            inFlight.remove(job.request.cacheKey(), job);
+        }
+        if (journal != null) {
+            if (failure == null) {
+                journal.done(Long.parseLong(job.id), image);
+            } else if (!workers.isShutdown()) {
+                // A render interrupted by close is left unfinished, to run again on the next start
+                journal.failed(Long.parseLong(job.id), failure.getMessage());
+            }
+        }
+
+        // Complete last, so whoever waits on the result sees the counters already updated
+        if (failure == null) {
+            job.state = State.DONE;
+            completed.increment();
+            job.result.complete(image);
+        } else {
+            job.state = State.FAILED;
+            failed.increment();
+            logger.warning(job + ": " + failure.getMessage());
+            job.result.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Cancel a job nobody waits for any more, if no worker has taken it yet.
+     */
+    private void abandon(RenderJob job) {
+        synchronized (job) {
+            if (job.state != State.QUEUED) {
+                return;
+            }
+            job.state = State.CANCELLED;
+        }
+        workers.remove(job.task);
+        if (cache != null) {
+            inFlight.remove(job.request.cacheKey(), job);
+        }
+        cancelled.increment();
+        if (journal != null) {
+            journal.cancelled(Long.parseLong(job.id));
+        }
+        logger.info(job + " abandoned before it started");
+        job.result.cancel(false);
+    }
+
+    /**
+     * Write the scheduler's queue, workers, counters and wait times in the Prometheus text format.
+     *
+     * @param out the text to append to
+     */
+    void writeMetrics(StringBuilder out) {
+        Metrics.metric(out, "coda_render_queued", "gauge", "Render jobs waiting for a worker", queueDepth());
+        Metrics.metric(out, "coda_render_queue_size", "gauge", "Most render jobs allowed to wait", queueSize);
+        Metrics.metric(out, "coda_render_running", "gauge", "Renders in progress", running.get());
+        Metrics.metric(out, "coda_render_workers", "gauge", "Renders run at once", workers.getMaximumPoolSize());
+        Metrics.metric(out, "coda_render_submitted_total", "counter", "Render jobs queued", submitted.sum());
+        Metrics.metric(out, "coda_render_rejected_total", "counter", "Render jobs refused for a full queue", rejected.sum());
+        Metrics.metric(out, "coda_render_cached_total", "counter", "Renders answered from the render cache", cached.sum());
+        Metrics.metric(out, "coda_render_shared_total", "counter", "Renders sharing a job already in flight", shared.sum());
+        Metrics.metric(out, "coda_render_cancelled_total", "counter", "Render jobs abandoned before they started", cancelled.sum());
+        Metrics.metric(out, "coda_render_completed_total", "counter", "Renders finished", completed.sum());
+        Metrics.metric(out, "coda_render_failed_total", "counter", "Renders failed", failed.sum());
+        Metrics.summary(out, "coda_render_wait_seconds", "Time render jobs waited for a worker", waits);
+    }
+
+    /**
+     * Stop taking jobs. Running renders are interrupted and queued ones dropped; with a journal,
+     * both are left unfinished in it and run again on the next start.
+     */
+    @Override
+    public void close() {
+        workers.shutdownNow();
+        if (journal != null) {
+            journal.close();
+        }
+    }
+}
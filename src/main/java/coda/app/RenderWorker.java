@@ -0,0 +1,340 @@
+package coda.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * A render farm node: connects to a {@link RenderCoordinator}, pulls renders for each of its cores
+ * and sends back the images. The .blend inputs it is sent are kept by content hash, so a file is
+ * transferred once however many frames of it are rendered here. If the coordinator goes away the
+ * worker keeps trying to reconnect; renders in flight are abandoned, as the coordinator re-queues them.
+ */
+public final class RenderWorker implements AutoCloseable {
+    static final String COORDINATOR = "coda.cluster.coordinator";
+    static final String DIRECTORY = "coda.cluster.worker.dir";
+
+    private static final Logger logger = Logger.getLogger(RenderWorker.class.getName());
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    private final String name;
+    private final int cores;
+    private final Path directory;
+    private final RenderScheduler.Renderer renderer;
+    private final long heartbeatMillis;
+    private final long timeoutMillis;
+    private final ExecutorService renders;
+
+    private volatile boolean closed = false;
+    private volatile Socket socket;
+
+    private final LongAdder rendered = new LongAdder();
+    private final LongAdder blendsReceived = new LongAdder();
+
+    /**
+     * @param host the coordinator's host
+     * @param port the coordinator's port
+     * @param name how the coordinator logs this worker
+     * @param cores the renders run at once
+     * @param directory where received .blend files and rendered images are kept
+     * @param renderer renders one file
+     * @param heartbeatMillis how often heartbeats are sent
+     * @param timeoutMillis how long the coordinator may stay silent before reconnecting
+     */
+    public RenderWorker(String host, int port, String name, int cores, Path directory, RenderScheduler.Renderer renderer,
+                        long heartbeatMillis, long timeoutMillis) {
+        this.host = host;
+        this.port = port;
+        this.name = name;
+        this.cores = cores;
+        this.directory = directory;
+        this.renderer = renderer;
+        this.heartbeatMillis = heartbeatMillis;
+        this.timeoutMillis = timeoutMillis;
+        AtomicInteger count = new AtomicInteger();
+        this.renders = Executors.newFixedThreadPool(cores, r -> {
+            Thread thread = new Thread(r, "coda-worker-render-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Create a worker rendering with a pool of Blender processes, one per configured render worker.
+     *
+     * @param config the configuration
+     * @return the worker, not yet connected
+     */
+    public static RenderWorker create(ServerConfig config) {
+        String coordinator = config.getString(COORDINATOR, "localhost:7070");
+        int colon = coordinator.lastIndexOf(':');
+        String host = colon < 0 ? coordinator : coordinator.substring(0, colon);
+        int port = colon < 0 ? 7070 : Integer.parseInt(coordinator.substring(colon + 1));
+        String name;
+        try {
+            name = InetAddress.getLocalHost().getHostName() + "-" + ProcessHandle.current().pid();
+        } catch (IOException e) {
+            name = "worker-" + ProcessHandle.current().pid();
+        }
+        return new RenderWorker(host, port, name, RenderScheduler.workers(config),
+                Paths.get(config.getString(DIRECTORY, "worker-cache")),
+                BlenderProcessPool.create(config),
+                TimeUnit.SECONDS.toMillis(Math.max(1, config.getLong(RenderCoordinator.HEARTBEAT_SECONDS, 2))),
+                TimeUnit.SECONDS.toMillis(Math.max(1, config.getLong(RenderCoordinator.TIMEOUT_SECONDS, 10))));
+    }
+
+    /**
+     * Serve the coordinator until closed, reconnecting whenever the connection is lost.
+     */
+    public void run() {
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create " + directory, e);
+        }
+        logger.info("Render worker " + name + " with " + cores + " cores serving " + host + ":" + port);
+        boolean connected = true;
+        while (!closed) {
+            try (Socket connection = new Socket()) {
+                connection.connect(new InetSocketAddress(host, port), (int) timeoutMillis);
+                socket = connection;
+                connected = true;
+                logger.info("Connected to render coordinator " + host + ":" + port);
+                serve(connection);
+            } catch (SocketTimeoutException e) {
+                logger.warning("Render coordinator " + host + ":" + port + " stopped sending heartbeats");
+            } catch (IOException e) {
+                // Logged once per outage rather than on every attempt
+                if (connected && !closed) {
+                    logger.warning("Render coordinator " + host + ":" + port + " unavailable: " + e.getMessage());
+                }
+                connected = false;
+            }
+            if (!closed) {
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Handle one connection: say hello, ask for a render per core, then render what arrives.
+     */
+    private void serve(Socket connection) throws IOException {
+        connection.setTcpNoDelay(true);
+        connection.setSoTimeout((int) timeoutMillis);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+        Channel channel = new Channel(connection, new DataOutputStream(new BufferedOutputStream(connection.getOutputStream())));
+        channel.hello();
+
+        Thread heartbeat = new Thread(channel::heartbeats, "coda-worker-heartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+        try {
+            while (true) {
+                byte type = in.readByte();
+                switch (type) {
+                    case ClusterProtocol.HEARTBEAT:
+                        break;
+                    case ClusterProtocol.TASK:
+                        receiveTask(in, channel);
+                        break;
+                    default:
+                        throw new IOException("Unknown message " + type);
+                }
+            }
+        } finally {
+            channel.lose();
+            heartbeat.interrupt();
+        }
+    }
+
+    private void receiveTask(DataInputStream in, Channel channel) throws IOException {
+        long id = in.readLong();
+        String hash = in.readUTF();
+        int frame = in.readInt();
+        int width = in.readInt();
+        int height = in.readInt();
+        String engine = in.readUTF();
+        Path blend = directory.resolve(hash + ".blend");
+        if (in.readBoolean()) {
+            receiveBlend(in, hash, blend);
+        }
+
+        renders.execute(() -> {
+            try {
+                if (!Files.isRegularFile(blend)) {
+                    throw new IOException("No .blend file with hash " + hash);
+                }
+                RenderRequest request = new RenderRequest(blend.toFile(), hash, frame, width, height, engine);
+                File image = renderer.render(request);
+                rendered.increment();
+                channel.result(id, image.toPath());
+            } catch (Exception e) {
+                channel.failed(id, e.getMessage() == null ? e.toString() : e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Store a .blend file under its hash, checking it arrived intact; a stale copy is replaced.
+     */
+    private void receiveBlend(DataInputStream in, String hash, Path blend) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Path partial = Files.createTempFile(directory, "blend-", ".part");
+        try {
+            ClusterProtocol.readFile(in, partial, digest);
+            if (RenderRequest.hex(digest.digest()).equals(hash)) {
+                Files.move(partial, blend, StandardCopyOption.REPLACE_EXISTING);
+                blendsReceived.increment();
+            } else {
+                // The render fails, not the connection
+                logger.warning("Received .blend file does not match its hash " + hash);
+            }
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    /**
+     * The writing half of one connection. Renders finishing after it is lost write nowhere; the
+     * coordinator has re-queued them.
+     */
+    private final class Channel {
+        private final Socket connection;
+        private final DataOutputStream out;
+        private volatile boolean lost = false;
+
+        Channel(Socket connection, DataOutputStream out) {
+            this.connection = connection;
+            this.out = out;
+        }
+
+        synchronized void hello() throws IOException {
+            out.writeByte(ClusterProtocol.HELLO);
+            out.writeInt(ClusterProtocol.VERSION);
+            out.writeUTF(name);
+            out.writeInt(cores);
+            for (int i = 0; i < cores; i++) {
+                out.writeByte(ClusterProtocol.PULL);
+            }
+            out.flush();
+        }
+
+        void heartbeats() {
+            try {
+                while (!lost) {
+                    Thread.sleep(heartbeatMillis);
+                    synchronized (this) {
+                        out.writeByte(ClusterProtocol.HEARTBEAT);
+                        out.flush();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Connection finished
+            } catch (IOException e) {
+                lose();
+            }
+        }
+
+        void result(long id, Path image) {
+            try {
+                synchronized (this) {
+                    if (lost) {
+                        return;
+                    }
+                    out.writeByte(ClusterProtocol.RESULT);
+                    out.writeLong(id);
+                    ClusterProtocol.writeFile(out, image);
+                    out.writeByte(ClusterProtocol.PULL);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                lose();
+            }
+        }
+
+        void failed(long id, String message) {
+            try {
+                synchronized (this) {
+                    if (lost) {
+                        return;
+                    }
+                    out.writeByte(ClusterProtocol.FAILED);
+                    out.writeLong(id);
+                    // writeUTF takes at most 64 KB
+                    out.writeUTF(message.length() > 1024 ? message.substring(0, 1024) : message);
+                    out.writeByte(ClusterProtocol.PULL);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                lose();
+            }
+        }
+
+        void lose() {
+            lost = true;
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    public long rendered() {
+        return rendered.sum();
+    }
+
+    public long blendsReceived() {
+        return blendsReceived.sum();
+    }
+
+    /**
+     * Disconnect and stop rendering.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Socket connection = socket;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+        renders.shutdownNow();
+    }
+}
@@ -0,0 +1,252 @@
+package coda.app;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A parsed request line and headers.
+ * Holds offsets into the connection's read buffer rather than copies; values are decoded
+ * as UTF-8 only when asked for. The parser calls {@link #detach()} before it reuses the
+ * bytes, so a request kept after its connection moves on stays valid.
+ */
+final class RequestHead {
+    // Slice layout: method, path, query, protocol as start/end pairs, then name/value pairs per header
+    static final int METHOD = 0;
+    static final int PATH = 2;
+    static final int QUERY = 4;
+    static final int PROTOCOL = 6;
+    static final int HEADERS = 8;
+
+    private static final String[] KNOWN_METHODS = {"GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS", "PATCH"};
+    private static final String[] KNOWN_PROTOCOLS = {"HTTP/1.1", "HTTP/1.0"};
+
+    private byte[] bytes;
+    private final int[] slices;
+    private final int headerCount;
+
+    private String path;
+    private String query;
+
+    RequestHead(byte[] bytes, int[] slices, int headerCount) {
+        this.bytes = bytes;
+        this.slices = slices;
+        this.headerCount = headerCount;
+    }
+
+    String method() {
+        return constantOrDecode(METHOD, KNOWN_METHODS);
+    }
+
+    /**
+     * Get the request path, without the query string.
+     *
+     * @return the path
+     */
+    String path() {
+        if (path == null) {
+            path = decode(PATH);
+        }
+        return path;
+    }
+
+    /**
+     * Get the query string.
+     *
+     * @return the query string, or null if the URI has none
+     */
+    String query() {
+        if (query == null && slices[QUERY] >= 0) {
+            query = decode(QUERY);
+        }
+        return query;
+    }
+
+    String protocol() {
+        return constantOrDecode(PROTOCOL, KNOWN_PROTOCOLS);
+    }
+
+    int headerCount() {
+        return headerCount;
+    }
+
+    String headerName(int index) {
+        return decode(HEADERS + index * 4);
+    }
+
+    String headerValue(int index) {
+        return decode(HEADERS + index * 4 + 2);
+    }
+
+    /**
+     * Find a header by case-insensitive name without allocating.
+     *
+     * @param name the header name
+     * @return the header index, or -1 if absent
+     */
+    int indexOf(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (equalsIgnoreCase(HEADERS + i * 4, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    String header(String name) {
+        int index = indexOf(name);
+        return index < 0 ? null : headerValue(index);
+    }
+
+    /**
+     * Get every value of a header, in request order.
+     *
+     * @param name the header name
+     * @return the values
+     */
+    List<String> headers(String name) {
+        List<String> values = new ArrayList<>(1);
+        for (int i = 0; i < headerCount; i++) {
+            if (equalsIgnoreCase(HEADERS + i * 4, name)) {
+                values.add(headerValue(i));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Parse a non-negative decimal header straight from the bytes.
+     *
+     * @param name the header name
+     * @param missing value returned when the header is absent
+     * @return the value, or -1 if it is not a valid number
+     */
+    long headerAsLong(String name, long missing) {
+        int index = indexOf(name);
+        if (index < 0) {
+            return missing;
+        }
+        int from = slices[HEADERS + index * 4 + 2];
+        int to = slices[HEADERS + index * 4 + 3];
+        if (from == to || to - from > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Whether a comma separated header contains a token, ignoring case, without allocating.
+     *
+     * @param name the header name
+     * @param token the token
+     * @return true if present
+     */
+    boolean headerHasToken(String name, String token) {
+        for (int i = 0; i < headerCount; i++) {
+            if (!equalsIgnoreCase(HEADERS + i * 4, name)) {
+                continue;
+            }
+            int from = slices[HEADERS + i * 4 + 2];
+            int to = slices[HEADERS + i * 4 + 3];
+            int itemStart = from;
+            for (int p = from; p <= to; p++) {
+                if (p == to || bytes[p] == ',') {
+                    int s = itemStart;
+                    int e = p;
+                    while (s < e && (bytes[s] == ' ' || bytes[s] == '\t')) {
+                        s++;
+                    }
+                    while (e > s && (bytes[e - 1] == ' ' || bytes[e - 1] == '\t')) {
+                        e--;
+                    }
+                    if (regionEqualsIgnoreCase(s, e, token)) {
+                        return true;
+                    }
+                    itemStart = p + 1;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy the referenced bytes out of the shared read buffer.
+     */
+    void detach() {
+        int from = slices[METHOD];
+        int to = slices[METHOD];
+        for (int i = 0; i < HEADERS + headerCount * 4; i += 2) {
+            if (slices[i] >= 0) {
+                to = Math.max(to, slices[i + 1]);
+            }
+        }
+        bytes = Arrays.copyOfRange(bytes, from, to);
+        for (int i = 0; i < HEADERS + headerCount * 4; i++) {
+            if (slices[i] >= 0) {
+                slices[i] -= from;
+            }
+        }
+    }
+
+    private String decode(int slice) {
+        int from = slices[slice];
+        return from < 0 ? null : new String(bytes, from, slices[slice + 1] - from, StandardCharsets.UTF_8);
+    }
+
+    private String constantOrDecode(int slice, String[] constants) {
+        for (String constant : constants) {
+            if (regionEquals(slices[slice], slices[slice + 1], constant)) {
+                return constant;
+            }
+        }
+        return decode(slice);
+    }
+
+    private boolean equalsIgnoreCase(int slice, String name) {
+        return regionEqualsIgnoreCase(slices[slice], slices[slice + 1], name);
+    }
+
+    private boolean regionEquals(int from, int to, String value) {
+        if (to - from != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (bytes[from + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionEqualsIgnoreCase(int from, int to, String value) {
+        if (to - from != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            int a = bytes[from + i];
+            int b = value.charAt(i);
+            if (a != b && toLower(a) != toLower(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    @Override
+    public String toString() {
+        return method() + " " + path() + (query() == null ? "" : "?" + query()) + " " + protocol();
+    }
+}
@@ -0,0 +1,310 @@
+package coda.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable index from request paths to services.
+ * Plain paths go in a hash map. Patterns with {name} segments or a trailing /* go in a
+ * segment trie whose children are found by hashing the segment in place, so matching a
+ * path never allocates. Registering returns a new table; readers never see a partial one.
+ */
+final class RoutingTable {
+    static final RoutingTable EMPTY = new RoutingTable(Collections.emptyList());
+
+    private final List<Route> routes;
+    private final Map<String, Route> exact;
+    private final Node root;
+    private final int maxCaptures;
+
+    /**
+     * A registered pattern.
+     */
+    static final class Route {
+        final String pattern;
+        final WebPageService service;
+        final String[] parameterNames;
+
+        private final String shape;
+
+        Route(String pattern, WebPageService service) {
+            if (!pattern.startsWith("/")) {
+                throw new IllegalArgumentException("Route " + pattern + " must start with /");
+            }
+            if (pattern.length() > 1 && pattern.endsWith("/")) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            this.pattern = pattern;
+            this.service = service;
+
+            List<String> names = new ArrayList<>();
+            StringBuilder shape = new StringBuilder();
+            String[] segments = segments(pattern);
+            for (int i = 0; i < segments.length; i++) {
+                String segment = segments[i];
+                shape.append('/');
+                if (segment.equals("*")) {
+                    if (i != segments.length - 1) {
+                        throw new IllegalArgumentException("Route " + pattern + " may only end with *");
+                    }
+                    names.add("*");
+                    shape.append('*');
+                } else if (isParameter(segment)) {
+                    names.add(segment.substring(1, segment.length() - 1));
+                    shape.append("{}");
+                } else {
+                    shape.append(segment);
+                }
+            }
+            this.parameterNames = names.toArray(new String[0]);
+            // Patterns differing only in parameter names match the same paths
+            this.shape = shape.toString();
+        }
+
+        boolean isExact() {
+            return parameterNames.length == 0;
+        }
+    }
+
+    private RoutingTable(List<Route> routes) {
+        this.routes = routes;
+        Map<String, Route> exact = new HashMap<>();
+        Node root = null;
+        int maxCaptures = 0;
+
+        for (Route route : routes) {
+            if (route.isExact()) {
+                exact.put(route.pattern, route);
+                continue;
+            }
+            if (root == null) {
+                root = new Node();
+            }
+            root.insert(segments(route.pattern), 0, route);
+            maxCaptures = Math.max(maxCaptures, route.parameterNames.length);
+        }
+        if (root != null) {
+            root.freeze();
+        }
+
+        this.exact = exact;
+        this.root = root;
+        this.maxCaptures = maxCaptures;
+    }
+
+    /**
+     * Return a table that also routes the given pattern.
+     *
+     * @param pattern the path pattern, e.g. /blender-farm/jobs/{id}
+     * @param service the service answering it
+     * @return the new table
+     * @throws IllegalStateException if a registered pattern already matches the same paths, or
+     *                               the pattern is under a path the server answers itself
+     */
+    RoutingTable with(String pattern, WebPageService service) {
+        Route route = new Route(pattern, service);
+        String[] segments = segments(route.pattern);
+        for (String builtIn : WebServer.BUILT_IN_PATHS) {
+            if (segments.length > 0 && segments[0].equals(segments(builtIn)[0])) {
+                throw new IllegalStateException("Route " + pattern + " of " + service.title()
+                        + " is under " + builtIn + ", which the server answers itself");
+            }
+        }
+        for (Route existing : routes) {
+            if (existing.shape.equals(route.shape)) {
+                throw new IllegalStateException("Route " + pattern + " of " + service.title()
+                        + " is already registered by " + existing.service.title());
+            }
+        }
+        List<Route> copy = new ArrayList<>(routes.size() + 1);
+        copy.addAll(routes);
+        copy.add(route);
+        return new RoutingTable(Collections.unmodifiableList(copy));
+    }
+
+    /**
+     * Get the most parameters any pattern captures.
+     *
+     * @return the capture count, 0 if every route is exact
+     */
+    int maxCaptures() {
+        return maxCaptures;
+    }
+
+    /**
+     * Find the route for a path.
+     * Exact paths win over patterns, literal segments over parameters, and parameters over a trailing *.
+     *
+     * @param path the request path
+     * @param captures receives start/end offsets of each parameter in the path; may be null when maxCaptures is 0
+     * @return the route, or null if nothing matches
+     */
+    Route match(String path, int[] captures) {
+        Route route = exact.get(path);
+        if (route != null || root == null || path.isEmpty() || path.charAt(0) != '/') {
+            return route;
+        }
+        return root.match(path, 1, captures, 0);
+    }
+
+    /**
+     * Find the service for a path, ignoring parameters.
+     *
+     * @param path the request path
+     * @return the service, or null if nothing matches
+     */
+    WebPageService lookup(String path) {
+        Route route = exact.get(path);
+        if (route == null && root != null) {
+            route = match(path, new int[maxCaptures * 2]);
+        }
+        return route == null ? null : route.service;
+    }
+
+    /**
+     * Decode the parameters captured by {@link #match}.
+     *
+     * @param route the matched route
+     * @param path the request path
+     * @param captures the captured offsets
+     * @return parameter values by name
+     */
+    static Map<String, String> parameters(Route route, String path, int[] captures) {
+        Map<String, String> parameters = new HashMap<>(route.parameterNames.length * 2);
+        for (int i = 0; i < route.parameterNames.length; i++) {
+            parameters.put(route.parameterNames[i], path.substring(captures[i * 2], captures[i * 2 + 1]));
+        }
+        return parameters;
+    }
+
+    private static String[] segments(String pattern) {
+        String trimmed = pattern.substring(1);
+        if (trimmed.endsWith("/")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("/");
+    }
+
+    private static boolean isParameter(String segment) {
+        return segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}");
+    }
+
+    /**
+     * Trie node for one path segment.
+     */
+    private static final class Node {
+        private Route route;
+        private Route wildcard;
+        private Node parameter;
+
+        // Literal children while building, then an open-addressing table keyed by segment hash
+        private Map<String, Node> building = new HashMap<>();
+        private String[] keys;
+        private Node[] children;
+        private int mask;
+
+        void insert(String[] segments, int index, Route route) {
+            if (index == segments.length) {
+                this.route = route;
+                return;
+            }
+            String segment = segments[index];
+            if (segment.equals("*")) {
+                wildcard = route;
+            } else if (isParameter(segment)) {
+                if (parameter == null) {
+                    parameter = new Node();
+                }
+                parameter.insert(segments, index + 1, route);
+            } else {
+                building.computeIfAbsent(segment, s -> new Node()).insert(segments, index + 1, route);
+            }
+        }
+
+        void freeze() {
+            int size = Integer.highestOneBit(Math.max(1, building.size()) * 2) * 2;
+            keys = new String[size];
+            children = new Node[size];
+            mask = size - 1;
+            for (Map.Entry<String, Node> entry : building.entrySet()) {
+                int slot = spread(entry.getKey().hashCode()) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = entry.getKey();
+                children[slot] = entry.getValue();
+                entry.getValue().freeze();
+            }
+            building = null;
+            if (parameter != null) {
+                parameter.freeze();
+            }
+        }
+
+        Route match(String path, int from, int[] captures, int captured) {
+            int length = path.length();
+            if (from >= length) {
+                if (route != null) {
+                    return route;
+                }
+                if (wildcard != null) {
+                    captures[captured * 2] = length;
+                    captures[captured * 2 + 1] = length;
+                }
+                return wildcard;
+            }
+
+            int end = path.indexOf('/', from);
+            if (end < 0) {
+                end = length;
+            }
+
+            Node literal = child(path, from, end);
+            if (literal != null) {
+                Route found = literal.match(path, end + 1, captures, captured);
+                if (found != null) {
+                    return found;
+                }
+            }
+            if (parameter != null && end > from) {
+                captures[captured * 2] = from;
+                captures[captured * 2 + 1] = end;
+                Route found = parameter.match(path, end + 1, captures, captured + 1);
+                if (found != null) {
+                    return found;
+                }
+            }
+            if (wildcard != null) {
+                captures[captured * 2] = from;
+                captures[captured * 2 + 1] = length;
+            }
+            return wildcard;
+        }
+
+        /**
+         * Find the literal child for path[from, to) without taking a substring.
+         */
+        private Node child(String path, int from, int to) {
+            int hash = 0;
+            for (int i = from; i < to; i++) {
+                hash = 31 * hash + path.charAt(i);
+            }
+            int slot = spread(hash) & mask;
+            String key;
+            while ((key = keys[slot]) != null) {
+                if (key.length() == to - from && key.hashCode() == hash && path.regionMatches(from, key, 0, to - from)) {
+                    return children[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package coda.app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Server configuration.
+ * Values are read from application.properties on the classpath, then overridden
+ * by system properties and finally by key=value program arguments.
+ */
+public class ServerConfig {
+    private static final Logger logger = Logger.getLogger(ServerConfig.class.getName());
+
+    private final Properties properties;
+
+    public ServerConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Get a configuration with only the application.properties and system property values.
+     *
+     * @return the configuration
+     */
+    public static ServerConfig defaults() {
+        return load(new String[0]);
+    }
+
+    /**
+     * Load the configuration.
+     *
+     * @param overrides key=value pairs taking precedence over every other source
+     * @return the configuration
+     */
+    public static ServerConfig load(String[] overrides) {
+        Properties properties = new Properties();
+
+        try (InputStream in = ServerConfig.class.getClassLoader().getResourceAsStream("application.properties")) {
+            if (in != null) {
+                properties.load(in);
+            }
+        } catch (IOException e) {
+            logger.warning("Could not read application.properties: " + e.getMessage());
+        }
+
+        System.getProperties().stringPropertyNames().stream()
+                .filter(key -> key.startsWith("coda."))
+                .forEach(key -> properties.setProperty(key, System.getProperty(key)));
+
+        for (String override : overrides) {
+            int split = override.indexOf('=');
+            if (split > 0) {
+                properties.setProperty(override.substring(0, split).trim(), override.substring(split + 1).trim());
+            }
+        }
+
+        return new ServerConfig(properties);
+    }
+
+    /**
+     * Return a copy of this configuration with one value changed.
+     *
+     * @param key the key
+     * @param value the new value
+     * @return the new configuration
+     */
+    public ServerConfig with(String key, String value) {
+        Properties copy = new Properties();
+        copy.putAll(properties);
+        copy.setProperty(key, value);
+        return new ServerConfig(copy);
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            logger.warning("Invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            logger.warning("Invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
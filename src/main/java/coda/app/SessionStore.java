@@ -0,0 +1,212 @@
+package coda.app;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Per-client state, keyed by the CODA_SESSION cookie.
+ * Lookups are a single ConcurrentHashMap read. Sessions expire after a period of inactivity,
+ * and the store never holds more than a fixed number: when full, a handful of sessions are
+ * sampled and the least recently used one is evicted, so eviction stays O(1) without an
+ * LRU list every access would have to lock.
+ */
+class SessionStore {
+    static final String COOKIE = "CODA_SESSION";
+    static final String TTL_SECONDS = "coda.session.ttlSeconds";
+    static final String MAX_SESSIONS = "coda.session.maxSessions";
+
+    private static final int EVICTION_SAMPLES = 8;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+    private final int maxSessions;
+    private final AtomicLong nextSweep;
+    // Where the last eviction stopped sampling, guarded by this store
+    private Iterator<Session> cursor = Collections.emptyIterator();
+
+    /**
+     * State kept for one client.
+     */
+    static final class Session {
+        final String id;
+        private volatile long lastAccess;
+        private volatile WebPageService service;
+        private volatile JobRegistry.Job job;
+
+        Session(String id, long now) {
+            this.id = id;
+            this.lastAccess = now;
+        }
+
+        /**
+         * Get the service page this client viewed last.
+         *
+         * @return the service, or null if none yet
+         */
+        WebPageService service() {
+            return service;
+        }
+
+        void setService(WebPageService service) {
+            this.service = service;
+        }
+
+        /**
+         * Get the job this client started last, e.g. its latest render.
+         *
+         * @return the job, or null if none yet
+         */
+        JobRegistry.Job job() {
+            return job;
+        }
+
+        void setJob(JobRegistry.Job job) {
+            this.job = job;
+        }
+    }
+
+    SessionStore(long ttlMillis, int maxSessions) {
+        this.ttlMillis = ttlMillis;
+        this.maxSessions = maxSessions;
+        this.nextSweep = new AtomicLong(System.currentTimeMillis() + ttlMillis);
+    }
+
+    static SessionStore create(ServerConfig config) {
+        return new SessionStore(
+                Math.max(1, config.getLong(TTL_SECONDS, 1800)) * 1000,
+                Math.max(1, config.getInt(MAX_SESSIONS, 50_000)));
+    }
+
+    /**
+     * Find the session named by the request's cookie.
+     *
+     * @param request the request
+     * @return the session, or null if the client has none or it expired
+     */
+    Session find(HttpServletRequest request) {
+        String id = sessionId(request);
+        if (id == null) {
+            return null;
+        }
+        Session session = sessions.get(id);
+        if (session == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - session.lastAccess > ttlMillis) {
+            sessions.remove(id, session);
+            return null;
+        }
+        session.lastAccess = now;
+        return session;
+    }
+
+    /**
+     * Find the client's session, starting a new one if it has none.
+     * A new session id is put on the request under {@link WebServer#SET_COOKIE} for the response.
+     *
+     * @param request the request
+     * @return the session
+     */
+    Session findOrCreate(HttpServletRequest request) {
+        Session session = find(request);
+        if (session != null) {
+            return session;
+        }
+
+        long now = System.currentTimeMillis();
+        sweepIfDue(now);
+        while (sessions.size() >= maxSessions) {
+            evictOne();
+        }
+
+        session = new Session(newId(), now);
+        sessions.put(session.id, session);
+        request.setAttribute(WebServer.SET_COOKIE, COOKIE + "=" + session.id + "; Path=/; HttpOnly; SameSite=Lax");
+        return session;
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Drop expired sessions. At most one thread sweeps at a time, once per TTL.
+     *
+     * @param now the current time in milliseconds
+     */
+    private void sweepIfDue(long now) {
+        long due = nextSweep.get();
+        if (now < due || !nextSweep.compareAndSet(due, now + ttlMillis)) {
+            return;
+        }
+        sessions.values().removeIf(session -> now - session.lastAccess > ttlMillis);
+    }
+
+    /**
+     * Evict the least recently used of a few sessions, sampled in table order from where the last
+     * eviction stopped. The cursor walks the whole table in turn, so every session is a candidate
+     * rather than the same few at the front; evictions only happen when the store is full, so
+     * taking a lock for them costs lookups nothing.
+     */
+    private synchronized void evictOne() {
+        Session oldest = null;
+        for (int i = 0; i < EVICTION_SAMPLES; i++) {
+            if (!cursor.hasNext()) {
+                cursor = sessions.values().iterator();
+                if (!cursor.hasNext()) {
+                    break;
+                }
+            }
+            Session candidate = cursor.next();
+            if (oldest == null || candidate.lastAccess < oldest.lastAccess) {
+                oldest = candidate;
+            }
+        }
+        if (oldest != null) {
+            sessions.remove(oldest.id, oldest);
+        }
+    }
+
+    private static String newId() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Read the session id from the Cookie header.
+     *
+     * @param request the request
+     * @return the id, or null if there is no session cookie
+     */
+    private static String sessionId(HttpServletRequest request) {
+        String cookies = request.getHeader("Cookie");
+        if (cookies == null) {
+            return null;
+        }
+        int from = 0;
+        while (from < cookies.length()) {
+            int end = cookies.indexOf(';', from);
+            if (end < 0) {
+                end = cookies.length();
+            }
+            while (from < end && cookies.charAt(from) == ' ') {
+                from++;
+            }
+            if (cookies.startsWith(COOKIE, from) && from + COOKIE.length() < end
+                    && cookies.charAt(from + COOKIE.length()) == '=') {
+                return cookies.substring(from + COOKIE.length() + 1, end).trim();
+            }
+            from = end + 1;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,43 @@
+package coda.app;
+
+import java.io.IOException;
+
+/**
+ * Network engine used by the web server.
+ * A transport accepts connections, reads requests and hands them to the server for dispatch.
+ */
+interface Transport {
+    String TRANSPORT = "coda.server.transport";
+
+    /**
+     * Accept connections on the given port until stopped.
+     *
+     * @param port the port
+     * @throws IOException if the port cannot be bound
+     */
+    void start(int port) throws IOException;
+
+    /**
+     * Stop accepting connections.
+     */
+    void stop();
+
+    /**
+     * Create the transport named in the configuration.
+     *
+     * @param server the server to dispatch to
+     * @param config the configuration
+     * @return the transport
+     */
+    static Transport create(WebServer server, ServerConfig config) {
+        String name = config.getString(TRANSPORT, "blocking");
+        switch (name.toLowerCase()) {
+            case "nio":
+                return new NioTransport(server, config);
+            case "blocking":
+                return new BlockingTransport(server, config);
+            default:
+                throw new IllegalArgumentException("Unknown transport: " + name);
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package coda.app;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.BitSet;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Uploads sent in numbered chunks, so a large file on a flaky link resumes where it broke off
+ * instead of starting again. The file is created at its full size up front and each chunk is
+ * written at its own offset with a positional write, so chunks may arrive in any order and over
+ * several connections at once without waiting for each other. The client asks which chunks are
+ * missing, sends them again, and completes the upload; the contents are then checked against the
+ * SHA-256 it announced before anything uses them. Uploads left idle are deleted.
+ */
+class UploadStore implements AutoCloseable {
+    static final String CHUNK_SIZE = "coda.upload.chunkSize";
+    static final String MAX_SESSIONS = "coda.upload.maxSessions";
+    static final String IDLE_SECONDS = "coda.upload.idleSeconds";
+
+    private static final Logger logger = Logger.getLogger(UploadStore.class.getName());
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String SUFFIX = ".upload";
+
+    private final Path directory;
+    private final long maxSize;
+    private final int maxChunkSize;
+    private final int maxSessions;
+    private final long idleMillis;
+    private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep;
+
+    private final LongAdder chunks = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    /**
+     * A file being uploaded.
+     */
+    final class Upload {
+        final String id;
+        final String service;
+        final String name;
+        final long size;
+        final int chunkSize;
+        final int chunkCount;
+        final String sha256;
+        final Path file;
+        private final FileChannel channel;
+        // Guarded by this
+        private final BitSet received;
+        private int writing = 0;
+        private boolean finished = false;
+        private volatile long touched = System.currentTimeMillis();
+
+        private Upload(String id, String service, String name, long size, int chunkSize, String sha256, Path file,
+                       FileChannel channel) {
+            this.id = id;
+            this.service = service;
+            this.name = name;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+            this.sha256 = sha256;
+            this.file = file;
+            this.channel = channel;
+            this.received = new BitSet(chunkCount);
+        }
+
+        /**
+         * Get the length of a chunk: the chunk size, except for the last.
+         *
+         * @param index the chunk number
+         * @return the length in bytes
+         */
+        long chunkLength(int index) {
+            return Math.min(chunkSize, size - (long) index * chunkSize);
+        }
+
+        synchronized boolean isComplete() {
+            return received.cardinality() == chunkCount;
+        }
+
+        /**
+         * Describe the upload as JSON, with the chunks still to send.
+         *
+         * @return the JSON object
+         */
+        synchronized String toJson() {
+            StringBuilder json = new StringBuilder(128)
+                    .append("{\"id\":").append(JobRegistry.quote(id))
+                    .append(",\"service\":").append(JobRegistry.quote(service))
+                    .append(",\"name\":").append(JobRegistry.quote(name))
+                    .append(",\"size\":").append(size)
+                    .append(",\"chunkSize\":").append(chunkSize)
+                    .append(",\"chunks\":").append(chunkCount)
+                    .append(",\"received\":").append(received.cardinality())
+                    .append(",\"missing\":[");
+            for (int i = received.nextClearBit(0), n = 0; i < chunkCount; i = received.nextClearBit(i + 1), n++) {
+                json.append(n == 0 ? "" : ",").append(i);
+            }
+            return json.append("]}").toString();
+        }
+    }
+
+    /**
+     * @param directory where files are kept while they are uploaded
+     * @param maxSize the largest file accepted
+     * @param maxChunkSize the largest chunk accepted, and the chunk size if the client names none
+     * @param maxSessions the most uploads in progress at once
+     * @param idleMillis how long an upload may go without a chunk before it is deleted
+     */
+    UploadStore(Path directory, long maxSize, int maxChunkSize, int maxSessions, long idleMillis) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.maxChunkSize = maxChunkSize;
+        this.maxSessions = maxSessions;
+        this.idleMillis = idleMillis;
+        this.nextSweep = new AtomicLong(System.currentTimeMillis() + idleMillis);
+        deleteAbandoned();
+    }
+
+    static UploadStore create(ServerConfig config) {
+        return new UploadStore(
+                Paths.get(config.getString(BlenderFarm.UPLOAD_DIR, "uploads")).resolve("partial"),
+                Math.max(1, config.getLong(BlenderFarm.MAX_UPLOAD_SIZE, 1024L * 1024 * 1024)),
+                Math.max(MIN_CHUNK_SIZE, config.getInt(CHUNK_SIZE, 8 * 1024 * 1024)),
+                Math.max(1, config.getInt(MAX_SESSIONS, 64)),
+                TimeUnit.SECONDS.toMillis(Math.max(1, config.getLong(IDLE_SECONDS, 3600))));
+    }
+
+    /**
+     * Start an upload.
+     *
+     * @param service the endpoint of the service the file is for
+     * @param name the file's name, for the service to check
+     * @param size the file size
+     * @param chunkSize the size of each chunk but the last, 0 for the default
+     * @param sha256 the SHA-256 of the contents, in hex
+     * @return the upload
+     * @throws HttpException with 400 for bad parameters, 413 if the file is too large, 503 if too many uploads are in progress
+     * @throws IOException if the file cannot be created
+     */
+    Upload start(String service, String name, long size, int chunkSize, String sha256) throws IOException {
+        sweep();
+        if (size < 1) {
+            throw HttpParseException.badRequest("Upload size must be positive");
+        }
+        if (size > maxSize) {
+            throw HttpParseException.payloadTooLarge("Upload of " + size + " bytes exceeds " + maxSize);
+        }
+        if (chunkSize == 0) {
+            chunkSize = maxChunkSize;
+        } else if (chunkSize < MIN_CHUNK_SIZE && chunkSize < size || chunkSize > maxChunkSize) {
+            throw HttpParseException.badRequest("Chunk size must be between " + MIN_CHUNK_SIZE + " and " + maxChunkSize);
+        }
+        String hash = sha256 == null ? "" : sha256.toLowerCase(Locale.ROOT);
+        if (!SHA256.matcher(hash).matches()) {
+            throw HttpParseException.badRequest("The upload's sha256 must be given in hex");
+        }
+        if (uploads.size() >= maxSessions) {
+            throw HttpException.unavailable("Too many uploads in progress", TimeUnit.MILLISECONDS.toSeconds(idleMillis));
+        }
+
+        String id = newId();
+        Files.createDirectories(directory);
+        Path file = directory.resolve(id + SUFFIX);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            // Sized up front, so each chunk is written in place whatever order they come in
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        } catch (IOException e) {
+            channel.close();
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        Upload upload = new Upload(id, service, name == null ? "" : name, size, chunkSize, hash, file, channel);
+        uploads.put(id, upload);
+        logger.info("Upload " + id + " of " + upload.name + " started: " + size + " bytes in " + upload.chunkCount + " chunks");
+        return upload;
+    }
+
+    /**
+     * Find an upload in progress.
+     *
+     * @param id the upload id
+     * @return the upload, or null if unknown, finished or deleted for being idle
+     */
+    Upload find(String id) {
+        sweep();
+        return uploads.get(id);
+    }
+
+    /**
+     * Write one chunk from a request body. Chunks of the same upload are written concurrently.
+     * A chunk sent again overwrites the earlier copy, and one cut short is not counted as received.
+     *
+     * @param upload the upload
+     * @param index the chunk number
+     * @param body the chunk
+     * @param length the body length
+     * @throws HttpException with 400 if the chunk number or length is wrong, 404 if the upload has finished
+     * @throws IOException if the body ends early or the write fails
+     */
+    void write(Upload upload, int index, InputStream body, long length) throws IOException {
+        if (index < 0 || index >= upload.chunkCount) {
+            throw HttpParseException.badRequest("Upload " + upload.id + " has chunks 0 to " + (upload.chunkCount - 1));
+        }
+        if (length != upload.chunkLength(index)) {
+            throw HttpParseException.badRequest("Chunk " + index + " must be " + upload.chunkLength(index) + " bytes");
+        }
+        synchronized (upload) {
+            if (upload.finished) {
+                throw new HttpException(404, "Not Found", "Upload " + upload.id + " has finished");
+            }
+            upload.writing++;
+        }
+        try {
+            upload.touched = System.currentTimeMillis();
+            long position = (long) index * upload.chunkSize;
+            long remaining = length;
+            byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, remaining)];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            while (remaining > 0) {
+                int read = body.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("Chunk " + index + " of upload " + upload.id + " ended early");
+                }
+                wrapped.clear().limit(read);
+                while (wrapped.hasRemaining()) {
+                    position += upload.channel.write(wrapped, position);
+                }
+                remaining -= read;
+            }
+            synchronized (upload) {
+                upload.received.set(index);
+            }
+            chunks.increment();
+            bytes.add(length);
+            upload.touched = System.currentTimeMillis();
+        } finally {
+            synchronized (upload) {
+                upload.writing--;
+                upload.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Finish an upload whose chunks have all arrived, checking its contents against its SHA-256.
+     * The file then belongs to the caller, which moves or deletes it.
+     *
+     * @param upload the upload
+     * @return the file
+     * @throws HttpException with 409 if chunks are missing, 400 if the contents do not match the
+     *                       SHA-256 (the upload is deleted), 404 if it has already finished
+     * @throws IOException if the file cannot be read
+     */
+    Path finish(Upload upload) throws IOException {
+        synchronized (upload) {
+            if (upload.finished) {
+                throw new HttpException(404, "Not Found", "Upload " + upload.id + " has finished");
+            }
+            if (!upload.isComplete()) {
+                throw new HttpException(409, "Conflict", "Upload " + upload.id + " is missing chunks");
+            }
+            upload.finished = true;
+            // A chunk sent twice may still be being written
+            while (upload.writing > 0) {
+                try {
+                    upload.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted finishing upload " + upload.id, e);
+                }
+            }
+        }
+        uploads.remove(upload.id, upload);
+
+        String hash;
+        try (FileChannel channel = upload.channel) {
+            MessageDigest digest = RenderRequest.sha256();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = 0;
+            int read;
+            while ((read = channel.read(buffer.clear(), position)) > 0) {
+                position += read;
+                digest.update(buffer.flip());
+            }
+            hash = RenderRequest.hex(digest.digest());
+        } catch (IOException e) {
+            Files.deleteIfExists(upload.file);
+            throw e;
+        }
+        if (!hash.equals(upload.sha256)) {
+            Files.deleteIfExists(upload.file);
+            throw HttpParseException.badRequest("Upload " + upload.id + " has SHA-256 " + hash + ", not " + upload.sha256);
+        }
+        logger.info("Upload " + upload.id + " of " + upload.name + " finished: " + upload.size + " bytes");
+        return upload.file;
+    }
+
+    /**
+     * Give up an upload and delete its file.
+     *
+     * @param upload the upload
+     */
+    void cancel(Upload upload) {
+        synchronized (upload) {
+            if (upload.finished) {
+                return;
+            }
+            upload.finished = true;
+        }
+        uploads.remove(upload.id, upload);
+        discard(upload);
+    }
+
+    private void discard(Upload upload) {
+        try {
+            upload.channel.close();
+            Files.deleteIfExists(upload.file);
+        } catch (IOException e) {
+            logger.warning("Could not delete upload " + upload.file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Delete uploads idle for too long, at most once per idle period.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        long due = nextSweep.get();
+        if (now < due || !nextSweep.compareAndSet(due, now + Math.min(idleMillis, TimeUnit.MINUTES.toMillis(1)))) {
+            return;
+        }
+        for (Iterator<Upload> i = uploads.values().iterator(); i.hasNext(); ) {
+            Upload upload = i.next();
+            if (now - upload.touched <= idleMillis) {
+                continue;
+            }
+            synchronized (upload) {
+                if (upload.finished || upload.writing > 0) {
+                    continue;
+                }
+                upload.finished = true;
+            }
+            i.remove();
+            logger.info("Upload " + upload.id + " deleted after " + TimeUnit.MILLISECONDS.toSeconds(idleMillis) + " s idle");
+            discard(upload);
+        }
+    }
+
+    /**
+     * Delete the files of uploads in progress when the server last stopped; their sessions are gone.
+     */
+    private void deleteAbandoned() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            logger.warning("Could not clear " + directory + ": " + e.getMessage());
+        }
+    }
+
+    int inProgress() {
+        return uploads.size();
+    }
+
+    long chunksReceived() {
+        return chunks.sum();
+    }
+
+    long bytesReceived() {
+        return bytes.sum();
+    }
+
+    private static String newId() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Delete every upload in progress.
+     */
+    @Override
+    public void close() {
+        for (Upload upload : uploads.values()) {
+            cancel(upload);
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package coda.app;
 
+import java.io.IOException;
 import javax.servlet.http.HttpServletRequest;
 
 /**
  * Simple web app interface.
  * Contains a head, body and footer.
+ * Each part is written to an {@link HtmlWriter}; the String methods render the same markup in memory.
  */
 public interface WebApp {
 
@@ -15,14 +17,18 @@ public interface WebApp {
      * @return
      */
     default String head(String title){
-        return "<head>\n" +
-                "<meta charset=\"UTF-8\">\n" +
-                "<meta name=\"viewport\" content=\"width=device-width, initial-scale=1.0\">\n" +
-                "<style>body{background-color: #feee;}</style>\n" +
-                "<title>"+title+"</title>\n" +
-                "<script src='https://unpkg.com/htmx.org@1.9.5' integrity='sha384-xcuj3WpfgjlKF+FXhSQFQ0ZNr39ln+hwjN3npfM9VBnUskLolQAcN80McRIVOPuO' crossorigin='anonymous'></script>" +
-                "<link rel=\"stylesheet\" href=\"https://maxcdn.bootstrapcdn.com/bootstrap/4.5.2/css/bootstrap.min.css\">\n" +
-                "</head>\n";
+        return HtmlWriter.render(out -> writeHead(out, title)).toString();
+    }
+
+    /**
+     * Write the html head.
+     *
+     * @param out the writer
+     * @param title title of the page, escaped
+     * @throws IOException if writing fails
+     */
+    default void writeHead(HtmlWriter out, String title) throws IOException {
+        out.raw(PageFragments.HEAD_START).text(title).raw(PageFragments.HEAD_END);
     }
 
     /**
@@ -33,24 +39,45 @@ public interface WebApp {
      * @return
      */
     default String body(String body, String... bootstrapClasses){
-        StringBuilder sb = new StringBuilder();
-        sb.append("<body>\n");
-        for(String bootstrapClass : bootstrapClasses){
-            sb.append("<div class=\""+bootstrapClass+"\">\n");
+        return HtmlWriter.render(out -> writeBody(out, inner -> inner.raw(body), bootstrapClasses)).toString();
+    }
+
+    /**
+     * Write the html body.
+     *
+     * @param out the writer
+     * @param content content of the body
+     * @param bootstrapClasses bootstrap classes
+     * @throws IOException if writing fails
+     */
+    default void writeBody(HtmlWriter out, HtmlWriter.Fragment content, String... bootstrapClasses) throws IOException {
+        out.raw(PageFragments.BODY_START);
+        for (String bootstrapClass : bootstrapClasses) {
+            out.raw(PageFragments.DIV_START).text(bootstrapClass).raw(PageFragments.DIV_START_END);
         }
-        sb.append(body + "\n");
-        for(String ignored : bootstrapClasses){
-            sb.append("</div>\n");
+        content.writeTo(out);
+        out.raw(PageFragments.NEW_LINE);
+        for (String ignored : bootstrapClasses) {
+            out.raw(PageFragments.DIV_END);
         }
-        sb.append("</body>\n");
-        return sb.toString();
+        out.raw(PageFragments.BODY_END);
     }
 
     default String htmlWrapper(String inner){
-        return "<!DOCTYPE html>\n" +
-                "<html lang=\"en\">\n" +
-                inner +
-                "</html>";
+        return HtmlWriter.render(out -> writeHtml(out, content -> content.raw(inner))).toString();
+    }
+
+    /**
+     * Write the html document around its content.
+     *
+     * @param out the writer
+     * @param inner head, body and footer
+     * @throws IOException if writing fails
+     */
+    default void writeHtml(HtmlWriter out, HtmlWriter.Fragment inner) throws IOException {
+        out.raw(PageFragments.HTML_START);
+        inner.writeTo(out);
+        out.raw(PageFragments.HTML_END);
     }
 
 
@@ -64,17 +91,28 @@ public interface WebApp {
      * @return
      */
     default String footer(String author, String license, String version, String... bootstrapClasses){
-        StringBuilder sb = new StringBuilder();
-        sb.append("<footer class=\"");
-        for(String bootstrapClass : bootstrapClasses){
-            sb.append(bootstrapClass + " ");
+        return HtmlWriter.render(out -> writeFooter(out, author, license, version, bootstrapClasses)).toString();
+    }
+
+    /**
+     * Write the html footer. Author, license and version are escaped.
+     *
+     * @param out the writer
+     * @param author author of the page
+     * @param license license of the page
+     * @param version version of the page
+     * @param bootstrapClasses bootstrap classes
+     * @throws IOException if writing fails
+     */
+    default void writeFooter(HtmlWriter out, String author, String license, String version, String... bootstrapClasses) throws IOException {
+        out.raw(PageFragments.FOOTER_START);
+        for (String bootstrapClass : bootstrapClasses) {
+            out.text(bootstrapClass).raw(PageFragments.SPACE);
         }
-        sb.append("\">\n");
-        sb.append("Made by " + author + "\n");
-        sb.append("License: " + license + "\n");
-        sb.append("Version: " + version + "\n");
-        sb.append("</footer>\n");
-        return sb.toString();
+        out.raw(PageFragments.MADE_BY).text(author)
+                .raw(PageFragments.LICENSE).text(license)
+                .raw(PageFragments.VERSION).text(version)
+                .raw(PageFragments.FOOTER_END);
     }
 
     Object parseInput(HttpServletRequest request, WebPageService service);
@@ -1,5 +1,7 @@
 package coda.app;
 
+import java.io.IOException;
+
 public interface WebPageService<I, O> extends WebApp, CodaService {
 
     /**
@@ -9,10 +11,75 @@ public interface WebPageService<I, O> extends WebApp, CodaService {
      * @return
      */
     default String getPage(String inner) {
-        return htmlWrapper(head(title())
-                + body(description() + "<br><br>" + inner, new String[]{"modal-dialog", "modal-content"})
-                + footer(author(), license(), version(), new String[]{"container", "fixed-bottom"}));
+        return HtmlWriter.render(out -> writePage(out, content -> content.raw(inner))).toString();
+    }
+
+    /**
+     * Write the html page: head, the escaped description followed by the content, and footer.
+     *
+     * @param out the writer
+     * @param content content of the page
+     * @throws IOException if writing fails
+     */
+    default void writePage(HtmlWriter out, HtmlWriter.Fragment content) throws IOException {
+        writeHtml(out, page -> {
+            writeHead(page, title());
+            writeBody(page, body -> {
+                body.text(description()).raw(PageFragments.BREAK);
+                content.writeTo(body);
+            }, PageFragments.PAGE_CLASSES);
+            writeFooter(page, author(), license(), version(), PageFragments.FOOTER_CLASSES);
+        });
     }
 
     String render();
-}
\ No newline at end of file
+
+    /**
+     * Write the rendered page. Defaults to writing {@link #render()}.
+     *
+     * @param out the writer
+     * @throws IOException if writing fails
+     */
+    default void render(HtmlWriter out) throws IOException {
+        out.raw(render());
+    }
+
+    /**
+     * Whether render() returns the same page every time, so the server may cache it.
+     * Return false for pages that change between requests.
+     *
+     * @return true if the rendered page can be cached
+     */
+    default boolean cacheable() {
+        return true;
+    }
+
+    /**
+     * Whether running the service is costly, such as submitting a render, so each client may only
+     * run it within its own smaller budget (coda.admission.expensive.*).
+     *
+     * @return true for expensive services
+     */
+    default boolean expensive() {
+        return false;
+    }
+
+    /**
+     * Whether the service takes batches of inputs on POST /batch/{endpoint}.
+     *
+     * @return true if {@link #parseBatchInput(String)} can parse its inputs
+     */
+    default boolean batchable() {
+        return false;
+    }
+
+    /**
+     * Parse one input of a batch, sent as a line of the request body.
+     *
+     * @param line the line
+     * @return the input
+     */
+    default Object parseBatchInput(String line) {
+        return line;
+    }
+}
@@ -1,7 +1,11 @@
 package coda.app;
 
 import javax.servlet.http.HttpServletRequest;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
@@ -17,11 +21,19 @@ public class WebPageServiceBuilder<I,O> {
     private String version;
     private String author;
     private String license;
+    private final List<String> routes = new ArrayList<>();
+    private boolean cacheable = true;
+    private boolean expensive = false;
 
     private Function<I, O> service;
+    private Function<List<I>, List<O>> batchService;
+    private Function<String, I> batchInputParser;
+    private int microBatchItems;
+    private long microBatchDelayMicros;
 
     private BiFunction<HttpServletRequest, WebPageService, O> inputParser;
     private Function<WebPageService,String> render;
+    private HtmlWriter.Fragment content;
 
     public WebPageServiceBuilder() {}
 
@@ -50,22 +62,119 @@ public class WebPageServiceBuilder<I,O> {
         return this;
     }
 
+    /**
+     * Answer an extra path below the endpoint, e.g. "jobs/{id}".
+     *
+     * @param pattern route pattern relative to the endpoint
+     * @return this builder
+     */
+    public WebPageServiceBuilder addRoute(String pattern) {
+        this.routes.add(pattern);
+        return this;
+    }
+
+    /**
+     * Set whether the rendered page may be cached. Pages are cached unless the render output changes between requests.
+     *
+     * @param cacheable false for dynamic pages
+     * @return this builder
+     */
+    public WebPageServiceBuilder setCacheable(boolean cacheable) {
+        this.cacheable = cacheable;
+        return this;
+    }
+
+    /**
+     * Set whether running the service is costly, so each client runs it within a smaller budget.
+     *
+     * @param expensive true for services such as render submission
+     * @return this builder
+     */
+    public WebPageServiceBuilder setExpensive(boolean expensive) {
+        this.expensive = expensive;
+        return this;
+    }
+
     public WebPageServiceBuilder setService(Function<I, O> service) {
         this.service = service;
         return this;
     }
 
+    /**
+     * Set how a batch of inputs is run at once. Without it a batch runs the service on each input in turn.
+     *
+     * @param batchService answers an output per input, in the same order
+     * @return this builder
+     */
+    public WebPageServiceBuilder setBatchService(Function<List<I>, List<O>> batchService) {
+        this.batchService = batchService;
+        return this;
+    }
+
+    /**
+     * Accept batches of inputs on POST /batch/{endpoint}, one per line of the body.
+     *
+     * @param batchInputParser parses a line into an input
+     * @return this builder
+     */
+    public WebPageServiceBuilder setBatchInputParser(Function<String, I> batchInputParser) {
+        this.batchInputParser = batchInputParser;
+        return this;
+    }
+
+    /**
+     * Gather single calls of the service made at the same time into batches, for services whose
+     * batches cost much less than their inputs run one by one. A call waits up to the delay for
+     * others to join it, so a call arriving alone is that much slower.
+     *
+     * @param maxItems the most calls in a batch; 1 or less for no batching
+     * @param maxDelayMicros the longest a call waits for others, in microseconds
+     * @return this builder
+     */
+    public WebPageServiceBuilder setMicroBatching(int maxItems, long maxDelayMicros) {
+        this.microBatchItems = maxItems;
+        this.microBatchDelayMicros = maxDelayMicros;
+        return this;
+    }
+
     public WebPageServiceBuilder setRender(Function<WebPageService,String> render) {
         this.render = render;
         return this;
     }
 
+    /**
+     * Set the page content, written inside the standard page without building Strings.
+     * Ignored when a render function is set.
+     *
+     * @param content the content below the description
+     * @return this builder
+     */
+    public WebPageServiceBuilder setContent(HtmlWriter.Fragment content) {
+        this.content = content;
+        return this;
+    }
+
     public WebPageServiceBuilder setInputParser(BiFunction<HttpServletRequest, WebPageService, O> inputParser) {
         this.inputParser = inputParser;
         return this;
     }
 
     public WebPageService<I, O> build() {
+        List<String> routes = Collections.unmodifiableList(new ArrayList<>(this.routes));
+        boolean cacheable = this.cacheable;
+        boolean expensive = this.expensive;
+        Function<I, O> service = this.service;
+        Function<String, I> batchInputParser = this.batchInputParser;
+        Function<List<I>, List<O>> batch = this.batchService != null ? this.batchService : inputs -> {
+            List<O> outputs = new ArrayList<>(inputs.size());
+            for (I input : inputs) {
+                outputs.add(service != null ? service.apply(input) : null);
+            }
+            return outputs;
+        };
+        MicroBatcher<I, O> batcher = service != null && microBatchItems > 1
+                ? new MicroBatcher<>(batch, service, microBatchItems, TimeUnit.MICROSECONDS.toNanos(microBatchDelayMicros))
+                : null;
         return new WebPageService<I, O>() {
             public String title() {
                 return title;
@@ -87,8 +196,35 @@ public class WebPageServiceBuilder<I,O> {
                 return license;
             }
 
+            public List<String> routes() {
+                return routes;
+            }
+
+            public boolean cacheable() {
+                return cacheable;
+            }
+
+            public boolean expensive() {
+                return expensive;
+            }
+
+            public boolean batchable() {
+                return batchInputParser != null;
+            }
+
             public O runService(Object input){
-                return service != null ? service.apply((I) input) : null;
+                if (service == null) {
+                    return null;
+                }
+                return batcher != null ? batcher.call((I) input) : service.apply((I) input);
+            }
+
+            public List<O> runBatch(List inputs) {
+                return batch.apply(inputs);
+            }
+
+            public Object parseBatchInput(String line) {
+                return batchInputParser != null ? batchInputParser.apply(line) : line;
             }
 
             public O parseInput(HttpServletRequest request, WebPageService service){
@@ -96,7 +232,18 @@ public class WebPageServiceBuilder<I,O> {
             }
 
             public String render(){
-                return render != null ? render.apply(this) : "";
+                if (render != null) {
+                    return render.apply(this);
+                }
+                return content != null ? HtmlWriter.render(this::render).toString() : "";
+            }
+
+            public void render(HtmlWriter out) throws IOException {
+                if (render != null) {
+                    out.raw(render.apply(this));
+                } else if (content != null) {
+                    writePage(out, content);
+                }
             }
         };
     }
@@ -1,78 +1,183 @@
 package coda.app;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.URLDecoder;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.security.Principal;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.*;
 import javax.servlet.http.*;
 
 
-class WebServer {
+public class WebServer {
     String ip;
     int port;
 
-    boolean running = false;
+    volatile boolean running = false;
 
     CodaApplication app;
 
+    final ServerConfig config;
+
     Logger logger = Logger.getLogger(WebServer.class.getName());
 
-    private static WebPageService pageLastOn = null;
+    private volatile Transport transport;
+
+    // Which service page each client viewed last
+    final SessionStore sessions;
+
+    // Rendered service pages and the index, by endpoint
+    final PageCache pages = new PageCache();
+
+    final Compression compression;
+
+    // Server-sent event streams; job changes are published here
+    final EventHub events;
+
+    // Results of services running asynchronously, by job id
+    final JobRegistry jobs;
+
+    // Files sent as service outputs, kept open between requests
+    final FileCache files;
+
+    // Files being uploaded in chunks, by upload id
+    final UploadStore uploads;
+
+    // Connection, in-flight and per-client limits
+    final AdmissionControl admission;
+
+    // One line per request, written in the background; null if disabled
+    private final AccessLog accessLog;
+
+    // Limits of a batch sent to /batch/{service}
+    private final int batchMaxItems;
+    private final long batchMaxBytes;
+
+    // Request counts and latencies, published on /metrics
+    final Metrics metrics = new Metrics();
+
+    // Requests being answered right now, to skip compressing under load
+    private final AtomicInteger activeRequests = new AtomicInteger();
+
+    private static final String HTML = "text/html; charset=utf-8";
+    private static final String JSON = "application/json";
+    private static final String JOBS = "/jobs/";
+    private static final String EVENTS = "/events";
+    private static final String UPLOADS = "/uploads";
+    private static final String METRICS = "/metrics";
+    private static final String BATCH = "/batch/";
+    private static final String RENDERED_IMAGE = "/rendered-image";
+    // Answered before the routing table, so no service may register a route under them
+    static final List<String> BUILT_IN_PATHS = List.of(RENDERED_IMAGE, JOBS, EVENTS, UPLOADS, METRICS, BATCH);
+    private static final String INDEX_PAGE = "";
+    private static final byte[] INDEX_START = HtmlWriter.fragment("<html><body>");
+    private static final byte[] INDEX_END = HtmlWriter.fragment("</body></html>");
+    private static final byte[] H1_START = HtmlWriter.fragment("<h1>");
+    private static final byte[] H1_END = HtmlWriter.fragment("</h1>");
+    private static final byte[] P_START = HtmlWriter.fragment("<p>");
+    private static final byte[] P_END = HtmlWriter.fragment("</p>");
 
     private static final Charset UTF_8 = StandardCharsets.UTF_8;
 
+    /**
+     * Request attribute set by a transport to close the connection after the response.
+     */
+    static final String CLOSE_CONNECTION = "coda.closeConnection";
+
+    /**
+     * Request attribute holding the Map of path parameters captured by a route pattern.
+     */
+    static final String PATH_PARAMETERS = "coda.pathParameters";
+
+    /**
+     * Request attribute holding a Set-Cookie value to send with the response.
+     */
+    static final String SET_COOKIE = "coda.setCookie";
+
+    /**
+     * Request attribute holding the {@link EventHub.Subscriber} whose events the transport streams after the response head.
+     */
+    static final String EVENT_STREAM = "coda.eventStream";
+
+    /**
+     * Request attribute holding the {@link FileCache.Transfer} the transport sends after the response head.
+     */
+    static final String FILE_BODY = "coda.fileBody";
+
+    /**
+     * Request attribute holding the {@link UploadStore.Upload} whose checked file a service is run with.
+     */
+    static final String UPLOADED_FILE = "coda.uploadedFile";
+
+    static final String BATCH_MAX_ITEMS = "coda.batch.maxItems";
+    static final String BATCH_MAX_BYTES = "coda.batch.maxBytes";
+
     public WebServer(String ip, int port, CodaApplication app) {
+        this(ip, port, app, ServerConfig.defaults());
+    }
+
+    public WebServer(String ip, int port, CodaApplication app, ServerConfig config) {
         this.ip = ip;
         this.port = port;
         this.app = app;
+        this.config = config;
+        this.sessions = SessionStore.create(config);
+        this.compression = Compression.create(config);
+        this.events = EventHub.create(config);
+        this.jobs = JobRegistry.create(config, job -> events.publish(job.id, "job", job.toJson()));
+        this.files = FileCache.create(config);
+        this.uploads = UploadStore.create(config);
+        this.admission = AdmissionControl.create(config);
+        this.accessLog = AccessLog.create(config);
+        this.batchMaxItems = Math.max(1, config.getInt(BATCH_MAX_ITEMS, 1000));
+        this.batchMaxBytes = Math.max(1, config.getLong(BATCH_MAX_BYTES, 1024 * 1024));
     }
 
 
     /**
-     * Start the HTTP server on the given port
+     * Start the HTTP server on the given port.
+     * The transport is chosen by coda.server.transport (blocking or nio).
      *
      * @param port The port to start the server on
      */
     public void start(int port) {
         // Start the http server
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            logger.info("Server started on port " + port);
-
-            running = true;
-            while (running) {
-                Socket socket = serverSocket.accept();
-                logger.info("Client connected: " + socket.getInetAddress());
-                handleClient(socket);
-            }
+        Transport transport = Transport.create(this, config);
+        this.transport = transport;
+        running = true;
+        try {
+            transport.start(port);
         } catch (IOException e) {
             logger.severe("Server error: " + e.getMessage());
+        } finally {
+            running = false;
         }
     }
 
     /**
-     * Handle a client.
-     *
-     * @param socket The client socket
+     * Stop the server.
+     * Connections already being handled are allowed to finish.
      */
-    private void handleClient(Socket socket) {
-        // Get the request
-        try{
-            BufferedInputStream reader = new BufferedInputStream(socket.getInputStream());
-            OutputStream writer = socket.getOutputStream();
-
-            // Read the request
-            HttpServletRequest request = readRequest(reader);
-            logger.info("Request: " + request);
-
-            // Send the response
-            sendResponse(request, writer);
-        } catch (IOException e){
-            logger.severe("Server error: " + e.getMessage());
+    public void stop() {
+        running = false;
+        Transport transport = this.transport;
+        if (transport != null) {
+            transport.stop();
+        }
+        events.close();
+        files.close();
+        uploads.close();
+        if (accessLog != null) {
+            accessLog.close();
         }
     }
 
@@ -82,179 +187,910 @@ class WebServer {
      * @param writer The output stream
      * @param request The request
      */
-    private void sendResponse(HttpServletRequest request, OutputStream writer) {
-        matchRequestToService(request, writer);
+    void sendResponse(HttpServletRequest request, OutputStream writer) {
+        int inProgress = activeRequests.incrementAndGet();
+        Metrics.Timing timing = timing(request);
+        timing.dispatched();
+        try {
+            admission.admit(request.getRemoteAddr(), inProgress);
+            matchRequestToService(request, writer);
+        } catch (HttpException e) {
+            timing.routed(Metrics.Endpoint.REFUSED);
+            sendRefused(request, writer, e);
+        } finally {
+            activeRequests.decrementAndGet();
+            metrics.record(timing, request.getContentLengthLong());
+            if (accessLog != null) {
+                accessLog.log(request.getRemoteAddr(), request.getMethod(), request.getRequestURI(),
+                        request.getContentLengthLong(), timing);
+            }
+        }
+    }
+
+    /**
+     * Get the timing of a request, which the transport reuses for each request on a connection.
+     *
+     * @param request The request
+     * @return the timing
+     */
+    private static Metrics.Timing timing(HttpServletRequest request) {
+        return request instanceof CustomHttpServletRequest
+                ? ((CustomHttpServletRequest) request).timing()
+                : new Metrics.Timing();
+    }
+
+    /**
+     * Whether the connection should stay open after answering the request.
+     * HTTP/1.1 connections persist unless the client sends Connection: close,
+     * HTTP/1.0 ones only when it asks for keep-alive.
+     *
+     * @param request The request
+     * @return true to keep the connection open
+     */
+    boolean keepAlive(HttpServletRequest request) {
+        if (!running || request.getAttribute(CLOSE_CONNECTION) != null) {
+            return false;
+        }
+        if ("HTTP/1.1".equals(request.getProtocol())) {
+            return !hasToken(request, "Connection", "close");
+        }
+        return hasToken(request, "Connection", "keep-alive");
+    }
+
+    private static boolean hasToken(HttpServletRequest request, String name, String token) {
+        if (request instanceof CustomHttpServletRequest) {
+            return ((CustomHttpServletRequest) request).head.headerHasToken(name, token);
+        }
+        String header = request.getHeader(name);
+        if (header == null) {
+            return false;
+        }
+        for (String value : header.split(",")) {
+            if (value.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
     }
 
 
     /**
      * Match the request to a service.
+     * Package-private for the benchmarks.
      *
      * @param request The request
      * @param writer The output stream
      */
-    private void matchRequestToService(HttpServletRequest request, OutputStream writer) {
-        if (request.getRequestURI().equals("/rendered-image")) {
-            if (pageLastOn == null) {
-                send404(writer);
+    void matchRequestToService(HttpServletRequest request, OutputStream writer) {
+        Metrics.Timing timing = timing(request);
+        if (request.getRequestURI().equals(RENDERED_IMAGE)) {
+            timing.routed(Metrics.Endpoint.RENDERED_IMAGE);
+            SessionStore.Session session = sessions.find(request);
+            String method = request.getMethod();
+            if (session != null && session.job() != null && ("GET".equals(method) || "HEAD".equals(method))) {
+                // The result of the job this client started last, e.g. its latest render
+                sendJobResult(request, writer, session.job());
                 return;
             }
 
-            try {
-                Object input = pageLastOn.parseInput(request, pageLastOn);
+            // Runs the service this client viewed last
+            WebPageService service = session == null ? null : session.service();
+            if (service == null) {
+                send404(request, writer);
+                return;
+            }
+
+            if (admitService(request, writer, service)) {
+                runService(request, writer, service, false);
+            }
+            return;
+        }
 
-                logger.info("Input: " + input);
+        if (request.getRequestURI().startsWith(JOBS)) {
+            timing.routed(Metrics.Endpoint.JOBS);
+            sendJobRequest(request, writer);
+            return;
+        }
 
-                Object output = pageLastOn.runService(input);
+        if (request.getRequestURI().equals(EVENTS)) {
+            timing.routed(Metrics.Endpoint.EVENTS);
+            sendEvents(request, writer);
+            return;
+        }
 
-                sendResult(writer, output);
-                return;
-            } catch (Exception e) {
-                logger.severe("Server error: " + e.getMessage());
-                send404(writer);
-                return;
-            }
+        if (request.getRequestURI().equals(UPLOADS) || request.getRequestURI().startsWith(UPLOADS + "/")) {
+            timing.routed(Metrics.Endpoint.UPLOADS);
+            sendUploadRequest(request, writer);
+            return;
         }
 
-        List<WebPageService> services = app.getServices();
-        List<WebPageService> matchingServices = new ArrayList<>();
+        if (request.getRequestURI().equals(METRICS)) {
+            timing.routed(Metrics.Endpoint.METRICS);
+            sendMetrics(request, writer);
+            return;
+        }
 
-        // Find matching services
-        services.forEach(service -> {
-            if (request.getRequestURI().equals("/" + service.endpoint())) {
-                matchingServices.add(service);
-            }
-        });
+        if (request.getRequestURI().startsWith(BATCH)) {
+            timing.routed(Metrics.Endpoint.BATCH);
+            sendBatchRequest(request, writer);
+            return;
+        }
+
+        RoutingTable routes = app.routes();
+        // Only patterns with parameters need somewhere to record them
+        int[] captures = routes.maxCaptures() == 0 ? null : new int[routes.maxCaptures() * 2];
+        String path = request.getRequestURI();
+        RoutingTable.Route route = routes.match(path, captures);
+        timing.routed(route != null ? Metrics.Endpoint.PAGE : Metrics.Endpoint.INDEX);
 
         // Send the response
-        if (matchingServices.size() == 1) {
-            pageLastOn = matchingServices.get(0);
-            sendService(writer, matchingServices.get(0));
-        } else if (matchingServices.size() > 1) {
-            send404(writer);
+        if (route != null) {
+            if (route.parameterNames.length > 0) {
+                request.setAttribute(PATH_PARAMETERS, RoutingTable.parameters(route, path, captures));
+            }
+            sessions.findOrCreate(request).setService(route.service);
+            sendService(request, writer, route.service);
         } else {
-            sendAllServices(writer);
+            sendAllServices(request, writer);
         }
     }
 
     /**
-     * Send the result on running the service to the client.
+     * Parse the request's input, run the service and send its output.
+     * A future output is registered as a job and answered with 202 and the job's location;
+     * other outputs are sent straight away unless a job was asked for.
      *
+     * @param request The request
      * @param writer The output stream
-     * @param output The output of the service
+     * @param service The service
+     * @param asJob Whether to answer with a job even for an immediate output
      */
-    private void sendResult(OutputStream writer, Object output) {
+    private void runService(HttpServletRequest request, OutputStream writer, WebPageService service, boolean asJob) {
+        Metrics.Timing timing = timing(request);
+        timing.service(service.endpoint());
         try {
-            // Send to /rendered-image
-            writer.write("POST /rendered-image HTTP/1.1\r\n\r\n".getBytes(UTF_8));
-            writer.write(output.toString().getBytes(UTF_8));
-        } catch (IOException e) {
+            Object output;
+            long started = System.nanoTime();
+            try {
+                Object input = service.parseInput(request, service);
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Input: " + input);
+                }
+
+                output = service.runService(input);
+            } finally {
+                timing.ranService(System.nanoTime() - started);
+            }
+
+            if (output instanceof CompletionStage || asJob) {
+                CompletionStage<?> result = output instanceof CompletionStage
+                        ? (CompletionStage<?>) output
+                        : CompletableFuture.completedFuture(output);
+                JobRegistry.Job job = jobs.register(service.endpoint(), result);
+                SessionStore.Session session = sessions.find(request);
+                if (session != null) {
+                    session.setJob(job);
+                }
+                sendJob(request, writer, job, 202, "Accepted");
+            } else {
+                sendResult(request, writer, output);
+            }
+        } catch (HttpException e) {
+            sendRefused(request, writer, e);
+        } catch (UncheckedIOException e) {
+            if (!(e.getCause() instanceof HttpException)) {
+                logger.severe("Server error: " + e.getMessage());
+                timing.failed();
+                send404(request, writer);
+                return;
+            }
+            sendRefused(request, writer, (HttpException) e.getCause());
+        } catch (Exception e) {
             logger.severe("Server error: " + e.getMessage());
+            timing.failed();
+            send404(request, writer);
         }
     }
 
-    private void sendService(OutputStream writer, WebPageService service) {
+    /**
+     * Send the request counters and latencies, with the admission limits and counters,
+     * in the Prometheus text format.
+     *
+     * @param request The request
+     * @param writer The output stream
+     */
+    private void sendMetrics(HttpServletRequest request, OutputStream writer) {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        metrics.write(out);
+        Metrics.metric(out, "coda_http_requests_in_progress", "gauge", "Requests being answered", activeRequests.get());
+        Metrics.metric(out, "coda_admission_connections", "gauge", "Connections open", admission.connections());
+        Metrics.metric(out, "coda_admission_max_connections", "gauge", "Connections allowed open at once", admission.maxConnections());
+        Metrics.metric(out, "coda_admission_max_requests", "gauge", "Requests allowed in progress at once", admission.maxRequests());
+        Metrics.metric(out, "coda_admission_connections_refused_total", "counter", "Connections refused with 503 as they were accepted",
+                admission.connectionsRefused());
+        Metrics.metric(out, "coda_admission_requests_refused_total", "counter", "Requests refused with 503 for too many in progress",
+                admission.requestsRefused());
+        Metrics.metric(out, "coda_admission_rate_limited_total", "counter", "Requests refused with 429 for a client's request rate",
+                admission.rateLimited());
+        Metrics.metric(out, "coda_admission_expensive_rate_limited_total", "counter",
+                "Calls to expensive services refused with 429 for a client's budget", admission.expensiveRateLimited());
+        Metrics.metric(out, "coda_uploads_in_progress", "gauge", "Chunked uploads in progress", uploads.inProgress());
+        Metrics.metric(out, "coda_upload_received_bytes_total", "counter", "Chunk bytes received", uploads.bytesReceived());
+        BlenderFarm farm = app.farm();
+        if (farm != null) {
+            farm.renders().writeMetrics(out);
+        }
+        if (accessLog != null) {
+            Metrics.metric(out, "coda_access_log_written_total", "counter", "Access log records written", accessLog.written());
+            Metrics.metric(out, "coda_access_log_dropped_total", "counter", "Access log records dropped for a full buffer",
+                    accessLog.dropped());
+        }
+        send(request, writer, HttpResponse.of(200, "OK", Metrics.CONTENT_TYPE, out.toString().getBytes(UTF_8))
+                .header("Cache-Control", "no-store"));
+    }
+
+    /**
+     * Check a client's budget for an expensive service before running it.
+     *
+     * @param request The request
+     * @param writer The output stream
+     * @param service The service
+     * @return true if the service may run; otherwise the refusal has been sent
+     */
+    private boolean admitService(HttpServletRequest request, OutputStream writer, WebPageService service) {
+        if (!service.expensive()) {
+            return true;
+        }
         try {
-            writer.write(service.render().getBytes(UTF_8));
-        } catch (IOException e) {
-            logger.severe("Server error: " + e.getMessage());
+            admission.admitExpensive(request.getRemoteAddr(), service.endpoint());
+            return true;
+        } catch (HttpException e) {
+            sendRefused(request, writer, e);
+            return false;
         }
     }
 
     /**
-     * Send a 404 response.
+     * Answer the job API:
+     * POST /jobs/{service} runs a service as a job, GET /jobs/{id} reports its status,
+     * GET /jobs/{id}/result sends its output once done, and DELETE /jobs/{id} cancels it.
      *
+     * @param request The request
      * @param writer The output stream
      */
-    private void send404(OutputStream writer) {
+    private void sendJobRequest(HttpServletRequest request, OutputStream writer) {
+        String[] segments = request.getRequestURI().substring(JOBS.length()).split("/", -1);
+        String method = request.getMethod();
+        boolean get = "GET".equals(method) || "HEAD".equals(method);
+
+        if (segments.length == 1 && "POST".equals(method)) {
+            WebPageService service = app.findService("/" + segments[0]);
+            if (service == null) {
+                send404(request, writer);
+                return;
+            }
+            if (admitService(request, writer, service)) {
+                runService(request, writer, service, true);
+            }
+            return;
+        }
+
+        JobRegistry.Job job = segments.length <= 2 ? jobs.find(segments[0]) : null;
+        if (job == null) {
+            send404(request, writer);
+        } else if (segments.length == 1 && get) {
+            sendJob(request, writer, job, 200, "OK");
+        } else if (segments.length == 1 && "DELETE".equals(method)) {
+            if (jobs.cancel(job)) {
+                sendJob(request, writer, job, 200, "OK");
+            } else {
+                sendJob(request, writer, job, 409, "Conflict");
+            }
+        } else if (segments.length == 2 && segments[1].equals("result") && get) {
+            sendJobResult(request, writer, job);
+        } else {
+            send404(request, writer);
+        }
+    }
+
+    /**
+     * Answer POST /batch/{service}: run the service once on every line of the body, for services
+     * that take batches, and send the outputs as a JSON array of strings in the same order.
+     *
+     * @param request The request
+     * @param writer The output stream
+     */
+    private void sendBatchRequest(HttpServletRequest request, OutputStream writer) {
+        WebPageService service = app.findService("/" + request.getRequestURI().substring(BATCH.length()));
+        if (service == null || !service.batchable() || !"POST".equals(request.getMethod())) {
+            send404(request, writer);
+            return;
+        }
+        if (!admitService(request, writer, service)) {
+            return;
+        }
+        Metrics.Timing timing = timing(request);
+        timing.service(service.endpoint());
         try {
-            writer.write("HTTP/1.1 404 Not Found\r\n\r\n".getBytes(UTF_8));
-        } catch (IOException e) {
+            List<Object> inputs = readBatch(request, service);
+            List<?> outputs;
+            long started = System.nanoTime();
+            try {
+                outputs = service.runBatch(inputs);
+            } finally {
+                timing.ranService(System.nanoTime() - started);
+            }
+
+            StringBuilder json = new StringBuilder(16 * outputs.size() + 2).append('[');
+            for (int i = 0; i < outputs.size(); i++) {
+                Object output = outputs.get(i);
+                json.append(i == 0 ? "" : ",").append(output == null ? "null" : JobRegistry.quote(output.toString()));
+            }
+            json.append(']');
+            send(request, writer, compress(request, HttpResponse.ok(JSON, json.toString().getBytes(UTF_8))));
+        } catch (HttpException e) {
+            sendRefused(request, writer, e);
+        } catch (UncheckedIOException e) {
+            if (!(e.getCause() instanceof HttpException)) {
+                logger.severe("Server error: " + e.getMessage());
+                timing.failed();
+                send404(request, writer);
+                return;
+            }
+            sendRefused(request, writer, (HttpException) e.getCause());
+        } catch (Exception e) {
             logger.severe("Server error: " + e.getMessage());
+            timing.failed();
+            send404(request, writer);
         }
     }
 
     /**
-     * Read the request.
+     * Read a batch's inputs, one per line of the body; blank lines are skipped.
      *
-     * @param reader The input stream
-     * @return The request
-     * @throws IOException
-     */
-    private HttpServletRequest readRequest(BufferedInputStream reader) throws IOException {
-        StringBuilder requestBuilder = new StringBuilder();
-        Map<String, String> headers = new HashMap<>();
-        String requestURI = "";
-
-        // Read the request
-        int c;
-        while ((c = reader.read()) != -1) {
-            requestBuilder.append((char) c);
-            if (requestBuilder.toString().endsWith("\r\n\r\n")) {
+     * @param request The request
+     * @param service The service parsing each line
+     * @return the inputs
+     * @throws IOException if the body cannot be read
+     * @throws HttpParseException if the batch is too large or a line is not an input
+     */
+    private List<Object> readBatch(HttpServletRequest request, WebPageService service) throws IOException {
+        if (request.getContentLengthLong() > batchMaxBytes) {
+            throw HttpParseException.payloadTooLarge("Batches are limited to " + batchMaxBytes + " bytes");
+        }
+        List<Object> inputs = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(request.getInputStream(), UTF_8));
+        int number = 0;
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            number++;
+            if (line.isBlank()) {
+                continue;
+            }
+            if (inputs.size() == batchMaxItems) {
+                throw HttpParseException.payloadTooLarge("Batches are limited to " + batchMaxItems + " inputs");
+            }
+            try {
+                inputs.add(service.parseBatchInput(line));
+            } catch (RuntimeException e) {
+                throw HttpParseException.badRequest("Line " + number + " is not an input: " + e.getMessage());
+            }
+        }
+        return inputs;
+    }
+
+    private void sendJobResult(HttpServletRequest request, OutputStream writer, JobRegistry.Job job) {
+        switch (job.status()) {
+            case PENDING:
+                sendJob(request, writer, job, 202, "Accepted");
+                break;
+            case DONE:
+                sendResult(request, writer, job.output());
+                break;
+            case CANCELLED:
+                sendJob(request, writer, job, 409, "Conflict");
                 break;
+            case TIMED_OUT:
+                sendJob(request, writer, job, 504, "Gateway Timeout");
+                break;
+            default:
+                sendJob(request, writer, job, 500, "Internal Server Error");
+        }
+    }
+
+    /**
+     * Send a job's status as JSON. A pending job's response says where and when to ask again.
+     *
+     * @param request The request
+     * @param writer The output stream
+     * @param job The job
+     * @param status The response status
+     * @param reason The response reason phrase
+     */
+    private void sendJob(HttpServletRequest request, OutputStream writer, JobRegistry.Job job, int status, String reason) {
+        HttpResponse response = HttpResponse.of(status, reason, JSON, job.toJson().getBytes(UTF_8))
+                .header("Cache-Control", "no-store");
+        if (status == 202) {
+            response.header("Location", JOBS + job.id).header("Retry-After", "1");
+        }
+        send(request, writer, response);
+    }
+
+    /**
+     * Answer the chunked upload API:
+     * POST /uploads?service={service}&size={bytes}&sha256={hex} starts an upload, optionally with
+     * name and chunkSize; PUT /uploads/{id}/{chunk} sends a chunk; GET /uploads/{id} reports the
+     * chunks still missing; POST /uploads/{id} checks the file and runs the service with it as a
+     * job, with the request's parameters; DELETE /uploads/{id} gives it up.
+     *
+     * @param request The request
+     * @param writer The output stream
+     */
+    private void sendUploadRequest(HttpServletRequest request, OutputStream writer) {
+        String path = request.getRequestURI();
+        String[] segments = path.length() <= UPLOADS.length() + 1
+                ? new String[0]
+                : path.substring(UPLOADS.length() + 1).split("/", -1);
+        String method = request.getMethod();
+        UploadStore.Upload upload = null;
+        try {
+            if (segments.length == 0 && "POST".equals(method)) {
+                String endpoint = request.getParameter("service");
+                WebPageService service = endpoint == null ? null : app.findService("/" + endpoint);
+                if (service == null) {
+                    send404(request, writer);
+                    return;
+                }
+                upload = uploads.start(service.endpoint(), request.getParameter("name"),
+                        longParameter(request, "size"), (int) longParameter(request, "chunkSize"),
+                        request.getParameter("sha256"));
+                sendUpload(request, writer, upload, 201, "Created");
+                return;
+            }
+
+            upload = segments.length == 1 || segments.length == 2 ? uploads.find(segments[0]) : null;
+            if (upload == null) {
+                send404(request, writer);
+            } else if (segments.length == 2 && "PUT".equals(method)) {
+                int chunk;
+                try {
+                    chunk = Integer.parseInt(segments[1]);
+                } catch (NumberFormatException e) {
+                    throw HttpParseException.badRequest("Not a chunk number: " + segments[1]);
+                }
+                uploads.write(upload, chunk, request.getInputStream(), request.getContentLengthLong());
+                send(request, writer, new HttpResponse(204, "No Content"));
+            } else if (segments.length == 1 && ("GET".equals(method) || "HEAD".equals(method))) {
+                sendUpload(request, writer, upload, 200, "OK");
+            } else if (segments.length == 1 && "DELETE".equals(method)) {
+                uploads.cancel(upload);
+                send(request, writer, new HttpResponse(204, "No Content"));
+            } else if (segments.length == 1 && "POST".equals(method)) {
+                WebPageService service = app.findService("/" + upload.service);
+                if (service == null) {
+                    uploads.cancel(upload);
+                    send404(request, writer);
+                    return;
+                }
+                if (service.expensive() && upload.isComplete()) {
+                    // Refused before the file is checked, so the client can complete the upload later
+                    admission.admitExpensive(request.getRemoteAddr(), service.endpoint());
+                }
+                uploads.finish(upload);
+                request.setAttribute(UPLOADED_FILE, upload);
+                runService(request, writer, service, true);
+                // Unless the service kept it
+                deleteQuietly(upload.file);
+            } else {
+                send404(request, writer);
+            }
+        } catch (HttpException e) {
+            if (e.status() == 409 && upload != null) {
+                // Says which chunks to send
+                sendUpload(request, writer, upload, 409, "Conflict");
+            } else {
+                sendRefused(request, writer, e);
             }
+        } catch (IOException e) {
+            // Typically a chunk cut short by the client going away; it sends the chunk again
+            logger.info("Upload failed: " + e.getMessage());
+            request.setAttribute(CLOSE_CONNECTION, Boolean.TRUE);
+            send(request, writer, new HttpResponse(400, "Bad Request"));
         }
+    }
 
-        String request = requestBuilder.toString();
-        String[] lines = request.split("\r\n");
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warning("Could not delete " + file + ": " + e.getMessage());
+        }
+    }
 
-        // Parse the request line
-        if (lines.length > 0) {
-            String[] requestLineTokens = lines[0].split(" ");
-            if (requestLineTokens.length > 1) {
-                requestURI = requestLineTokens[1];
+    private static long longParameter(HttpServletRequest request, String name) throws HttpParseException {
+        String value = request.getParameter(name);
+        try {
+            return value == null || value.isEmpty() ? 0 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw HttpParseException.badRequest(name + " is not a number: " + value);
+        }
+    }
+
+    private void sendUpload(HttpServletRequest request, OutputStream writer, UploadStore.Upload upload, int status, String reason) {
+        HttpResponse response = HttpResponse.of(status, reason, JSON, upload.toJson().getBytes(UTF_8))
+                .header("Cache-Control", "no-store");
+        if (status == 201) {
+            response.header("Location", UPLOADS + "/" + upload.id);
+        }
+        send(request, writer, response);
+    }
+
+    /**
+     * Get the upload a service is being run with.
+     *
+     * @param request The request
+     * @return the upload, its file checked against its SHA-256, or null if the request is not finishing an upload
+     */
+    static UploadStore.Upload uploadedFile(HttpServletRequest request) {
+        Object upload = request.getAttribute(UPLOADED_FILE);
+        return upload instanceof UploadStore.Upload ? (UploadStore.Upload) upload : null;
+    }
+
+    /**
+     * Start a server-sent event stream of job changes: GET /events for every job, or
+     * GET /events?job={id} for one. A reconnecting client's Last-Event-ID header replays the
+     * events it missed, while they are still in the history.
+     * Only the head is written here; the transport streams the events after it, until the
+     * client or the server closes the connection.
+     *
+     * @param request The request
+     * @param writer The output stream
+     */
+    private void sendEvents(HttpServletRequest request, OutputStream writer) {
+        String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            send404(request, writer);
+            return;
+        }
+        long lastEventId = -1;
+        String lastEvent = request.getHeader("Last-Event-ID");
+        if (lastEvent != null) {
+            try {
+                lastEventId = Long.parseLong(lastEvent.trim());
+            } catch (NumberFormatException e) {
+                // Not one of ours, so nothing to replay
             }
         }
 
-        // Parse headers
-        for (int i = 1; i < lines.length; i++) {
-            String line = lines[i];
-            if (line.isEmpty()) {
-                break;
+        HttpResponse response = new HttpResponse(200, "OK")
+                .header("Content-Type", "text/event-stream; charset=utf-8")
+                .header("Cache-Control", "no-store")
+                .streamed();
+        request.setAttribute(CLOSE_CONNECTION, Boolean.TRUE);
+        if ("GET".equals(method)) {
+            try {
+                request.setAttribute(EVENT_STREAM, events.subscribe(request.getParameter("job"), lastEventId));
+            } catch (HttpException e) {
+                sendRefused(request, writer, e);
+                return;
             }
-            String[] headerTokens = line.split(": ");
-            if (headerTokens.length == 2) {
-                headers.put(headerTokens[0], headerTokens[1]);
+        }
+        send(request, writer, response);
+    }
+
+    /**
+     * Get the event stream a response started, for the transport to write.
+     *
+     * @param request The request
+     * @return the subscriber, or null if the response is not an event stream
+     */
+    static EventHub.Subscriber eventStream(HttpServletRequest request) {
+        Object stream = request.getAttribute(EVENT_STREAM);
+        return stream instanceof EventHub.Subscriber ? (EventHub.Subscriber) stream : null;
+    }
+
+    /**
+     * Send the result on running the service to the client.
+     *
+     * @param request The request
+     * @param writer The output stream
+     * @param output The output of the service, or null if it has none
+     */
+    private void sendResult(HttpServletRequest request, OutputStream writer, Object output) {
+        if (output == null) {
+            send(request, writer, new HttpResponse(204, "No Content"));
+            return;
+        }
+        if (output instanceof File || output instanceof Path) {
+            sendFile(request, writer, output instanceof File ? ((File) output).toPath() : (Path) output);
+            return;
+        }
+        send(request, writer, compress(request, HttpResponse.ok("text/plain; charset=utf-8", output.toString().getBytes(UTF_8))));
+    }
+
+    /**
+     * Send a file, or the byte range of it the client asked for, or 304 if the client's copy is current.
+     * Only the head is written here; the transport sends the body straight from the file's channel.
+     *
+     * @param request The request
+     * @param writer The output stream
+     * @param path The file
+     */
+    private void sendFile(HttpServletRequest request, OutputStream writer, Path path) {
+        FileCache.Handle file;
+        try {
+            file = files.acquire(path);
+        } catch (NoSuchFileException e) {
+            send404(request, writer);
+            return;
+        } catch (IOException e) {
+            logger.severe("Server error: " + e.getMessage());
+            send404(request, writer);
+            return;
+        }
+
+        String lastModified = FileCache.httpDate(file.lastModified);
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        // HTTP dates have whole seconds
+        long since = ifNoneMatch == null ? FileCache.parseHttpDate(request.getHeader("If-Modified-Since")) : -1;
+        if (PageCache.matches(ifNoneMatch, file.etag) || since >= 0 && file.lastModified / 1000 <= since / 1000) {
+            file.release();
+            send(request, writer, HttpResponse.notModified()
+                    .header("ETag", file.etag)
+                    .header("Last-Modified", lastModified));
+            return;
+        }
+
+        long[] range = FileCache.byteRange(request.getHeader("Range"), file.size);
+        String ifRange = request.getHeader("If-Range");
+        if (range != null && ifRange != null && !ifRange.trim().equals(file.etag)
+                && FileCache.parseHttpDate(ifRange) / 1000 != file.lastModified / 1000) {
+            // The client's partial copy is of an older version, so it gets the whole file
+            range = null;
+        }
+        if (range != null && range.length == 0) {
+            file.release();
+            send(request, writer, new HttpResponse(416, "Range Not Satisfiable")
+                    .header("Content-Range", "bytes */" + file.size));
+            return;
+        }
+
+        long start = range == null ? 0 : range[0];
+        long length = range == null ? file.size : range[1];
+        HttpResponse response = range == null ? new HttpResponse(200, "OK") : new HttpResponse(206, "Partial Content");
+        response.header("Content-Type", file.contentType)
+                .header("Accept-Ranges", "bytes")
+                .header("ETag", file.etag)
+                .header("Last-Modified", lastModified)
+                .header("Cache-Control", "no-cache");
+        if (range != null) {
+            response.header("Content-Range", "bytes " + start + "-" + (start + length - 1) + "/" + file.size);
+        }
+        response.transferred(length);
+        if ("HEAD".equals(request.getMethod())) {
+            file.release();
+        } else {
+            request.setAttribute(FILE_BODY, file.transfer(start, length));
+        }
+        send(request, writer, response);
+    }
+
+    /**
+     * Get the file a response sends after its head, for the transport to write.
+     *
+     * @param request The request
+     * @return the transfer, or null if the response has no file body
+     */
+    static FileCache.Transfer fileBody(HttpServletRequest request) {
+        Object body = request.getAttribute(FILE_BODY);
+        return body instanceof FileCache.Transfer ? (FileCache.Transfer) body : null;
+    }
+
+    private void sendService(HttpServletRequest request, OutputStream writer, WebPageService service) {
+        String endpoint = service.endpoint();
+        timing(request).service(endpoint);
+        PageCache.Page page = service.cacheable()
+                ? pages.get(endpoint, service, service::render)
+                : pages.uncached(endpoint, service::render);
+        sendPage(request, writer, page);
+    }
+
+    /**
+     * Send a rendered page, or 304 if the client already has it.
+     *
+     * @param request The request
+     * @param writer The output stream
+     * @param page The page
+     */
+    private void sendPage(HttpServletRequest request, OutputStream writer, PageCache.Page page) {
+        boolean varies = compression.applies(HTML, page.bytes.length);
+        String encoding = varies ? Compression.negotiate(request.getHeader("Accept-Encoding")) : null;
+        byte[] encoded = null;
+        if (encoding != null) {
+            // Cached variants are served even when too busy to compress afresh
+            encoded = page.variant(encoding, compression, !compression.overloaded(activeRequests.get()));
+            if (encoded == null) {
+                encoding = null;
             }
         }
 
-        return new CustomHttpServletRequest(requestURI, headers);
+        String etag = page.etag(encoding);
+        HttpResponse response;
+        if (etag != null && PageCache.matches(request.getHeader("If-None-Match"), etag)) {
+            response = HttpResponse.notModified();
+        } else {
+            response = HttpResponse.ok(HTML, page.bytes);
+            if (encoding != null) {
+                response.encoded(encoding, encoded);
+            }
+        }
+        if (varies) {
+            response.header("Vary", "Accept-Encoding");
+        }
+        if (etag != null) {
+            // Clients may keep the page but must revalidate it, so a re-registered service shows at once
+            response.header("ETag", etag).header("Cache-Control", "no-cache");
+        }
+        send(request, writer, response);
     }
 
+    /**
+     * Compress a response body if the client accepts it and the server is not too busy.
+     *
+     * @param request The request
+     * @param response The response
+     * @return The response
+     */
+    private HttpResponse compress(HttpServletRequest request, HttpResponse response) {
+        if (!compression.applies(response.contentType(), response.body().length)) {
+            return response;
+        }
+        response.header("Vary", "Accept-Encoding");
+        String encoding = Compression.negotiate(request.getHeader("Accept-Encoding"));
+        if (encoding != null && !compression.overloaded(activeRequests.get())) {
+            response.encoded(encoding, compression.compress(response.body(), encoding));
+        }
+        return response;
+    }
 
-    private void sendAllServices(OutputStream writer) {
-        List<WebPageService> services = app.getServices();
-        StringBuilder response = new StringBuilder();
+    /**
+     * Answer a request a service refused.
+     * The connection is closed if the refused body has not been read, rather than reading it all.
+     *
+     * @param request The request
+     * @param writer The output stream
+     * @param refusal Why the request was refused
+     */
+    private void sendRefused(HttpServletRequest request, OutputStream writer, HttpException refusal) {
+        // Refusals come in floods under overload; the access log has each one's status
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Refused " + request.getRequestURI() + ": " + refusal.getMessage());
+        }
+        if (request instanceof CustomHttpServletRequest && ((CustomHttpServletRequest) request).getBody().remaining() > 0) {
+            request.setAttribute(CLOSE_CONNECTION, Boolean.TRUE);
+        }
+        send(request, writer, refusal.toResponse());
+    }
 
-        response.append("<html><body>");
-        services.forEach(service -> {
-            response.append("<h1>").append(service.title()).append("</h1>");
-            response.append("<p>").append(service.description()).append("</p>");
-            response.append("<p>").append(service.version()).append("</p>");
-            response.append("<p>").append(service.author()).append("</p>");
-            response.append("<p>").append(service.license()).append("</p>");
-        });
-        response.append("</body></html>");
+    /**
+     * Send a 404 response.
+     *
+     * @param request The request
+     * @param writer The output stream
+     */
+    private void send404(HttpServletRequest request, OutputStream writer) {
+        send(request, writer, HttpResponse.notFound());
+    }
 
+    /**
+     * Write a framed response.
+     *
+     * @param request The request being answered
+     * @param writer The output stream
+     * @param response The response
+     */
+    private void send(HttpServletRequest request, OutputStream writer, HttpResponse response) {
+        Object cookie = request.getAttribute(SET_COOKIE);
+        if (cookie != null) {
+            response.header("Set-Cookie", cookie.toString());
+        }
+        Metrics.Timing timing = timing(request);
+        long started = System.nanoTime();
         try {
-            writer.write(response.toString().getBytes(UTF_8));
+            long sent = response.write(writer, keepAlive(request), !"HEAD".equals(request.getMethod()));
+            timing.wrote(System.nanoTime() - started, sent, response.status());
         } catch (IOException e) {
             logger.severe("Server error: " + e.getMessage());
+            timing.failed();
+        }
+    }
+
+    /**
+     * Read the next request head from a connection.
+     * The body is attached by the transport.
+     *
+     * @param parser The connection's parser
+     * @param reader The connection input
+     * @return The request, or null if the connection closed before a full request arrived
+     * @throws IOException if the read fails or the head is malformed
+     */
+    CustomHttpServletRequest readRequest(HttpRequestParser parser, InputStream reader) throws IOException {
+        parser.reset();
+        while (!parser.parse()) {
+            if (parser.fill(reader) == -1) {
+                return null;
+            }
         }
+        return new CustomHttpServletRequest(parser.head());
+    }
+
+
+    private void sendAllServices(HttpServletRequest request, OutputStream writer) {
+        // The routing table is replaced on every registration, so it identifies the service list
+        sendPage(request, writer, pages.get(INDEX_PAGE, app.routes(), this::renderAllServices));
+    }
+
+    /**
+     * Write the index page listing every service. Package-private for the benchmarks.
+     *
+     * @param out the writer
+     * @throws IOException if writing fails
+     */
+    void renderAllServices(HtmlWriter out) throws IOException {
+        out.raw(INDEX_START);
+        for (WebPageService service : app.getServices()) {
+            out.raw(H1_START).text(service.title()).raw(H1_END);
+            out.raw(P_START).text(service.description()).raw(P_END);
+            out.raw(P_START).text(service.version()).raw(P_END);
+            out.raw(P_START).text(service.author()).raw(P_END);
+            out.raw(P_START).text(service.license()).raw(P_END);
+        }
+        out.raw(INDEX_END);
     }
 
     public void addServiceEndpoint(WebPageService<?,?> codaService) {
         String endpoint = codaService.endpoint();
-        logger.info("Adding service endpoint: " + endpoint);
+        pages.invalidate(endpoint);
+        logger.info("Adding service endpoint: " + endpoint + (codaService.routes().isEmpty() ? "" : " " + codaService.routes()));
     }
 
-    private class CustomHttpServletRequest implements HttpServletRequest {
-        private final Map<String, String> headers = new HashMap<>();
-        private final String requestURI;
+    static class CustomHttpServletRequest implements HttpServletRequest {
+        private final RequestHead head;
+        private final Map<String, Object> attributes = new HashMap<>(4);
+        private Map<String, String[]> parameters;
+        private BodyInputStream body = new BodyInputStream(InputStream.nullInputStream(), 0);
+        private String remoteAddr;
+        private Metrics.Timing timing;
+
+        public CustomHttpServletRequest(RequestHead head) {
+            this.head = head;
+        }
+
+        void setRemoteAddr(String remoteAddr) {
+            this.remoteAddr = remoteAddr;
+        }
+
+        void setTiming(Metrics.Timing timing) {
+            this.timing = timing;
+        }
+
+        Metrics.Timing timing() {
+            if (timing == null) {
+                timing = new Metrics.Timing();
+            }
+            return timing;
+        }
+
+        void setBody(BodyInputStream body) {
+            this.body = body;
+        }
+
+        @Override
+        public String toString() {
+            return getMethod() + " " + getRequestURI();
+        }
 
-        public CustomHttpServletRequest(String requestURI, Map<String, String> headers) {
-            this.requestURI = requestURI;
-            this.headers.putAll(headers);
+        BodyInputStream getBody() {
+            return body;
         }
 
         @Override
@@ -264,7 +1100,21 @@ class WebServer {
 
         @Override
         public Cookie[] getCookies() {
-            return new Cookie[0];
+            List<Cookie> cookies = new ArrayList<>();
+            for (String header : head.headers("Cookie")) {
+                for (String pair : header.split(";")) {
+                    int split = pair.indexOf('=');
+                    if (split <= 0) {
+                        continue;
+                    }
+                    try {
+                        cookies.add(new Cookie(pair.substring(0, split).trim(), pair.substring(split + 1).trim()));
+                    } catch (IllegalArgumentException e) {
+                        // Not a valid cookie name; skip it
+                    }
+                }
+            }
+            return cookies.toArray(new Cookie[0]);
         }
 
         @Override
@@ -274,27 +1124,32 @@ class WebServer {
 
         @Override
         public String getHeader(String s) {
-            return null;
+            return head.header(s);
         }
 
         @Override
         public Enumeration<String> getHeaders(String s) {
-            return null;
+            return Collections.enumeration(head.headers(s));
         }
 
         @Override
         public Enumeration<String> getHeaderNames() {
-            return null;
+            List<String> names = new ArrayList<>(head.headerCount());
+            for (int i = 0; i < head.headerCount(); i++) {
+                names.add(head.headerName(i));
+            }
+            return Collections.enumeration(names);
         }
 
         @Override
         public int getIntHeader(String s) {
-            return 0;
+            String value = head.header(s);
+            return value == null ? -1 : Integer.parseInt(value.trim());
         }
 
         @Override
         public String getMethod() {
-            return null;
+            return head.method();
         }
 
         @Override
@@ -314,7 +1169,7 @@ class WebServer {
 
         @Override
         public String getQueryString() {
-            return null;
+            return head.query();
         }
 
         @Override
@@ -339,7 +1194,7 @@ class WebServer {
 
         @Override
         public String getRequestURI() {
-            return requestURI;
+            return head.path();
         }
 
         @Override
@@ -422,12 +1277,12 @@ class WebServer {
 
         @Override
         public Object getAttribute(String s) {
-            return null;
+            return attributes.get(s);
         }
 
         @Override
         public Enumeration<String> getAttributeNames() {
-            return null;
+            return Collections.enumeration(attributes.keySet());
         }
 
         @Override
@@ -442,47 +1297,77 @@ class WebServer {
 
         @Override
         public int getContentLength() {
-            return 0;
+            long length = getContentLengthLong();
+            return length > Integer.MAX_VALUE ? -1 : (int) length;
         }
 
         @Override
         public long getContentLengthLong() {
-            return 0;
+            return head.headerAsLong("Content-Length", 0);
         }
 
         @Override
         public String getContentType() {
-            return null;
+            return head.header("Content-Type");
         }
 
         @Override
         public ServletInputStream getInputStream() throws IOException {
-            return null;
+            return body;
         }
 
         @Override
         public String getParameter(String s) {
-            return null;
+            String[] values = getParameterMap().get(s);
+            return values == null ? null : values[0];
         }
 
         @Override
         public Enumeration<String> getParameterNames() {
-            return null;
+            return Collections.enumeration(getParameterMap().keySet());
         }
 
         @Override
         public String[] getParameterValues(String s) {
-            return new String[0];
+            return getParameterMap().get(s);
         }
 
+        /**
+         * Get the query string parameters, decoded on first use.
+         *
+         * @return unmodifiable map of parameter values
+         */
         @Override
         public Map<String, String[]> getParameterMap() {
-            return null;
+            if (parameters == null) {
+                Map<String, String[]> decoded = new LinkedHashMap<>();
+                String query = head.query();
+                if (query != null) {
+                    for (String pair : query.split("&")) {
+                        if (pair.isEmpty()) {
+                            continue;
+                        }
+                        int split = pair.indexOf('=');
+                        String name = URLDecoder.decode(split < 0 ? pair : pair.substring(0, split), UTF_8);
+                        String value = split < 0 ? "" : URLDecoder.decode(pair.substring(split + 1), UTF_8);
+                        String[] existing = decoded.get(name);
+                        if (existing == null) {
+                            decoded.put(name, new String[]{value});
+                        } else {
+                            String[] values = Arrays.copyOf(existing, existing.length + 1);
+                            values[existing.length] = value;
+                            decoded.put(name, values);
+                        }
+                    }
+                }
+                parameters = Collections.unmodifiableMap(decoded);
+            }
+            return parameters;
         }
 
         @Override
         public String getProtocol() {
-            return null;
+            return head.protocol();
         }
 
         @Override
@@ -507,7 +1392,7 @@ class WebServer {
 
         @Override
         public String getRemoteAddr() {
-            return null;
+            return remoteAddr;
         }
 
         @Override
@@ -517,12 +1402,12 @@ class WebServer {
 
         @Override
         public void setAttribute(String s, Object o) {
-
+            attributes.put(s, o);
         }
 
         @Override
         public void removeAttribute(String s) {
-
+            attributes.remove(s);
         }
 
         @Override
@@ -0,0 +1,91 @@
+package coda.tests;
+
+import coda.app.BlenderProcessPool;
+import coda.app.RenderRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the warm Blender process pool, using the stand-in script instead of Blender.
+ */
+public class BlenderProcessPoolTests {
+    static final String FAKE_BLENDER = "scripts/fake-blender.sh";
+
+    private Path directory;
+    private File scene;
+
+    @BeforeEach
+    public void createScene() throws IOException {
+        directory = Files.createTempDirectory("coda-renders");
+        scene = directory.resolve("scene.blend").toFile();
+        Files.write(scene.toPath(), "BLENDER-v300".getBytes());
+    }
+
+    @AfterEach
+    public void deleteScene() throws IOException {
+        for (File file : directory.toFile().listFiles()) {
+            Files.delete(file.toPath());
+        }
+        Files.delete(directory);
+    }
+
+    private static RenderRequest frame(File blendFile, int frame) {
+        return new RenderRequest(blendFile, blendFile.getName(), frame, 0, 0, "");
+    }
+
+    @Test
+    public void testSceneIsReusedAcrossFrames() throws Exception {
+        // A health check interval of 0 pings the process before every reuse
+        try (BlenderProcessPool pool = new BlenderProcessPool(FAKE_BLENDER, 1, 10, 10_000, 0)) {
+            File first = pool.render(frame(scene, 1));
+            File second = pool.render(frame(scene, 2));
+
+            assertEquals(frame(scene, 1).cacheKey() + ".png", first.getName());
+            assertNotEquals(first, second);
+            assertTrue(first.exists() && second.exists());
+            assertEquals(1, pool.processesStarted());
+            assertEquals(1, pool.sceneReuses());
+            assertEquals(0, pool.healthCheckFailures());
+        }
+    }
+
+    @Test
+    public void testProcessIsRecycledAfterMaxJobs() throws Exception {
+        try (BlenderProcessPool pool = new BlenderProcessPool(FAKE_BLENDER, 1, 1, 10_000, 30_000)) {
+            pool.render(frame(scene, 1));
+            pool.render(frame(scene, 2));
+
+            assertEquals(2, pool.processesStarted());
+            assertEquals(2, pool.processesRecycled());
+            assertEquals(0, pool.sceneReuses());
+        }
+    }
+
+    @Test
+    public void testFailedRenderKeepsProcess() throws Exception {
+        try (BlenderProcessPool pool = new BlenderProcessPool(FAKE_BLENDER, 1, 10, 10_000, 30_000)) {
+            assertThrows(IOException.class, () -> pool.render(frame(new File(directory.toFile(), "missing.blend"), 1)));
+            assertTrue(pool.render(frame(scene, 1)).exists());
+
+            assertEquals(1, pool.processesStarted());
+        }
+    }
+
+    @Test
+    public void testMissingExecutableFreesItsSlot() {
+        try (BlenderProcessPool pool = new BlenderProcessPool(directory.resolve("no-blender").toString(), 1, 10, 10_000, 30_000)) {
+            assertThrows(IOException.class, () -> pool.render(frame(scene, 1)));
+            assertThrows(IOException.class, () -> pool.render(frame(scene, 1)));
+            assertEquals(0, pool.processesStarted());
+        }
+    }
+}
@@ -6,6 +6,13 @@ import coda.app.WebPageService;
 import coda.app.WebPageServiceBuilder;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 
 import org.junit.jupiter.api.BeforeAll;
@@ -95,4 +102,65 @@ public class CodaTests {
 
     }
 
+    @Test
+    public void testRunBatchRunsEachInput() {
+        WebPageServiceBuilder<Integer, Integer> builder = new WebPageServiceBuilder<>();
+        builder.setService((Integer i) -> i + 1);
+        CodaService<Integer, Integer> adder = builder.build();
+        assertEquals(List.of(2, 3, 4), adder.runBatch(List.of(1, 2, 3)));
+    }
+
+    @Test
+    public void testMicroBatchingGathersConcurrentCalls() throws Exception {
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        WebPageServiceBuilder<Integer, Integer> builder = new WebPageServiceBuilder<>();
+        builder.setService((Integer i) -> i + 1);
+        builder.setBatchService((List<Integer> inputs) -> {
+            batchSizes.add(inputs.size());
+            List<Integer> outputs = new ArrayList<>();
+            for (Integer input : inputs) {
+                outputs.add(input + 100);
+            }
+            return outputs;
+        });
+        // Long enough that the batch only closes when full
+        builder.setMicroBatching(4, 10_000_000);
+        CodaService<Integer, Integer> adder = builder.build();
+
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        try {
+            CountDownLatch ready = new CountDownLatch(4);
+            List<Future<Integer>> outputs = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                int input = i;
+                outputs.add(callers.submit(() -> {
+                    ready.countDown();
+                    ready.await();
+                    return adder.runService(input);
+                }));
+            }
+            for (int i = 0; i < 4; i++) {
+                assertEquals(i + 100, outputs.get(i).get());
+            }
+        } finally {
+            callers.shutdown();
+        }
+        assertEquals(List.of(4), batchSizes);
+    }
+
+    @Test
+    public void testMicroBatchingRunsLoneCallAfterDelayAndSinglyOnFailure() {
+        WebPageServiceBuilder<Integer, Integer> builder = new WebPageServiceBuilder<>();
+        builder.setService((Integer i) -> i + 1);
+        builder.setBatchService((List<Integer> inputs) -> {
+            throw new IllegalStateException("batch failed");
+        });
+        builder.setMicroBatching(8, 1000);
+        CodaService<Integer, Integer> adder = builder.build();
+
+        long started = System.nanoTime();
+        assertEquals(2, adder.runService(1));
+        assertTrue(System.nanoTime() - started < 1_000_000_000L);
+    }
+
 }
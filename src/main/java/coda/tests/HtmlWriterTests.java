@@ -0,0 +1,73 @@
+package coda.tests;
+
+import coda.app.HtmlWriter;
+import coda.app.WebPageService;
+import coda.app.WebPageServiceBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for writing pages with the HtmlWriter.
+ */
+public class HtmlWriterTests {
+
+    @Test
+    public void testTextIsEscaped() throws Exception {
+        HtmlWriter out = new HtmlWriter();
+        out.raw("<p>").text("<script>alert('x') & \"y\"</script>").raw("</p>");
+
+        assertEquals("<p>&lt;script&gt;alert(&#39;x&#39;) &amp; &quot;y&quot;&lt;/script&gt;</p>", out.toString());
+    }
+
+    @Test
+    public void testEncodesUtf8LikeString() throws Exception {
+        String text = "caf\u00e9 \u20ac \ud83d\ude00 \ud800 end";
+        HtmlWriter out = new HtmlWriter();
+        out.raw(text);
+
+        assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), out.toByteArray());
+    }
+
+    @Test
+    public void testStreamsPastBufferSize() throws Exception {
+        StringBuilder expected = new StringBuilder();
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        HtmlWriter out = new HtmlWriter(sink);
+        byte[] fragment = HtmlWriter.fragment("<li>\u00e9</li>");
+        for (int i = 0; i < 5000; i++) {
+            out.raw(fragment).text(Integer.toString(i));
+            expected.append("<li>\u00e9</li>").append(i);
+        }
+        out.raw(HtmlWriter.fragment("x".repeat(20000)));
+        expected.append("x".repeat(20000));
+        out.flush();
+
+        assertEquals(expected.toString(), sink.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testStringPageMatchesWrittenPage() throws Exception {
+        WebPageService service = new WebPageServiceBuilder<Integer, Integer>()
+                .setTitle("Tom & Jerry")
+                .setDescription("Chase <fast>")
+                .setAuthor("a")
+                .setLicense("MIT")
+                .setVersion("1")
+                .setContent(out -> out.raw("<p>hi</p>"))
+                .build();
+
+        HtmlWriter out = new HtmlWriter();
+        service.render(out);
+        String page = service.render();
+
+        assertEquals(page, out.toString());
+        assertTrue(page.contains("<title>Tom &amp; Jerry</title>"));
+        assertTrue(page.contains("Chase &lt;fast&gt;<br><br><p>hi</p>\n"));
+        assertEquals(page, service.getPage("<p>hi</p>"));
+    }
+}
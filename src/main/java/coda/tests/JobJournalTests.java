@@ -0,0 +1,174 @@
+package coda.tests;
+
+import coda.app.JobJournal;
+import coda.app.RenderRequest;
+import coda.app.RenderScheduler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for recording render jobs and recovering them after a restart.
+ */
+public class JobJournalTests {
+    private Path directory;
+
+    @BeforeEach
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("coda-journal");
+    }
+
+    @AfterEach
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private JobJournal open(long compactBytes) throws IOException {
+        return new JobJournal(directory.resolve("journal"), 2, compactBytes);
+    }
+
+    private RenderRequest request(String name) throws IOException {
+        Path blend = directory.resolve(name);
+        Files.writeString(blend, name);
+        return RenderRequest.of(blend.toFile());
+    }
+
+    private static File image(RenderRequest request) throws IOException {
+        Path image = request.blendFile().toPath().resolveSibling(request.cacheKey() + ".png");
+        Files.writeString(image, request.blendFile().getName());
+        return image.toFile();
+    }
+
+    @Test
+    public void testUnfinishedJobsAreRecoveredAfterRestart() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        RenderScheduler first = new RenderScheduler(request -> {
+            started.countDown();
+            if (!request.blendFile().getName().equals("done.blend")) {
+                release.await();
+            }
+            return image(request);
+        }, null, open(1 << 20), 1, 8);
+        RenderScheduler.RenderJob done = first.submit(request("done.blend"));
+        assertTrue(done.result().get(5, TimeUnit.SECONDS).isFile());
+        first.submit(request("running.blend"));
+        RenderScheduler.RenderJob queued = first.submit(request("queued.blend"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        first.close();
+
+        List<String> rendered = new ArrayList<>();
+        CountDownLatch recovered = new CountDownLatch(2);
+        try (RenderScheduler second = new RenderScheduler(request -> {
+            synchronized (rendered) {
+                rendered.add(request.blendFile().getName());
+            }
+            recovered.countDown();
+            return image(request);
+        }, null, open(1 << 20), 1, 8)) {
+            // The finished job is not rendered again
+            assertTrue(recovered.await(5, TimeUnit.SECONDS));
+            synchronized (rendered) {
+                assertEquals(List.of("running.blend", "queued.blend"), rendered);
+            }
+
+            // New jobs do not reuse recovered ids
+            RenderScheduler.RenderJob next = second.submit(request("next.blend"));
+            assertEquals(Long.parseLong(queued.id()) + 1, Long.parseLong(next.id()));
+        }
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws Exception {
+        long intact;
+        long torn;
+        try (JobJournal journal = open(1 << 20)) {
+            journal.submitted(1, request("a.blend"));
+            intact = journal.size();
+            journal.submitted(2, request("b.blend"));
+            torn = journal.size();
+        }
+        // A crash half way through writing the second record
+        try (FileChannel file = FileChannel.open(directory.resolve("journal/render-jobs.journal"), StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.wrap(new byte[]{0x55}), (intact + torn) / 2);
+        }
+
+        try (JobJournal journal = open(1 << 20)) {
+            List<JobJournal.Entry> entries = journal.recovered();
+            assertEquals(1, entries.size());
+            assertEquals(1, entries.get(0).id);
+            assertEquals("a.blend", entries.get(0).request.blendFile().getName());
+        }
+    }
+
+    @Test
+    public void testSubmissionsShareSyncs() throws Exception {
+        RenderRequest request = request("scene.blend");
+        ExecutorService threads = Executors.newFixedThreadPool(16);
+        try (JobJournal journal = open(1 << 20)) {
+            List<Future<?>> submissions = new ArrayList<>();
+            for (int i = 1; i <= 400; i++) {
+                long id = i;
+                submissions.add(threads.submit(() -> journal.submitted(id, request)));
+            }
+            for (Future<?> submission : submissions) {
+                submission.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(400, journal.appended());
+            assertTrue(journal.syncs() < 200, "syncs " + journal.syncs());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCompactionKeepsOnlyUnfinishedJobs() throws Exception {
+        RenderRequest request = request("scene.blend");
+        try (JobJournal journal = open(4096)) {
+            for (int id = 1; id <= 200; id++) {
+                journal.submitted(id, request);
+                journal.started(id);
+                journal.done(id, new File("image-" + id + ".png"));
+            }
+            journal.submitted(201, request);
+            assertTrue(journal.compactions() > 1);
+        }
+
+        try (JobJournal journal = open(4096)) {
+            List<JobJournal.Entry> entries = journal.recovered();
+            assertEquals(1, entries.size());
+            assertEquals(201, entries.get(0).id);
+            assertEquals(201, journal.lastId());
+            assertTrue(journal.size() < 4096, "size " + journal.size());
+        }
+    }
+
+    @Test
+    public void testJournalIsExclusive() throws Exception {
+        try (JobJournal journal = open(1 << 20)) {
+            assertThrows(IOException.class, () -> open(1 << 20));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package coda.tests;
+
+import coda.app.RenderCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the on-disk cache of rendered images.
+ */
+public class RenderCacheTests {
+    private Path directory;
+
+    @BeforeEach
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("coda-render-cache");
+    }
+
+    @AfterEach
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private File rendered(int size) throws IOException {
+        Path image = Files.createTempFile(directory, "render", ".png");
+        Files.write(image, new byte[size]);
+        return image.toFile();
+    }
+
+    @Test
+    public void testPutMovesImageIntoCache() throws IOException {
+        RenderCache cache = new RenderCache(directory.resolve("cache"), 1000);
+        File rendered = rendered(100);
+        File cached = cache.put("abc", rendered);
+
+        assertFalse(rendered.exists());
+        assertEquals(cached, cache.get("abc"));
+        assertNull(cache.get("other"));
+        assertEquals(100, cache.totalBytes());
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvictedOverQuota() throws IOException {
+        RenderCache cache = new RenderCache(directory.resolve("cache"), 250);
+        File a = cache.put("a", rendered(100));
+        cache.put("b", rendered(100));
+        cache.get("a");
+        cache.put("c", rendered(100));
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertTrue(a.exists());
+        assertEquals(200, cache.totalBytes());
+        assertEquals(1, cache.evictions());
+    }
+
+    @Test
+    public void testImageLargerThanQuotaIsNotCached() throws IOException {
+        RenderCache cache = new RenderCache(directory.resolve("cache"), 50);
+        File rendered = rendered(100);
+
+        assertEquals(rendered, cache.put("big", rendered));
+        assertNull(cache.get("big"));
+    }
+
+    @Test
+    public void testExistingImagesAreLoaded() throws IOException {
+        new RenderCache(directory.resolve("cache"), 1000).put("kept", rendered(100));
+
+        RenderCache reopened = new RenderCache(directory.resolve("cache"), 1000);
+        assertNotNull(reopened.get("kept"));
+        assertEquals(100, reopened.totalBytes());
+    }
+}
@@ -0,0 +1,269 @@
+package coda.tests;
+
+import coda.app.RenderCoordinator;
+import coda.app.RenderRequest;
+import coda.app.RenderScheduler;
+import coda.app.RenderWorker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for spreading renders over worker JVMs, with the workers run as threads.
+ */
+public class RenderCoordinatorTests {
+    // Message types of the cluster protocol, for a worker played by the test
+    private static final byte HELLO = 1;
+    private static final byte PULL = 2;
+    private static final byte HEARTBEAT = 3;
+    private static final byte TASK = 4;
+    private static final byte RESULT = 5;
+
+    private Path directory;
+    private RenderCoordinator coordinator;
+    private final List<RenderWorker> workers = new ArrayList<>();
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+
+    @BeforeEach
+    public void startCoordinator() throws IOException {
+        directory = Files.createTempDirectory("coda-cluster");
+        coordinator = new RenderCoordinator(0, null, 0, 100, 2000, 10_000, 3);
+        coordinator.start();
+    }
+
+    @AfterEach
+    public void stop() throws IOException {
+        workers.forEach(RenderWorker::close);
+        coordinator.close();
+        threads.shutdownNow();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private RenderWorker startWorker(String name, int cores, RenderScheduler.Renderer renderer) {
+        RenderWorker worker = new RenderWorker("localhost", coordinator.port(), name, cores,
+                directory.resolve(name), renderer, 100, 2000);
+        workers.add(worker);
+        threads.execute(worker::run);
+        return worker;
+    }
+
+    /**
+     * A renderer writing which worker rendered which frame, where Blender would write the image.
+     */
+    private static File writeImage(String worker, RenderRequest request) throws IOException {
+        Path image = request.blendFile().toPath().resolveSibling(request.cacheKey() + ".png");
+        Files.writeString(image, "frame " + request.frame() + " by " + worker);
+        return image.toFile();
+    }
+
+    private RenderRequest request(int frame) throws IOException {
+        Path blend = directory.resolve("scene.blend");
+        if (!Files.exists(blend)) {
+            Files.write(blend, new byte[100_000]);
+        }
+        RenderRequest request = RenderRequest.of(blend.toFile());
+        return new RenderRequest(blend.toFile(), request.contentHash(), frame, 0, 0, "");
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testRendersAreSpreadByCores() throws Exception {
+        Map<String, Integer> renders = new ConcurrentHashMap<>();
+        CountDownLatch started = new CountDownLatch(4);
+        CountDownLatch release = new CountDownLatch(1);
+        RenderScheduler.Renderer[] renderers = new RenderScheduler.Renderer[2];
+        for (int i = 0; i < 2; i++) {
+            String name = i == 0 ? "small" : "large";
+            renderers[i] = request -> {
+                renders.merge(name, 1, Integer::sum);
+                started.countDown();
+                release.await();
+                return writeImage(name, request);
+            };
+        }
+        RenderWorker small = startWorker("small", 1, renderers[0]);
+        RenderWorker large = startWorker("large", 3, renderers[1]);
+        await(() -> coordinator.workers() == 2);
+
+        List<Future<File>> results = new ArrayList<>();
+        for (int frame = 1; frame <= 4; frame++) {
+            RenderRequest request = request(frame);
+            results.add(threads.submit(() -> coordinator.render(request)));
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(Map.of("small", 1, "large", 3), renders);
+        release.countDown();
+
+        for (int frame = 1; frame <= 4; frame++) {
+            File image = results.get(frame - 1).get(5, TimeUnit.SECONDS);
+            assertEquals(directory, image.toPath().getParent());
+            assertTrue(Files.readString(image.toPath()).startsWith("frame " + frame + " by "));
+        }
+        // Each worker was sent the .blend once, intact
+        assertEquals(2, coordinator.blendsSent());
+        assertEquals(1, small.blendsReceived());
+        assertEquals(1, large.blendsReceived());
+        assertEquals(4, small.rendered() + large.rendered());
+    }
+
+    @Test
+    public void testRendersOfALostWorkerAreRequeued() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        RenderWorker doomed = startWorker("doomed", 1, request -> {
+            started.countDown();
+            new CountDownLatch(1).await();
+            return null;
+        });
+        await(() -> coordinator.workers() == 1);
+        RenderRequest request = request(7);
+        Future<File> result = threads.submit(() -> coordinator.render(request));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        startWorker("survivor", 2, r -> writeImage("survivor", r));
+        await(() -> coordinator.workers() == 2);
+        doomed.close();
+
+        File image = result.get(5, TimeUnit.SECONDS);
+        assertEquals("frame 7 by survivor", Files.readString(image.toPath()));
+        assertEquals(1, coordinator.requeued());
+        assertEquals(1, coordinator.workersLost());
+    }
+
+    @Test
+    public void testFailedRenderIsReported() throws Exception {
+        startWorker("broken", 1, request -> {
+            throw new IOException("no GPU");
+        });
+        await(() -> coordinator.workers() == 1);
+
+        Exception e = assertThrows(IOException.class, () -> coordinator.render(request(1)));
+        assertTrue(e.getMessage().contains("no GPU"));
+        assertEquals(0, coordinator.requeued());
+    }
+
+    @Test
+    public void testSlowWorkerIsNotDroppedNorHoldsUpOthers() throws Exception {
+        // Workers silent for half a second are dropped
+        coordinator.close();
+        coordinator = new RenderCoordinator(0, null, 0, 50, 500, 10_000, 3);
+        coordinator.start();
+        // Larger than the socket buffers, so sending it waits for the worker to read
+        Path blend = directory.resolve("large.blend");
+        Files.write(blend, new byte[32 * 1024 * 1024]);
+        RenderRequest large = RenderRequest.of(blend.toFile());
+
+        try (Socket socket = new Socket("localhost", coordinator.port())) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            synchronized (out) {
+                out.writeByte(HELLO);
+                out.writeInt(1);
+                out.writeUTF("slow");
+                out.writeInt(1);
+                out.flush();
+            }
+            threads.submit(() -> {
+                while (true) {
+                    synchronized (out) {
+                        out.writeByte(HEARTBEAT);
+                        out.flush();
+                    }
+                    Thread.sleep(50);
+                }
+            });
+            await(() -> coordinator.workers() == 1);
+            Future<File> slow = threads.submit(() -> coordinator.render(large));
+            synchronized (out) {
+                out.writeByte(PULL);
+                out.flush();
+            }
+            // Only the slow worker has a free slot, so the large render goes to it
+            await(() -> coordinator.dispatched() == 1);
+
+            // The slow worker reads nothing for a while, yet keeps its heartbeats heard
+            startWorker("healthy", 1, r -> writeImage("healthy", r));
+            await(() -> coordinator.workers() == 2);
+            assertEquals("frame 1 by healthy", Files.readString(coordinator.render(request(1)).toPath()));
+            Thread.sleep(1000);
+            assertEquals(0, coordinator.workersLost());
+
+            byte type;
+            while ((type = in.readByte()) != TASK) {
+                assertEquals(HEARTBEAT, type);
+            }
+            long id = in.readLong();
+            in.readUTF();
+            in.readInt();
+            in.readInt();
+            in.readInt();
+            in.readUTF();
+            assertTrue(in.readBoolean());
+            in.skipNBytes(in.readLong());
+
+            // Then sends its image slowly, with no room for heartbeats
+            synchronized (out) {
+                out.writeByte(RESULT);
+                out.writeLong(id);
+                out.writeLong(20 * 1024);
+                for (int i = 0; i < 20; i++) {
+                    out.write(new byte[1024]);
+                    out.flush();
+                    Thread.sleep(50);
+                }
+            }
+            assertEquals(20 * 1024, slow.get(5, TimeUnit.SECONDS).length());
+            assertEquals(0, coordinator.workersLost());
+            assertEquals(0, coordinator.requeued());
+        }
+    }
+
+    @Test
+    public void testSchedulerFollowsClusterCapacity() throws Exception {
+        try (RenderScheduler scheduler = new RenderScheduler(coordinator, 1, 8)) {
+            coordinator.onCapacity(scheduler::resize);
+            assertEquals(1, scheduler.stats().workers);
+
+            RenderWorker worker = startWorker("worker", 3, r -> writeImage("worker", r));
+            await(() -> scheduler.stats().workers == 3);
+            RenderScheduler.RenderJob job = scheduler.submit(request(2));
+            assertEquals("frame 2 by worker", Files.readString(job.result().get(5, TimeUnit.SECONDS).toPath()));
+
+            worker.close();
+            await(() -> scheduler.stats().workers == 1);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package coda.tests;
+
+import coda.app.RenderCache;
+import coda.app.RenderRequest;
+import coda.app.RenderScheduler;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for scheduling renders on the bounded worker pool.
+ */
+public class RenderSchedulerTests {
+
+    private static RenderRequest request(String name) {
+        // Distinct names stand for distinct contents
+        return new RenderRequest(new File(name), name, 1, 0, 0, "");
+    }
+
+    @Test
+    public void testJobsKeepTheirOwnResults() throws Exception {
+        try (RenderScheduler scheduler = new RenderScheduler(r -> new File(r.blendFile().getName() + ".png"), 2, 8)) {
+            RenderScheduler.RenderJob first = scheduler.submit(request("a.blend"));
+            RenderScheduler.RenderJob second = scheduler.submit(request("b.blend"));
+
+            assertEquals("a.blend.png", first.result().get(5, TimeUnit.SECONDS).getName());
+            assertEquals("b.blend.png", second.result().get(5, TimeUnit.SECONDS).getName());
+            assertEquals(RenderScheduler.State.DONE, first.state());
+            assertTrue(second.waitMillis() >= 0);
+        }
+    }
+
+    @Test
+    public void testFullQueueRejects() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        try (RenderScheduler scheduler = new RenderScheduler(r -> {
+            started.countDown();
+            release.await();
+            return r.blendFile();
+        }, 1, 2)) {
+            RenderScheduler.RenderJob running = scheduler.submit(request("1.blend"));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            scheduler.submit(request("2.blend"));
+            scheduler.submit(request("3.blend"));
+
+            assertThrows(RejectedExecutionException.class, () -> scheduler.submit(request("4.blend")));
+
+            RenderScheduler.Stats stats = scheduler.stats();
+            assertEquals(2, stats.queued);
+            assertEquals(1, stats.running);
+            assertEquals(3, stats.submitted);
+            assertEquals(1, stats.rejected);
+            assertEquals(RenderScheduler.State.RUNNING, running.state());
+
+            release.countDown();
+            assertEquals("1.blend", running.result().get(5, TimeUnit.SECONDS).getName());
+        }
+    }
+
+    @Test
+    public void testFailedRenderCompletesExceptionally() throws Exception {
+        try (RenderScheduler scheduler = new RenderScheduler(r -> null, 1, 1)) {
+            RenderScheduler.RenderJob job = scheduler.submit(request("broken.blend"));
+
+            assertThrows(ExecutionException.class, () -> job.result().get(5, TimeUnit.SECONDS));
+            assertEquals(RenderScheduler.State.FAILED, job.state());
+            assertEquals(1, scheduler.stats().failed);
+        }
+    }
+
+    @Test
+    public void testCachedAndInFlightRendersAreShared() throws Exception {
+        Path directory = Files.createTempDirectory("coda-render-cache");
+        AtomicInteger renders = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        RenderScheduler.Renderer renderer = r -> {
+            renders.incrementAndGet();
+            release.await();
+            Path image = Files.createTempFile(directory, "render", ".png");
+            Files.write(image, new byte[100]);
+            return image.toFile();
+        };
+        try (RenderScheduler scheduler = new RenderScheduler(renderer, new RenderCache(directory.resolve("cache"), 1000), 2, 8)) {
+            RenderScheduler.RenderJob first = scheduler.submit(request("scene.blend"));
+            RenderScheduler.RenderJob again = scheduler.submit(request("scene.blend"));
+            RenderScheduler.RenderJob otherFrame = scheduler.submit(new RenderRequest(new File("scene.blend"), "scene.blend", 2, 0, 0, ""));
+            assertSame(first, again);
+            assertNotSame(first, otherFrame);
+
+            release.countDown();
+            File image = first.result().get(5, TimeUnit.SECONDS);
+            otherFrame.result().get(5, TimeUnit.SECONDS);
+            RenderScheduler.RenderJob cached = scheduler.submit(request("scene.blend"));
+
+            assertEquals(RenderScheduler.State.DONE, cached.state());
+            assertEquals(image, cached.result().getNow(null));
+            assertEquals(2, renders.get());
+            assertEquals(1, scheduler.stats().cached);
+            assertEquals(1, scheduler.stats().shared);
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
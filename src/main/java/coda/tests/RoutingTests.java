@@ -0,0 +1,81 @@
+package coda.tests;
+
+import coda.app.CodaApplication;
+import coda.app.WebPageService;
+import coda.app.WebPageServiceBuilder;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for routing requests to services.
+ */
+public class RoutingTests {
+
+    private static WebPageService service(String title, String... routes) {
+        WebPageServiceBuilder<Integer, Integer> builder = new WebPageServiceBuilder<>();
+        builder.setTitle(title);
+        for (String route : routes) {
+            builder.addRoute(route);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void testExactEndpoint() {
+        CodaApplication app = new CodaApplication();
+        WebPageService farm = app.buildBlenderFarm();
+        app.addService(farm);
+        app.addService(app.buildAdderService());
+
+        assertSame(farm, app.findService("/blender-farm"));
+        assertNull(app.findService("/blender-farm/other"));
+        assertNull(app.findService("/missing"));
+    }
+
+    @Test
+    public void testParameterAndWildcardRoutes() {
+        CodaApplication app = new CodaApplication();
+        WebPageService tasks = service("Tasks", "{id}", "{id}/result");
+        WebPageService files = service("Files", "*");
+        app.addService(tasks);
+        app.addService(files);
+
+        assertSame(tasks, app.findService("/tasks/42"));
+        assertSame(tasks, app.findService("/tasks/42/result"));
+        assertNull(app.findService("/tasks/42/other"));
+        assertSame(files, app.findService("/files/renders/frame-0001.png"));
+        assertSame(files, app.findService("/files"));
+    }
+
+    @Test
+    public void testDuplicateEndpointRejectedAtRegistration() {
+        CodaApplication app = new CodaApplication();
+        app.addService(service("Adder"));
+
+        assertThrows(IllegalStateException.class, () -> app.addService(service("adder")));
+        assertEquals(1, app.getServices().size());
+    }
+
+    @Test
+    public void testPatternsDifferingOnlyInNamesConflict() {
+        CodaApplication app = new CodaApplication();
+
+        assertThrows(IllegalStateException.class, () -> app.addService(service("Tasks", "{id}", "{name}")));
+        assertNull(app.findService("/tasks"));
+    }
+
+    @Test
+    public void testServerPathsAreReserved() {
+        CodaApplication app = new CodaApplication();
+
+        assertThrows(IllegalStateException.class, () -> app.addService(service("Metrics")));
+        assertThrows(IllegalStateException.class, () -> app.addService(service("Jobs", "{id}")));
+        assertThrows(IllegalStateException.class, () -> app.addService(service("Rendered Image")));
+        assertTrue(app.getServices().isEmpty());
+
+        app.addService(service("Job Board"));
+        assertNotNull(app.findService("/job-board"));
+    }
+}
@@ -0,0 +1,1089 @@
+package coda.tests;
+
+import coda.app.CodaApplication;
+import coda.app.ServerConfig;
+import coda.app.WebPageService;
+import coda.app.WebPageServiceBuilder;
+import coda.app.WebServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the web server over a real socket, run against every transport.
+ */
+public class WebServerTests {
+
+    private WebServer server;
+    private Thread serverThread;
+    private int port;
+
+    /**
+     * Start a server with the adder and blender farm services.
+     *
+     * @param transport the transport name
+     */
+    private void startServer(String transport) throws Exception {
+        CodaApplication app = new CodaApplication();
+        startServer(transport, app, app.buildAdderService(), app.buildBlenderFarm());
+    }
+
+    /**
+     * Start a server with the given services.
+     *
+     * @param transport the transport name
+     * @param app the application
+     * @param services the services to register
+     */
+    private void startServer(String transport, CodaApplication app, WebPageService... services) throws Exception {
+        createServer(app, ServerConfig.defaults().with("coda.server.transport", transport));
+        for (WebPageService service : services) {
+            app.addService(service);
+        }
+        runServer();
+    }
+
+    private void createServer(CodaApplication app, ServerConfig config) throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = app.createServer("localhost", port, config);
+    }
+
+    private void runServer() throws Exception {
+        serverThread = new Thread(() -> server.start(port));
+        serverThread.start();
+        for (int i = 0; i < 50; i++) {
+            try (Socket ignored = new Socket("localhost", port)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(20);
+            }
+        }
+        fail("Server did not start");
+    }
+
+    @AfterEach
+    public void stopServer() throws InterruptedException {
+        if (server != null) {
+            server.stop();
+            serverThread.join(5000);
+        }
+    }
+
+    /**
+     * Send raw bytes and read until the server closes the connection.
+     */
+    private String exchange(String request) throws IOException {
+        return new String(exchangeBytes(request), StandardCharsets.UTF_8);
+    }
+
+    private byte[] exchangeBytes(String request) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            in.transferTo(response);
+            return response.toByteArray();
+        }
+    }
+
+    private static byte[] bodyBytes(byte[] response) {
+        String head = new String(response, StandardCharsets.ISO_8859_1);
+        return Arrays.copyOfRange(response, head.indexOf("\r\n\r\n") + 4, response.length);
+    }
+
+    private static String body(String response) {
+        return response.substring(response.indexOf("\r\n\r\n") + 4);
+    }
+
+    private static String header(String response, String name) {
+        for (String line : response.substring(0, response.indexOf("\r\n\r\n")).split("\r\n")) {
+            if (line.startsWith(name + ": ")) {
+                return line.substring(name.length() + 2);
+            }
+        }
+        return null;
+    }
+
+    private static String sessionCookie(String response) {
+        String cookie = header(response, "Set-Cookie");
+        return cookie == null ? null : cookie.split(";")[0];
+    }
+
+    private static WebPageService constantService(String title, String output) {
+        return new WebPageServiceBuilder<Object, String>()
+                .setTitle(title)
+                .setService(input -> output)
+                .build();
+    }
+
+    private String call(String method, String path) throws IOException {
+        return exchange(method + " " + path + " HTTP/1.1\r\nConnection: close\r\nContent-Length: 0\r\n\r\n");
+    }
+
+    /**
+     * Open an event stream and read its response head.
+     */
+    private Socket subscribe(String path, String headers) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\n" + headers + "\r\n").getBytes(StandardCharsets.UTF_8));
+        String head = readUntil(socket.getInputStream(), "\r\n\r\n", 1);
+        assertTrue(head.startsWith("HTTP/1.1 200 "), head);
+        assertEquals("text/event-stream; charset=utf-8", header(head, "Content-Type"));
+        return socket;
+    }
+
+    /**
+     * Read a stream until a marker has been seen the given number of times.
+     */
+    private static String readUntil(InputStream in, String marker, int times) throws IOException {
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        while (count(read.toString(StandardCharsets.UTF_8), marker) < times) {
+            int b = in.read();
+            if (b == -1) {
+                fail("Stream ended after: " + read.toString(StandardCharsets.UTF_8));
+            }
+            read.write(b);
+        }
+        return read.toString(StandardCharsets.UTF_8);
+    }
+
+    private static int count(String haystack, String needle) {
+        int count = 0;
+        for (int i = haystack.indexOf(needle); i >= 0; i = haystack.indexOf(needle, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testPipelinedRequestsAnsweredInOrder(String transport) throws Exception {
+        startServer(transport);
+
+        String response = exchange("GET /adder HTTP/1.1\r\nHost: x\r\n\r\n"
+                + "POST /unknown HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello"
+                + "GET /blender-farm HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        assertEquals(3, count(response, "HTTP/1.1 200 OK"));
+        assertTrue(response.indexOf("<html><body>") < response.indexOf("<!DOCTYPE html>"));
+        assertTrue(response.endsWith("</html>"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testResponsesAreFramed(String transport) throws Exception {
+        startServer(transport);
+
+        String response = exchange("GET / HTTP/1.1\r\nConnection: close\r\n\r\n");
+        int headEnd = response.indexOf("\r\n\r\n");
+        String head = response.substring(0, headEnd);
+        String body = response.substring(headEnd + 4);
+
+        assertTrue(head.contains("Connection: close"));
+        assertTrue(head.contains("Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testHttp10ClosesByDefault(String transport) throws Exception {
+        startServer(transport);
+
+        String response = exchange("GET /adder HTTP/1.0\r\n\r\n");
+
+        assertEquals(1, count(response, "HTTP/1.1 200 OK"));
+        assertTrue(response.contains("Connection: close"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testQueryStringIsNotPartOfRoute(String transport) throws Exception {
+        startServer(transport);
+
+        String response = exchange("GET /blender-farm?frame=1 HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        assertTrue(response.contains("<h1>Blender Farm</h1>"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testHeaderLimitsEnforced(String transport) throws Exception {
+        startServer(transport);
+
+        String tooMany = exchange("GET / HTTP/1.1\r\n" + "X-Header: value\r\n".repeat(500) + "\r\n");
+        String tooLong = exchange("GET / HTTP/1.1\r\nX-Header: " + "a".repeat(64 * 1024) + "\r\n\r\n");
+
+        assertTrue(tooMany.startsWith("HTTP/1.1 431 "));
+        assertTrue(tooLong.startsWith("HTTP/1.1 431 "));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testMalformedRequestLineRejected(String transport) throws Exception {
+        startServer(transport);
+
+        String response = exchange("GE(T / HTTP/1.1\r\n\r\n");
+
+        assertTrue(response.startsWith("HTTP/1.1 400 "));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testRecentlyUsedSessionSurvivesOverflow(String transport) throws Exception {
+        CodaApplication app = new CodaApplication();
+        createServer(app, ServerConfig.defaults()
+                .with("coda.server.transport", transport)
+                .with("coda.session.maxSessions", "8"));
+        app.addService(constantService("Alpha", "alpha"));
+        runServer();
+
+        String kept = sessionCookie(exchange("GET /alpha HTTP/1.1\r\nConnection: close\r\n\r\n"));
+        String first = sessionCookie(exchange("GET /alpha HTTP/1.1\r\nConnection: close\r\n\r\n"));
+        for (int i = 0; i < 40; i++) {
+            // Each round the kept session is used after every other, so it is never the oldest sampled
+            Thread.sleep(2);
+            String used = exchange("GET /alpha HTTP/1.1\r\nCookie: " + kept + "\r\nConnection: close\r\n\r\n");
+            assertNull(header(used, "Set-Cookie"), "Session evicted after " + i + " new sessions");
+            assertNotNull(sessionCookie(exchange("GET /alpha HTTP/1.1\r\nConnection: close\r\n\r\n")));
+        }
+
+        String evicted = exchange("GET /alpha HTTP/1.1\r\nCookie: " + first + "\r\nConnection: close\r\n\r\n");
+        assertNotNull(header(evicted, "Set-Cookie"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testSessionsKeepClientsApart(String transport) throws Exception {
+        startServer(transport, new CodaApplication(), constantService("Alpha", "alpha"), constantService("Beta", "beta"));
+
+        String alpha = sessionCookie(exchange("GET /alpha HTTP/1.1\r\nConnection: close\r\n\r\n"));
+        String beta = sessionCookie(exchange("GET /beta HTTP/1.1\r\nConnection: close\r\n\r\n"));
+        assertNotNull(alpha);
+        assertNotNull(beta);
+        assertNotEquals(alpha, beta);
+
+        String alphaResult = exchange("GET /rendered-image HTTP/1.1\r\nCookie: " + alpha + "\r\nConnection: close\r\n\r\n");
+        String betaResult = exchange("GET /rendered-image HTTP/1.1\r\nCookie: theme=dark; " + beta + "\r\nConnection: close\r\n\r\n");
+        String noSession = exchange("GET /rendered-image HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        assertEquals("alpha", body(alphaResult));
+        assertEquals("beta", body(betaResult));
+        assertTrue(noSession.startsWith("HTTP/1.1 404 "));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testRenderedPagesRevalidateWithETag(String transport) throws Exception {
+        AtomicInteger renders = new AtomicInteger();
+        startServer(transport, new CodaApplication(), new WebPageServiceBuilder<Object, String>()
+                .setTitle("Static")
+                .setRender(service -> "page " + renders.incrementAndGet())
+                .build());
+
+        String first = exchange("GET /static HTTP/1.1\r\nConnection: close\r\n\r\n");
+        String etag = header(first, "ETag");
+        assertNotNull(etag);
+        assertEquals("page 1", body(first));
+
+        String second = exchange("GET /static HTTP/1.1\r\nConnection: close\r\n\r\n");
+        assertEquals(etag, header(second, "ETag"));
+        assertEquals("page 1", body(second));
+
+        String revalidated = exchange("GET /static HTTP/1.1\r\nIf-None-Match: \"other\", " + etag + "\r\nConnection: close\r\n\r\n");
+        assertTrue(revalidated.startsWith("HTTP/1.1 304 "));
+        assertEquals(etag, header(revalidated, "ETag"));
+        assertNull(header(revalidated, "Content-Length"));
+        assertEquals("", body(revalidated));
+        assertEquals(1, renders.get());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testDynamicPagesAreNotCached(String transport) throws Exception {
+        AtomicInteger renders = new AtomicInteger();
+        startServer(transport, new CodaApplication(), new WebPageServiceBuilder<Object, String>()
+                .setTitle("Dynamic")
+                .setCacheable(false)
+                .setRender(service -> "page " + renders.incrementAndGet())
+                .build());
+
+        String first = exchange("GET /dynamic HTTP/1.1\r\nConnection: close\r\n\r\n");
+        String second = exchange("GET /dynamic HTTP/1.1\r\nIf-None-Match: *\r\nConnection: close\r\n\r\n");
+
+        assertNull(header(first, "ETag"));
+        assertEquals("page 1", body(first));
+        assertEquals("page 2", body(second));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testIndexChangesWhenServiceAdded(String transport) throws Exception {
+        CodaApplication app = new CodaApplication();
+        startServer(transport, app, constantService("Alpha", "alpha"));
+
+        String before = exchange("GET / HTTP/1.1\r\nConnection: close\r\n\r\n");
+        app.addService(constantService("Beta", "beta"));
+        String after = exchange("GET / HTTP/1.1\r\nIf-None-Match: " + header(before, "ETag") + "\r\nConnection: close\r\n\r\n");
+
+        assertFalse(body(before).contains("Beta"));
+        assertTrue(after.startsWith("HTTP/1.1 200 "));
+        assertTrue(body(after).contains("Beta"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testPagesCompressedWhenAccepted(String transport) throws Exception {
+        startServer(transport, new CodaApplication(), new WebPageServiceBuilder<Object, String>()
+                .setTitle("Long")
+                .setContent(out -> out.raw("<p>" + "compress me ".repeat(500) + "</p>"))
+                .build());
+
+        String plain = exchange("GET /long HTTP/1.1\r\nConnection: close\r\n\r\n");
+        byte[] gzip = exchangeBytes("GET /long HTTP/1.1\r\nAccept-Encoding: deflate, gzip\r\nConnection: close\r\n\r\n");
+        byte[] deflate = exchangeBytes("GET /long HTTP/1.1\r\nAccept-Encoding: deflate, gzip;q=0\r\nConnection: close\r\n\r\n");
+        String gzipHead = new String(gzip, StandardCharsets.ISO_8859_1);
+
+        assertNull(header(plain, "Content-Encoding"));
+        assertEquals("Accept-Encoding", header(plain, "Vary"));
+        assertEquals("gzip", header(gzipHead, "Content-Encoding"));
+        assertEquals("deflate", header(new String(deflate, StandardCharsets.ISO_8859_1), "Content-Encoding"));
+        // * only stands for codings the header does not name
+        for (String refused : new String[]{"gzip;q=0, *", "gzip;q=0, deflate, *", "*, gzip;q=0"}) {
+            String response = exchange("GET /long HTTP/1.1\r\nAccept-Encoding: " + refused + "\r\nConnection: close\r\n\r\n");
+            assertEquals("deflate", header(response, "Content-Encoding"), refused);
+        }
+        String none = exchange("GET /long HTTP/1.1\r\nAccept-Encoding: gzip;q=0, deflate;q=0, *\r\nConnection: close\r\n\r\n");
+        assertNull(header(none, "Content-Encoding"));
+        assertEquals(bodyBytes(gzip).length, Integer.parseInt(header(gzipHead, "Content-Length")));
+        assertTrue(bodyBytes(gzip).length < body(plain).length() / 10);
+        assertEquals(body(plain), new String(new GZIPInputStream(new ByteArrayInputStream(bodyBytes(gzip))).readAllBytes(), StandardCharsets.UTF_8));
+        assertEquals(body(plain), new String(new InflaterInputStream(new ByteArrayInputStream(bodyBytes(deflate))).readAllBytes(), StandardCharsets.UTF_8));
+
+        String etag = header(gzipHead, "ETag");
+        assertNotEquals(header(plain, "ETag"), etag);
+        String revalidated = exchange("GET /long HTTP/1.1\r\nAccept-Encoding: gzip\r\nIf-None-Match: " + etag + "\r\nConnection: close\r\n\r\n");
+        assertTrue(revalidated.startsWith("HTTP/1.1 304 "));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testSmallResponsesNotCompressed(String transport) throws Exception {
+        startServer(transport, new CodaApplication(), constantService("Alpha", "alpha"));
+
+        String page = exchange("GET /alpha HTTP/1.1\r\nConnection: close\r\n\r\n");
+        String result = exchange("GET /rendered-image HTTP/1.1\r\nCookie: " + sessionCookie(page)
+                + "\r\nAccept-Encoding: gzip\r\nConnection: close\r\n\r\n");
+
+        assertNull(header(result, "Content-Encoding"));
+        assertEquals("alpha", body(result));
+    }
+
+    private String upload(String cookie, String filename, byte[] content) throws IOException {
+        String boundary = "----coda" + System.nanoTime();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("preamble\r\n--" + boundary + "\r\nContent-Disposition: form-data; name=\"note\"\r\n\r\nhello\r\n"
+                + "--" + boundary + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"" + filename + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.write(content);
+        body.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST /rendered-image HTTP/1.1\r\nCookie: " + cookie + "\r\nConnection: close\r\n"
+                    + "Content-Type: multipart/form-data; boundary=" + boundary + "\r\n"
+                    + "Content-Length: " + body.size() + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            try {
+                body.writeTo(out);
+                out.flush();
+            } catch (IOException e) {
+                // A refused upload may be answered before it has all been sent
+            }
+            return new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testBlendUploadStreamedToDisk(String transport) throws Exception {
+        Path directory = Files.createTempDirectory("coda-uploads");
+        CodaApplication app = new CodaApplication();
+        createServer(app, ServerConfig.defaults()
+                .with("coda.server.transport", transport)
+                .with("coda.upload.dir", directory.toString())
+                .with("coda.upload.maxSize", "2000000"));
+        app.addService(app.buildBlenderFarm());
+        runServer();
+
+        String cookie = sessionCookie(exchange("GET /blender-farm HTTP/1.1\r\nConnection: close\r\n\r\n"));
+
+        // Larger than the pipe, with bytes that look like the start of a delimiter
+        byte[] blend = new byte[1_000_000];
+        new Random(7).nextBytes(blend);
+        System.arraycopy("BLENDER-v300".getBytes(StandardCharsets.US_ASCII), 0, blend, 0, 12);
+        System.arraycopy("\r\n--".getBytes(StandardCharsets.US_ASCII), 0, blend, 5000, 4);
+        String accepted = upload(cookie, "C:\\scenes\\../scene one.blend", blend);
+        assertTrue(accepted.startsWith("HTTP/1.1 202 "), accepted);
+        assertTrue(header(accepted, "Location").startsWith("/jobs/"), accepted);
+
+        File[] saved = directory.toFile().listFiles();
+        assertEquals(1, saved.length);
+        assertTrue(saved[0].getName().matches("[0-9a-f]{64}\\.blend"), saved[0].getName());
+        assertArrayEquals(blend, Files.readAllBytes(saved[0].toPath()));
+
+        // The same contents are stored once, whatever the name
+        String again = upload(cookie, "copy.blend", blend);
+        assertTrue(again.startsWith("HTTP/1.1 202 "), again);
+        assertEquals(1, directory.toFile().listFiles().length);
+
+        String notBlend = upload(cookie, "scene.blend", "not a blend file".getBytes(StandardCharsets.US_ASCII));
+        String wrongExtension = upload(cookie, "scene.png", blend);
+        String tooLarge = upload(cookie, "big.blend", Arrays.copyOf(blend, 3_000_000));
+
+        assertTrue(notBlend.startsWith("HTTP/1.1 415 "), notBlend);
+        assertTrue(wrongExtension.startsWith("HTTP/1.1 415 "), wrongExtension);
+        assertTrue(tooLarge.startsWith("HTTP/1.1 413 "), tooLarge);
+        assertEquals(1, directory.toFile().listFiles().length);
+
+        String form = "--b\r\nContent-Disposition: form-data; name=\"frame\"\r\n\r\n2\r\n--b--\r\n";
+        String noFile = exchange("POST /rendered-image HTTP/1.1\r\nCookie: " + cookie + "\r\nConnection: close\r\n"
+                + "Content-Type: multipart/form-data; boundary=b\r\nContent-Length: " + form.length() + "\r\n\r\n" + form);
+        String notMultipart = exchange("POST /rendered-image HTTP/1.1\r\nCookie: " + cookie + "\r\nConnection: close\r\n"
+                + "Content-Length: 0\r\n\r\n");
+        assertTrue(noFile.startsWith("HTTP/1.1 400 "), noFile);
+        assertTrue(notMultipart.startsWith("HTTP/1.1 415 "), notMultipart);
+
+        // The accepted uploads went to the farm's render queue
+        String metrics = body(call("GET", "/metrics"));
+        assertTrue(metrics.matches("(?s).*\ncoda_render_submitted_total [1-9][0-9]*\n.*"), metrics);
+        assertTrue(metrics.contains("\ncoda_render_rejected_total 0\n"), metrics);
+        assertTrue(metrics.contains("\n# TYPE coda_render_queued gauge\n"), metrics);
+        assertTrue(metrics.contains("\n# TYPE coda_render_wait_seconds summary\n"), metrics);
+
+        Files.delete(saved[0].toPath());
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testNioSerialStreamsLargeBody() throws Exception {
+        CodaApplication app = new CodaApplication();
+        createServer(app, ServerConfig.defaults()
+                .with("coda.server.transport", "nio")
+                .with("coda.server.mode", "serial"));
+        app.addService(constantService("Greeter", "hello"));
+        runServer();
+
+        // Over the collected-body limit, so the body is streamed while the request runs
+        byte[] body = new byte[200 * 1024];
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST /jobs/greeter HTTP/1.1\r\nContent-Length: " + body.length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            out.write(body);
+            out.write("GET /greeter HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String responses = new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            assertTrue(responses.startsWith("HTTP/1.1 202 "), responses);
+            assertEquals(2, count(responses, "HTTP/1.1 "), responses);
+            assertTrue(responses.contains("hello"), responses);
+        }
+    }
+
+    private String putChunk(String id, int index, byte[] content, int chunkSize) throws IOException {
+        int offset = index * chunkSize;
+        int length = Math.min(chunkSize, content.length - offset);
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("PUT /uploads/" + id + "/" + index + " HTTP/1.1\r\nConnection: close\r\n"
+                    + "Content-Length: " + length + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            out.write(content, offset, length);
+            out.flush();
+            return new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String sha256(byte[] content) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testChunkedUploadResumesAndQueuesRender(String transport) throws Exception {
+        Path directory = Files.createTempDirectory("coda-uploads");
+        CodaApplication app = new CodaApplication();
+        createServer(app, ServerConfig.defaults()
+                .with("coda.server.transport", transport)
+                .with("coda.upload.dir", directory.toString())
+                .with("coda.upload.chunkSize", "65536"));
+        app.addService(app.buildBlenderFarm());
+        runServer();
+
+        byte[] blend = new byte[300_000];
+        new Random(19).nextBytes(blend);
+        System.arraycopy("BLENDER-v300".getBytes(StandardCharsets.US_ASCII), 0, blend, 0, 12);
+        String created = call("POST", "/uploads?service=blender-farm&name=scene.blend&size=" + blend.length
+                + "&sha256=" + sha256(blend));
+        assertTrue(created.startsWith("HTTP/1.1 201 "), created);
+        String location = header(created, "Location");
+        String id = location.substring("/uploads/".length());
+        assertTrue(body(created).contains("\"chunks\":5"), created);
+
+        // Chunks out of order and at once
+        CompletableFuture<?>[] sent = new CompletableFuture<?>[3];
+        int[] first = {4, 0, 2};
+        for (int i = 0; i < first.length; i++) {
+            int index = first[i];
+            sent[i] = CompletableFuture.supplyAsync(() -> {
+                try {
+                    String response = putChunk(id, index, blend, 65536);
+                    assertTrue(response.startsWith("HTTP/1.1 204 "), response);
+                    return response;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        CompletableFuture.allOf(sent).get();
+
+        // The link drops half way through a chunk
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write(("PUT " + location + "/1 HTTP/1.1\r\nContent-Length: 65536\r\n\r\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().write(blend, 65536, 1000);
+            socket.getOutputStream().flush();
+        }
+
+        String status = call("GET", location);
+        for (int i = 0; i < 50 && !body(status).contains("\"missing\":[1,3]"); i++) {
+            Thread.sleep(20);
+            status = call("GET", location);
+        }
+        assertTrue(body(status).contains("\"received\":3,\"missing\":[1,3]"), status);
+        String early = call("POST", location);
+        assertTrue(early.startsWith("HTTP/1.1 409 "), early);
+        assertTrue(body(early).contains("\"missing\":[1,3]"), early);
+
+        assertTrue(putChunk(id, 1, blend, 65536).startsWith("HTTP/1.1 204 "));
+        assertTrue(putChunk(id, 3, blend, 65536).startsWith("HTTP/1.1 204 "));
+        String wrongLength = exchange("PUT " + location + "/3 HTTP/1.1\r\nConnection: close\r\nContent-Length: 5\r\n\r\nshort");
+        assertTrue(wrongLength.startsWith("HTTP/1.1 400 "), wrongLength);
+
+        String accepted = call("POST", location + "?frame=3");
+        assertTrue(accepted.startsWith("HTTP/1.1 202 "), accepted);
+        assertTrue(header(accepted, "Location").startsWith("/jobs/"), accepted);
+        assertTrue(call("GET", location).startsWith("HTTP/1.1 404 "));
+
+        Path stored = directory.resolve(sha256(blend) + ".blend");
+        assertArrayEquals(blend, Files.readAllBytes(stored));
+        Path partial = directory.resolve("partial");
+        assertEquals(0, partial.toFile().listFiles().length);
+
+        // Contents not matching the announced hash are refused and deleted
+        byte[] small = Arrays.copyOf(blend, 1000);
+        String mismatch = call("POST", "/uploads?service=blender-farm&name=scene.blend&size=1000&sha256=" + sha256(blend));
+        String mismatchId = header(mismatch, "Location").substring("/uploads/".length());
+        assertTrue(putChunk(mismatchId, 0, small, 65536).startsWith("HTTP/1.1 204 "));
+        String refused = call("POST", "/uploads/" + mismatchId);
+        assertTrue(refused.startsWith("HTTP/1.1 400 "), refused);
+        assertEquals(0, partial.toFile().listFiles().length);
+
+        Files.delete(stored);
+        Files.delete(partial);
+        Files.delete(directory);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testSynchronousServiceRunsAsJob(String transport) throws Exception {
+        CodaApplication app = new CodaApplication();
+        startServer(transport, app, constantService("Greeter", "hello"));
+
+        String submitted = call("POST", "/jobs/greeter");
+        assertTrue(submitted.startsWith("HTTP/1.1 202 "), submitted);
+        String location = header(submitted, "Location");
+        assertTrue(body(submitted).contains("\"status\":\"done\""), submitted);
+
+        String result = call("GET", location + "/result");
+        assertTrue(result.startsWith("HTTP/1.1 200 "), result);
+        assertEquals("hello", body(result));
+        assertTrue(call("POST", "/jobs/unknown").startsWith("HTTP/1.1 404 "));
+        assertTrue(call("GET", "/jobs/unknown").startsWith("HTTP/1.1 404 "));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testFutureOutputIsPolledAsJob(String transport) throws Exception {
+        CompletableFuture<String> output = new CompletableFuture<>();
+        CodaApplication app = new CodaApplication();
+        startServer(transport, app, new WebPageServiceBuilder<Object, CompletableFuture<String>>()
+                .setTitle("Slow")
+                .setService(input -> output)
+                .build());
+
+        String location = header(call("POST", "/jobs/slow"), "Location");
+        String pending = call("GET", location + "/result");
+        assertTrue(pending.startsWith("HTTP/1.1 202 "), pending);
+        assertTrue(body(pending).contains("\"status\":\"pending\""), pending);
+
+        output.complete("finished");
+        String status = call("GET", location);
+        assertTrue(body(status).contains("\"status\":\"done\",") && body(status).contains("\"result\":\"finished\""), status);
+        assertEquals("finished", body(call("GET", location + "/result")));
+        assertTrue(call("DELETE", location).startsWith("HTTP/1.1 409 "));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testJobsCanBeCancelledAndTimeOut(String transport) throws Exception {
+        CodaApplication app = new CodaApplication();
+        createServer(app, ServerConfig.defaults()
+                .with("coda.server.transport", transport)
+                .with("coda.jobs.timeoutSeconds", "1"));
+        CompletableFuture<String> cancelled = new CompletableFuture<>();
+        CompletableFuture<String> forgotten = new CompletableFuture<>();
+        AtomicInteger calls = new AtomicInteger();
+        app.addService(new WebPageServiceBuilder<Object, CompletableFuture<String>>()
+                .setTitle("Never")
+                .setService(input -> calls.getAndIncrement() == 0 ? cancelled : forgotten)
+                .build());
+        runServer();
+
+        String first = header(call("POST", "/jobs/never"), "Location");
+        String second = header(call("POST", "/jobs/never"), "Location");
+
+        assertTrue(call("DELETE", first).startsWith("HTTP/1.1 200 "));
+        assertTrue(cancelled.isCancelled());
+        assertTrue(call("GET", first + "/result").startsWith("HTTP/1.1 409 "));
+
+        Thread.sleep(1500);
+        String timedOut = call("GET", second + "/result");
+        assertTrue(timedOut.startsWith("HTTP/1.1 504 "), timedOut);
+        assertTrue(body(timedOut).contains("\"status\":\"timed-out\""), timedOut);
+        assertTrue(forgotten.isCompletedExceptionally());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testEventStreamPushesJobChanges(String transport) throws Exception {
+        CompletableFuture<String> output = new CompletableFuture<>();
+        CodaApplication app = new CodaApplication();
+        startServer(transport, app, constantService("Greeter", "hello"),
+                new WebPageServiceBuilder<Object, CompletableFuture<String>>()
+                        .setTitle("Slow")
+                        .setService(input -> output)
+                        .build());
+
+        String head = exchange("HEAD /events HTTP/1.1\r\n\r\n");
+        assertTrue(head.startsWith("HTTP/1.1 200 ") && body(head).isEmpty(), head);
+
+        try (Socket all = subscribe("/events", "")) {
+            String slow = header(call("POST", "/jobs/slow"), "Location").substring("/jobs/".length());
+            try (Socket one = subscribe("/events?job=" + slow, "")) {
+                String greeter = header(call("POST", "/jobs/greeter"), "Location").substring("/jobs/".length());
+                output.complete("finished");
+
+                String events = readUntil(all.getInputStream(), "\n\n", 3);
+                String[] each = events.split("\n\n");
+                assertTrue(each[0].startsWith("id: ") && each[0].contains("event: job\n"), events);
+                assertTrue(each[0].contains("\"id\":\"" + slow + "\"") && each[0].contains("\"status\":\"pending\""), events);
+                assertTrue(each[1].contains("\"id\":\"" + greeter + "\"") && each[1].contains("\"result\":\"hello\""), events);
+                assertTrue(each[2].contains("\"id\":\"" + slow + "\"") && each[2].contains("\"result\":\"finished\""), events);
+
+                // Only the subscribed job's events, from when it subscribed
+                String filtered = readUntil(one.getInputStream(), "\n\n", 1);
+                assertTrue(filtered.contains("\"id\":\"" + slow + "\"") && filtered.contains("\"status\":\"done\""), filtered);
+
+                // A reconnecting client gets what it missed
+                String firstId = each[0].substring("id: ".length(), each[0].indexOf('\n'));
+                try (Socket again = subscribe("/events", "Last-Event-ID: " + firstId + "\r\n")) {
+                    String missed = readUntil(again.getInputStream(), "\n\n", 2);
+                    assertEquals(events.substring(each[0].length() + 2), missed);
+                }
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testFileOutputsAreServedWithRangesAndRevalidation(String transport) throws Exception {
+        Path image = Files.createTempFile("coda-render", ".png");
+        try {
+            byte[] bytes = new byte[3 * 1024 * 1024];
+            new Random(7).nextBytes(bytes);
+            Files.write(image, bytes);
+            CodaApplication app = new CodaApplication();
+            startServer(transport, app, new WebPageServiceBuilder<Object, File>()
+                    .setTitle("Image")
+                    .setService(input -> image.toFile())
+                    .build());
+
+            String result = header(call("POST", "/jobs/image"), "Location") + "/result";
+            byte[] full = exchangeBytes("GET " + result + " HTTP/1.1\r\nConnection: close\r\n\r\n");
+            String head = new String(full, StandardCharsets.ISO_8859_1);
+            assertTrue(head.startsWith("HTTP/1.1 200 "), head.substring(0, 200));
+            assertEquals("image/png", header(head, "Content-Type"));
+            assertEquals(String.valueOf(bytes.length), header(head, "Content-Length"));
+            assertEquals("bytes", header(head, "Accept-Ranges"));
+            assertArrayEquals(bytes, bodyBytes(full));
+            String etag = header(head, "ETag");
+            String lastModified = header(head, "Last-Modified");
+
+            byte[] partial = exchangeBytes("GET " + result + " HTTP/1.1\r\nRange: bytes=10-19\r\nConnection: close\r\n\r\n");
+            String partialHead = new String(partial, StandardCharsets.ISO_8859_1);
+            assertTrue(partialHead.startsWith("HTTP/1.1 206 "), partialHead);
+            assertEquals("bytes 10-19/" + bytes.length, header(partialHead, "Content-Range"));
+            assertArrayEquals(Arrays.copyOfRange(bytes, 10, 20), bodyBytes(partial));
+
+            byte[] suffix = exchangeBytes("GET " + result + " HTTP/1.1\r\nRange: bytes=-5\r\nConnection: close\r\n\r\n");
+            assertArrayEquals(Arrays.copyOfRange(bytes, bytes.length - 5, bytes.length), bodyBytes(suffix));
+
+            String outside = exchange("GET " + result + " HTTP/1.1\r\nRange: bytes=" + bytes.length + "-\r\nConnection: close\r\n\r\n");
+            assertTrue(outside.startsWith("HTTP/1.1 416 "), outside);
+            assertEquals("bytes */" + bytes.length, header(outside, "Content-Range"));
+
+            String stale = exchange("GET " + result + " HTTP/1.1\r\nRange: bytes=0-9\r\nIf-Range: \"old\"\r\nConnection: close\r\n\r\n");
+            assertTrue(stale.startsWith("HTTP/1.1 200 "), stale.substring(0, 100));
+
+            String byTag = exchange("GET " + result + " HTTP/1.1\r\nIf-None-Match: " + etag + "\r\nConnection: close\r\n\r\n");
+            assertTrue(byTag.startsWith("HTTP/1.1 304 ") && body(byTag).isEmpty(), byTag);
+            String byDate = exchange("GET " + result + " HTTP/1.1\r\nIf-Modified-Since: " + lastModified + "\r\nConnection: close\r\n\r\n");
+            assertTrue(byDate.startsWith("HTTP/1.1 304 "), byDate);
+
+            // The connection carries on after a file body
+            String pipelined = exchange("GET " + result + " HTTP/1.1\r\nRange: bytes=0-3\r\n\r\n"
+                    + "HEAD " + result + " HTTP/1.1\r\nConnection: close\r\n\r\n");
+            assertEquals(2, count(pipelined, "HTTP/1.1 "), pipelined);
+            assertTrue(pipelined.contains("HTTP/1.1 200 "), pipelined);
+        } finally {
+            Files.deleteIfExists(image);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testRenderedImageServesTheLatestJob(String transport) throws Exception {
+        Path image = Files.createTempFile("coda-render", ".png");
+        try {
+            Files.write(image, "not really a png".getBytes(StandardCharsets.UTF_8));
+            CodaApplication app = new CodaApplication();
+            startServer(transport, app, new WebPageServiceBuilder<Object, CompletableFuture<File>>()
+                    .setTitle("Later")
+                    .setService(input -> CompletableFuture.completedFuture(image.toFile()))
+                    .build());
+
+            String cookie = sessionCookie(exchange("GET /later HTTP/1.1\r\nConnection: close\r\n\r\n"));
+            String accepted = exchange("POST /rendered-image HTTP/1.1\r\nCookie: " + cookie + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+            assertTrue(accepted.startsWith("HTTP/1.1 202 "), accepted);
+
+            String latest = exchange("GET /rendered-image HTTP/1.1\r\nCookie: " + cookie + "\r\nConnection: close\r\n\r\n");
+            assertTrue(latest.startsWith("HTTP/1.1 200 "), latest);
+            assertEquals("image/png", header(latest, "Content-Type"));
+            assertEquals("not really a png", body(latest));
+        } finally {
+            Files.deleteIfExists(image);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testClientOverRateLimitIsRefused(String transport) throws Exception {
+        CodaApplication app = new CodaApplication();
+        createServer(app, ServerConfig.defaults()
+                .with("coda.server.transport", transport)
+                .with("coda.admission.ratePerSecond", "1")
+                .with("coda.admission.burst", "3"));
+        app.addService(constantService("Alpha", "alpha"));
+        runServer();
+
+        for (int i = 0; i < 3; i++) {
+            String response = call("GET", "/alpha");
+            assertTrue(response.startsWith("HTTP/1.1 200 "), response);
+        }
+        String limited = call("GET", "/alpha");
+        assertTrue(limited.startsWith("HTTP/1.1 429 "), limited);
+        assertEquals("1", header(limited, "Retry-After"));
+
+        // A token is earned back each second
+        Thread.sleep(1100);
+        assertTrue(call("GET", "/alpha").startsWith("HTTP/1.1 200 "));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testExpensiveServiceHasItsOwnBudget(String transport) throws Exception {
+        CodaApplication app = new CodaApplication();
+        createServer(app, ServerConfig.defaults()
+                .with("coda.server.transport", transport)
+                .with("coda.admission.expensive.perMinute", "2")
+                .with("coda.admission.expensive.burst", "2"));
+        app.addService(new WebPageServiceBuilder<Object, String>()
+                .setTitle("Render")
+                .setService(input -> "rendered")
+                .setExpensive(true)
+                .build());
+        app.addService(constantService("Alpha", "alpha"));
+        runServer();
+
+        assertTrue(call("POST", "/jobs/render").startsWith("HTTP/1.1 202 "));
+        assertTrue(call("POST", "/jobs/render").startsWith("HTTP/1.1 202 "));
+        String limited = call("POST", "/jobs/render");
+        assertTrue(limited.startsWith("HTTP/1.1 429 "), limited);
+        int retryAfter = Integer.parseInt(header(limited, "Retry-After"));
+        assertTrue(retryAfter > 1 && retryAfter <= 30, limited);
+
+        // Other services are still answered
+        assertTrue(call("POST", "/jobs/alpha").startsWith("HTTP/1.1 202 "));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testRequestsBeyondInFlightLimitAreShed(String transport) throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CodaApplication app = new CodaApplication();
+        createServer(app, ServerConfig.defaults()
+                .with("coda.server.transport", transport)
+                .with("coda.admission.maxRequests", "1"));
+        app.addService(new WebPageServiceBuilder<Object, String>()
+                .setTitle("Slow")
+                .setService(input -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return "slow";
+                })
+                .build());
+        runServer();
+
+        CompletableFuture<String> slow = CompletableFuture.supplyAsync(() -> {
+            try {
+                return call("POST", "/jobs/slow");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        String shed = call("GET", "/slow");
+        assertTrue(shed.startsWith("HTTP/1.1 503 "), shed);
+        assertEquals("1", header(shed, "Retry-After"));
+
+        release.countDown();
+        assertTrue(slow.get(5, TimeUnit.SECONDS).startsWith("HTTP/1.1 202 "));
+        assertTrue(call("GET", "/slow").startsWith("HTTP/1.1 200 "));
+    }
+
+    @Test
+    public void testNioLoopAnswersWhenEveryThreadIsTaken() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CodaApplication app = new CodaApplication();
+        createServer(app, ServerConfig.defaults()
+                .with("coda.server.transport", "nio")
+                .with("coda.server.nio.loops", "1")
+                .with("coda.server.maxConnections", "1"));
+        app.addService(new WebPageServiceBuilder<Object, String>()
+                .setTitle("Slow")
+                .setService(input -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return "slow";
+                })
+                .build());
+        app.addService(constantService("Alpha", "alpha"));
+        runServer();
+
+        CompletableFuture<String> slow = CompletableFuture.supplyAsync(() -> {
+            try {
+                return call("POST", "/jobs/slow");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // The only thread is taken, yet the loop answers at once and keeps the connection
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write("GET /alpha HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String refused = readUntil(socket.getInputStream(), "\r\n\r\n", 1);
+            assertTrue(refused.startsWith("HTTP/1.1 503 "), refused);
+            assertEquals("1", header(refused, "Retry-After"));
+            assertEquals("keep-alive", header(refused, "Connection"));
+
+            release.countDown();
+            assertTrue(slow.get(5, TimeUnit.SECONDS).startsWith("HTTP/1.1 202 "));
+            out.write("GET /alpha HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String rest = new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            assertTrue(rest.contains("HTTP/1.1 200 "), rest);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testConnectionsBeyondLimitAreRefused(String transport) throws Exception {
+        CodaApplication app = new CodaApplication();
+        createServer(app, ServerConfig.defaults()
+                .with("coda.server.transport", transport)
+                .with("coda.admission.maxConnections", "1"));
+        app.addService(constantService("Alpha", "alpha"));
+        runServer();
+        // Wait for the probe connection of runServer to be closed
+        Thread.sleep(200);
+
+        try (Socket held = new Socket("localhost", port)) {
+            held.setSoTimeout(5000);
+            held.getOutputStream().write("GET /alpha HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            assertTrue(readUntil(held.getInputStream(), "\r\n\r\n", 1).startsWith("HTTP/1.1 200 "));
+
+            String refused = call("GET", "/alpha");
+            assertTrue(refused.startsWith("HTTP/1.1 503 "), refused);
+            assertEquals("1", header(refused, "Retry-After"));
+        }
+        Thread.sleep(200);
+        assertTrue(call("GET", "/alpha").startsWith("HTTP/1.1 200 "));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testMetricsCountRequestsPerEndpointAndService(String transport) throws Exception {
+        startServer(transport, new CodaApplication(), constantService("Alpha", "alpha"));
+
+        assertTrue(call("GET", "/alpha").startsWith("HTTP/1.1 200 "));
+        assertTrue(call("GET", "/alpha").startsWith("HTTP/1.1 200 "));
+        assertTrue(call("POST", "/jobs/alpha").startsWith("HTTP/1.1 202 "));
+        assertTrue(call("GET", "/jobs/unknown").startsWith("HTTP/1.1 404 "));
+        assertTrue(exchange("GET /alpha HTTP/1.1\r\nBad Header\r\n\r\n").startsWith("HTTP/1.1 400 "));
+
+        String response = call("GET", "/metrics");
+        assertTrue(response.startsWith("HTTP/1.1 200 "), response);
+        assertEquals("text/plain; version=0.0.4; charset=utf-8", header(response, "Content-Type"));
+        String metrics = body(response);
+        assertTrue(metrics.contains("\ncoda_http_requests_total{endpoint=\"page\",service=\"alpha\",code=\"2xx\"} 2\n"), metrics);
+        assertTrue(metrics.contains("\ncoda_http_requests_total{endpoint=\"jobs\",service=\"alpha\",code=\"2xx\"} 1\n"), metrics);
+        assertTrue(metrics.contains("\ncoda_http_requests_total{endpoint=\"jobs\",service=\"\",code=\"4xx\"} 1\n"), metrics);
+        assertTrue(metrics.contains("\ncoda_http_errors_total{endpoint=\"page\",service=\"alpha\"} 0\n"), metrics);
+        assertTrue(metrics.contains("\ncoda_http_malformed_requests_total 1\n"), metrics);
+        assertTrue(metrics.contains("\ncoda_http_service_seconds_count{endpoint=\"jobs\",service=\"alpha\"} 1\n"), metrics);
+        assertTrue(metrics.contains("\ncoda_http_parse_seconds_count{endpoint=\"page\",service=\"alpha\"} 2\n"), metrics);
+        for (String quantile : new String[]{"0.5", "0.99", "0.999"}) {
+            assertTrue(metrics.matches("(?s).*\ncoda_http_write_seconds\\{endpoint=\"page\",service=\"alpha\",quantile=\""
+                    + quantile + "\"} 0\\.\\d{9}\n.*"), metrics);
+        }
+        long sent = 0;
+        for (String line : metrics.split("\n")) {
+            if (line.startsWith("coda_http_sent_bytes_total{endpoint=\"page\",service=\"alpha\"} ")) {
+                sent = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+            }
+        }
+        assertTrue(sent > 2 * "HTTP/1.1 200 OK\r\n".length(), metrics);
+        assertTrue(metrics.contains("\n# TYPE coda_admission_connections gauge\n"), metrics);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testAccessLogWritesOneLinePerRequest(String transport) throws Exception {
+        Path log = Files.createTempDirectory("coda-logs").resolve("access.log");
+        ServerConfig config = ServerConfig.defaults()
+                .with("coda.server.transport", transport)
+                .with("coda.accessLog.file", log.toString())
+                .with("coda.accessLog.maxFileBytes", "400")
+                .with("coda.accessLog.maxFiles", "1");
+        CodaApplication app = new CodaApplication();
+        createServer(app, config);
+        app.addService(constantService("Alpha", "alpha"));
+        runServer();
+
+        assertTrue(call("GET", "/alpha").startsWith("HTTP/1.1 200 "));
+        assertTrue(call("GET", "/jobs/unknown").startsWith("HTTP/1.1 404 "));
+        // Stopping writes what is still buffered
+        server.stop();
+        serverThread.join(5000);
+
+        List<String> lines = Files.readAllLines(log);
+        assertEquals(2, lines.size(), lines.toString());
+        assertTrue(lines.get(0).matches("\\{\"time\":\"[^\"]+Z\",\"client\":\"127\\.0\\.0\\.1\",\"method\":\"GET\","
+                + "\"path\":\"/alpha\",\"status\":200,\"bytesIn\":0,\"bytesOut\":\\d+,\"micros\":\\d+,\"service\":\"alpha\"}"),
+                lines.get(0));
+        assertTrue(lines.get(1).contains("\"path\":\"/jobs/unknown\",\"status\":404,"), lines.get(1));
+
+        // A full file is rotated, keeping one old file
+        for (int i = 0; i < 6; i++) {
+            createServer(app, config);
+            runServer();
+            assertTrue(call("GET", "/alpha").startsWith("HTTP/1.1 200 "));
+            server.stop();
+            serverThread.join(5000);
+        }
+        assertTrue(Files.exists(log.resolveSibling("access.log.1")));
+        assertFalse(Files.exists(log.resolveSibling("access.log.2")));
+        assertTrue(Files.size(log) < 400 + 300, String.valueOf(Files.size(log)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testBatchRunsServiceOnEachLine(String transport) throws Exception {
+        startServer(transport);
+
+        String body = "1\n2\n\n30\n";
+        String response = exchange("POST /batch/adder HTTP/1.1\r\nConnection: close\r\nContent-Length: " + body.length()
+                + "\r\n\r\n" + body);
+        assertTrue(response.startsWith("HTTP/1.1 200 "), response);
+        assertEquals("application/json", header(response, "Content-Type"));
+        assertEquals("[\"11\",\"12\",\"40\"]", body(response));
+
+        String bad = exchange("POST /batch/adder HTTP/1.1\r\nConnection: close\r\nContent-Length: 6\r\n\r\n1\nten\n");
+        assertTrue(bad.startsWith("HTTP/1.1 400 "), bad);
+
+        // The blender farm takes no batches
+        assertTrue(call("POST", "/batch/blender-farm").startsWith("HTTP/1.1 404 "));
+        assertTrue(call("GET", "/batch/adder").startsWith("HTTP/1.1 404 "));
+    }
+}
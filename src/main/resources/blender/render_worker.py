@@ -0,0 +1,65 @@
+# Render worker run inside Blender by BlenderProcessPool:
+#   blender --background --factory-startup --disable-autoexec --python render_worker.py
+# Reads one tab-separated command per line on stdin and answers with a line starting with
+# "@coda " on stdout; everything else Blender prints is logged by the server. The loaded scene
+# is kept between commands, so further frames of the same file skip loading it. Exits when
+# stdin closes.
+#
+#   RENDER <blend file> <frame> <output png> <width> <height> <engine>
+#                                             ->  OK <output png> | ERROR <message>
+#   (a width and height of 0 and an empty engine keep the scene's own settings)
+#   PING                                      ->  PONG
+#   QUIT
+
+import sys
+
+import bpy
+
+
+def reply(*fields):
+    sys.stdout.write("@coda " + "\t".join(str(field) for field in fields) + "\n")
+    sys.stdout.flush()
+
+
+def render(blend, frame, output, width, height, engine, loaded):
+    if blend != loaded:
+        bpy.ops.wm.open_mainfile(filepath=blend)
+    scene = bpy.context.scene
+    scene.frame_set(frame)
+    if width and height:
+        scene.render.resolution_x = width
+        scene.render.resolution_y = height
+        scene.render.resolution_percentage = 100
+    if engine:
+        scene.render.engine = engine
+    scene.render.filepath = output
+    scene.render.use_file_extension = False
+    scene.render.image_settings.file_format = "PNG"
+    bpy.ops.render.render(write_still=True)
+
+
+def main():
+    loaded = None
+    reply("READY")
+    for line in sys.stdin:
+        fields = line.rstrip("\r\n").split("\t")
+        command = fields[0]
+        if command == "PING":
+            reply("PONG")
+        elif command == "QUIT":
+            break
+        elif command == "RENDER" and len(fields) == 7:
+            try:
+                render(fields[1], int(fields[2]), fields[3], int(fields[4]), int(fields[5]), fields[6], loaded)
+                # Settings changed above stay with the loaded scene; reload before rendering it differently
+                loaded = fields[1] if not (int(fields[4]) or fields[6]) else None
+                reply("OK", fields[3])
+            except Exception as e:
+                # The scene may be half loaded; load it afresh next time
+                loaded = None
+                reply("ERROR", " ".join(str(e).split()))
+        else:
+            reply("ERROR", "Unknown command " + command)
+
+
+main()